@@ -12,6 +12,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geoserver.flow.config.DefaultControlFlowConfigurator;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.HttpErrorCodeException;
 import org.geoserver.ows.Request;
@@ -30,7 +31,7 @@ import org.springframework.context.ApplicationContextAware;
  * @author Andrea Aime - OpenGeo
  */
 public class ControlFlowCallback extends AbstractDispatcherCallback implements
-        ApplicationContextAware {
+        ApplicationContextAware, ControlFlowMXBean {
     static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
 
     static ThreadLocal<List<FlowController>> REQUEST_CONTROLLERS = new ThreadLocal<List<FlowController>>();
@@ -60,6 +61,20 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
         return runningRequests.get();
     }
 
+    /**
+     * Returns the statistics of the flow controllers tracking queue depth, wait time and
+     * rejections
+     */
+    public List<FlowStatistics> getControllerStatistics() {
+        List<FlowStatistics> result = new ArrayList<FlowStatistics>();
+        for (FlowController controller : controllers) {
+            if (controller instanceof AdaptiveFlowController) {
+                result.addAll(((AdaptiveFlowController) controller).getStatistics());
+            }
+        }
+        return result;
+    }
+
     public void finished(Request request) {
         if(SENTINEL.isOutermostRequest() && REQUEST_CONTROLLERS.get() != null) {
             runningRequests.decrementAndGet();
@@ -107,7 +122,8 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
                     for (FlowController flowController : controllers) {
                         if(timeout > 0) {
                             long maxWait = maxTime - System.currentTimeMillis();
-                            if(!flowController.requestIncoming(request, maxWait)) 
+                            // the controllers would take a non positive timeout as no timeout
+                            if(maxWait <= 0 || !flowController.requestIncoming(request, maxWait)) 
                                 throw new HttpErrorCodeException(503, "Requested timeout out while waiting to be executed");
                          } else {
                             flowController.requestIncoming(request, -1);
@@ -0,0 +1,28 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow;
+
+import java.util.List;
+
+/**
+ * JMX management interface for the {@link ControlFlowCallback}
+ */
+public interface ControlFlowMXBean {
+
+    /**
+     * The current number of blocked/queued requests
+     */
+    long getBlockedRequests();
+
+    /**
+     * The current number of running requests
+     */
+    long getRunningRequests();
+
+    /**
+     * The queue depth, wait time and rejections of the flow controllers that keep track of them
+     */
+    List<FlowStatistics> getControllerStatistics();
+}
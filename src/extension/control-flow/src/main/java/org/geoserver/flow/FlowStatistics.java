@@ -0,0 +1,114 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow;
+
+/**
+ * A snapshot of the activity of a flow controller queue, as exposed via JMX by the
+ * {@link ControlFlowCallback}
+ */
+public class FlowStatistics {
+
+    String controller;
+
+    String queue;
+
+    int limit;
+
+    int running;
+
+    int queued;
+
+    long admitted;
+
+    long rejected;
+
+    double averageWaitTime;
+
+    long maxWaitTime;
+
+    public FlowStatistics(String controller, String queue, int limit, int running, int queued,
+            long admitted, long rejected, double averageWaitTime, long maxWaitTime) {
+        this.controller = controller;
+        this.queue = queue;
+        this.limit = limit;
+        this.running = running;
+        this.queued = queued;
+        this.admitted = admitted;
+        this.rejected = rejected;
+        this.averageWaitTime = averageWaitTime;
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    /**
+     * The flow controller description
+     */
+    public String getController() {
+        return controller;
+    }
+
+    /**
+     * The queue description, e.g., the priority class name
+     */
+    public String getQueue() {
+        return queue;
+    }
+
+    /**
+     * The current concurrency limit of the controller
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * The number of requests currently executing
+     */
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * The number of requests currently waiting in the queue
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * The number of requests that have been allowed to execute
+     */
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * The number of requests that timed out while waiting in the queue
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * The average time, in milliseconds, admitted requests waited in the queue
+     */
+    public double getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    /**
+     * The max time, in milliseconds, a request waited in the queue
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowStatistics(" + controller + "," + queue + ", limit=" + limit + ", running="
+                + running + ", queued=" + queued + ", admitted=" + admitted + ", rejected="
+                + rejected + ", averageWaitTime=" + averageWaitTime + ", maxWaitTime="
+                + maxWaitTime + ")";
+    }
+}
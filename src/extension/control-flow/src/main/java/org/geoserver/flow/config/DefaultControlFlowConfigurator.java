@@ -14,6 +14,8 @@ import java.util.logging.Logger;
 import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.flow.ControlFlowConfigurator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController.PriorityClass;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.flow.controller.IpFlowController;
@@ -59,6 +61,8 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
         Properties p = configFile.getProperties();
         List<FlowController> newControllers = new ArrayList<FlowController>();
+        int[] adaptiveLimits = null;
+        List<PriorityClass> priorityClasses = new ArrayList<PriorityClass>();
         for (Object okey : p.keySet()) {
             String key = ((String) okey).trim();
             String value = (String) p.get(okey);
@@ -66,6 +70,23 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
             String[] keys = key.split("\\s*\\.\\s*");
 
+            // the adaptive controller rules are collected and used once all the keys are parsed
+            if ("adaptive".equals(keys[0])) {
+                try {
+                    if (keys.length == 1) {
+                        adaptiveLimits = parseAdaptiveLimits(value);
+                    } else if (keys.length >= 3 && "priority".equals(keys[1])) {
+                        priorityClasses.add(parsePriorityClass(key, keys, value));
+                    } else {
+                        LOGGER.severe("Could not parse rule '" + okey + "=" + value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOGGER.severe("Could not parse rule '" + okey + "=" + value + "': "
+                            + e.getMessage());
+                }
+                continue;
+            }
+
             int queueSize = 0;
             StringTokenizer tokenizer = new StringTokenizer(value, ",");
             try {
@@ -120,9 +141,58 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
             }
         }
 
+        if (adaptiveLimits != null) {
+            try {
+                newControllers.add(new AdaptiveFlowController(adaptiveLimits[0],
+                        adaptiveLimits[1], adaptiveLimits[2], priorityClasses));
+            } catch (IllegalArgumentException e) {
+                LOGGER.severe("Could not build the adaptive flow controller: " + e.getMessage());
+            }
+        } else if (priorityClasses.size() > 0) {
+            LOGGER.severe("Priority classes have been configured, but the adaptive controller "
+                    + "is missing, please add a adaptive=<initial>,<min>,<max> rule");
+        }
+
         return newControllers;
     }
 
+    /**
+     * Parses the <code>initial,min,max</code> limits of the adaptive controller. If only one value
+     * is provided it is used as the max limit, starting from half of it
+     */
+    int[] parseAdaptiveLimits(String value) {
+        String[] values = value.trim().split("\\s*,\\s*");
+        if (values.length == 1) {
+            int max = Integer.parseInt(values[0]);
+            return new int[] { Math.max(1, max / 2), 1, max };
+        } else if (values.length == 3) {
+            return new int[] { Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    Integer.parseInt(values[2]) };
+        } else {
+            throw new IllegalArgumentException("expected <initial>,<min>,<max>");
+        }
+    }
+
+    /**
+     * Parses a <code>adaptive.priority.service[.request[.outputFormat]]=weight</code> rule
+     */
+    PriorityClass parsePriorityClass(String key, String[] keys, String value) {
+        String service = keys[2];
+        String method = keys.length > 3 ? keys[3] : null;
+        String outputFormat = null;
+        if (keys.length > 4) {
+            // output formats can contain dots
+            StringBuilder sb = new StringBuilder(keys[4]);
+            for (int i = 5; i < keys.length; i++) {
+                sb.append('.').append(keys[i]);
+            }
+            outputFormat = sb.toString();
+        }
+        int weight = Integer.parseInt(value.trim());
+        return new PriorityClass(key.substring("adaptive.priority.".length()), service, method,
+                outputFormat, weight);
+    }
+
     public boolean isStale() {
         return configFile.isStale();
     }
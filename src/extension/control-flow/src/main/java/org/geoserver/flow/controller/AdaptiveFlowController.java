@@ -0,0 +1,536 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.flow.FlowStatistics;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller matching all requests whose concurrency limit is not fixed, but adjusted
+ * based on the observed request latency, and that lets the queued requests go according to the
+ * weight of their priority class.
+ * <p>
+ * The limit is managed with an additive increase, multiplicative decrease approach: it grows by
+ * one every <code>limit</code> completed requests as long as the recent latency stays close to
+ * the baseline one, and it's cut by {@link #getBackoff()} as soon as the recent latency grows
+ * beyond {@link #getTolerance()} times the baseline, that is, when the backend starts to
+ * saturate. The baseline is a slow moving average of the latency, so that a sustained change in
+ * the backend performance eventually becomes the new normal.
+ * </p>
+ * <p>
+ * Queued requests are released using weighted fair queueing among the configured
+ * {@link PriorityClass}es: a class with weight 10 gets ten slots for each one given to a class
+ * with weight 1, when both have requests waiting.
+ * </p>
+ */
+public class AdaptiveFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Weight of the last sample in the recent latency average
+     */
+    static final double RECENT_WEIGHT = 0.1;
+
+    /**
+     * Weight of the last sample in the baseline latency average
+     */
+    static final double BASELINE_WEIGHT = 0.005;
+
+    /**
+     * Number of samples collected before the limit starts to change
+     */
+    static final int WARMUP_SAMPLES = 10;
+
+    /**
+     * The name of the class collecting the requests not matching any configured one
+     */
+    public static final String DEFAULT_CLASS = "default";
+
+    int minLimit;
+
+    int maxLimit;
+
+    /**
+     * The concurrency limit, updated under the lock, read without it by {@link #getLimit()}
+     */
+    volatile double limit;
+
+    double tolerance = 2;
+
+    double backoff = 0.9;
+
+    /**
+     * Recent and baseline latency averages, in nanoseconds
+     */
+    double recentLatency;
+
+    double baselineLatency;
+
+    long samples;
+
+    long lastDecrease;
+
+    final List<ClassQueue> queues;
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The requests currently executing, with their admission time
+     */
+    final Map<Request, Long> running = new IdentityHashMap<Request, Long>();
+
+    int waiting;
+
+    /**
+     * The virtual time of the weighted fair queueing, that is, the tag of the last released
+     * request
+     */
+    double virtualTime;
+
+    /**
+     * Builds a controller without priority classes
+     *
+     * @param initialLimit the concurrency limit used at startup
+     * @param minLimit the concurrency limit will never go below this value
+     * @param maxLimit the concurrency limit will never go above this value
+     */
+    public AdaptiveFlowController(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, Collections.<PriorityClass> emptyList());
+    }
+
+    /**
+     * Builds a controller with the specified priority classes
+     *
+     * @param initialLimit the concurrency limit used at startup
+     * @param minLimit the concurrency limit will never go below this value
+     * @param maxLimit the concurrency limit will never go above this value
+     * @param classes the priority classes, requests not matching any of them will be put in a
+     *        default class with weight 1
+     */
+    public AdaptiveFlowController(int initialLimit, int minLimit, int maxLimit,
+            List<PriorityClass> classes) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits, the min limit must be positive "
+                    + "and not greater than the max one: " + minLimit + "," + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+
+        // the most specific classes get checked first
+        List<PriorityClass> sorted = new ArrayList<PriorityClass>(classes);
+        Collections.sort(sorted, new Comparator<PriorityClass>() {
+
+            public int compare(PriorityClass c1, PriorityClass c2) {
+                return c2.getSpecificity() - c1.getSpecificity();
+            }
+        });
+        queues = new ArrayList<ClassQueue>(sorted.size() + 1);
+        for (PriorityClass pc : sorted) {
+            queues.add(new ClassQueue(pc));
+        }
+        queues.add(new ClassQueue(new PriorityClass(DEFAULT_CLASS, null, null, null, 1)));
+    }
+
+    /**
+     * Admits the request, or queues it until the limit allows it to run. The request is rejected
+     * once the timeout expires, a timeout that is not positive means no timeout, as for the other
+     * controllers. The {@link ControlFlowCallback} never calls a controller once the request
+     * timeout is over.
+     */
+    public boolean requestIncoming(Request request, long timeout) {
+        ClassQueue queue = getQueue(request);
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (waiting == 0 && running.size() < getLimit()) {
+                running.put(request, start);
+                queue.admitted++;
+                return true;
+            }
+
+            // compute the finish tag of the request, as in weighted fair queueing
+            Waiter waiter = new Waiter(request, lock.newCondition());
+            waiter.tag = Math.max(queue.lastTag, virtualTime) + 1d / queue.priorityClass.weight;
+            queue.lastTag = waiter.tag;
+            queue.waiters.add(waiter);
+            waiting++;
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " queueing request in class " + queue.priorityClass.name
+                        + ", queue size " + waiting);
+            }
+
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (!waiter.admitted) {
+                    if (timeout > 0) {
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        remaining = waiter.condition.awaitNanos(remaining);
+                    } else {
+                        waiter.condition.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING,
+                        "Unexpected interruption while blocking on the request queue");
+                Thread.currentThread().interrupt();
+            }
+
+            long waited = System.nanoTime() - start;
+            if (waiter.admitted) {
+                queue.admitted++;
+                queue.waitTime += waited;
+                queue.maxWaitTime = Math.max(queue.maxWaitTime, waited);
+                return true;
+            } else {
+                queue.waiters.remove(waiter);
+                waiting--;
+                queue.rejected++;
+                queue.maxWaitTime = Math.max(queue.maxWaitTime, waited);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void requestComplete(Request request) {
+        lock.lock();
+        try {
+            // the request might have timed out in the queue
+            Long admitted = running.remove(request);
+            if (admitted == null) {
+                return;
+            }
+            sample(System.nanoTime() - admitted, running.size() + 1);
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the concurrency limit based on the latency of a completed request
+     *
+     * @param latency the request latency, in nanoseconds
+     * @param inFlight the number of requests running when the request completed, including it
+     */
+    void sample(long latency, int inFlight) {
+        samples++;
+        if (samples == 1) {
+            recentLatency = baselineLatency = latency;
+        } else {
+            recentLatency += (latency - recentLatency) * RECENT_WEIGHT;
+            baselineLatency += (latency - baselineLatency) * BASELINE_WEIGHT;
+            // the backend got faster, move the baseline right away
+            if (recentLatency < baselineLatency) {
+                baselineLatency = recentLatency;
+            }
+        }
+        if (samples < WARMUP_SAMPLES) {
+            return;
+        }
+
+        if (recentLatency > baselineLatency * tolerance) {
+            // back off at most once per limit worth of samples, the requests completing right
+            // after the decision were started with the old limit
+            if (samples - lastDecrease >= limit) {
+                limit = Math.max(minLimit, limit * backoff);
+                lastDecrease = samples;
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(this + " latency grew to " + (recentLatency / 1000000)
+                            + "ms, decreasing the limit to " + getLimit());
+                }
+            }
+        } else if (inFlight * 2 >= limit) {
+            // grow only if the current limit is actually being used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Lets go as many queued requests as the current limit allows, picking them in tag order
+     */
+    void release() {
+        while (waiting > 0 && running.size() < getLimit()) {
+            ClassQueue next = nextQueue();
+            Waiter waiter = next.waiters.removeFirst();
+            waiting--;
+            virtualTime = waiter.tag;
+            waiter.admitted = true;
+            running.put(waiter.request, System.nanoTime());
+            waiter.condition.signal();
+        }
+    }
+
+    /**
+     * Returns the queue holding the waiter with the lowest tag, or null if there are no waiters
+     */
+    ClassQueue nextQueue() {
+        ClassQueue next = null;
+        for (ClassQueue queue : queues) {
+            if (!queue.waiters.isEmpty()
+                    && (next == null || queue.waiters.getFirst().tag < next.waiters
+                            .getFirst().tag)) {
+                next = queue;
+            }
+        }
+        return next;
+    }
+
+    ClassQueue getQueue(Request request) {
+        for (ClassQueue queue : queues) {
+            if (queue.priorityClass.matches(request)) {
+                return queue;
+            }
+        }
+        // the default class matches everything, we should never get here
+        return queues.get(queues.size() - 1);
+    }
+
+    /**
+     * The current concurrency limit
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * The number of requests currently executing
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests currently waiting to be executed
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of requests that timed out while waiting to be executed
+     */
+    public long getRejected() {
+        lock.lock();
+        try {
+            long rejected = 0;
+            for (ClassQueue queue : queues) {
+                rejected += queue.rejected;
+            }
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the statistics of each priority class
+     */
+    public List<FlowStatistics> getStatistics() {
+        lock.lock();
+        try {
+            List<FlowStatistics> result = new ArrayList<FlowStatistics>(queues.size());
+            for (ClassQueue queue : queues) {
+                double averageWait = queue.admitted > 0 ? queue.waitTime / 1000000d
+                        / queue.admitted : 0;
+                result.add(new FlowStatistics(toString(), queue.priorityClass.toString(),
+                        getLimit(), running.size(), queue.waiters.size(), queue.admitted,
+                        queue.rejected, averageWait, queue.maxWaitTime / 1000000));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The ratio between the recent and the baseline latency that triggers a limit decrease
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        if (tolerance <= 1) {
+            throw new IllegalArgumentException("The tolerance must be greater than one");
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * The factor the limit is multiplied by when the latency grows beyond the tolerance
+     */
+    public double getBackoff() {
+        return backoff;
+    }
+
+    public void setBackoff(double backoff) {
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("The backoff must be between zero and one");
+        }
+        this.backoff = backoff;
+    }
+
+    /**
+     * Uses the max limit, the priority is not supposed to change over time
+     */
+    public int getPriority() {
+        return maxLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveFlowController(" + minLimit + "," + maxLimit + ")";
+    }
+
+    /**
+     * A class of requests, identified by service, request and output format like in
+     * {@link BasicOWSController}, associated to a weight
+     */
+    public static class PriorityClass {
+        String name;
+
+        String service;
+
+        String method;
+
+        String outputFormat;
+
+        int weight;
+
+        public PriorityClass(String name, String service, String method, String outputFormat,
+                int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Invalid weight " + weight + " for priority "
+                        + "class " + name + ", it must be a positive number");
+            }
+            if (method == null && outputFormat != null) {
+                throw new IllegalArgumentException("Invalid priority class definition, output "
+                        + "format cannot be used if method is not provided");
+            }
+            this.name = name;
+            this.service = service;
+            this.method = method;
+            this.outputFormat = outputFormat;
+            this.weight = weight;
+        }
+
+        boolean matches(Request request) {
+            if (service != null && !service.equalsIgnoreCase(request.getService()))
+                return false;
+            if (method != null && !method.equalsIgnoreCase(request.getRequest()))
+                return false;
+            if (outputFormat != null && !outputFormat.equalsIgnoreCase(request.getOutputFormat()))
+                return false;
+            return true;
+        }
+
+        int getSpecificity() {
+            return (service != null ? 1 : 0) + (method != null ? 1 : 0)
+                    + (outputFormat != null ? 1 : 0);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getOutputFormat() {
+            return outputFormat;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + weight + ")";
+        }
+    }
+
+    /**
+     * The waiting requests of a priority class, along with its statistics
+     */
+    static class ClassQueue {
+        PriorityClass priorityClass;
+
+        LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+        double lastTag;
+
+        long admitted;
+
+        long rejected;
+
+        long waitTime;
+
+        long maxWaitTime;
+
+        ClassQueue(PriorityClass priorityClass) {
+            this.priorityClass = priorityClass;
+        }
+    }
+
+    static class Waiter {
+        Request request;
+
+        Condition condition;
+
+        double tag;
+
+        boolean admitted;
+
+        Waiter(Request request, Condition condition) {
+            this.request = request;
+            this.condition = condition;
+        }
+    }
+}
@@ -57,6 +57,41 @@ public class ControlFlowCallbackTest {
         callback.finished(null);
     }
     
+    @Test
+    public void testTimeoutExpired() {
+        ControlFlowCallback callback = new ControlFlowCallback();
+        TestingConfigurator tc = new TestingConfigurator();
+        tc.timeout = 100;
+        CountingController c1 = new CountingController(1, 0) {
+            @Override
+            public boolean requestIncoming(Request request, long timeout) {
+                super.requestIncoming(request, timeout);
+                try {
+                    // use up the whole timeout
+                    Thread.sleep(150);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("This is unexpected");
+                }
+                return true;
+            }
+        };
+        CountingController c2 = new CountingController(2, 0);
+        tc.controllers.add(c1);
+        tc.controllers.add(c2);
+        callback.configurator = tc;
+
+        try {
+            callback.operationDispatched(null, null);
+            fail("A HTTP 503 should have been raised!");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(503, e.getErrorCode());
+        }
+        // the second controller would have waited with no timeout
+        assertEquals(1, c1.requestIncomingCalls);
+        assertEquals(0, c2.requestIncomingCalls);
+        callback.finished(null);
+    }
+
     @Test
     public void testFailBeforeOperationDispatch() {
         ControlFlowCallback callback = new ControlFlowCallback();
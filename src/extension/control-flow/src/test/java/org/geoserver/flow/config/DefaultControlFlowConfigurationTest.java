@@ -13,6 +13,8 @@ import java.util.Properties;
 
 import org.geoserver.flow.ControllerPriorityComparator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.FlowStatistics;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.flow.controller.IpFlowController;
@@ -68,6 +70,54 @@ public class DefaultControlFlowConfigurationTest {
         assertEquals(14, ipSc.getPriority());
     }
 
+    @Test
+    public void testParsingAdaptive() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive", "16,4,64");
+        p.put("adaptive.priority.wms.getmap", "10");
+        p.put("adaptive.priority.wfs", "1");
+        p.put("adaptive.priority.wfs.getfeature.application/vnd.google-earth.kml+xml", "2");
+        p.put("adaptive.priority.wcs", "abc");
+        p.put("user", "6");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        Collections.sort(controllers, new ControllerPriorityComparator());
+
+        assertEquals(2, controllers.size());
+        assertTrue(controllers.get(0) instanceof UserFlowController);
+        AdaptiveFlowController ac = (AdaptiveFlowController) controllers.get(1);
+        assertEquals(16, ac.getLimit());
+        assertEquals(4, ac.getMinLimit());
+        assertEquals(64, ac.getMaxLimit());
+        assertEquals(64, ac.getPriority());
+
+        // the invalid weight got skipped, the others are sorted by specificity
+        List<FlowStatistics> stats = ac.getStatistics();
+        assertEquals(4, stats.size());
+        assertEquals("wfs.getfeature.application/vnd.google-earth.kml+xml(2)", stats.get(0)
+                .getQueue());
+        assertEquals("wms.getmap(10)", stats.get(1).getQueue());
+        assertEquals("wfs(1)", stats.get(2).getQueue());
+        assertEquals("default(1)", stats.get(3).getQueue());
+    }
+
+    @Test
+    public void testParsingAdaptiveMaxOnly() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive", "20");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        AdaptiveFlowController ac = (AdaptiveFlowController) controllers.get(0);
+        assertEquals(10, ac.getLimit());
+        assertEquals(1, ac.getMinLimit());
+        assertEquals(20, ac.getMaxLimit());
+    }
+
     static class FixedWatcher extends PropertyFileWatcher {
         boolean stale = true;
 
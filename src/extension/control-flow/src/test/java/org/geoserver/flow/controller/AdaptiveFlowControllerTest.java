@@ -0,0 +1,243 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.geoserver.flow.FlowStatistics;
+import org.geoserver.flow.controller.AdaptiveFlowController.PriorityClass;
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+import org.junit.Test;
+
+public class AdaptiveFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    static final long MS = 1000000;
+
+    @Test
+    public void testLimits() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(100, 2, 20);
+        assertEquals(20, controller.getLimit());
+        assertEquals(20, controller.getPriority());
+        controller = new AdaptiveFlowController(1, 2, 20);
+        assertEquals(2, controller.getLimit());
+
+        try {
+            new AdaptiveFlowController(1, 0, 20);
+            fail("Should have failed, min limit is zero");
+        } catch (IllegalArgumentException e) {
+            // fine
+        }
+    }
+
+    @Test
+    public void testIncreaseWhenLatencyStable() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(10, 2, 20);
+        for (int i = 0; i < 200; i++) {
+            controller.sample(10 * MS, 10);
+        }
+        assertTrue(controller.getLimit() > 10);
+
+        // no increase if the limit is not being used
+        int limit = controller.getLimit();
+        for (int i = 0; i < 200; i++) {
+            controller.sample(10 * MS, 1);
+        }
+        assertEquals(limit, controller.getLimit());
+
+        // never above the max
+        for (int i = 0; i < 10000; i++) {
+            controller.sample(10 * MS, 20);
+        }
+        assertEquals(20, controller.getLimit());
+    }
+
+    @Test
+    public void testDecreaseWhenLatencyGrows() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(10, 2, 20);
+        for (int i = 0; i < 50; i++) {
+            controller.sample(10 * MS, 10);
+        }
+        int limit = controller.getLimit();
+
+        // the backend saturates, latency goes up ten times
+        for (int i = 0; i < 30; i++) {
+            controller.sample(100 * MS, 10);
+        }
+        assertTrue(controller.getLimit() < limit);
+
+        // never below the min, even if the latency keeps on growing
+        long latency = 100 * MS;
+        for (int step = 0; step < 5; step++) {
+            latency *= 10;
+            for (int i = 0; i < 100; i++) {
+                controller.sample(latency, 10);
+            }
+        }
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void testSingleDelay() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 1, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(1, controller.getRunning());
+            assertEquals(1, controller.getQueued());
+
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+            assertEquals(0, controller.getQueued());
+
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(0, controller.getRunning());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 1, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 100,
+                400, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 100,
+                400, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+
+            waitTerminated(t1, MAX_WAIT);
+            waitTerminated(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertEquals(1, controller.getRejected());
+            assertEquals(0, controller.getQueued());
+            assertEquals(0, controller.getRunning());
+
+            // completing a rejected request does not alter the count
+            controller.requestComplete(t2.request);
+            assertEquals(0, controller.getRunning());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testPriorityClasses() throws Exception {
+        List<PriorityClass> classes = Arrays.asList(new PriorityClass("wms.getmap", "wms",
+                "getmap", null, 100), new PriorityClass("wfs", "wfs", null, null, 1));
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 1, 1, classes);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(buildRequest("wms",
+                "GetMap"), 0, Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(buildRequest("wfs",
+                "GetFeature"), 0, Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t3 = new FlowControllerTestingThread(buildRequest("wms",
+                "GetMap"), 0, Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+            t3.start();
+            waitBlocked(t3, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(ThreadState.STARTED, t3.state);
+
+            // the GetMap arrived later, but it goes first
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t3.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+
+            t3.interrupt();
+            waitTerminated(t3, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+
+            List<FlowStatistics> stats = controller.getStatistics();
+            assertEquals(3, stats.size());
+            assertEquals("wms.getmap(100)", stats.get(0).getQueue());
+            assertEquals(2, stats.get(0).getAdmitted());
+            assertEquals("wfs(1)", stats.get(1).getQueue());
+            assertEquals(1, stats.get(1).getAdmitted());
+            assertTrue(stats.get(1).getMaxWaitTime() > 0);
+            assertEquals("default(1)", stats.get(2).getQueue());
+            assertEquals(0, stats.get(2).getAdmitted());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+            waitAndKill(t3, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testWeightedRelease() throws Exception {
+        List<PriorityClass> classes = Arrays.asList(new PriorityClass("wms", "wms", null, null,
+                3), new PriorityClass("wfs", "wfs", null, null, 1));
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 1, 1, classes);
+
+        // fill the queues without threads, checking the release order
+        for (int i = 0; i < 4; i++) {
+            enqueue(controller, buildRequest("wms", "GetMap"));
+            enqueue(controller, buildRequest("wfs", "GetFeature"));
+        }
+
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            AdaptiveFlowController.ClassQueue next = controller.nextQueue();
+            order.append(next.priorityClass.name.charAt(1));
+            next.waiters.removeFirst();
+        }
+        // three wms for each wfs as long as both have requests, ties go to the first class
+        assertEquals("mmmfmfff", order.toString());
+        assertNull(controller.nextQueue());
+    }
+
+    void enqueue(AdaptiveFlowController controller, Request request) {
+        // mimics the queueing part of requestIncoming
+        AdaptiveFlowController.ClassQueue queue = controller.getQueue(request);
+        AdaptiveFlowController.Waiter waiter = new AdaptiveFlowController.Waiter(request, null);
+        waiter.tag = Math.max(queue.lastTag, controller.virtualTime) + 1d
+                / queue.priorityClass.weight;
+        queue.lastTag = waiter.tag;
+        queue.waiters.add(waiter);
+    }
+
+    Request buildRequest(String service, String method) {
+        Request request = new Request();
+        request.setService(service);
+        request.setRequest(method);
+        return request;
+    }
+}
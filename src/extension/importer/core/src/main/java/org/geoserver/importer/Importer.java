@@ -40,6 +40,7 @@ import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.util.DimensionDomainIndex;
 import org.geoserver.config.util.XStreamPersister;
 import org.geoserver.config.util.XStreamPersister.CRSConverter;
 import org.geoserver.config.util.XStreamPersisterFactory;
@@ -866,6 +867,11 @@ public class Importer implements DisposableBean, ApplicationListener {
                 FeatureTypeInfo featureType = (FeatureTypeInfo) task.getLayer().getResource();
                 featureType.getAttributes().clear();
 
+                if (task.getUpdateMode() != UpdateMode.CREATE) {
+                    // data got appended or replaced, the dimension domains need to be rebuilt
+                    invalidateDimensionDomains(featureType);
+                }
+
                 if (!canceled) {
                     if (task.getUpdateMode() == UpdateMode.CREATE) {
                         addToCatalog(task);
@@ -910,6 +916,21 @@ public class Importer implements DisposableBean, ApplicationListener {
 
     }
 
+    /**
+     * Drops the indexed time and elevation domains of a layer whose data has been modified
+     */
+    void invalidateDimensionDomains(FeatureTypeInfo featureType) {
+        DimensionDomainIndex index = GeoServerExtensions.bean(DimensionDomainIndex.class);
+        if (index == null) {
+            return;
+        }
+        FeatureTypeInfo resource = getCatalog().getResourceByName(
+                featureType.getQualifiedName(), FeatureTypeInfo.class);
+        if (resource != null) {
+            index.invalidate(resource.getId());
+        }
+    }
+
     boolean doPreTransform(ImportTask task, ImportData data, TransformChain tx) {
         try {
             tx.pre(task, data);
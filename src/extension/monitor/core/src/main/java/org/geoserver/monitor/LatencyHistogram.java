@@ -0,0 +1,141 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of request times, in milliseconds.
+ * <p>
+ * Values are counted in log-linear buckets, like in HdrHistogram: each power of two range is
+ * split in {@link #SUB_BUCKETS} linear buckets, so that the values reported by
+ * {@link #getValueAtPercentile(double)} are within about 6% of the actual ones, with a fixed
+ * and small memory footprint, no matter how many values are recorded.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values above 2^36 milliseconds (about two years) end up in the last bucket
+     */
+    static final int MAX_EXPONENT = 36;
+
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    final AtomicLong count = new AtomicLong();
+
+    final AtomicLong sum = new AtomicLong();
+
+    final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as zero
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The highest value falling in the specified bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = ((long) (SUB_BUCKETS + sub)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The highest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The average of the recorded values
+     */
+    public double getMean() {
+        long n = count.get();
+        return n > 0 ? sum.get() / (double) n : 0;
+    }
+
+    /**
+     * Returns the value below which the specified percentage of the recorded values fall
+     *
+     * @param percentile A value between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulated += snapshot[i];
+            if (cumulated >= target && snapshot[i] > 0) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Resets the histogram. Values recorded while the reset happens might be partially lost
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
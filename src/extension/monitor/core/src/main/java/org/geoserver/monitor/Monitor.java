@@ -148,6 +148,17 @@ public class Monitor implements ApplicationListener<ApplicationEvent>{
         dao.getRequests(q, visitor);
     }
 
+    /**
+     * Returns the summary statistics of the monitored requests, or null if the configured
+     * storage does not keep them
+     */
+    public RequestStatistics getStatistics() {
+        if (dao instanceof StatisticsMonitorDAO) {
+            return ((StatisticsMonitorDAO) dao).getStatistics();
+        }
+        return null;
+    }
+
     @Override
     public void onApplicationEvent(ApplicationEvent event) {
         if(event instanceof ContextRefreshedEvent) {
@@ -0,0 +1,228 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.monitor.RequestData.Status;
+
+/**
+ * Summary statistics about the completed requests, updated incrementally as requests are saved,
+ * so that they can be reported without scanning the recorded requests.
+ * <p>
+ * Counts, failures, response sizes and times are kept for all the requests, and split by
+ * service, by operation and by layer. Updates are lock free, so readers might see an aggregate
+ * with a request counted, but its time not yet recorded.
+ * </p>
+ */
+public class RequestStatistics {
+
+    /**
+     * The key collecting the requests once the max number of distinct keys has been reached
+     */
+    public static final String OTHER = "other";
+
+    /**
+     * The key used for requests without a service or operation
+     */
+    public static final String NONE = "none";
+
+    final int maxKeys;
+
+    final Aggregate total = new Aggregate();
+
+    final ConcurrentMap<String, Aggregate> services = new ConcurrentHashMap<String, Aggregate>();
+
+    final ConcurrentMap<String, ConcurrentMap<String, Aggregate>> operations = new ConcurrentHashMap<String, ConcurrentMap<String, Aggregate>>();
+
+    final ConcurrentMap<String, Aggregate> layers = new ConcurrentHashMap<String, Aggregate>();
+
+    public RequestStatistics() {
+        this(1000);
+    }
+
+    /**
+     * @param maxKeys the max number of distinct services, operations per service, and layers
+     *        tracked, in order to keep the memory usage bounded
+     */
+    public RequestStatistics(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Accounts for a completed request
+     */
+    public void add(RequestData data) {
+        long time = data.getTotalTime();
+        if (time == 0 && data.getStartTime() != null && data.getEndTime() != null) {
+            time = data.getEndTime().getTime() - data.getStartTime().getTime();
+        }
+        long bytes = data.getResponseLength();
+        boolean failed = data.getStatus() == Status.FAILED || data.getError() != null;
+
+        total.add(time, bytes, failed);
+        if (data.getService() != null) {
+            String service = data.getService();
+            getAggregate(services, service).add(time, bytes, failed);
+
+            ConcurrentMap<String, Aggregate> serviceOperations = operations.get(service);
+            if (serviceOperations == null) {
+                serviceOperations = new ConcurrentHashMap<String, Aggregate>();
+                ConcurrentMap<String, Aggregate> existing = operations.putIfAbsent(service,
+                        serviceOperations);
+                if (existing != null) {
+                    serviceOperations = existing;
+                }
+            }
+            String operation = data.getOperation() != null ? data.getOperation() : NONE;
+            getAggregate(serviceOperations, operation).add(time, bytes, failed);
+        }
+        List<String> resources = data.getResources();
+        if (resources != null) {
+            for (String layer : resources) {
+                if (layer != null) {
+                    getAggregate(layers, layer).add(time, bytes, failed);
+                }
+            }
+        }
+    }
+
+    Aggregate getAggregate(ConcurrentMap<String, Aggregate> map, String key) {
+        Aggregate aggregate = map.get(key);
+        if (aggregate == null) {
+            if (map.size() >= maxKeys) {
+                key = OTHER;
+            }
+            aggregate = new Aggregate();
+            Aggregate existing = map.putIfAbsent(key, aggregate);
+            if (existing != null) {
+                aggregate = existing;
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * The statistics of all requests
+     */
+    public Aggregate getTotal() {
+        return total;
+    }
+
+    /**
+     * The statistics by service, sorted by service name
+     */
+    public Map<String, Aggregate> getServices() {
+        return Collections.unmodifiableMap(new TreeMap<String, Aggregate>(services));
+    }
+
+    /**
+     * The statistics by operation of the specified service, sorted by operation name
+     */
+    public Map<String, Aggregate> getOperations(String service) {
+        Map<String, Aggregate> serviceOperations = operations.get(service);
+        if (serviceOperations == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(new TreeMap<String, Aggregate>(serviceOperations));
+    }
+
+    /**
+     * The statistics of all operations, keyed by <code>service.operation</code>
+     */
+    public Map<String, Aggregate> getOperations() {
+        Map<String, Aggregate> result = new LinkedHashMap<String, Aggregate>();
+        for (String service : new TreeMap<String, Object>(operations).keySet()) {
+            for (Map.Entry<String, Aggregate> e : getOperations(service).entrySet()) {
+                result.put(service + "." + e.getKey(), e.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * The statistics by layer, sorted by layer name
+     */
+    public Map<String, Aggregate> getLayers() {
+        return Collections.unmodifiableMap(new TreeMap<String, Aggregate>(layers));
+    }
+
+    /**
+     * Drops all the statistics collected so far
+     */
+    public void clear() {
+        total.reset();
+        services.clear();
+        operations.clear();
+        layers.clear();
+    }
+
+    /**
+     * Count, failures, bytes sent and time histogram of a group of requests
+     */
+    public static class Aggregate {
+
+        final AtomicLong count = new AtomicLong();
+
+        final AtomicLong failed = new AtomicLong();
+
+        final AtomicLong bytes = new AtomicLong();
+
+        final LatencyHistogram times = new LatencyHistogram();
+
+        void add(long time, long responseLength, boolean failure) {
+            count.incrementAndGet();
+            if (failure) {
+                failed.incrementAndGet();
+            }
+            if (responseLength > 0) {
+                bytes.addAndGet(responseLength);
+            }
+            times.record(time);
+        }
+
+        void reset() {
+            count.set(0);
+            failed.set(0);
+            bytes.set(0);
+            times.reset();
+        }
+
+        /**
+         * The number of requests
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * The number of failed requests
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * The total response size, in bytes
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * The histogram of the request times, in milliseconds
+         */
+        public LatencyHistogram getTimes() {
+            return times;
+        }
+    }
+}
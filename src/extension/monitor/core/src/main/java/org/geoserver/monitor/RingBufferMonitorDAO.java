@@ -0,0 +1,496 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.Query.SortOrder;
+import org.geoserver.ows.util.OwsUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * In memory {@link MonitorDAO} keeping the last completed requests in a fixed capacity ring
+ * buffer, along with {@link RequestStatistics} about all the requests completed since startup.
+ * <p>
+ * Saving a request is lock free, it just claims the next slot of the ring with an atomic
+ * increment, overwriting the oldest request once the buffer is full. Queries scan a consistent
+ * view of the ring without copying it, resolving the filtered and sorted properties once per
+ * query, while summary information can be obtained from {@link #getStatistics()} without
+ * scanning at all.
+ * </p>
+ * <p>
+ * The capacity is controlled by the <code>ringbuffer.capacity</code> key of the monitor
+ * configuration.
+ * </p>
+ */
+public class RingBufferMonitorDAO implements StatisticsMonitorDAO {
+
+    static final Logger LOGGER = Logging.getLogger(RingBufferMonitorDAO.class);
+
+    public static final String NAME = "ringbuffer";
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    AtomicLong idGenerator = new AtomicLong(1);
+
+    ConcurrentMap<Long, RequestData> live = new ConcurrentHashMap<Long, RequestData>();
+
+    volatile Ring history;
+
+    RequestStatistics statistics = new RequestStatistics();
+
+    public RingBufferMonitorDAO() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RingBufferMonitorDAO(int capacity) {
+        history = new Ring(capacity);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void init(MonitorConfig config) {
+        Integer capacity = config.getProperty(NAME, "capacity", Integer.class);
+        if (capacity != null && capacity != history.capacity) {
+            if (capacity <= 0) {
+                LOGGER.warning("Invalid ring buffer capacity " + capacity + ", using "
+                        + history.capacity);
+            } else {
+                history = new Ring(capacity);
+            }
+        }
+    }
+
+    public RequestData init(RequestData data) {
+        data.setId(idGenerator.getAndIncrement());
+        return data;
+    }
+
+    public void add(RequestData data) {
+        live.put(data.getId(), data);
+    }
+
+    public void update(RequestData data) {
+    }
+
+    public void save(RequestData data) {
+        live.remove(data.getId());
+        history.add(data);
+        statistics.add(data);
+    }
+
+    public RequestStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * The max number of completed requests kept
+     */
+    public int getCapacity() {
+        return history.capacity;
+    }
+
+    public RequestData getRequest(long id) {
+        RequestData data = live.get(id);
+        if (data != null) {
+            return data;
+        }
+        Ring ring = history;
+        long last = ring.sequence.get();
+        for (long seq = last - 1; seq >= Math.max(0, last - ring.capacity); seq--) {
+            data = ring.get(seq);
+            if (data != null && data.getId() == id) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    public List<RequestData> getRequests() {
+        final List<RequestData> requests = new ArrayList<RequestData>();
+        scan(null, new Collector() {
+
+            public boolean collect(RequestData data) {
+                requests.add(data);
+                return true;
+            }
+        });
+        return requests;
+    }
+
+    public List<RequestData> getRequests(Query query) {
+        final List<RequestData> requests = new ArrayList<RequestData>();
+        getRequests(query, new RequestDataVisitor() {
+
+            public void visit(RequestData data, Object... aggregates) {
+                requests.add(data);
+            }
+        });
+        return requests;
+    }
+
+    public void getRequests(Query query, final RequestDataVisitor visitor) {
+        Predicate predicate = buildPredicate(query);
+        final long offset = query.getOffset() != null ? query.getOffset() : 0;
+        final long count = query.getCount() != null ? query.getCount() : Long.MAX_VALUE;
+
+        Comparator<RequestData> sorter = null;
+        if (query.getSortBy() != null) {
+            sorter = new Sorter(query.getSortBy(), query.getSortOrder());
+        } else if (query.getFromDate() != null || query.getToDate() != null) {
+            sorter = new Sorter("startTime", SortOrder.DESC);
+        }
+
+        if (sorter == null) {
+            // no sorting, the matches can be streamed to the visitor right away
+            scan(predicate, new Collector() {
+                long matched;
+
+                long visited;
+
+                public boolean collect(RequestData data) {
+                    if (matched++ < offset) {
+                        return true;
+                    }
+                    visitor.visit(data);
+                    return ++visited < count;
+                }
+            });
+        } else {
+            final List<RequestData> matches = new ArrayList<RequestData>();
+            scan(predicate, new Collector() {
+
+                public boolean collect(RequestData data) {
+                    matches.add(data);
+                    return true;
+                }
+            });
+            Collections.sort(matches, sorter);
+            for (long i = offset; i < matches.size() && i - offset < count; i++) {
+                visitor.visit(matches.get((int) i));
+            }
+        }
+    }
+
+    public long getCount(Query query) {
+        final long[] matches = new long[1];
+        scan(buildPredicate(query), new Collector() {
+
+            public boolean collect(RequestData data) {
+                matches[0]++;
+                return true;
+            }
+        });
+        long result = matches[0];
+        if (query.getOffset() != null) {
+            result = Math.max(0, result - query.getOffset());
+        }
+        if (query.getCount() != null) {
+            result = Math.min(result, query.getCount());
+        }
+        return result;
+    }
+
+    public Iterator<RequestData> getIterator(Query query) {
+        return getRequests(query).iterator();
+    }
+
+    public List<RequestData> getOwsRequests() {
+        return getRequests(new Query().filter("service", null, Comparison.NEQ));
+    }
+
+    public List<RequestData> getOwsRequests(String service, String operation, String version) {
+        Query query = new Query().filter("service", service, Comparison.EQ);
+        if (operation != null) {
+            query.and("operation", operation, Comparison.EQ);
+        }
+        if (version != null) {
+            query.and("owsVersion", version, Comparison.EQ);
+        }
+        return getRequests(query);
+    }
+
+    public void clear() {
+        history = new Ring(history.capacity);
+        statistics.clear();
+    }
+
+    public void dispose() {
+        live.clear();
+        clear();
+    }
+
+    /**
+     * Feeds the running requests, and then the completed ones from the oldest to the newest, to
+     * the collector, until it returns false
+     */
+    void scan(Predicate predicate, Collector collector) {
+        for (RequestData data : live.values()) {
+            if ((predicate == null || predicate.matches(data)) && !collector.collect(data)) {
+                return;
+            }
+        }
+        Ring ring = history;
+        long last = ring.sequence.get();
+        for (long seq = Math.max(0, last - ring.capacity); seq < last; seq++) {
+            RequestData data = ring.get(seq);
+            // null if the slot has not been written yet, or it has been overwritten
+            if (data != null && (predicate == null || predicate.matches(data))
+                    && !collector.collect(data)) {
+                return;
+            }
+        }
+    }
+
+    Predicate buildPredicate(Query query) {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        if (query.getFilter() != null) {
+            predicates.add(buildPredicate(query.getFilter()));
+        }
+        if (query.getFromDate() != null || query.getToDate() != null) {
+            predicates.add(new DateRange(query.getFromDate(), query.getToDate()));
+        }
+        if (predicates.isEmpty()) {
+            return null;
+        } else if (predicates.size() == 1) {
+            return predicates.get(0);
+        } else {
+            return new AndPredicate(predicates);
+        }
+    }
+
+    Predicate buildPredicate(Filter filter) {
+        if (filter instanceof CompositeFilter) {
+            List<Predicate> predicates = new ArrayList<Predicate>();
+            for (Filter f : ((CompositeFilter) filter).getFilters()) {
+                predicates.add(buildPredicate(f));
+            }
+            return filter instanceof Or ? new OrPredicate(predicates) : new AndPredicate(
+                    predicates);
+        }
+        return new PropertyCompare(filter.getLeft(), filter.getType(), filter.getRight());
+    }
+
+    static Method getter(String property) {
+        Method getter = OwsUtils.getter(RequestData.class, property, null);
+        if (getter == null) {
+            throw new IllegalArgumentException("Could not find property " + property);
+        }
+        return getter;
+    }
+
+    static Object get(Method getter, RequestData data) {
+        try {
+            return getter.invoke(data);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The ring buffer of the completed requests. Each slot remembers the sequence number it was
+     * written with, so that a reader can tell apart a request that has been overwritten by a
+     * newer one in the meantime.
+     */
+    static class Ring {
+        final int capacity;
+
+        final AtomicReferenceArray<Slot> slots;
+
+        final AtomicLong sequence = new AtomicLong();
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.slots = new AtomicReferenceArray<Slot>(capacity);
+        }
+
+        void add(RequestData data) {
+            long seq = sequence.getAndIncrement();
+            slots.set((int) (seq % capacity), new Slot(seq, data));
+        }
+
+        RequestData get(long seq) {
+            Slot slot = slots.get((int) (seq % capacity));
+            return slot != null && slot.sequence == seq ? slot.data : null;
+        }
+    }
+
+    static class Slot {
+        final long sequence;
+
+        final RequestData data;
+
+        Slot(long sequence, RequestData data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    static interface Collector {
+        boolean collect(RequestData data);
+    }
+
+    static interface Predicate {
+        boolean matches(RequestData data);
+    }
+
+    static class AndPredicate implements Predicate {
+        List<Predicate> predicates;
+
+        AndPredicate(List<Predicate> predicates) {
+            this.predicates = predicates;
+        }
+
+        public boolean matches(RequestData data) {
+            for (Predicate p : predicates) {
+                if (!p.matches(data)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class OrPredicate implements Predicate {
+        List<Predicate> predicates;
+
+        OrPredicate(List<Predicate> predicates) {
+            this.predicates = predicates;
+        }
+
+        public boolean matches(RequestData data) {
+            for (Predicate p : predicates) {
+                if (p.matches(data)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class DateRange implements Predicate {
+        Date from;
+
+        Date to;
+
+        DateRange(Date from, Date to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean matches(RequestData data) {
+            Date time = data.getStartTime();
+            if (time == null) {
+                return false;
+            }
+            return (from == null || !time.before(from)) && (to == null || !time.after(to));
+        }
+    }
+
+    /**
+     * Same semantics as the {@link MemoryMonitorDAO} one, but the property getter is looked up
+     * only once
+     */
+    static class PropertyCompare implements Predicate {
+        Method getter;
+
+        Object value;
+
+        Comparison compare;
+
+        PropertyCompare(Object left, Comparison compare, Object right) {
+            if (left instanceof String
+                    && OwsUtils.getter(RequestData.class, (String) left, null) != null) {
+                getter = getter((String) left);
+                value = right;
+            } else if (right instanceof String) {
+                getter = getter((String) right);
+                value = left;
+            } else {
+                throw new IllegalArgumentException("Could not find property");
+            }
+            if (compare == Comparison.IN && !(value instanceof List)) {
+                throw new UnsupportedOperationException(
+                        "IN comparison only supported against list values");
+            }
+            this.compare = compare;
+        }
+
+        public boolean matches(RequestData data) {
+            Object o = get(getter, data);
+            if (o == null) {
+                return value == null && compare == Comparison.EQ;
+            }
+
+            switch (compare) {
+            case IN:
+                return ((List) value).contains(o);
+            case EQ:
+                return o.equals(value);
+            case NEQ:
+                return !o.equals(value);
+            default:
+                if (!(o instanceof Comparable)) {
+                    throw new UnsupportedOperationException("Values of type "
+                            + o.getClass().getName()
+                            + " only support equality and non-equality comparison.");
+                }
+                int c = ((Comparable) o).compareTo(value);
+                switch (compare) {
+                case LT:
+                    return c < 0;
+                case LTE:
+                    return c <= 0;
+                case GT:
+                    return c > 0;
+                case GTE:
+                    return c >= 0;
+                default:
+                    return false;
+                }
+            }
+        }
+    }
+
+    static class Sorter implements Comparator<RequestData> {
+        Method getter;
+
+        SortOrder order;
+
+        Sorter(String property, SortOrder order) {
+            this.getter = getter(property);
+            this.order = order;
+        }
+
+        public int compare(RequestData r1, RequestData r2) {
+            Object o1 = get(getter, r1);
+            Object o2 = get(getter, r2);
+
+            int c;
+            if (o1 == null || o2 == null) {
+                c = o1 == null ? (o2 == null ? 0 : 1) : -1;
+            } else if (o1 instanceof Comparable) {
+                c = ((Comparable) o1).compareTo(o2);
+            } else {
+                c = o1.toString().compareTo(o2.toString());
+            }
+            return order == SortOrder.ASC ? c : -c;
+        }
+    }
+}
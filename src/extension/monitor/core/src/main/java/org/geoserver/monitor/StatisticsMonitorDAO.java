@@ -0,0 +1,17 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+/**
+ * A {@link MonitorDAO} that keeps summary statistics about the saved requests, updated
+ * incrementally, so that they can be answered without scanning the requests themselves.
+ */
+public interface StatisticsMonitorDAO extends MonitorDAO {
+
+    /**
+     * Returns the statistics of the requests saved so far
+     */
+    RequestStatistics getStatistics();
+}
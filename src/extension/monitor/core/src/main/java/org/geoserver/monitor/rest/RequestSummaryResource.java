@@ -0,0 +1,79 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.monitor.LatencyHistogram;
+import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestStatistics;
+import org.geoserver.monitor.RequestStatistics.Aggregate;
+import org.geoserver.monitor.RingBufferMonitorDAO;
+import org.geoserver.rest.MapResource;
+import org.geoserver.rest.RestletException;
+import org.restlet.data.Status;
+
+/**
+ * Returns the summary statistics of the monitored requests, overall and by service, operation
+ * and layer, as long as the monitor storage keeps them
+ */
+public class RequestSummaryResource extends MapResource {
+
+    Monitor monitor;
+
+    public RequestSummaryResource(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void handleGet() {
+        if (monitor.getStatistics() == null) {
+            throw new RestletException("The '" + monitor.getDAO().getName()
+                    + "' monitor storage does not keep summary statistics, use the '"
+                    + RingBufferMonitorDAO.NAME + "' one instead", Status.CLIENT_ERROR_NOT_FOUND);
+        }
+        super.handleGet();
+    }
+
+    @Override
+    public Map getMap() throws Exception {
+        RequestStatistics statistics = monitor.getStatistics();
+        HashMap map = new HashMap();
+        map.put("total", toMap(null, statistics.getTotal()));
+        map.put("services", toList(statistics.getServices()));
+        map.put("operations", toList(statistics.getOperations()));
+        map.put("layers", toList(statistics.getLayers()));
+        return map;
+    }
+
+    List<Map<String, Object>> toList(Map<String, Aggregate> aggregates) {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<String, Aggregate> e : aggregates.entrySet()) {
+            result.add(toMap(e.getKey(), e.getValue()));
+        }
+        return result;
+    }
+
+    Map<String, Object> toMap(String name, Aggregate aggregate) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        if (name != null) {
+            map.put("name", name);
+        }
+        LatencyHistogram times = aggregate.getTimes();
+        map.put("count", aggregate.getCount());
+        map.put("failed", aggregate.getFailed());
+        map.put("bytes", aggregate.getBytes());
+        map.put("averageTime", times.getMean());
+        map.put("medianTime", times.getValueAtPercentile(50));
+        map.put("p90Time", times.getValueAtPercentile(90));
+        map.put("p99Time", times.getValueAtPercentile(99));
+        map.put("maxTime", times.getMax());
+        return map;
+    }
+}
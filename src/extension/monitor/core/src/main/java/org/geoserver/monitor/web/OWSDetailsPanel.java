@@ -11,6 +11,7 @@ import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.RequestStatistics;
 import org.geoserver.monitor.Query.Comparison;
 
 public class OWSDetailsPanel extends OWSSummaryChartBasePanel {
@@ -26,6 +27,19 @@ public class OWSDetailsPanel extends OWSSummaryChartBasePanel {
     
     @Override
     protected Map<String, Integer> gatherData(Monitor monitor) {
+        RequestStatistics statistics = monitor.getStatistics();
+        if (statistics != null) {
+            // same as below, operations are not case sensitive
+            Map<String, Integer> data = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> e : toCounts(statistics.getOperations(owsService))
+                    .entrySet()) {
+                String op = e.getKey().toLowerCase();
+                Integer count = data.get(op);
+                data.put(op, count == null ? e.getValue() : count + e.getValue());
+            }
+            return data;
+        }
+
         DataGatherer g = new DataGatherer();
         monitor.query(new Query().properties("operation")
             .filter("service", owsService, Comparison.EQ), g);
@@ -11,6 +11,7 @@ import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.RequestStatistics;
 import org.geoserver.monitor.Query.Comparison;
 
 public class OWSOverviewPanel extends OWSSummaryChartBasePanel {
@@ -26,6 +27,11 @@ public class OWSOverviewPanel extends OWSSummaryChartBasePanel {
     
     @Override
     protected Map<String,Integer> gatherData(Monitor monitor) {
+        RequestStatistics statistics = monitor.getStatistics();
+        if (statistics != null) {
+            return toCounts(statistics.getServices());
+        }
+
         Query q = new Query();
         q.properties("service").filter("service", null, Comparison.NEQ);
         
@@ -5,12 +5,14 @@
 package org.geoserver.monitor.web;
 
 import java.awt.Color;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.wicket.markup.html.image.NonCachingImage;
 import org.apache.wicket.markup.html.image.resource.BufferedDynamicImageResource;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestStatistics.Aggregate;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
 import org.jfree.data.general.DefaultPieDataset;
@@ -43,6 +45,17 @@ public abstract class OWSSummaryChartBasePanel extends Panel {
     }
 
     protected abstract Map<String, Integer> gatherData(Monitor monitor);
+
+    /**
+     * Turns the request statistics aggregates into request counts
+     */
+    protected Map<String, Integer> toCounts(Map<String, Aggregate> aggregates) {
+        Map<String, Integer> data = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, Aggregate> e : aggregates.entrySet()) {
+            data.put(e.getKey(), (int) e.getValue().getCount());
+        }
+        return data;
+    }
     
     protected abstract String getChartTitle();
 
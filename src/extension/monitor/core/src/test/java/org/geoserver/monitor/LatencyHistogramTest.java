@@ -0,0 +1,60 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+        assertEquals(0, h.getMean(), 0d);
+    }
+
+    @Test
+    public void testBuckets() {
+        // each value falls in a bucket whose highest value is within 1/16th of it
+        int last = -1;
+        for (long v = 0; v < 10000000; v = v < 100 ? v + 1 : v * 11 / 10) {
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(bucket >= last);
+            long highest = LatencyHistogram.highestValue(bucket);
+            assertTrue(v + " -> " + highest, highest >= v);
+            assertTrue(v + " -> " + highest, highest - v <= v / 16);
+            last = bucket;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 0d);
+        assertWithin(500, h.getValueAtPercentile(50));
+        assertWithin(900, h.getValueAtPercentile(90));
+        assertWithin(990, h.getValueAtPercentile(99));
+        assertEquals(1000, h.getValueAtPercentile(100));
+        assertEquals(1, h.getValueAtPercentile(0));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+
+    void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+}
@@ -0,0 +1,142 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.geoserver.monitor.MonitorTestData.assertCoveredInOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.RequestData.Status;
+import org.geoserver.monitor.RequestStatistics.Aggregate;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RingBufferMonitorDAOTest extends MonitorDAOTestSupport {
+
+    @BeforeClass
+    public static void createDAO() throws Exception {
+        dao = new RingBufferMonitorDAO();
+        setUpData();
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO(5);
+        for (int i = 0; i < 12; i++) {
+            RequestData data = ring.init(new RequestData());
+            data.setPath("/" + i);
+            ring.save(data);
+        }
+
+        // only the last five are kept, oldest first
+        assertCoveredInOrder(ring.getRequests(), 8, 9, 10, 11, 12);
+        assertNull(ring.getRequest(7));
+        assertEquals("/11", ring.getRequest(12).getPath());
+
+        // the statistics cover them all
+        assertEquals(12, ring.getStatistics().getTotal().getCount());
+    }
+
+    @Test
+    public void testLiveRequests() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO(5);
+        RequestData running = ring.init(new RequestData());
+        running.setStatus(Status.RUNNING);
+        ring.add(running);
+        assertSame(running, ring.getRequest(running.getId()));
+        assertEquals(1, ring.getCount(new Query().filter("status", Status.RUNNING,
+                Comparison.EQ)));
+
+        running.setStatus(Status.FINISHED);
+        ring.save(running);
+        assertEquals(0, ring.getCount(new Query().filter("status", Status.RUNNING,
+                Comparison.EQ)));
+        assertEquals(1, ring.getRequests().size());
+    }
+
+    @Test
+    public void testOrFilter() throws Exception {
+        Query q = new Query().filter(new Filter("path", "/two", Comparison.EQ).or(new Filter(
+                "path", "/seven", Comparison.EQ)));
+        assertCoveredInOrder(dao.getRequests(q), 2, 7);
+    }
+
+    @Test
+    public void testCapacityConfiguration() throws Exception {
+        MonitorConfig config = new MonitorConfig();
+        config.getProperties().put("ringbuffer.capacity", "50");
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO();
+        ring.init(config);
+        assertEquals(50, ring.getCapacity());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO(5);
+        save(ring, "WMS", "GetMap", 100, 1000, Status.FINISHED, "topp:states");
+        save(ring, "WMS", "GetMap", 300, 3000, Status.FINISHED, "topp:states", "sf:roads");
+        save(ring, "WMS", "GetCapabilities", 10, 50000, Status.FINISHED);
+        save(ring, "WFS", "GetFeature", 2000, 0, Status.FAILED, "sf:roads");
+        save(ring, null, null, 5, 10, Status.FINISHED);
+
+        RequestStatistics stats = ring.getStatistics();
+        Aggregate total = stats.getTotal();
+        assertEquals(5, total.getCount());
+        assertEquals(1, total.getFailed());
+        assertEquals(54010, total.getBytes());
+        assertEquals(2000, total.getTimes().getMax());
+
+        Map<String, Aggregate> services = stats.getServices();
+        assertEquals(Arrays.asList("WFS", "WMS"), Arrays.asList(services.keySet().toArray()));
+        assertEquals(3, services.get("WMS").getCount());
+        assertEquals(1, services.get("WFS").getFailed());
+
+        Map<String, Aggregate> operations = stats.getOperations("WMS");
+        assertEquals(2, operations.get("GetMap").getCount());
+        assertEquals(200, operations.get("GetMap").getTimes().getMean(), 0d);
+        assertEquals(1, operations.get("GetCapabilities").getCount());
+        assertEquals(3, stats.getOperations().size());
+
+        Map<String, Aggregate> layers = stats.getLayers();
+        assertEquals(2, layers.get("topp:states").getCount());
+        assertEquals(2, layers.get("sf:roads").getCount());
+        assertEquals(3000, layers.get("sf:roads").getBytes());
+
+        ring.clear();
+        assertEquals(0, stats.getTotal().getCount());
+        assertEquals(0, stats.getServices().size());
+    }
+
+    @Test
+    public void testStatisticsMaxKeys() throws Exception {
+        RequestStatistics stats = new RequestStatistics(2);
+        for (String layer : new String[] { "a", "b", "c", "d" }) {
+            RequestData data = new RequestData();
+            data.setResources(Arrays.asList(layer));
+            stats.add(data);
+        }
+        Map<String, Aggregate> layers = stats.getLayers();
+        assertEquals(3, layers.size());
+        assertEquals(2, layers.get(RequestStatistics.OTHER).getCount());
+    }
+
+    void save(RingBufferMonitorDAO ring, String service, String operation, long time,
+            long bytes, Status status, String... layers) {
+        RequestData data = ring.init(new RequestData());
+        data.setService(service);
+        data.setOperation(operation);
+        data.setTotalTime(time);
+        data.setResponseLength(bytes);
+        data.setStatus(status);
+        data.setResources(Arrays.asList(layers));
+        ring.save(data);
+    }
+}
@@ -0,0 +1,411 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.LatencyHistogram;
+import org.geoserver.monitor.RequestData;
+import org.geotools.util.logging.Logging;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.HibernateTemplate;
+
+/**
+ * Persists request data in the background, accumulating records in a bounded queue and writing
+ * them in batches, each batch in a single transaction.
+ * <p>
+ * A batch is written as soon as {@link #getBatchSize()} records are queued, or when
+ * {@link #getFlushInterval()} milliseconds have elapsed since the first record of the batch was
+ * queued. Records are written by a single thread, in the order they have been queued, so that
+ * updates of a request are never written before its insert.
+ * </p>
+ * <p>
+ * When the database cannot keep up and the queue is full, the {@link OverflowPolicy} decides if
+ * new records are dropped right away, or if the request threads wait for some room in the queue,
+ * up to a timeout, before dropping them.
+ * </p>
+ */
+public class BatchWriter {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    /**
+     * What to do when a record is queued, but the queue is full
+     */
+    public static enum OverflowPolicy {
+        /**
+         * Drop the record immediately, never slowing down the request
+         */
+        DROP,
+        /**
+         * Wait up to the configured timeout for room in the queue, then drop the record
+         */
+        BLOCK;
+    }
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    static final long POLL_SLICE = 100;
+
+    HibernateTemplate hib;
+
+    BlockingQueue<RequestData> queue;
+
+    int capacity;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    OverflowPolicy policy = OverflowPolicy.DROP;
+
+    long timeout = DEFAULT_TIMEOUT;
+
+    volatile boolean running;
+
+    Thread thread;
+
+    final AtomicLong queued = new AtomicLong();
+
+    final AtomicLong dropped = new AtomicLong();
+
+    final AtomicLong written = new AtomicLong();
+
+    final AtomicLong failed = new AtomicLong();
+
+    final AtomicInteger maxQueueSize = new AtomicInteger();
+
+    final LatencyHistogram flushTimes = new LatencyHistogram();
+
+    public BatchWriter(HibernateTemplate hib) {
+        this(hib, DEFAULT_CAPACITY);
+    }
+
+    public BatchWriter(HibernateTemplate hib, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive, got " + capacity);
+        }
+        this.hib = hib;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<RequestData>(capacity);
+    }
+
+    /**
+     * The max number of records written in a single transaction
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The max time, in milliseconds, a queued record waits for its batch to fill up
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive, got "
+                    + flushInterval);
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * The max time, in milliseconds, a request thread waits for room in the queue with the
+     * {@link OverflowPolicy#BLOCK} policy
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts the writer thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                process();
+            }
+        }, "GeoServer monitor batch writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread, waiting up to the specified time for the queued records to be
+     * written
+     */
+    public synchronized void stop(long wait) {
+        if (thread == null) {
+            return;
+        }
+        // no interrupt, some JDBC drivers close the connection when interrupted
+        running = false;
+        try {
+            thread.join(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            LOGGER.warning("Monitor batch writer did not complete in " + wait + "ms, "
+                    + queue.size() + " queued requests will not be persisted");
+        }
+        thread = null;
+    }
+
+    /**
+     * Queues a record to be written, returns false if the record was dropped because the queue
+     * is full
+     */
+    public boolean add(RequestData data) {
+        boolean added = queue.offer(data);
+        if (!added && policy == OverflowPolicy.BLOCK && timeout > 0) {
+            try {
+                added = queue.offer(data, timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (added) {
+            queued.incrementAndGet();
+            int size = queue.size();
+            int max = maxQueueSize.get();
+            while (size > max && !maxQueueSize.compareAndSet(max, size)) {
+                max = maxQueueSize.get();
+            }
+        } else {
+            // log only once in a while, we don't want to flood the logs when overloaded
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                LOGGER.warning("Monitor batch writer queue is full, dropped " + dropped.get()
+                        + " requests so far");
+            }
+        }
+        return added;
+    }
+
+    void process() {
+        List<RequestData> batch = new ArrayList<RequestData>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                // wait in short slices, so that stop() is noticed quickly
+                RequestData first = queue.poll(POLL_SLICE, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize && running) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    RequestData next = queue.poll(
+                            Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_SLICE)),
+                            TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                if (!running) {
+                    // stopping, write everything still queued
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    void flush(List<RequestData> batch) {
+        long start = System.nanoTime();
+        try {
+            write(batch);
+            written.addAndGet(batch.size());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to persist a batch of " + batch.size()
+                    + " requests, persisting them one by one", e);
+            // isolate the failing records, so that a single bad record does not lose the batch
+            for (RequestData data : batch) {
+                try {
+                    write(Collections.singletonList(data));
+                    written.incrementAndGet();
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.FINE, "Failed to persist request " + data.internalid, ex);
+                }
+            }
+        } finally {
+            flushTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Writes the records in a single transaction. On failure the transaction is rolled back and
+     * the records that were new get their id reset, so that they can be inserted again.
+     */
+    protected void write(final List<RequestData> batch) {
+        final boolean[] inserted = new boolean[batch.size()];
+        try {
+            hib.execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException,
+                        SQLException {
+                    Transaction tx = session.beginTransaction();
+                    try {
+                        saveAndCommit(session, tx, batch, inserted, 0);
+                    } catch (RuntimeException e) {
+                        try {
+                            tx.rollback();
+                        } catch (HibernateException ex) {
+                            LOGGER.log(Level.FINE, "Failed to roll back the batch transaction",
+                                    ex);
+                        }
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            for (int i = 0; i < batch.size(); i++) {
+                if (inserted[i]) {
+                    batch.get(i).setId(-1);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Saves the records starting from the specified one, then commits. Each record stays locked
+     * until the commit, Hibernate reads them again while flushing the session.
+     */
+    void saveAndCommit(Session session, Transaction tx, List<RequestData> batch,
+            boolean[] inserted, int i) {
+        if (i == batch.size()) {
+            tx.commit();
+            return;
+        }
+        RequestData data = batch.get(i);
+        synchronized (data) {
+            // skip the same request queued more than once in the batch
+            if (!session.contains(data)) {
+                if (data.getId() == -1) {
+                    data.setId((Long) session.save(data));
+                    inserted[i] = true;
+                } else {
+                    session.update(data);
+                }
+            }
+            saveAndCommit(session, tx, batch, inserted, i + 1);
+        }
+    }
+
+    /**
+     * The number of records waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * The max number of records that can wait to be written
+     */
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The highest number of records that have been waiting to be written at the same time
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize.get();
+    }
+
+    /**
+     * The number of records that have been queued
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * The number of records dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * The number of records that have been written
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * The number of records that could not be written due to database errors
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * The histogram of the time, in milliseconds, taken to write a batch
+     */
+    public LatencyHistogram getFlushTimes() {
+        return flushTimes;
+    }
+}
@@ -22,6 +22,7 @@ import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.hib.BatchWriter.OverflowPolicy;
 import org.geoserver.ows.util.OwsUtils;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -33,14 +34,25 @@ import org.springframework.orm.hibernate3.HibernateTemplate;
 
 import com.google.common.base.FinalizableReference;
 
-public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
+public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean, HibernateMonitorMXBean {
 
+    /**
+     * How requests are persisted:
+     * <ul>
+     *   <li>SYNC: in the request thread</li>
+     *   <li>ASYNC: in background threads, one transaction per insert/update</li>
+     *   <li>ASYNC_UPDATE: as ASYNC, but the initial insert happens in the request thread</li>
+     *   <li>BATCH: by a single background thread, in batches, via a bounded queue, see 
+     *   {@link BatchWriter}</li>
+     * </ul>
+     */
     public static enum Sync {
-        SYNC, ASYNC, ASYNC_UPDATE;
+        SYNC, ASYNC, ASYNC_UPDATE, BATCH;
     }
 
     HibernateTemplate hib;
     PipeliningTaskQueue<Thread> tasks;
+    BatchWriter batch;
 
     Mode mode = Mode.HISTORY;
     Sync sync = Sync.ASYNC;
@@ -57,25 +69,51 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
     @Override
     public void init(MonitorConfig config) {
         setMode(config.getMode());
-        setSync(getSync(config));
+        Sync sync = getSync(config);
+        if (sync == Sync.BATCH) {
+            // replace the writer, the queue capacity cannot be changed on a live one
+            stopBatchWriter();
+            batch = createBatchWriter(config.getProperties());
+        }
+        setSync(sync);
     }
 
     public Sync getSync(MonitorConfig config) {
         return Sync.valueOf(config.getProperties().getProperty("hibernate.sync", "async").toUpperCase());
     }
 
+    BatchWriter createBatchWriter(Properties props) {
+        BatchWriter writer = new BatchWriter(hib, Integer.parseInt(props.getProperty(
+                "hibernate.batch.capacity", String.valueOf(BatchWriter.DEFAULT_CAPACITY))));
+        writer.setBatchSize(Integer.parseInt(props.getProperty("hibernate.batch.size",
+                String.valueOf(BatchWriter.DEFAULT_BATCH_SIZE))));
+        writer.setFlushInterval(Long.parseLong(props.getProperty("hibernate.batch.interval",
+                String.valueOf(BatchWriter.DEFAULT_FLUSH_INTERVAL))));
+        writer.setPolicy(OverflowPolicy.valueOf(props.getProperty("hibernate.batch.policy",
+                "drop").toUpperCase()));
+        writer.setTimeout(Long.parseLong(props.getProperty("hibernate.batch.timeout",
+                String.valueOf(BatchWriter.DEFAULT_TIMEOUT))));
+        return writer;
+    }
+
     public void setSync(Sync sync) {
         this.sync = sync;
-        if (sync != Sync.SYNC) {
+        if (sync == Sync.BATCH) {
+            stopTasks();
+            if (batch == null) {
+                batch = new BatchWriter(hib);
+            }
+            batch.start();
+        }
+        else if (sync != Sync.SYNC) {
+            stopBatchWriter();
             if (tasks == null) {
                 tasks = new PipeliningTaskQueue<Thread>();
                 tasks.start();
             }
         }
         else {
-            if (tasks != null) {
-                dispose();
-            }
+            dispose();
         }
     }
     public void setMode(Mode mode) {
@@ -85,6 +123,9 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
     public void setSessionFactory(SessionFactory sessionFactory) {
         hib = new HibernateTemplate(sessionFactory);
         hib.setFetchSize(1000);
+        if (batch != null) {
+            batch.hib = hib;
+        }
     }
     
     public SessionFactory getSessionFactory() {
@@ -136,12 +177,88 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
     }
 
     public void dispose() {
+        stopTasks();
+        stopBatchWriter();
+    }
+
+    void stopTasks() {
         if (tasks != null) {
             tasks.shutdown();
             tasks = null;
         }
     }
 
+    void stopBatchWriter() {
+        if (batch != null) {
+            // give the writer the time to persist what is still queued
+            batch.stop(Math.max(10000, 2 * batch.getFlushInterval()));
+            batch = null;
+        }
+    }
+
+    public BatchWriter getBatchWriter() {
+        return batch;
+    }
+
+    public String getSyncMode() {
+        return sync.name();
+    }
+
+    public int getQueueSize() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getQueueSize() : 0;
+    }
+
+    public int getQueueCapacity() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getQueueCapacity() : 0;
+    }
+
+    public int getMaxQueueSize() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getMaxQueueSize() : 0;
+    }
+
+    public long getQueuedRequests() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getQueuedCount() : 0;
+    }
+
+    public long getDroppedRequests() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getDroppedCount() : 0;
+    }
+
+    public long getWrittenRequests() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getWrittenCount() : 0;
+    }
+
+    public long getFailedRequests() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getFailedCount() : 0;
+    }
+
+    public long getFlushCount() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getFlushTimes().getCount() : 0;
+    }
+
+    public double getAverageFlushTime() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getFlushTimes().getMean() : 0;
+    }
+
+    public long getFlushTime95thPercentile() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getFlushTimes().getValueAtPercentile(95) : 0;
+    }
+
+    public long getMaxFlushTime() {
+        BatchWriter writer = batch;
+        return writer != null ? writer.getFlushTimes().getMax() : 0;
+    }
+
     public List<RequestData> getOwsRequests() {
         throw new UnsupportedOperationException();
     }
@@ -576,7 +693,12 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
 //    }
     
     protected void run(Task task) {
-        if (tasks != null) {
+        BatchWriter writer = batch;
+        if (writer != null) {
+            // the writer inserts or updates depending on the request id, like Save
+            writer.add(task.data);
+        }
+        else if (tasks != null) {
             tasks.execute(Thread.currentThread(), new Async(task), task.desc);
         }
         else {
@@ -681,6 +803,7 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
 
 	@Override
 	public void destroy() throws Exception {
+		dispose();
 		getSessionFactory().close();
 	}
 }
@@ -0,0 +1,73 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+/**
+ * JMX management interface for the {@link HibernateMonitorDAO2}, exposing the activity of the
+ * {@link BatchWriter} when the <code>batch</code> sync mode is used. All values are zero
+ * otherwise.
+ */
+public interface HibernateMonitorMXBean {
+
+    /**
+     * The current sync mode
+     */
+    String getSyncMode();
+
+    /**
+     * The number of requests waiting to be persisted
+     */
+    int getQueueSize();
+
+    /**
+     * The max number of requests that can wait to be persisted
+     */
+    int getQueueCapacity();
+
+    /**
+     * The highest number of requests that have been waiting to be persisted at the same time
+     */
+    int getMaxQueueSize();
+
+    /**
+     * The number of requests queued to be persisted
+     */
+    long getQueuedRequests();
+
+    /**
+     * The number of requests not persisted because the queue was full
+     */
+    long getDroppedRequests();
+
+    /**
+     * The number of requests persisted
+     */
+    long getWrittenRequests();
+
+    /**
+     * The number of requests not persisted due to database errors
+     */
+    long getFailedRequests();
+
+    /**
+     * The number of batches written
+     */
+    long getFlushCount();
+
+    /**
+     * The average time, in milliseconds, taken to write a batch
+     */
+    double getAverageFlushTime();
+
+    /**
+     * The 95th percentile of the time, in milliseconds, taken to write a batch
+     */
+    long getFlushTime95thPercentile();
+
+    /**
+     * The max time, in milliseconds, taken to write a batch
+     */
+    long getMaxFlushTime();
+}
@@ -0,0 +1,230 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.hib.BatchWriter.OverflowPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+public class BatchWriterTest {
+
+    TestWriter writer;
+
+    @After
+    public void stopWriter() {
+        if (writer != null) {
+            writer.release.countDown();
+            writer.stop(5000);
+        }
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        writer = new TestWriter(100);
+        writer.setBatchSize(10);
+        writer.setFlushInterval(60000);
+        // queue before starting, so that the batches are full
+        for (int i = 0; i < 25; i++) {
+            assertTrue(writer.add(request(i)));
+        }
+        writer.release.countDown();
+        writer.start();
+
+        writer.waitForWritten(20);
+        assertEquals(2, writer.batches.size());
+        assertEquals(10, writer.batches.get(0).size());
+        assertEquals(10, writer.batches.get(1).size());
+        // the remaining 5 are written on stop
+        writer.stop(5000);
+        assertEquals(3, writer.batches.size());
+        assertEquals(5, writer.batches.get(2).size());
+        assertEquals(25, writer.getWrittenCount());
+        assertEquals(0, writer.getQueueSize());
+        assertEquals(3, writer.getFlushTimes().getCount());
+
+        // order is preserved
+        int i = 0;
+        for (List<RequestData> batch : writer.batches) {
+            for (RequestData data : batch) {
+                assertEquals(i++, data.getId());
+            }
+        }
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        writer = new TestWriter(100);
+        writer.setBatchSize(10);
+        writer.setFlushInterval(50);
+        writer.release.countDown();
+        writer.start();
+
+        writer.add(request(0));
+        writer.add(request(1));
+        writer.waitForWritten(2);
+        assertEquals(1, writer.batches.size());
+        assertEquals(2, writer.batches.get(0).size());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        writer = new TestWriter(5);
+        writer.setBatchSize(1);
+        writer.setPolicy(OverflowPolicy.DROP);
+        writer.start();
+
+        // the first request is taken by the writer thread, blocked on the slow database
+        assertTrue(writer.add(request(0)));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(writer.add(request(i)));
+        }
+        long start = System.currentTimeMillis();
+        assertFalse(writer.add(request(6)));
+        assertTrue(System.currentTimeMillis() - start < 500);
+
+        assertEquals(5, writer.getQueueSize());
+        assertEquals(5, writer.getMaxQueueSize());
+        assertEquals(1, writer.getDroppedCount());
+        assertEquals(6, writer.getQueuedCount());
+
+        writer.release.countDown();
+        writer.waitForWritten(6);
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        writer = new TestWriter(1);
+        writer.setBatchSize(1);
+        writer.setPolicy(OverflowPolicy.BLOCK);
+        writer.setTimeout(100);
+        writer.start();
+
+        assertTrue(writer.add(request(0)));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        assertTrue(writer.add(request(1)));
+        // times out
+        long start = System.currentTimeMillis();
+        assertFalse(writer.add(request(2)));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(1, writer.getDroppedCount());
+
+        // waits for the writer to make room
+        writer.setTimeout(5000);
+        Thread release = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                writer.release.countDown();
+            }
+        };
+        release.start();
+        assertTrue(writer.add(request(3)));
+        writer.waitForWritten(3);
+        assertEquals(1, writer.getDroppedCount());
+    }
+
+    @Test
+    public void testFailedRecordsIsolated() throws Exception {
+        writer = new TestWriter(100);
+        writer.setBatchSize(5);
+        writer.setFlushInterval(60000);
+        writer.failing = 2;
+        for (int i = 0; i < 5; i++) {
+            writer.add(request(i));
+        }
+        writer.release.countDown();
+        writer.start();
+
+        writer.waitForWritten(4);
+        assertEquals(4, writer.getWrittenCount());
+        assertEquals(1, writer.getFailedCount());
+        // the failed batch, then one batch per record
+        assertEquals(6, writer.attempts);
+    }
+
+    @Test
+    public void testInvalidSettings() {
+        try {
+            new BatchWriter(null, 0);
+            fail("Should have failed with a zero capacity");
+        } catch (IllegalArgumentException e) {
+        }
+        BatchWriter w = new BatchWriter(null, 1);
+        try {
+            w.setBatchSize(0);
+            fail("Should have failed with a zero batch size");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            w.setFlushInterval(-1);
+            fail("Should have failed with a negative interval");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    RequestData request(long id) {
+        RequestData data = new RequestData();
+        data.setId(id);
+        return data;
+    }
+
+    /**
+     * Records the batches instead of writing them to a database, blocking until released
+     */
+    static class TestWriter extends BatchWriter {
+
+        List<List<RequestData>> batches = Collections
+                .synchronizedList(new ArrayList<List<RequestData>>());
+
+        CountDownLatch started = new CountDownLatch(1);
+
+        CountDownLatch release = new CountDownLatch(1);
+
+        long failing = -1;
+
+        volatile int attempts;
+
+        TestWriter(int capacity) {
+            super(null, capacity);
+        }
+
+        @Override
+        protected void write(List<RequestData> batch) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            attempts++;
+            for (RequestData data : batch) {
+                if (data.getId() == failing) {
+                    throw new RuntimeException("Failing on request " + failing);
+                }
+            }
+            batches.add(new ArrayList<RequestData>(batch));
+        }
+
+        void waitForWritten(long count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (getWrittenCount() < count && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, getWrittenCount());
+        }
+    }
+}
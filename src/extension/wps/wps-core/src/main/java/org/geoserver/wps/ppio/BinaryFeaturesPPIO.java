@@ -0,0 +1,52 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geoserver.wfs.binary.BinaryFeatureReader;
+import org.geoserver.wfs.binary.BinaryFeatureWriter;
+import org.geoserver.wfs.binary.BinaryFeatures;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.feature.FeatureCollection;
+
+/**
+ * Inputs and outputs feature collections in the compact binary format of the WFS
+ * {@link org.geoserver.wfs.binary.BinaryGetFeatureResponse} output format, so that processes
+ * chained between GeoServer instances can exchange features without going through XML
+ */
+public class BinaryFeaturesPPIO extends BinaryPPIO {
+
+    protected BinaryFeaturesPPIO() {
+        super(FeatureCollection.class, FeatureCollection.class, BinaryFeatures.MIME_TYPE);
+    }
+
+    @Override
+    public void encode(Object value, OutputStream os) throws Exception {
+        BinaryFeatureWriter writer = new BinaryFeatureWriter(os);
+        writer.write((FeatureCollection) value);
+        writer.finish();
+    }
+
+    @Override
+    public Object decode(InputStream input) throws Exception {
+        return new BinaryFeatureReader(input).read();
+    }
+
+    @Override
+    public Object decode(Object input) throws Exception {
+        // internal WFS requests hand over the GetFeature response as is
+        if (input instanceof FeatureCollection) {
+            return input;
+        }
+        return FeatureCollectionResponse.adapt(input).getFeature().get(0);
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "bin";
+    }
+}
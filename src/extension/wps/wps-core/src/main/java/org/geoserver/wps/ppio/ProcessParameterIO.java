@@ -79,6 +79,7 @@ public abstract class ProcessParameterIO {
         defaults.add(new WFSPPIO.WFS10());
         defaults.add(new WFSPPIO.WFS11());
         defaults.add(new GeoJSONPPIO());
+        defaults.add(new BinaryFeaturesPPIO());
         defaults.add(new WFSPPIO.WFS10Alternate());
         defaults.add(new WFSPPIO.WFS11Alternate());
 
@@ -35,7 +35,9 @@ import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.data.test.SystemTestData.LayerProperty;
 import org.geoserver.test.RemoteOWSTestSupport;
+import org.geoserver.wfs.binary.BinaryFeatureReader;
 import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
@@ -526,6 +528,53 @@ public class ExecuteTest extends WPSTestSupport {
         checkShapefileIntegrity(new String[] {"states"}, getBinaryInputStream(r));
     }
     
+    @Test
+    public void testBinaryFeatures() throws Exception {
+        String xml = "<wps:Execute service='WPS' version='1.0.0' xmlns:xlink=\"http://www.w3.org/1999/xlink\" " +
+                "xmlns:wps='http://www.opengis.net/wps/1.0.0' xmlns:wfs='http://www.opengis.net/wfs' " + 
+        "xmlns:ows='http://www.opengis.net/ows/1.1'>" + 
+        "<ows:Identifier>gs:BufferFeatureCollection</ows:Identifier>" + 
+         "<wps:DataInputs>" + 
+         "    <wps:Input>\n" + 
+                "<ows:Identifier>features</ows:Identifier>" + 
+                "<wps:Reference mimeType=\"application/x-geoserver-features\" " +
+                    "xlink:href=\"http://geoserver/wfs\" method=\"POST\">" + 
+                  "<wps:Body>" + 
+                    "<wfs:GetFeature service=\"WFS\" version=\"1.0.0\" " +
+                      "outputFormat=\"application/x-geoserver-features\">" + 
+                      "<wfs:Query typeName=\"cite:Streams\"/>" + 
+                    "</wfs:GetFeature>" + 
+                  "</wps:Body>" + 
+                "</wps:Reference>" + 
+            "</wps:Input>" + 
+            "<wps:Input>" + 
+               "<ows:Identifier>distance</ows:Identifier>" + 
+               "<wps:Data>" + 
+                 "<wps:LiteralData>10</wps:LiteralData>" + 
+               "</wps:Data>" + 
+            "</wps:Input>" + 
+           "</wps:DataInputs>" +
+           "<wps:ResponseForm>" +  
+             "<wps:RawDataOutput mimeType=\"application/x-geoserver-features\">" + 
+                 "<ows:Identifier>result</ows:Identifier>" +
+             "</wps:RawDataOutput>" +
+           "</wps:ResponseForm>" + 
+         "</wps:Execute>";
+
+        MockHttpServletResponse r = postAsServletResponse("wps", xml);
+        assertEquals("application/x-geoserver-features", r.getContentType());
+        SimpleFeatureCollection fc = new BinaryFeatureReader(getBinaryInputStream(r)).read();
+        assertEquals(getFeatureSource(MockData.STREAMS).getFeatures().size(), fc.size());
+        SimpleFeatureIterator it = fc.features();
+        try {
+            while (it.hasNext()) {
+                assertTrue(it.next().getDefaultGeometry() instanceof Polygon);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
     /**
      * Tests a process execution with a BoudingBox as the output and check internal layer
      * request handling as well
@@ -0,0 +1,255 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geoserver.catalog.ResourceCachePolicy.Type;
+
+/**
+ * A size and weight bounded map implementing the {@link Type#LRU} and {@link Type#LFU} eviction
+ * policies, along with idle time expiration.
+ * <p>
+ * The map is thread safe. Evicted entries are handed to the {@link EvictionListener} once the
+ * internal lock has been released, so that slow disposals (closing a connection pool, a mosaic
+ * reader) do not block the other threads accessing the cache. Expired entries are purged lazily,
+ * when the cache is accessed.
+ * </p>
+ */
+class ResourceCacheMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * Receives the entries evicted from the map because of the size, weight or idle limits
+     */
+    interface EvictionListener<K, V> {
+        void evicted(K key, V value);
+    }
+
+    /**
+     * Computes the weight of a cache entry
+     */
+    interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    static class Node<V> {
+        V value;
+
+        int weight;
+
+        long lastAccess;
+
+        long accessCount;
+
+        Node(V value, int weight, long now) {
+            this.value = value;
+            this.weight = weight;
+            this.lastAccess = now;
+        }
+    }
+
+    final ResourceCachePolicy policy;
+
+    final EvictionListener<K, V> listener;
+
+    final Weigher<K, V> weigher;
+
+    final LinkedHashMap<K, Node<V>> map;
+
+    long totalWeight;
+
+    ResourceCacheMap(ResourceCachePolicy policy, EvictionListener<K, V> listener,
+            Weigher<K, V> weigher) {
+        if (policy.getType() == Type.SOFT) {
+            throw new IllegalArgumentException("Soft reference caching is not supported");
+        }
+        this.policy = policy;
+        this.listener = listener;
+        this.weigher = weigher;
+        // keep entries in access order for LRU, so that the eldest is the first to go
+        this.map = new LinkedHashMap<K, Node<V>>(16, 0.75f, policy.getType() == Type.LRU);
+    }
+
+    @Override
+    public V get(Object key) {
+        List<Map.Entry<K, V>> evicted = null;
+        V result = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            evicted = purgeExpired(now, null);
+            Node<V> node = map.get(key);
+            if (node != null) {
+                node.lastAccess = now;
+                node.accessCount++;
+                result = node.value;
+            }
+        }
+        notifyEvicted(evicted);
+        return result;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        synchronized (this) {
+            Node<V> node = map.get(key);
+            return node != null && !isExpired(node, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        List<Map.Entry<K, V>> evicted;
+        V previous = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            int weight = weigher != null ? Math.max(weigher.weigh(key, value), 0) : 1;
+            Node<V> node = new Node<V>(value, weight, now);
+            Node<V> old = map.put(key, node);
+            totalWeight += weight;
+            if (old != null) {
+                totalWeight -= old.weight;
+                node.accessCount = old.accessCount;
+                previous = old.value;
+            }
+            evicted = purgeExpired(now, null);
+            evicted = evictOverflow(key, evicted);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key) {
+        synchronized (this) {
+            Node<V> node = map.remove(key);
+            if (node == null) {
+                return null;
+            }
+            totalWeight -= node.weight;
+            return node.value;
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return map.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        map.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * Returns the total weight of the entries in the map
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    @Override
+    public synchronized Set<K> keySet() {
+        // return a copy, iterating the access ordered map while other threads use it is unsafe
+        return Collections.unmodifiableSet(new LinkedHashSet<K>(map.keySet()));
+    }
+
+    @Override
+    public synchronized Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> entries = new LinkedHashSet<Map.Entry<K, V>>();
+        for (Map.Entry<K, Node<V>> e : map.entrySet()) {
+            entries.add(new SimpleImmutableEntry<K, V>(e.getKey(), e.getValue().value));
+        }
+        return Collections.unmodifiableSet(entries);
+    }
+
+    /**
+     * Evicts the entries that have not been accessed in the configured idle timeout
+     */
+    public void purgeExpired() {
+        List<Map.Entry<K, V>> evicted;
+        synchronized (this) {
+            evicted = purgeExpired(System.currentTimeMillis(), null);
+        }
+        notifyEvicted(evicted);
+    }
+
+    boolean isExpired(Node<V> node, long now) {
+        return policy.getIdleTimeout() > 0 && now - node.lastAccess > policy.getIdleTimeout();
+    }
+
+    List<Map.Entry<K, V>> purgeExpired(long now, List<Map.Entry<K, V>> evicted) {
+        if (policy.getIdleTimeout() <= 0) {
+            return evicted;
+        }
+        for (Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<K, Node<V>> e = it.next();
+            Node<V> node = e.getValue();
+            if (isExpired(node, now)) {
+                it.remove();
+                totalWeight -= node.weight;
+                evicted = add(evicted, e.getKey(), node.value);
+            } else if (policy.getType() == Type.LRU) {
+                // access ordered, all the following entries are more recent
+                break;
+            }
+        }
+        return evicted;
+    }
+
+    List<Map.Entry<K, V>> evictOverflow(K added, List<Map.Entry<K, V>> evicted) {
+        int maxEntries = policy.getMaxEntries();
+        long maxWeight = policy.getMaxWeight();
+        // never evict the entry just added, even if it's heavier than the max weight alone
+        while (map.size() > 1
+                && ((maxEntries > 0 && map.size() > maxEntries) || (maxWeight > 0 && totalWeight > maxWeight))) {
+            K victim = null;
+            if (policy.getType() == Type.LRU) {
+                victim = map.keySet().iterator().next();
+            } else {
+                // least frequently used, ties broken by insertion order
+                long minCount = Long.MAX_VALUE;
+                for (Map.Entry<K, Node<V>> e : map.entrySet()) {
+                    if (e.getValue().accessCount < minCount && !e.getKey().equals(added)) {
+                        minCount = e.getValue().accessCount;
+                        victim = e.getKey();
+                    }
+                }
+            }
+            if (victim == null || victim.equals(added)) {
+                break;
+            }
+            Node<V> node = map.remove(victim);
+            totalWeight -= node.weight;
+            evicted = add(evicted, victim, node.value);
+        }
+        return evicted;
+    }
+
+    List<Map.Entry<K, V>> add(List<Map.Entry<K, V>> evicted, K key, V value) {
+        if (evicted == null) {
+            evicted = new ArrayList<Map.Entry<K, V>>();
+        }
+        evicted.add(new SimpleImmutableEntry<K, V>(key, value));
+        return evicted;
+    }
+
+    void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        if (evicted == null || listener == null) {
+            return;
+        }
+        for (Map.Entry<K, V> e : evicted) {
+            listener.evicted(e.getKey(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.Serializable;
+
+import org.geoserver.platform.GeoServerExtensions;
+
+/**
+ * Describes how one of the {@link ResourcePool} caches evicts its entries.
+ * <ul>
+ * <li>{@link Type#SOFT} - the legacy behaviour, the most recently used {@link #getMaxEntries()}
+ * entries are hard referenced, all the others are softly referenced and evicted by the garbage
+ * collector when under memory pressure</li>
+ * <li>{@link Type#LRU} - entries are evicted in least recently used order once the cache grows
+ * past {@link #getMaxEntries()} entries or {@link #getMaxWeight()} total weight</li>
+ * <li>{@link Type#LFU} - same as LRU, but the least frequently used entry is evicted first</li>
+ * </ul>
+ * For LRU and LFU entries that have not been accessed for longer than {@link #getIdleTimeout()}
+ * are evicted as well. A zero limit means no limit.
+ * <p>
+ * The policy of each cache can be configured with a system property, context parameter or
+ * environment variable named <code>GEOSERVER_&lt;NAME>_CACHE</code>, for example:
+ * <pre>
+ * -DGEOSERVER_DATASTORE_CACHE=lru,maxEntries=200,idleTimeout=3600
+ * </pre>
+ * where the idle timeout is expressed in seconds. See {@link #parse(String)} for the syntax.
+ * </p>
+ */
+public class ResourceCachePolicy implements Serializable {
+
+    private static final long serialVersionUID = -3542305425785374453L;
+
+    public enum Type {
+        SOFT, LRU, LFU
+    }
+
+    Type type;
+
+    int maxEntries;
+
+    long maxWeight;
+
+    long idleTimeout;
+
+    public ResourceCachePolicy(Type type, int maxEntries, long maxWeight, long idleTimeout) {
+        if (type == null) {
+            throw new IllegalArgumentException("The cache policy type must be specified");
+        }
+        if (maxEntries < 0 || maxWeight < 0 || idleTimeout < 0) {
+            throw new IllegalArgumentException("Cache limits cannot be negative");
+        }
+        this.type = type;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * The legacy soft reference based policy, keeping hard references to the most recently used
+     * entries
+     */
+    public static ResourceCachePolicy soft(int hardReferences) {
+        return new ResourceCachePolicy(Type.SOFT, hardReferences, 0, 0);
+    }
+
+    /**
+     * A policy that never evicts entries
+     */
+    public static ResourceCachePolicy unbounded() {
+        return new ResourceCachePolicy(Type.LRU, 0, 0, 0);
+    }
+
+    /**
+     * Parses a policy in the <code>type[,maxEntries=n][,maxWeight=n][,idleTimeout=seconds]</code>
+     * syntax, e.g. <code>lfu,maxEntries=100,idleTimeout=600</code>
+     */
+    public static ResourceCachePolicy parse(String spec) {
+        String[] parts = spec.split("\\s*,\\s*");
+        Type type;
+        try {
+            type = Type.valueOf(parts[0].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown cache policy '" + parts[0]
+                    + "', supported values are soft, lru, lfu");
+        }
+        int maxEntries = 0;
+        long maxWeight = 0;
+        long idleTimeout = 0;
+        for (int i = 1; i < parts.length; i++) {
+            String[] kvp = parts[i].split("\\s*=\\s*");
+            if (kvp.length != 2) {
+                throw new IllegalArgumentException("Invalid cache policy parameter '" + parts[i]
+                        + "', should be key=value");
+            }
+            String key = kvp[0];
+            try {
+                if ("maxEntries".equalsIgnoreCase(key)) {
+                    maxEntries = Integer.parseInt(kvp[1]);
+                } else if ("maxWeight".equalsIgnoreCase(key)) {
+                    maxWeight = Long.parseLong(kvp[1]);
+                } else if ("idleTimeout".equalsIgnoreCase(key)) {
+                    idleTimeout = Long.parseLong(kvp[1]) * 1000;
+                } else {
+                    throw new IllegalArgumentException("Unknown cache policy parameter '" + key
+                            + "', supported ones are maxEntries, maxWeight, idleTimeout");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for cache policy parameter '"
+                        + key + "': " + kvp[1]);
+            }
+        }
+        return new ResourceCachePolicy(type, maxEntries, maxWeight, idleTimeout);
+    }
+
+    /**
+     * Looks up the policy configured for the specified cache, falling back on the provided
+     * default if none is configured or the configuration is invalid.
+     *
+     * @param cacheName The cache name, e.g. "dataStore", looked up as GEOSERVER_DATASTORE_CACHE
+     * @param defaultPolicy The policy to use if none is configured
+     */
+    public static ResourceCachePolicy lookup(String cacheName, ResourceCachePolicy defaultPolicy) {
+        String property = "GEOSERVER_" + cacheName.toUpperCase() + "_CACHE";
+        String spec = GeoServerExtensions.getProperty(property);
+        if (spec == null || spec.trim().isEmpty()) {
+            return defaultPolicy;
+        }
+        try {
+            ResourceCachePolicy policy = parse(spec);
+            // inherit the default size if none was specified
+            if (policy.maxEntries == 0 && policy.maxWeight == 0 && policy.type == Type.SOFT) {
+                policy.maxEntries = defaultPolicy.maxEntries;
+            }
+            return policy;
+        } catch (IllegalArgumentException e) {
+            ResourcePool.LOGGER.warning("Invalid value for " + property + ", " + e.getMessage()
+                    + ". Using the default cache policy instead");
+            return defaultPolicy;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The max number of entries, for the {@link Type#SOFT} policy, the number of entries that
+     * are hard referenced
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * The max total weight of the entries, ignored by the {@link Type#SOFT} policy
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * The time in milliseconds after which an entry that has not been accessed is evicted,
+     * ignored by the {@link Type#SOFT} policy
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase() + ",maxEntries=" + maxEntries + ",maxWeight="
+                + maxWeight + ",idleTimeout=" + (idleTimeout / 1000);
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+/**
+ * A snapshot of the usage statistics of one of the {@link ResourcePool} caches.
+ * <p>
+ * Times are expressed in milliseconds. The weight is the total weight of the cached entries, or
+ * -1 if the cache policy does not track weights.
+ * </p>
+ */
+public class ResourceCacheStatistics implements Serializable {
+
+    private static final long serialVersionUID = 8219632471460234158L;
+
+    String name;
+
+    String policy;
+
+    int size;
+
+    long weight;
+
+    long hits;
+
+    long misses;
+
+    long loads;
+
+    long totalLoadTime;
+
+    long evictions;
+
+    @ConstructorProperties({ "name", "policy", "size", "weight", "hits", "misses", "loads",
+            "totalLoadTime", "evictions" })
+    public ResourceCacheStatistics(String name, String policy, int size, long weight, long hits,
+            long misses, long loads, long totalLoadTime, long evictions) {
+        this.name = name;
+        this.policy = policy;
+        this.size = size;
+        this.weight = weight;
+        this.hits = hits;
+        this.misses = misses;
+        this.loads = loads;
+        this.totalLoadTime = totalLoadTime;
+        this.evictions = evictions;
+    }
+
+    /**
+     * The cache name, e.g. "dataStore"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The cache policy, in the syntax accepted by {@link ResourceCachePolicy#parse(String)}
+     */
+    public String getPolicy() {
+        return policy;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The number of values loaded and put in the cache after a miss
+     */
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * The total time spent loading values after a miss
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * The number of entries evicted by the cache policy, explicit removals are not counted
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * The ratio between hits and total lookups, or 0 if the cache has not been used yet
+     */
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : ((double) hits) / requests;
+    }
+
+    /**
+     * The average time spent loading a value, or 0 if no value has been loaded yet
+     */
+    public double getAverageLoadTime() {
+        return loads == 0 ? 0 : ((double) totalLoadTime) / loads;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceCacheStatistics [name=" + name + ", policy=" + policy + ", size=" + size
+                + ", weight=" + weight + ", hits=" + hits + ", misses=" + misses + ", loads="
+                + loads + ", totalLoadTime=" + totalLoadTime + ", evictions=" + evictions + "]";
+    }
+}
@@ -19,18 +19,23 @@ import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -177,6 +182,12 @@ public class ResourcePool {
      */
     static int FEATURETYPE_CACHE_SIZE_DEFAULT = 100;
     
+    /**
+     * The cached resources looked up by the current request, released when the request is
+     * finished, see {@link ResourcePoolCallback}. Not set outside of a dispatcher request.
+     */
+    static final ThreadLocal<List<Object[]>> BORROWED = new ThreadLocal<List<Object[]>>();
+
     private static final String IMAGE_PYRAMID = "ImagePyramid";
     private static final String IMAGE_MOSAIC = "ImageMosaic";
 
@@ -189,6 +200,8 @@ public class ResourcePool {
     Map<String, GridCoverageReader>  coverageReaderCache;
     Map<CoverageHintReaderKey, GridCoverageReader> hintCoverageReaderCache;
     Map<StyleInfo,Style> styleCache;
+    SingleFlightLoader<String, DataAccess> dataStoreLoader = new SingleFlightLoader<String, DataAccess>();
+    SingleFlightLoader<Object, GridCoverageReader> coverageReaderLoader = new SingleFlightLoader<Object, GridCoverageReader>();
     List<Listener> listeners;
     ThreadPoolExecutor coverageExecutor;
     CatalogRepository repository;
@@ -291,7 +304,8 @@ public class ResourcePool {
      * @see #getDataStoreCache()
      */
     protected DataStoreCache createDataStoreCache() {
-        return new DataStoreCache();
+        return new DataStoreCache(ResourceCachePolicy.lookup("dataStore",
+                ResourceCachePolicy.soft(100)));
     }
 
     /**
@@ -310,7 +324,8 @@ public class ResourcePool {
     protected Map<String,FeatureType> createFeatureTypeCache(int size) {
         // for each feature type we cache two versions, one with the projection policy applied, one
         // without it
-        return new FeatureTypeCache(size * 2);
+        return new FeatureTypeCache(ResourceCachePolicy.lookup("featureType",
+                ResourceCachePolicy.soft(size * 2)));
     }
 
     /**
@@ -329,7 +344,8 @@ public class ResourcePool {
     protected Map<String, List<AttributeTypeInfo>> createFeatureTypeAttributeCache(int size) {
         // for each feature type we cache two versions, one with the projection policy applied, one
         // without it
-        return new FeatureTypeAttributeCache(size * 2);
+        return new FeatureTypeAttributeCache(ResourceCachePolicy.lookup("featureTypeAttribute",
+                ResourceCachePolicy.soft(size * 2)));
     }
 
     /**
@@ -346,7 +362,8 @@ public class ResourcePool {
     }
 
     protected Map<String, GridCoverageReader> createCoverageReaderCache() {
-        return new CoverageReaderCache();
+        return new CoverageReaderCache(ResourceCachePolicy.lookup("coverageReader",
+                ResourceCachePolicy.soft(100)));
     }
 
     /**
@@ -360,7 +377,8 @@ public class ResourcePool {
     }
     
     protected Map<CoverageHintReaderKey, GridCoverageReader> createHintCoverageReaderCache() {
-        return new CoverageHintReaderCache();
+        return new CoverageHintReaderCache(ResourceCachePolicy.lookup("hintCoverageReader",
+                ResourceCachePolicy.soft(100)));
     }
 
     /**
@@ -374,7 +392,8 @@ public class ResourcePool {
     }
 
     protected Map<StyleInfo, Style> createStyleCache() {
-        return new HashMap<StyleInfo, Style>();
+        return new StyleCache(ResourceCachePolicy.lookup("style",
+                ResourceCachePolicy.unbounded()));
     }
 
     /**
@@ -391,7 +410,7 @@ public class ResourcePool {
     }
 
     protected Map<String, WebMapServer> createWmsCache() {
-        return new WMSCache();
+        return new WMSCache(ResourceCachePolicy.lookup("wms", ResourceCachePolicy.soft(100)));
     }
 
     /**
@@ -408,6 +427,40 @@ public class ResourcePool {
             featureTypeAttributeCache = createFeatureTypeAttributeCache(featureTypeCacheSize);
         }
     }
+
+    /**
+     * Returns the usage statistics of the resource caches.
+     * <p>
+     * Caches replaced by subclasses with a map that is not a {@link CatalogResourceCache} are not
+     * reported.
+     * </p>
+     */
+    public List<ResourceCacheStatistics> getCacheStatistics() {
+        List<ResourceCacheStatistics> result = new ArrayList<ResourceCacheStatistics>();
+        for (Map<?, ?> cache : getStatisticsCaches()) {
+            if (cache instanceof CatalogResourceCache) {
+                result.add(((CatalogResourceCache<?, ?>) cache).getStatistics());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resets the usage statistics of the resource caches, the cache contents are not affected.
+     */
+    public void resetCacheStatistics() {
+        for (Map<?, ?> cache : getStatisticsCaches()) {
+            if (cache instanceof CatalogResourceCache) {
+                ((CatalogResourceCache<?, ?>) cache).resetStatistics();
+            }
+        }
+    }
+
+    List<Map<?, ?>> getStatisticsCaches() {
+        return Arrays.<Map<?, ?>> asList(dataStoreCache, featureTypeCache,
+                featureTypeAttributeCache, coverageReaderCache, hintCoverageReaderCache, wmsCache,
+                styleCache);
+    }
     
     /**
      * Sets the size of the feature type cache.
@@ -515,95 +568,31 @@ public class ResourcePool {
      * @throws IOException Any errors that occur connecting to the resource.
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( DataStoreInfo info ) throws IOException {
+    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( final DataStoreInfo info ) throws IOException {
         DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
         try {
-            String id = info.getId();
+            final String id = info.getId();
+            // no need to cache the stores returned from un-saved DataStoreInfo objects (it would
+            // be actually harmful, NPE when trying to dispose of them)
+            if (id == null) {
+                return createDataStore(info);
+            }
             dataStore = dataStoreCache.get(id);
             if ( dataStore == null ) {
-                synchronized (dataStoreCache) {
-                    dataStore = dataStoreCache.get( id );
-                    if ( dataStore == null ) {
-                        //create data store
-                        Map<String, Serializable> connectionParameters = info.getConnectionParameters();
-                        
-                        // call this method to execute the hack which recognizes 
-                        // urls which are relative to the data directory
-                        // TODO: find a better way to do this
-                        connectionParameters = ResourcePool.getParams(connectionParameters, catalog.getResourceLoader() );
-                        
-                        // obtain the factory
-                        DataAccessFactory factory = null;
-                        try {
-                            factory = getDataStoreFactory(info);
-                        } catch(IOException e) {
-                            throw new IOException("Failed to find the datastore factory for " + info.getName() 
-                                    + ", did you forget to install the store extension jar?");
-                        }
-                        Param[] params = factory.getParametersInfo();
-                        
-                        //ensure that the namespace parameter is set for the datastore
-                        if (!connectionParameters.containsKey( "namespace") && params != null) {
-                            //if we grabbed the factory, check that the factory actually supports
-                            // a namespace parameter, if we could not get the factory, assume that
-                            // it does
-                            boolean supportsNamespace = true;
-                            supportsNamespace = false;
-                            
-                            for ( Param p : params ) {
-                                if ( "namespace".equalsIgnoreCase( p.key ) ) {
-                                    supportsNamespace = true;
-                                    break;
-                                }
-                            }
-                            
-                            if ( supportsNamespace ) {
-                                WorkspaceInfo ws = info.getWorkspace();
-                                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
-                                if ( ns == null ) {
-                                    ns = info.getCatalog().getDefaultNamespace();
-                                }
-                                if ( ns != null ) {
-                                    connectionParameters.put( "namespace", ns.getURI() );
-                                }    
-                            }
-                        }
-                        
-                        // see if the store has a repository param, if so, pass the one wrapping
-                        // the store
-                        if(params != null) {
-                            for ( Param p : params ) {
-                                if(Repository.class.equals(p.getType())) {
-                                    connectionParameters.put(p.getName(), repository);
-                                }
-                            }
-                        }
-                        
-                        dataStore = DataStoreUtils.getDataAccess(connectionParameters);
+                // only one thread creates the store, the others wait for it, while
+                // different stores can still be created in parallel
+                dataStore = dataStoreLoader.load(id, new Callable<DataAccess>() {
+
+                    @Override
+                    public DataAccess call() throws Exception {
+                        DataAccess dataStore = dataStoreCache.get(id);
                         if (dataStore == null) {
-                            /*
-                             * Preserve DataStore retyping behaviour by calling
-                             * DataAccessFinder.getDataStore after the call to
-                             * DataStoreUtils.getDataStore above.
-                             * 
-                             * TODO: DataAccessFinder can also find DataStores, and when retyping is
-                             * supported for DataAccess, we can use a single mechanism.
-                             */
-                            dataStore = DataAccessFinder.getDataStore(connectionParameters);
-                        }
-                        
-                        if ( dataStore == null ) {
-                            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
-                        }
-                        
-                        // cache only if the id is not null, no need to cache the stores
-                        // returned from un-saved DataStoreInfo objects (it would be actually
-                        // harmful, NPE when trying to dispose of them)
-                        if(id != null) {
-                            dataStoreCache.put( id, dataStore );
+                            dataStore = createDataStore(info);
+                            dataStoreCache.put(id, dataStore);
                         }
+                        return dataStore;
                     }
-                } 
+                });
             }
             
             return dataStore;
@@ -624,6 +613,87 @@ public class ResourcePool {
         }
     }
         
+    /**
+     * Creates a new DataAccess from the store connection parameters, without caching it
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    DataAccess<? extends FeatureType, ? extends Feature> createDataStore(DataStoreInfo info)
+            throws IOException {
+        DataAccess<? extends FeatureType, ? extends Feature> dataStore = null;
+        Map<String, Serializable> connectionParameters = info.getConnectionParameters();
+        
+        // call this method to execute the hack which recognizes 
+        // urls which are relative to the data directory
+        // TODO: find a better way to do this
+        connectionParameters = ResourcePool.getParams(connectionParameters, catalog.getResourceLoader() );
+        
+        // obtain the factory
+        DataAccessFactory factory = null;
+        try {
+            factory = getDataStoreFactory(info);
+        } catch(IOException e) {
+            throw new IOException("Failed to find the datastore factory for " + info.getName() 
+                    + ", did you forget to install the store extension jar?");
+        }
+        Param[] params = factory.getParametersInfo();
+        
+        //ensure that the namespace parameter is set for the datastore
+        if (!connectionParameters.containsKey( "namespace") && params != null) {
+            //if we grabbed the factory, check that the factory actually supports
+            // a namespace parameter, if we could not get the factory, assume that
+            // it does
+            boolean supportsNamespace = true;
+            supportsNamespace = false;
+            
+            for ( Param p : params ) {
+                if ( "namespace".equalsIgnoreCase( p.key ) ) {
+                    supportsNamespace = true;
+                    break;
+                }
+            }
+            
+            if ( supportsNamespace ) {
+                WorkspaceInfo ws = info.getWorkspace();
+                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
+                if ( ns == null ) {
+                    ns = info.getCatalog().getDefaultNamespace();
+                }
+                if ( ns != null ) {
+                    connectionParameters.put( "namespace", ns.getURI() );
+                }    
+            }
+        }
+        
+        // see if the store has a repository param, if so, pass the one wrapping
+        // the store
+        if(params != null) {
+            for ( Param p : params ) {
+                if(Repository.class.equals(p.getType())) {
+                    connectionParameters.put(p.getName(), repository);
+                }
+            }
+        }
+        
+        dataStore = DataStoreUtils.getDataAccess(connectionParameters);
+        if (dataStore == null) {
+            /*
+             * Preserve DataStore retyping behaviour by calling
+             * DataAccessFinder.getDataStore after the call to
+             * DataStoreUtils.getDataStore above.
+             * 
+             * TODO: DataAccessFinder can also find DataStores, and when retyping is
+             * supported for DataAccess, we can use a single mechanism.
+             */
+            dataStore = DataAccessFinder.getDataStore(connectionParameters);
+        }
+        
+        if ( dataStore == null ) {
+            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
+        }
+        
+        return dataStore;
+    }
+
     /**
      * Process conneciton parameters into a synchronized map.
      *
@@ -1355,7 +1425,7 @@ public class ResourcePool {
      * @throws IOException Any errors that occur loading the reader.
      */
     @SuppressWarnings("deprecation")
-    private GridCoverageReader getGridCoverageReader(CoverageStoreInfo info, CoverageInfo coverageInfo, String coverageName, Hints hints) 
+    private GridCoverageReader getGridCoverageReader(final CoverageStoreInfo info, CoverageInfo coverageInfo, String coverageName, Hints hints) 
         throws IOException {
         
         final AbstractGridFormat gridFormat = info.getFormat();
@@ -1390,42 +1460,36 @@ public class ResourcePool {
             }
         }
         
-        // if not found in cache, create it
+        // if not found in cache, create it. Only one thread creates the reader for a given key,
+        // the others wait for it, while readers for different keys are created in parallel
         if(reader == null) {
-            synchronized ( hints != null ? hintCoverageReaderCache : coverageReaderCache ) {
-                if (key != null) {
-                    if (hints != null) {
-                        reader = hintCoverageReaderCache.get(key);
-                    } else {
-                        reader = coverageReaderCache.get(key);
-                    }
-                }
-                if (reader == null) {
-                    /////////////////////////////////////////////////////////
-                    //
-                    // Getting coverage reader using the format and the real path.
-                    //
-                    // /////////////////////////////////////////////////////////
-                    final String url = info.getURL();
-                    GeoServerResourceLoader loader = catalog.getResourceLoader();
-                    final File obj = loader.url(url);
-
-                    // In case no File is returned, provide the original String url
-                    final Object input = obj != null ? obj : url;  
-
-                    // readers might change the provided hints, pass down a defensive copy
-                    reader = gridFormat.getReader(input, new Hints(hints));
-                    if(reader == null) {
-                        throw new IOException("Failed to create reader from " + url + " and hints " + hints);
-                    }
-                    if(key != null) {
-                        if(hints != null) {
-                            hintCoverageReaderCache.put((CoverageHintReaderKey) key, reader);
+            if (key == null) {
+                reader = createGridCoverageReader(info, gridFormat, hints);
+            } else {
+                final Object cacheKey = key;
+                final Hints readerHints = hints;
+                reader = coverageReaderLoader.load(key, new Callable<GridCoverageReader>() {
+
+                    @Override
+                    public GridCoverageReader call() throws Exception {
+                        GridCoverageReader reader;
+                        if (cacheKey instanceof CoverageHintReaderKey) {
+                            reader = hintCoverageReaderCache.get(cacheKey);
                         } else {
-                            coverageReaderCache.put((String) key, reader);
+                            reader = coverageReaderCache.get(cacheKey);
+                        }
+                        if (reader == null) {
+                            reader = createGridCoverageReader(info, gridFormat, readerHints);
+                            if (cacheKey instanceof CoverageHintReaderKey) {
+                                hintCoverageReaderCache.put((CoverageHintReaderKey) cacheKey,
+                                        reader);
+                            } else {
+                                coverageReaderCache.put((String) cacheKey, reader);
+                            }
                         }
+                        return reader;
                     }
-                }
+                });
             }
         }
 
@@ -1462,6 +1526,27 @@ public class ResourcePool {
         }
     }
     
+    /**
+     * Creates a new coverage reader, without caching it
+     */
+    GridCoverageReader createGridCoverageReader(CoverageStoreInfo info,
+            AbstractGridFormat gridFormat, Hints hints) throws IOException {
+        // Getting coverage reader using the format and the real path.
+        final String url = info.getURL();
+        GeoServerResourceLoader loader = catalog.getResourceLoader();
+        final File obj = loader.url(url);
+
+        // In case no File is returned, provide the original String url
+        final Object input = obj != null ? obj : url;
+
+        // readers might change the provided hints, pass down a defensive copy
+        GridCoverageReader reader = gridFormat.getReader(input, new Hints(hints));
+        if (reader == null) {
+            throw new IOException("Failed to create reader from " + url + " and hints " + hints);
+        }
+        return reader;
+    }
+
     /**
      * Clears any cached readers for the coverage.
      */
@@ -1891,33 +1976,157 @@ public class ResourcePool {
     
     /**
      * Base class for all the resource caches, ensures type safety and provides
-     * an easier way to handle with resource disposal 
+     * an easier way to handle with resource disposal.
+     * <p>
+     * The actual storage and eviction strategy is driven by the {@link ResourceCachePolicy}, the
+     * cache also keeps hit, miss, load and eviction counters, see {@link #getStatistics()}. The
+     * load time is measured between a failed lookup and the following put of the same key from
+     * the same thread, which matches the lookup/create/put pattern used in the resource pool.
+     * </p>
+     * <p>
+     * With the size, weight and idle bounded policies the values looked up during a dispatcher
+     * request are borrowed until the request is finished, an entry evicted while borrowed is
+     * disposed only when the last borrower releases it. The soft policy does not need that, the
+     * values in use are strongly referenced and cannot be collected.
+     * </p>
      * @author Andrea Aime
      *
      * @param <K>
      * @param <V>
      */
-    abstract class CatalogResourceCache<K, V> extends SoftValueHashMap<K, V> {
+    abstract class CatalogResourceCache<K, V> extends AbstractMap<K, V> {
+
+        final String name;
+
+        final ResourceCachePolicy policy;
+
+        final Map<K, V> delegate;
+
+        final AtomicLong hits = new AtomicLong();
+
+        final AtomicLong misses = new AtomicLong();
+
+        final AtomicLong loads = new AtomicLong();
+
+        final AtomicLong loadTime = new AtomicLong();
 
-        public CatalogResourceCache() {
-            this(100);
+        final AtomicLong evictions = new AtomicLong();
+
+        /**
+         * The key and start time of the last miss in the current thread
+         */
+        final ThreadLocal<Object[]> pendingLoad = new ThreadLocal<Object[]>();
+
+        /**
+         * The usage of the cached values, by value identity. Null with the soft policy
+         */
+        final Map<V, BorrowedValue> borrowed;
+
+        public CatalogResourceCache(String name, ResourceCachePolicy policy) {
+            this.name = name;
+            this.policy = policy;
+            if (policy.getType() == ResourceCachePolicy.Type.SOFT) {
+                this.delegate = new SoftCache(policy.getMaxEntries());
+                this.borrowed = null;
+            } else {
+                this.borrowed = new IdentityHashMap<V, BorrowedValue>();
+                this.delegate = new ResourceCacheMap<K, V>(policy,
+                        new ResourceCacheMap.EvictionListener<K, V>() {
+
+                            @Override
+                            public void evicted(K key, V value) {
+                                evictions.incrementAndGet();
+                                evict(key, value);
+                            }
+                        }, new ResourceCacheMap.Weigher<K, V>() {
+
+                            @Override
+                            public int weigh(K key, V value) {
+                                return CatalogResourceCache.this.weigh(key, value);
+                            }
+                        });
+            }
         }
 
-        public CatalogResourceCache(int hardReferences) {
-            super(hardReferences);
-            super.cleaner = new ValueCleaner() {
+        @Override
+        public V get(Object key) {
+            V value = delegate.get(key);
+            if (key == null) {
+                return value;
+            }
+            if (value != null && !borrow(value)) {
+                // evicted in the meantime, about to be disposed, load a new one
+                value = null;
+            }
+            if (value != null) {
+                hits.incrementAndGet();
+                pendingLoad.remove();
+            } else {
+                // the resource pool looks up twice before loading, count the miss only once
+                Object[] pending = pendingLoad.get();
+                if (pending == null || !pending[0].equals(key)) {
+                    misses.incrementAndGet();
+                    pendingLoad.set(new Object[] { key, System.nanoTime() });
+                }
+            }
+            return value;
+        }
 
-                @Override
-                public void clean(Object key, Object object) {
-                    dispose((K) key, (V) object);
+        @Override
+        public V put(K key, V value) {
+            Object[] pending = pendingLoad.get();
+            if (pending != null && pending[0].equals(key)) {
+                pendingLoad.remove();
+                loads.incrementAndGet();
+                loadTime.addAndGet(System.nanoTime() - (Long) pending[1]);
+            }
+            if (borrowed != null && value != null) {
+                // borrow before publishing it, an eviction right away must not dispose it
+                synchronized (borrowed) {
+                    if (!borrowed.containsKey(value)) {
+                        borrowed.put(value, new BorrowedValue(key));
+                    }
+                }
+                borrow(value);
+            }
+            V previous = delegate.put(key, value);
+            if (borrowed != null && previous != null && previous != value) {
+                synchronized (borrowed) {
+                    borrowed.remove(previous);
                 }
-            };
+            }
+            return previous;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return delegate.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Set<K> keySet() {
+            return delegate.keySet();
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            return delegate.entrySet();
         }
 
         @Override
         public V remove(Object key) {
-            V object = super.remove(key);
+            V object = delegate.remove(key);
             if (object != null) {
+                if (borrowed != null) {
+                    synchronized (borrowed) {
+                        borrowed.remove(object);
+                    }
+                }
                 dispose((K) key, object);
             }
             return object;
@@ -1925,24 +2134,228 @@ public class ResourcePool {
 
         @Override
         public void clear() {
-            for (Entry entry : entrySet()) {
-                try {
-                    dispose((K) entry.getKey(), (V) entry.getValue());
+            for (Entry<K, V> entry : new ArrayList<Entry<K, V>>(entrySet())) {
+                safeDispose(entry.getKey(), entry.getValue());
+            }
+            delegate.clear();
+            if (borrowed != null) {
+                synchronized (borrowed) {
+                    borrowed.clear();
                 }
-                catch(Exception e) {
-                    LOGGER.log(Level.WARNING, "Error dispoing entry: " + entry, e);
+            }
+        }
+
+        /**
+         * Marks the value as used by the current request, returns false if it has been evicted in
+         * the meantime. Values looked up outside of a dispatcher request are not tracked.
+         */
+        boolean borrow(V value) {
+            List<Object[]> requestBorrowed = BORROWED.get();
+            if (borrowed == null || requestBorrowed == null) {
+                return true;
+            }
+            for (Object[] b : requestBorrowed) {
+                if (b[0] == this && b[1] == value) {
+                    // already borrowed by this request
+                    return true;
+                }
+            }
+            synchronized (borrowed) {
+                BorrowedValue usage = borrowed.get(value);
+                if (usage == null || usage.evicted) {
+                    return false;
+                }
+                usage.borrowers++;
+            }
+            requestBorrowed.add(new Object[] { this, value });
+            return true;
+        }
+
+        /**
+         * Releases a value borrowed by the current request, disposing it if it has been evicted
+         * and this was the last borrower
+         */
+        void release(Object value) {
+            BorrowedValue usage;
+            synchronized (borrowed) {
+                usage = borrowed.get(value);
+                if (usage == null) {
+                    return;
+                }
+                usage.borrowers--;
+                if (!usage.evicted || usage.borrowers > 0) {
+                    return;
+                }
+                borrowed.remove(value);
+            }
+            safeDispose((K) usage.key, (V) value);
+        }
+
+        /**
+         * Disposes an evicted value, or defers it until the requests using it are finished
+         */
+        void evict(K key, V value) {
+            synchronized (borrowed) {
+                BorrowedValue usage = borrowed.get(value);
+                if (usage != null) {
+                    if (usage.borrowers > 0) {
+                        usage.evicted = true;
+                        return;
+                    }
+                    borrowed.remove(value);
                 }
             }
-            super.clear();
+            safeDispose(key, value);
+        }
+
+        void safeDispose(K key, V value) {
+            try {
+                dispose(key, value);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error dispoing entry: " + key, e);
+            }
+        }
+
+        /**
+         * The cache name, used to look up its policy and to report statistics
+         */
+        public String getName() {
+            return name;
+        }
+
+        public ResourceCachePolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * Returns a snapshot of the cache usage statistics
+         */
+        public ResourceCacheStatistics getStatistics() {
+            long weight = -1;
+            if (delegate instanceof ResourceCacheMap) {
+                weight = ((ResourceCacheMap<K, V>) delegate).getTotalWeight();
+            }
+            return new ResourceCacheStatistics(name, policy.toString(), size(), weight,
+                    hits.get(), misses.get(), loads.get(), loadTime.get() / 1000000,
+                    evictions.get());
+        }
+
+        public void resetStatistics() {
+            hits.set(0);
+            misses.set(0);
+            loads.set(0);
+            loadTime.set(0);
+            evictions.set(0);
+        }
+
+        /**
+         * Returns the weight of a cache entry, used by policies having a max weight. Defaults to
+         * one, subclasses can override with a better estimate of the entry footprint.
+         */
+        protected int weigh(K key, V value) {
+            return 1;
         }
 
         protected abstract void dispose(K key, V object);
+
+        /**
+         * The legacy soft value map, disposing the values collected by the garbage collector.
+         * <p>
+         * {@link SoftValueHashMap} is not thread safe, the accesses are synchronized on the map
+         * itself, the same way {@link ResourceCacheMap} does, and the key and entry sets are
+         * returned as copies.
+         * </p>
+         */
+        class SoftCache extends SoftValueHashMap<K, V> {
+
+            SoftCache(int hardReferences) {
+                super(hardReferences);
+                super.cleaner = new ValueCleaner() {
+
+                    @Override
+                    public void clean(Object key, Object object) {
+                        evictions.incrementAndGet();
+                        dispose((K) key, (V) object);
+                    }
+                };
+            }
+
+            @Override
+            public synchronized V get(Object key) {
+                return super.get(key);
+            }
+
+            @Override
+            public synchronized V put(K key, V value) {
+                return super.put(key, value);
+            }
+
+            @Override
+            public synchronized V remove(Object key) {
+                return super.remove(key);
+            }
+
+            @Override
+            public synchronized boolean containsKey(Object key) {
+                return super.containsKey(key);
+            }
+
+            @Override
+            public synchronized int size() {
+                return super.size();
+            }
+
+            @Override
+            public synchronized void clear() {
+                super.clear();
+            }
+
+            @Override
+            public synchronized Set<K> keySet() {
+                return Collections.unmodifiableSet(new HashSet<K>(super.keySet()));
+            }
+
+            @Override
+            public synchronized Set<Entry<K, V>> entrySet() {
+                Set<Entry<K, V>> entries = new HashSet<Entry<K, V>>();
+                for (Entry<K, V> e : super.entrySet()) {
+                    entries.add(new SimpleImmutableEntry<K, V>(e.getKey(), e.getValue()));
+                }
+                return Collections.unmodifiableSet(entries);
+            }
+        }
     }
     
+    /**
+     * The usage of a value held by a bounded {@link CatalogResourceCache}. Once evicted it cannot
+     * be borrowed anymore, and is disposed when the last borrower releases it.
+     */
+    static class BorrowedValue {
+        final Object key;
+
+        int borrowers;
+
+        boolean evicted;
+
+        BorrowedValue(Object key) {
+            this.key = key;
+        }
+    }
+
     class FeatureTypeCache extends CatalogResourceCache<String, FeatureType> {
         
         public FeatureTypeCache(int maxSize) {
-            super(maxSize);
+            this(ResourceCachePolicy.soft(maxSize));
+        }
+
+        public FeatureTypeCache(ResourceCachePolicy policy) {
+            super("featureType", policy);
+        }
+
+        @Override
+        protected int weigh(String key, FeatureType featureType) {
+            // the number of attributes is a decent proxy for the feature type memory footprint
+            return Math.max(1, featureType.getDescriptors().size());
         }
         
         protected void dispose(String key, FeatureType featureType) {
@@ -1963,6 +2376,15 @@ public class ResourcePool {
      */
     @SuppressWarnings("rawtypes")
     class DataStoreCache extends CatalogResourceCache<String, DataAccess> {
+
+        public DataStoreCache() {
+            this(ResourceCachePolicy.soft(100));
+        }
+
+        public DataStoreCache(ResourceCachePolicy policy) {
+            super("dataStore", policy);
+        }
+
         /**
          * Ensure data access entry is removed from catalog, and
          * ensure DataAccess dispose is called to return system resources.
@@ -1996,7 +2418,15 @@ public class ResourcePool {
     }
     
     class CoverageReaderCache extends CatalogResourceCache<String, GridCoverageReader> {
-        
+
+        public CoverageReaderCache() {
+            this(ResourceCachePolicy.soft(100));
+        }
+
+        public CoverageReaderCache(ResourceCachePolicy policy) {
+            super("coverageReader", policy);
+        }
+
         protected void dispose(String id, GridCoverageReader reader) {
         	CoverageStoreInfo info = catalog.getCoverageStore(id);
         	if(info != null) {
@@ -2016,7 +2446,15 @@ public class ResourcePool {
     }
     
     class CoverageHintReaderCache extends CatalogResourceCache<CoverageHintReaderKey, GridCoverageReader> {
-        
+
+        public CoverageHintReaderCache() {
+            this(ResourceCachePolicy.soft(100));
+        }
+
+        public CoverageHintReaderCache(ResourceCachePolicy policy) {
+            super("hintCoverageReader", policy);
+        }
+
         protected void dispose(CoverageHintReaderKey key, GridCoverageReader reader) {
         	CoverageStoreInfo info = catalog.getCoverageStore(key.id);
         	if(info != null) {
@@ -2086,7 +2524,16 @@ public class ResourcePool {
     class FeatureTypeAttributeCache extends CatalogResourceCache<String, List<AttributeTypeInfo>> {
 
         FeatureTypeAttributeCache(int size) {
-            super(size);
+            this(ResourceCachePolicy.soft(size));
+        }
+
+        FeatureTypeAttributeCache(ResourceCachePolicy policy) {
+            super("featureTypeAttribute", policy);
+        }
+
+        @Override
+        protected int weigh(String key, List<AttributeTypeInfo> attributes) {
+            return Math.max(1, attributes.size());
         }
 
         @Override
@@ -2097,12 +2544,33 @@ public class ResourcePool {
 
     class WMSCache extends CatalogResourceCache<String, WebMapServer> {
 
+        public WMSCache() {
+            this(ResourceCachePolicy.soft(100));
+        }
+
+        public WMSCache(ResourceCachePolicy policy) {
+            super("wms", policy);
+        }
+
         @Override
         protected void dispose(String key, WebMapServer object) {
             // nothing to do
         }
 
     }
+
+    class StyleCache extends CatalogResourceCache<StyleInfo, Style> {
+
+        public StyleCache(ResourceCachePolicy policy) {
+            super("style", policy);
+        }
+
+        @Override
+        protected void dispose(StyleInfo key, Style object) {
+            // nothing to do
+        }
+
+    }
     
     /**
      * Listens to catalog events clearing cache entires when resources are modified.
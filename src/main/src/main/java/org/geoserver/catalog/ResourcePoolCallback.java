@@ -0,0 +1,42 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geoserver.catalog.ResourcePool.CatalogResourceCache;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+
+/**
+ * Tracks the cached stores and readers used by each dispatcher request, so that the
+ * {@link ResourcePool} does not dispose them while in use when they get evicted, and releases them
+ * once the request is finished.
+ */
+public class ResourcePoolCallback extends AbstractDispatcherCallback {
+
+    @Override
+    public Request init(Request request) {
+        releaseBorrowed();
+        ResourcePool.BORROWED.set(new ArrayList<Object[]>());
+        return request;
+    }
+
+    @Override
+    public void finished(Request request) {
+        releaseBorrowed();
+    }
+
+    static void releaseBorrowed() {
+        List<Object[]> borrowed = ResourcePool.BORROWED.get();
+        if (borrowed != null) {
+            ResourcePool.BORROWED.remove();
+            for (Object[] b : borrowed) {
+                ((CatalogResourceCache<?, ?>) b[0]).release(b[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.util.List;
+
+/**
+ * Exposes the statistics of the {@link ResourcePool} caches of a catalog. The resource pool is
+ * looked up at each call, as it can be replaced during the catalog lifetime.
+ */
+public class ResourcePoolStatistics implements ResourcePoolStatisticsMXBean {
+
+    Catalog catalog;
+
+    public ResourcePoolStatistics(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public List<ResourceCacheStatistics> getCaches() {
+        return catalog.getResourcePool().getCacheStatistics();
+    }
+
+    @Override
+    public void resetStatistics() {
+        catalog.getResourcePool().resetCacheStatistics();
+    }
+}
@@ -0,0 +1,23 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.util.List;
+
+/**
+ * JMX management interface for the {@link ResourcePool} cache statistics
+ */
+public interface ResourcePoolStatisticsMXBean {
+
+    /**
+     * Returns the statistics of each resource pool cache
+     */
+    List<ResourceCacheStatistics> getCaches();
+
+    /**
+     * Resets the cache statistics
+     */
+    void resetStatistics();
+}
@@ -0,0 +1,97 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that, for each key, only one thread at a time runs the loading code, while the
+ * others wait for its result. Used by the {@link ResourcePool} so that a burst of requests hitting
+ * a store that is not cached opens a single connection pool or coverage reader, without
+ * serializing the loading of different stores behind a single lock.
+ * <p>
+ * The loading code runs in the calling thread. If it fails all the waiting threads receive the
+ * same exception, and the next call for the same key will try loading again. The loading code
+ * should check the cache again before building the resource, as a load might have completed
+ * between the caller cache miss and the call to {@link #load(Object, Callable)}.
+ * </p>
+ */
+class SingleFlightLoader<K, V> {
+
+    static class Flight<V> extends FutureTask<V> {
+        final Thread owner;
+
+        Flight(Callable<V> loader) {
+            super(loader);
+            this.owner = Thread.currentThread();
+        }
+    }
+
+    final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+    final AtomicLong sharedLoads = new AtomicLong();
+
+    /**
+     * Returns the value loaded by the provided loader, or by the loader of another thread that is
+     * already loading the same key.
+     */
+    public V load(K key, Callable<V> loader) throws IOException {
+        Flight<V> flight = new Flight<V>(loader);
+        Flight<V> existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            try {
+                flight.run();
+            } finally {
+                flights.remove(key, flight);
+            }
+        } else if (existing.owner == Thread.currentThread()) {
+            // re-entrant load of the same key, waiting on ourselves would deadlock
+            flight.run();
+        } else {
+            sharedLoads.incrementAndGet();
+            flight = existing;
+        }
+
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key
+                    + " to be loaded");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw (IOException) new IOException("Failed to load " + key).initCause(cause);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of keys being loaded at the moment
+     */
+    public int getLoadingCount() {
+        return flights.size();
+    }
+
+    /**
+     * Returns how many times a thread waited for a load performed by another thread instead of
+     * loading the resource on its own
+     */
+    public long getSharedLoads() {
+        return sharedLoads.get();
+    }
+}
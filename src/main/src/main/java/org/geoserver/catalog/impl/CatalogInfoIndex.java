@@ -0,0 +1,264 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.geoserver.catalog.CatalogInfo;
+
+import com.google.common.base.Function;
+
+/**
+ * Concurrent in memory index of catalog objects of a single type, keyed by id and by any number
+ * of named secondary keys (name, workspace, store, ...).
+ * <p>
+ * Lookups never lock and return objects in insertion order. Modifications are serialized on a
+ * lock private to the index, so that the primary and secondary keys of an object are always
+ * updated together, and indexes of different types never contend with each other.
+ * </p>
+ * <p>
+ * The secondary keys an object was indexed under are remembered, so that {@link #reindex(String)}
+ * can be called after an object has been modified (e.g. renamed) to move it to its new keys.
+ * </p>
+ *
+ * @see IndexedCatalogFacade
+ */
+class CatalogInfoIndex<T extends CatalogInfo> {
+
+    /**
+     * Key used for objects whose secondary key is null (e.g. global styles have no workspace)
+     */
+    static final String NULL_KEY = "";
+
+    /**
+     * An indexed object, along with its insertion sequence and the keys it is indexed under
+     */
+    static class Entry<T> {
+        final Long sequence;
+
+        final T info;
+
+        final Map<String, Collection<String>> keys = new HashMap<String, Collection<String>>();
+
+        Entry(Long sequence, T info) {
+            this.sequence = sequence;
+            this.info = info;
+        }
+    }
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    long sequence;
+
+    final ConcurrentMap<String, Entry<T>> byId = new ConcurrentHashMap<String, Entry<T>>();
+
+    final ConcurrentNavigableMap<Long, T> ordered = new ConcurrentSkipListMap<Long, T>();
+
+    final Map<String, Function<? super T, ? extends Collection<String>>> extractors =
+        new LinkedHashMap<String, Function<? super T, ? extends Collection<String>>>();
+
+    final Map<String, ConcurrentMap<String, ConcurrentNavigableMap<Long, T>>> indexes =
+        new HashMap<String, ConcurrentMap<String, ConcurrentNavigableMap<Long, T>>>();
+
+    /**
+     * Registers a secondary index. Must be called before any object is added.
+     *
+     * @param name The index name, used in {@link #lookup(String, String)}
+     * @param extractor Computes the keys an object is indexed under, null keys are mapped to
+     *        {@link #NULL_KEY}
+     */
+    public CatalogInfoIndex<T> index(String name,
+            Function<? super T, ? extends Collection<String>> extractor) {
+        extractors.put(name, extractor);
+        indexes.put(name, new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, T>>());
+        return this;
+    }
+
+    /**
+     * Adds an object to the index, replacing any object with the same id.
+     */
+    public void add(T info) {
+        lock.lock();
+        try {
+            Entry<T> previous = byId.get(info.getId());
+            if (previous != null) {
+                unlink(previous);
+            }
+            Entry<T> entry = new Entry<T>(sequence++, info);
+            byId.put(info.getId(), entry);
+            ordered.put(entry.sequence, info);
+            link(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the object with the specified id, returning it, or null if not found
+     */
+    public T remove(String id) {
+        if (id == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Entry<T> entry = byId.remove(id);
+            if (entry == null) {
+                return null;
+            }
+            ordered.remove(entry.sequence);
+            unlink(entry);
+            return entry.info;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Recomputes the secondary keys of the object with the specified id, to be called once the
+     * object has been modified.
+     */
+    public void reindex(String id) {
+        if (id == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry<T> entry = byId.get(id);
+            if (entry != null) {
+                unlink(entry);
+                link(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the object with the specified id, or null if not found
+     */
+    public T get(String id) {
+        if (id == null) {
+            return null;
+        }
+        Entry<T> entry = byId.get(id);
+        return entry != null ? entry.info : null;
+    }
+
+    /**
+     * Returns the objects indexed under the specified key, in insertion order. The returned
+     * collection is a live, read only view.
+     */
+    public Collection<T> lookup(String index, String key) {
+        ConcurrentMap<String, ConcurrentNavigableMap<Long, T>> keys = indexes.get(index);
+        if (keys == null) {
+            throw new IllegalArgumentException("Unknown index " + index);
+        }
+        ConcurrentNavigableMap<Long, T> matches = keys.get(key != null ? key : NULL_KEY);
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(matches.values());
+    }
+
+    /**
+     * Returns all the objects, in insertion order. The returned collection is a live, read only
+     * view.
+     */
+    public Collection<T> values() {
+        return Collections.unmodifiableCollection(ordered.values());
+    }
+
+    /**
+     * Returns a copy of the objects that are instances of the specified class.
+     */
+    public <S> List<S> list(Class<S> clazz) {
+        return filter(values(), clazz);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            byId.clear();
+            ordered.clear();
+            for (ConcurrentMap<String, ConcurrentNavigableMap<Long, T>> keys : indexes.values()) {
+                keys.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the objects that are instances of the specified class in a new list
+     */
+    static <S> List<S> filter(Collection<?> infos, Class<S> clazz) {
+        List<S> result = new ArrayList<S>();
+        for (Object info : infos) {
+            if (clazz.isInstance(info)) {
+                result.add(clazz.cast(info));
+            }
+        }
+        return result;
+    }
+
+    void link(Entry<T> entry) {
+        for (Map.Entry<String, Function<? super T, ? extends Collection<String>>> e : extractors
+                .entrySet()) {
+            String index = e.getKey();
+            Collection<? extends String> keys = e.getValue().apply(entry.info);
+            if (keys == null || keys.isEmpty()) {
+                continue;
+            }
+            List<String> linked = new ArrayList<String>(keys.size());
+            ConcurrentMap<String, ConcurrentNavigableMap<Long, T>> buckets = indexes.get(index);
+            for (String key : keys) {
+                if (key == null) {
+                    key = NULL_KEY;
+                }
+                ConcurrentNavigableMap<Long, T> bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new ConcurrentSkipListMap<Long, T>();
+                    buckets.put(key, bucket);
+                }
+                bucket.put(entry.sequence, entry.info);
+                linked.add(key);
+            }
+            entry.keys.put(index, linked);
+        }
+    }
+
+    void unlink(Entry<T> entry) {
+        for (Map.Entry<String, Collection<String>> e : entry.keys.entrySet()) {
+            ConcurrentMap<String, ConcurrentNavigableMap<Long, T>> buckets = indexes.get(e
+                    .getKey());
+            for (String key : e.getValue()) {
+                ConcurrentNavigableMap<Long, T> bucket = buckets.get(key);
+                if (bucket != null) {
+                    bucket.remove(entry.sequence);
+                    if (bucket.isEmpty()) {
+                        buckets.remove(key);
+                    }
+                }
+            }
+        }
+        entry.keys.clear();
+    }
+}
@@ -0,0 +1,904 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFacade;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.MapInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.util.OwsUtils;
+
+import com.google.common.base.Function;
+
+/**
+ * In memory catalog facade in which objects are kept in concurrent hash indexes by id, name,
+ * workspace, namespace, store and style, so that lookups do not need to scan the whole catalog.
+ * <p>
+ * Unlike {@link DefaultCatalogFacade}, adding and removing objects costs O(log n) instead of
+ * copying whole lists, and name and reference based lookups cost O(matches) instead of O(n),
+ * which makes a difference on catalogs with tens of thousands of layers. Each object type is
+ * kept in its own {@link CatalogInfoIndex}, reads never lock and writes only lock the index of
+ * the type being modified.
+ * </p>
+ * <p>
+ * The facade can be enabled by setting it on the raw catalog in the Spring context:
+ * <pre>
+ * &lt;bean id="rawCatalog" class="org.geoserver.catalog.impl.CatalogImpl" depends-on="extensions">
+ *   &lt;property name="resourceLoader" ref="resourceLoader"/>
+ *   &lt;property name="facade">
+ *     &lt;bean class="org.geoserver.catalog.impl.IndexedCatalogFacade"/>
+ *   &lt;/property>
+ * &lt;/bean>
+ * </pre>
+ * </p>
+ */
+public class IndexedCatalogFacade extends AbstractCatalogFacade implements CatalogFacade {
+
+    static final String NAME = "name";
+
+    static final String WORKSPACE = "workspace";
+
+    static final String NAMESPACE = "namespace";
+
+    static final String PREFIX = "prefix";
+
+    static final String URI = "uri";
+
+    static final String STORE = "store";
+
+    static final String RESOURCE = "resource";
+
+    static final String STYLE = "style";
+
+    /**
+     * workspaces
+     */
+    protected CatalogInfoIndex<WorkspaceInfo> workspaces;
+
+    /**
+     * the default workspace
+     */
+    protected volatile WorkspaceInfo defaultWorkspace;
+
+    /**
+     * namespaces
+     */
+    protected CatalogInfoIndex<NamespaceInfo> namespaces;
+
+    /**
+     * the default namespace
+     */
+    protected volatile NamespaceInfo defaultNamespace;
+
+    /**
+     * stores
+     */
+    protected CatalogInfoIndex<StoreInfo> stores;
+
+    /**
+     * The default store keyed by workspace id
+     */
+    protected Map<String, DataStoreInfo> defaultStores;
+
+    /**
+     * resources
+     */
+    protected CatalogInfoIndex<ResourceInfo> resources;
+
+    /**
+     * layers
+     */
+    protected CatalogInfoIndex<LayerInfo> layers;
+
+    /**
+     * maps
+     */
+    protected CatalogInfoIndex<MapInfo> maps;
+
+    /**
+     * layer groups
+     */
+    protected CatalogInfoIndex<LayerGroupInfo> layerGroups;
+
+    /**
+     * styles
+     */
+    protected CatalogInfoIndex<StyleInfo> styles;
+
+    /**
+     * the catalog
+     */
+    private CatalogImpl catalog;
+
+    public IndexedCatalogFacade() {
+        workspaces = new CatalogInfoIndex<WorkspaceInfo>().index(NAME, NAME_KEY);
+        namespaces = new CatalogInfoIndex<NamespaceInfo>().index(PREFIX, PREFIX_KEY).index(URI,
+                URI_KEY);
+        stores = new CatalogInfoIndex<StoreInfo>().index(NAME, NAME_KEY).index(WORKSPACE,
+                STORE_WORKSPACE_KEY);
+        defaultStores = new ConcurrentHashMap<String, DataStoreInfo>();
+        resources = new CatalogInfoIndex<ResourceInfo>().index(NAME, NAME_KEY)
+                .index(NAMESPACE, RESOURCE_NAMESPACE_KEY).index(STORE, RESOURCE_STORE_KEY);
+        layers = new CatalogInfoIndex<LayerInfo>().index(RESOURCE, LAYER_RESOURCE_KEY).index(
+                STYLE, LAYER_STYLE_KEY);
+        maps = new CatalogInfoIndex<MapInfo>().index(NAME, NAME_KEY);
+        layerGroups = new CatalogInfoIndex<LayerGroupInfo>().index(NAME, NAME_KEY).index(
+                WORKSPACE, LAYERGROUP_WORKSPACE_KEY);
+        styles = new CatalogInfoIndex<StyleInfo>().index(NAME, NAME_KEY).index(WORKSPACE,
+                STYLE_WORKSPACE_KEY);
+    }
+
+    public IndexedCatalogFacade(Catalog catalog) {
+        this();
+        setCatalog(catalog);
+    }
+
+    public void setCatalog(Catalog catalog) {
+        this.catalog = (CatalogImpl) catalog;
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    //
+    // Stores
+    //
+    public StoreInfo add(StoreInfo store) {
+        resolve(store);
+        stores.add(store);
+        return ModificationProxy.create(store, StoreInfo.class);
+    }
+
+    public void remove(StoreInfo store) {
+        stores.remove(unwrap(store).getId());
+    }
+
+    public void save(StoreInfo store) {
+        saved(store, stores);
+    }
+
+    public <T extends StoreInfo> T detach(T store) {
+        return store;
+    }
+
+    public <T extends StoreInfo> T getStore(String id, Class<T> clazz) {
+        return proxy(stores.get(id), clazz);
+    }
+
+    public <T extends StoreInfo> T getStoreByName(WorkspaceInfo workspace, String name,
+            Class<T> clazz) {
+        List<T> matches = CatalogInfoIndex.filter(stores.lookup(NAME, name), clazz);
+        if (workspace == ANY_WORKSPACE) {
+            if (matches.size() == 1) {
+                return ModificationProxy.create(matches.get(0), clazz);
+            }
+        } else if (workspace != null) {
+            for (T store : matches) {
+                if (workspace.getId() != null
+                        && workspace.getId().equals(id(store.getWorkspace()))) {
+                    return ModificationProxy.create(store, clazz);
+                }
+            }
+        }
+        return null;
+    }
+
+    public <T extends StoreInfo> List<T> getStoresByWorkspace(WorkspaceInfo workspace,
+            Class<T> clazz) {
+        // TODO: support ANY_WORKSPACE?
+
+        if (workspace == null) {
+            workspace = getDefaultWorkspace();
+        }
+        if (workspace == null) {
+            return Collections.emptyList();
+        }
+
+        List<T> matches = CatalogInfoIndex.filter(stores.lookup(WORKSPACE, workspace.getId()),
+                clazz);
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    public List getStores(Class clazz) {
+        return ModificationProxy.createList(stores.list(clazz), clazz);
+    }
+
+    public DataStoreInfo getDefaultDataStore(WorkspaceInfo workspace) {
+        DataStoreInfo defaultStore = defaultStores.get(workspace.getId());
+        return defaultStore != null ? ModificationProxy.create(defaultStore, DataStoreInfo.class)
+                : null;
+    }
+
+    public void setDefaultDataStore(WorkspaceInfo workspace, DataStoreInfo store) {
+        DataStoreInfo old;
+        if (store != null) {
+            old = defaultStores.put(workspace.getId(), store);
+        } else {
+            old = defaultStores.remove(workspace.getId());
+        }
+
+        // fire change event
+        catalog.fireModified(catalog, Arrays.asList("defaultDataStore"), Arrays.asList(old),
+                Arrays.asList(store));
+    }
+
+    //
+    // Resources
+    //
+    public ResourceInfo add(ResourceInfo resource) {
+        resolve(resource);
+        resources.add(resource);
+        return ModificationProxy.create(resource, ResourceInfo.class);
+    }
+
+    public void remove(ResourceInfo resource) {
+        resources.remove(unwrap(resource).getId());
+    }
+
+    public void save(ResourceInfo resource) {
+        saved(resource, resources);
+    }
+
+    public <T extends ResourceInfo> T detach(T resource) {
+        return resource;
+    }
+
+    public <T extends ResourceInfo> T getResource(String id, Class<T> clazz) {
+        return proxy(resources.get(id), clazz);
+    }
+
+    public <T extends ResourceInfo> T getResourceByName(NamespaceInfo namespace, String name,
+            Class<T> clazz) {
+        List<T> matches = CatalogInfoIndex.filter(resources.lookup(NAME, name), clazz);
+        if (namespace == ANY_NAMESPACE) {
+            if (matches.size() == 1) {
+                return ModificationProxy.create(matches.get(0), clazz);
+            }
+        } else if (namespace != null) {
+            for (T resource : matches) {
+                NamespaceInfo namespace1 = resource.getNamespace();
+                if (namespace1 != null && namespace.getId() != null
+                        && namespace.getId().equals(namespace1.getId())) {
+                    return ModificationProxy.create(resource, clazz);
+                }
+            }
+        }
+        return null;
+    }
+
+    public List getResources(Class clazz) {
+        return ModificationProxy.createList(resources.list(clazz), clazz);
+    }
+
+    public List getResourcesByNamespace(NamespaceInfo namespace, Class clazz) {
+        // TODO: support ANY_NAMESPACE?
+
+        if (namespace == null) {
+            namespace = getDefaultNamespace();
+        }
+
+        List matches = CatalogInfoIndex.filter(resources.lookup(NAMESPACE, id(namespace)), clazz);
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    public <T extends ResourceInfo> T getResourceByStore(StoreInfo store, String name,
+            Class<T> clazz) {
+        for (T resource : CatalogInfoIndex.filter(resources.lookup(NAME, name), clazz)) {
+            if (store.getId() != null && store.getId().equals(id(resource.getStore()))) {
+                return ModificationProxy.create(resource, clazz);
+            }
+        }
+        return null;
+    }
+
+    public <T extends ResourceInfo> List<T> getResourcesByStore(StoreInfo store, Class<T> clazz) {
+        if (store.getId() == null) {
+            return Collections.emptyList();
+        }
+        List<T> matches = CatalogInfoIndex.filter(resources.lookup(STORE, store.getId()), clazz);
+        return ModificationProxy.createList(matches, clazz);
+    }
+
+    //
+    // Layers
+    //
+    public LayerInfo add(LayerInfo layer) {
+        resolve(layer);
+        layers.add(layer);
+        return ModificationProxy.create(layer, LayerInfo.class);
+    }
+
+    public void remove(LayerInfo layer) {
+        layers.remove(unwrap(layer).getId());
+    }
+
+    public void save(LayerInfo layer) {
+        saved(layer, layers);
+    }
+
+    public LayerInfo detach(LayerInfo layer) {
+        return layer;
+    }
+
+    public LayerInfo getLayer(String id) {
+        return proxy(layers.get(id), LayerInfo.class);
+    }
+
+    public LayerInfo getLayerByName(String name) {
+        // layers are named after their resource (until the layer/publishing split is in act)
+        for (ResourceInfo resource : resources.lookup(NAME, name)) {
+            Iterator<LayerInfo> it = layers.lookup(RESOURCE, resource.getId()).iterator();
+            if (it.hasNext()) {
+                return ModificationProxy.create(it.next(), LayerInfo.class);
+            }
+        }
+        return null;
+    }
+
+    public List<LayerInfo> getLayers(ResourceInfo resource) {
+        if (resource.getId() == null) {
+            return Collections.emptyList();
+        }
+        List<LayerInfo> matches = new ArrayList<LayerInfo>(layers.lookup(RESOURCE,
+                resource.getId()));
+        return ModificationProxy.createList(matches, LayerInfo.class);
+    }
+
+    public List<LayerInfo> getLayers(StyleInfo style) {
+        if (style.getId() == null) {
+            return Collections.emptyList();
+        }
+        List<LayerInfo> matches = new ArrayList<LayerInfo>(layers.lookup(STYLE, style.getId()));
+        return ModificationProxy.createList(matches, LayerInfo.class);
+    }
+
+    public List<LayerInfo> getLayers() {
+        return ModificationProxy.createList(new ArrayList<LayerInfo>(layers.values()),
+                LayerInfo.class);
+    }
+
+    //
+    // Maps
+    //
+    public MapInfo add(MapInfo map) {
+        resolve(map);
+        maps.add(map);
+        return ModificationProxy.create(map, MapInfo.class);
+    }
+
+    public void remove(MapInfo map) {
+        maps.remove(unwrap(map).getId());
+    }
+
+    public void save(MapInfo map) {
+        saved(map, maps);
+    }
+
+    public MapInfo detach(MapInfo map) {
+        return map;
+    }
+
+    public MapInfo getMap(String id) {
+        return proxy(maps.get(id), MapInfo.class);
+    }
+
+    public MapInfo getMapByName(String name) {
+        Iterator<MapInfo> it = maps.lookup(NAME, name).iterator();
+        return it.hasNext() ? ModificationProxy.create(it.next(), MapInfo.class) : null;
+    }
+
+    public List<MapInfo> getMaps() {
+        return ModificationProxy.createList(new ArrayList<MapInfo>(maps.values()), MapInfo.class);
+    }
+
+    //
+    // Layer groups
+    //
+    public LayerGroupInfo add(LayerGroupInfo layerGroup) {
+        resolve(layerGroup);
+        layerGroups.add(layerGroup);
+        return ModificationProxy.create(layerGroup, LayerGroupInfo.class);
+    }
+
+    public void remove(LayerGroupInfo layerGroup) {
+        layerGroups.remove(unwrap(layerGroup).getId());
+    }
+
+    public void save(LayerGroupInfo layerGroup) {
+        saved(layerGroup, layerGroups);
+    }
+
+    public LayerGroupInfo detach(LayerGroupInfo layerGroup) {
+        return layerGroup;
+    }
+
+    public List<LayerGroupInfo> getLayerGroups() {
+        return ModificationProxy.createList(new ArrayList<LayerGroupInfo>(layerGroups.values()),
+                LayerGroupInfo.class);
+    }
+
+    public List<LayerGroupInfo> getLayerGroupsByWorkspace(WorkspaceInfo workspace) {
+        // TODO: support ANY_WORKSPACE?
+
+        if (workspace == null) {
+            workspace = getDefaultWorkspace();
+        }
+
+        String key = workspace == NO_WORKSPACE ? CatalogInfoIndex.NULL_KEY : id(workspace);
+        List<LayerGroupInfo> matches = new ArrayList<LayerGroupInfo>(layerGroups.lookup(
+                WORKSPACE, key));
+        return ModificationProxy.createList(matches, LayerGroupInfo.class);
+    }
+
+    public LayerGroupInfo getLayerGroup(String id) {
+        return proxy(layerGroups.get(id), LayerGroupInfo.class);
+    }
+
+    @Override
+    public LayerGroupInfo getLayerGroupByName(String name) {
+        return getLayerGroupByName(NO_WORKSPACE, name);
+    }
+
+    @Override
+    public LayerGroupInfo getLayerGroupByName(WorkspaceInfo workspace, String name) {
+        List<LayerGroupInfo> matches = new ArrayList<LayerGroupInfo>(2);
+        for (LayerGroupInfo layerGroup : layerGroups.lookup(NAME, name)) {
+            if (matches(workspace, layerGroup.getWorkspace())) {
+                matches.add(layerGroup);
+                if (matches.size() > 1) {
+                    break;
+                }
+            }
+        }
+
+        if (matches.size() == 1) {
+            return ModificationProxy.create(matches.get(0), LayerGroupInfo.class);
+        }
+        return null;
+    }
+
+    //
+    // Namespaces
+    //
+    public NamespaceInfo add(NamespaceInfo namespace) {
+        resolve(namespace);
+        namespaces.add(namespace);
+        return ModificationProxy.create(namespace, NamespaceInfo.class);
+    }
+
+    public void remove(NamespaceInfo namespace) {
+        NamespaceInfo ns = unwrap(namespace);
+        if (defaultNamespace != null && ns.getId() != null
+                && ns.getId().equals(defaultNamespace.getId())) {
+            defaultNamespace = null;
+        }
+        namespaces.remove(ns.getId());
+    }
+
+    public void save(NamespaceInfo namespace) {
+        saved(namespace, namespaces);
+    }
+
+    public NamespaceInfo detach(NamespaceInfo namespace) {
+        return namespace;
+    }
+
+    public NamespaceInfo getDefaultNamespace() {
+        return proxy(defaultNamespace, NamespaceInfo.class);
+    }
+
+    public void setDefaultNamespace(NamespaceInfo defaultNamespace) {
+        NamespaceInfo ns = null;
+        if (defaultNamespace != null) {
+            ns = first(namespaces.lookup(PREFIX, defaultNamespace.getPrefix()));
+        }
+        NamespaceInfo old = this.defaultNamespace;
+        this.defaultNamespace = ns;
+
+        // fire change event
+        catalog.fireModified(catalog, Arrays.asList("defaultNamespace"), Arrays.asList(old),
+                Arrays.asList(defaultNamespace));
+    }
+
+    public NamespaceInfo getNamespace(String id) {
+        return proxy(namespaces.get(id), NamespaceInfo.class);
+    }
+
+    public NamespaceInfo getNamespaceByPrefix(String prefix) {
+        if (prefix == null || Catalog.DEFAULT.equals(prefix)) {
+            return getDefaultNamespace();
+        }
+        return proxy(first(namespaces.lookup(PREFIX, prefix)), NamespaceInfo.class);
+    }
+
+    public NamespaceInfo getNamespaceByURI(String uri) {
+        return proxy(first(namespaces.lookup(URI, uri)), NamespaceInfo.class);
+    }
+
+    public List getNamespaces() {
+        return ModificationProxy.createList(new ArrayList<NamespaceInfo>(namespaces.values()),
+                NamespaceInfo.class);
+    }
+
+    //
+    // Workspaces
+    //
+    public WorkspaceInfo add(WorkspaceInfo workspace) {
+        resolve(workspace);
+        workspaces.add(workspace);
+        return ModificationProxy.create(workspace, WorkspaceInfo.class);
+    }
+
+    public void remove(WorkspaceInfo workspace) {
+        workspaces.remove(unwrap(workspace).getId());
+    }
+
+    public void save(WorkspaceInfo workspace) {
+        saved(workspace, workspaces);
+    }
+
+    public WorkspaceInfo detach(WorkspaceInfo workspace) {
+        return workspace;
+    }
+
+    public WorkspaceInfo getDefaultWorkspace() {
+        return proxy(defaultWorkspace, WorkspaceInfo.class);
+    }
+
+    public void setDefaultWorkspace(WorkspaceInfo workspace) {
+        WorkspaceInfo ws = null;
+        if (workspace != null) {
+            ws = first(workspaces.lookup(NAME, workspace.getName()));
+        }
+        WorkspaceInfo old = defaultWorkspace;
+        defaultWorkspace = ws;
+
+        // fire change event
+        catalog.fireModified(catalog, Arrays.asList("defaultWorkspace"), Arrays.asList(old),
+                Arrays.asList(workspace));
+    }
+
+    public List<WorkspaceInfo> getWorkspaces() {
+        return ModificationProxy.createList(new ArrayList<WorkspaceInfo>(workspaces.values()),
+                WorkspaceInfo.class);
+    }
+
+    public WorkspaceInfo getWorkspace(String id) {
+        return proxy(workspaces.get(id), WorkspaceInfo.class);
+    }
+
+    public WorkspaceInfo getWorkspaceByName(String name) {
+        if (name == null || Catalog.DEFAULT.equals(name)) {
+            return getDefaultWorkspace();
+        }
+        return proxy(first(workspaces.lookup(NAME, name)), WorkspaceInfo.class);
+    }
+
+    //
+    // Styles
+    //
+    public StyleInfo add(StyleInfo style) {
+        resolve(style);
+        styles.add(style);
+        return ModificationProxy.create(style, StyleInfo.class);
+    }
+
+    public void remove(StyleInfo style) {
+        styles.remove(unwrap(style).getId());
+    }
+
+    public void save(StyleInfo style) {
+        saved(style, styles);
+    }
+
+    public StyleInfo detach(StyleInfo style) {
+        return style;
+    }
+
+    public StyleInfo getStyle(String id) {
+        return proxy(styles.get(id), StyleInfo.class);
+    }
+
+    public StyleInfo getStyleByName(String name) {
+        for (StyleInfo style : styles.lookup(NAME, name)) {
+            if (style.getWorkspace() == null) {
+                return ModificationProxy.create(style, StyleInfo.class);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public StyleInfo getStyleByName(WorkspaceInfo workspace, String name) {
+        if (null == workspace) {
+            throw new NullPointerException("workspace");
+        }
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+        Collection<StyleInfo> candidates = styles.lookup(NAME, name);
+        if (workspace == ANY_WORKSPACE) {
+            if (candidates.size() == 1) {
+                return ModificationProxy.create(first(candidates), StyleInfo.class);
+            }
+        } else {
+            for (StyleInfo style : candidates) {
+                if (matches(workspace, style.getWorkspace())) {
+                    return ModificationProxy.create(style, StyleInfo.class);
+                }
+            }
+        }
+        return null;
+    }
+
+    public List<StyleInfo> getStyles() {
+        return ModificationProxy.createList(new ArrayList<StyleInfo>(styles.values()),
+                StyleInfo.class);
+    }
+
+    public List<StyleInfo> getStylesByWorkspace(WorkspaceInfo workspace) {
+        // TODO: support ANY_WORKSPACE?
+
+        if (workspace == null) {
+            workspace = getDefaultWorkspace();
+        }
+
+        String key = workspace == NO_WORKSPACE ? CatalogInfoIndex.NULL_KEY : id(workspace);
+        List<StyleInfo> matches = new ArrayList<StyleInfo>(styles.lookup(WORKSPACE, key));
+        return ModificationProxy.createList(matches, StyleInfo.class);
+    }
+
+    public void dispose() {
+        workspaces.clear();
+        defaultWorkspace = null;
+        namespaces.clear();
+        defaultNamespace = null;
+        stores.clear();
+        defaultStores.clear();
+        resources.clear();
+        layers.clear();
+        maps.clear();
+        layerGroups.clear();
+        styles.clear();
+    }
+
+    public void resolve() {
+        for (WorkspaceInfo ws : workspaces.values()) {
+            resolve(ws);
+        }
+        for (NamespaceInfo ns : namespaces.values()) {
+            resolve(ns);
+        }
+        for (StoreInfo s : stores.values()) {
+            resolve(s);
+        }
+        for (StyleInfo s : styles.values()) {
+            resolve(s);
+        }
+        for (ResourceInfo r : resources.values()) {
+            resolve(r);
+        }
+        for (LayerInfo l : layers.values()) {
+            resolve(l);
+        }
+        for (LayerGroupInfo lg : layerGroups.values()) {
+            resolve(lg);
+        }
+        for (MapInfo m : maps.values()) {
+            resolve(m);
+        }
+    }
+
+    public void syncTo(CatalogFacade dao) {
+        if (dao instanceof IndexedCatalogFacade) {
+            // do an optimized sync
+            IndexedCatalogFacade other = (IndexedCatalogFacade) dao;
+
+            other.workspaces = workspaces;
+            other.defaultWorkspace = defaultWorkspace;
+            other.namespaces = namespaces;
+            other.defaultNamespace = defaultNamespace;
+            other.stores = stores;
+            other.defaultStores = defaultStores;
+            other.resources = resources;
+            other.layers = layers;
+            other.maps = maps;
+            other.layerGroups = layerGroups;
+            other.styles = styles;
+        } else {
+            // do a manual import
+            for (WorkspaceInfo ws : workspaces.values()) {
+                dao.add(ws);
+            }
+            for (NamespaceInfo ns : namespaces.values()) {
+                dao.add(ns);
+            }
+            for (StoreInfo s : stores.values()) {
+                dao.add(s);
+            }
+            for (ResourceInfo r : resources.values()) {
+                dao.add(r);
+            }
+            for (StyleInfo s : styles.values()) {
+                dao.add(s);
+            }
+            for (LayerInfo l : layers.values()) {
+                dao.add(l);
+            }
+            for (LayerGroupInfo lg : layerGroups.values()) {
+                dao.add(lg);
+            }
+            for (MapInfo m : maps.values()) {
+                dao.add(m);
+            }
+
+            if (defaultWorkspace != null) {
+                dao.setDefaultWorkspace(defaultWorkspace);
+            }
+            if (defaultNamespace != null) {
+                dao.setDefaultNamespace(defaultNamespace);
+            }
+
+            for (Map.Entry<String, DataStoreInfo> e : defaultStores.entrySet()) {
+                WorkspaceInfo ws = workspaces.get(e.getKey());
+                if (null != ws) {
+                    dao.setDefaultDataStore(ws, e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the object and moves it to its new keys in the index, before the post modify event
+     * is fired so that listeners can look it up by its new name
+     */
+    <T extends CatalogInfo> void saved(T object, CatalogInfoIndex<? super T> index) {
+        beforeSaved(object);
+        T real = commitProxy(object);
+        index.reindex(real.getId());
+        afterSaved(object);
+    }
+
+    <T extends CatalogInfo> T proxy(CatalogInfo info, Class<T> clazz) {
+        if (info == null || !clazz.isInstance(info)) {
+            return null;
+        }
+        return ModificationProxy.create(clazz.cast(info), clazz);
+    }
+
+    boolean matches(WorkspaceInfo workspace, WorkspaceInfo actual) {
+        if (workspace == ANY_WORKSPACE) {
+            return true;
+        }
+        if (workspace == NO_WORKSPACE) {
+            return actual == null;
+        }
+        return actual != null && workspace.getId() != null
+                && workspace.getId().equals(actual.getId());
+    }
+
+    static <T> T first(Collection<T> infos) {
+        Iterator<T> it = infos.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    static String id(CatalogInfo info) {
+        return info != null ? info.getId() : null;
+    }
+
+    //
+    // Index key extractors
+    //
+    static final Function<CatalogInfo, Collection<String>> NAME_KEY = 
+        new Function<CatalogInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(CatalogInfo info) {
+            Object name = OwsUtils.get(info, "name");
+            return name != null ? Collections.singleton(name.toString()) : null;
+        }
+    };
+
+    static final Function<NamespaceInfo, Collection<String>> PREFIX_KEY = 
+        new Function<NamespaceInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(NamespaceInfo ns) {
+            return ns.getPrefix() != null ? Collections.singleton(ns.getPrefix()) : null;
+        }
+    };
+
+    static final Function<NamespaceInfo, Collection<String>> URI_KEY = 
+        new Function<NamespaceInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(NamespaceInfo ns) {
+            return ns.getURI() != null ? Collections.singleton(ns.getURI()) : null;
+        }
+    };
+
+    static final Function<StoreInfo, Collection<String>> STORE_WORKSPACE_KEY = 
+        new Function<StoreInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(StoreInfo store) {
+            return Collections.singleton(id(store.getWorkspace()));
+        }
+    };
+
+    static final Function<ResourceInfo, Collection<String>> RESOURCE_NAMESPACE_KEY = 
+        new Function<ResourceInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(ResourceInfo resource) {
+            return Collections.singleton(id(resource.getNamespace()));
+        }
+    };
+
+    static final Function<ResourceInfo, Collection<String>> RESOURCE_STORE_KEY = 
+        new Function<ResourceInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(ResourceInfo resource) {
+            return Collections.singleton(id(resource.getStore()));
+        }
+    };
+
+    static final Function<LayerInfo, Collection<String>> LAYER_RESOURCE_KEY = 
+        new Function<LayerInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(LayerInfo layer) {
+            return Collections.singleton(id(layer.getResource()));
+        }
+    };
+
+    static final Function<LayerInfo, Collection<String>> LAYER_STYLE_KEY = 
+        new Function<LayerInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(LayerInfo layer) {
+            Set<String> keys = new LinkedHashSet<String>();
+            if (layer.getDefaultStyle() != null) {
+                keys.add(layer.getDefaultStyle().getId());
+            }
+            for (StyleInfo style : layer.getStyles()) {
+                if (style != null) {
+                    keys.add(style.getId());
+                }
+            }
+            keys.remove(null);
+            return keys;
+        }
+    };
+
+    static final Function<LayerGroupInfo, Collection<String>> LAYERGROUP_WORKSPACE_KEY = 
+        new Function<LayerGroupInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(LayerGroupInfo layerGroup) {
+            return Collections.singleton(id(layerGroup.getWorkspace()));
+        }
+    };
+
+    static final Function<StyleInfo, Collection<String>> STYLE_WORKSPACE_KEY = 
+        new Function<StyleInfo, Collection<String>>() {
+        @Override
+        public Collection<String> apply(StyleInfo style) {
+            return Collections.singleton(id(style.getWorkspace()));
+        }
+    };
+}
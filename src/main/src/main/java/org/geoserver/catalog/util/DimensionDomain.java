@@ -0,0 +1,320 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.geotools.util.Converters;
+
+/**
+ * The sorted set of distinct values of a time or elevation dimension, stored as a primitive
+ * array so that domains with hundreds of thousands of values stay compact and can be searched
+ * quickly.
+ * <p>
+ * Time values are stored as milliseconds since the epoch. Instances are immutable,
+ * {@link #add(Collection)} returns a new domain.
+ * </p>
+ */
+public class DimensionDomain {
+
+    static final String HEADER = "DOMAIN";
+
+    final double[] values;
+
+    final boolean time;
+
+    final long created;
+
+    DimensionDomain(double[] values, boolean time, long created) {
+        this.values = values;
+        this.time = time;
+        this.created = created;
+    }
+
+    /**
+     * Builds a domain out of the specified values, null and non convertible values are skipped
+     *
+     * @param values The dimension values, dates or numbers
+     * @param time True if this is a time domain
+     */
+    public static DimensionDomain build(Collection<?> values, boolean time) {
+        double[] result = toSortedArray(values, time);
+        return new DimensionDomain(result, time, System.currentTimeMillis());
+    }
+
+    static double[] toSortedArray(Collection<?> values, boolean time) {
+        double[] result = new double[values.size()];
+        int count = 0;
+        for (Object value : values) {
+            double d = toDouble(value, time);
+            if (!Double.isNaN(d)) {
+                result[count++] = d;
+            }
+        }
+        Arrays.sort(result, 0, count);
+
+        // remove duplicates
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || result[i] != result[unique - 1]) {
+                result[unique++] = result[i];
+            }
+        }
+        return unique == result.length ? result : Arrays.copyOf(result, unique);
+    }
+
+    static double toDouble(Object value, boolean time) {
+        if (value == null) {
+            return Double.NaN;
+        }
+        if (time) {
+            Date date = value instanceof Date ? (Date) value : Converters.convert(value,
+                    Date.class);
+            return date == null ? Double.NaN : date.getTime();
+        } else {
+            Number number = value instanceof Number ? (Number) value : Converters.convert(value,
+                    Double.class);
+            return number == null ? Double.NaN : number.doubleValue();
+        }
+    }
+
+    Object toValue(double value) {
+        return time ? new Date((long) value) : Double.valueOf(value);
+    }
+
+    /**
+     * Returns a new domain containing also the specified values. The creation time of the
+     * domain is preserved.
+     */
+    public DimensionDomain add(Collection<?> newValues) {
+        double[] added = toSortedArray(newValues, time);
+        if (added.length == 0) {
+            return this;
+        }
+        // merge the two sorted arrays
+        double[] merged = new double[values.length + added.length];
+        int i = 0, j = 0, count = 0;
+        while (i < values.length || j < added.length) {
+            double next;
+            if (j >= added.length || (i < values.length && values[i] <= added[j])) {
+                next = values[i++];
+            } else {
+                next = added[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        if (count == values.length) {
+            return this;
+        }
+        return new DimensionDomain(Arrays.copyOf(merged, count), time, created);
+    }
+
+    /**
+     * True if this is a time domain
+     */
+    public boolean isTime() {
+        return time;
+    }
+
+    /**
+     * When the domain was computed from the data, in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    /**
+     * The smallest value, as a {@link Date} or a {@link Double}, or null if the domain is empty
+     */
+    public Object getMinimum() {
+        return values.length == 0 ? null : toValue(values[0]);
+    }
+
+    /**
+     * The largest value, as a {@link Date} or a {@link Double}, or null if the domain is empty
+     */
+    public Object getMaximum() {
+        return values.length == 0 ? null : toValue(values[values.length - 1]);
+    }
+
+    /**
+     * Returns the domain value closest to the specified one, the lower one in case of ties, or
+     * null if the domain is empty
+     */
+    public Object getNearest(Object value) {
+        if (values.length == 0) {
+            return null;
+        }
+        double target = toDouble(value, time);
+        if (Double.isNaN(target)) {
+            throw new IllegalArgumentException("Cannot convert " + value + " to a "
+                    + (time ? "time" : "elevation"));
+        }
+        int idx = Arrays.binarySearch(values, target);
+        if (idx >= 0) {
+            return toValue(values[idx]);
+        }
+        int above = -idx - 1;
+        if (above == 0) {
+            return toValue(values[0]);
+        } else if (above == values.length) {
+            return toValue(values[values.length - 1]);
+        }
+        double lower = values[above - 1];
+        double upper = values[above];
+        return toValue(target - lower <= upper - target ? lower : upper);
+    }
+
+    /**
+     * Returns the domain as a sorted set of dates
+     */
+    public TreeSet<Date> getTimes() {
+        if (!time) {
+            throw new IllegalStateException("Not a time domain");
+        }
+        TreeSet<Date> result = new TreeSet<Date>();
+        for (double value : values) {
+            result.add(new Date((long) value));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the domain as a sorted set of elevations
+     */
+    public TreeSet<Double> getElevations() {
+        if (time) {
+            throw new IllegalStateException("Not an elevation domain");
+        }
+        TreeSet<Double> result = new TreeSet<Double>();
+        for (double value : values) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    /**
+     * Compacts the domain in a list of regularly spaced ranges. Each range is an array with the
+     * start, the end and the step between consecutive values (zero for a range with a single
+     * value). Only ranges whose values are reproduced exactly by
+     * <code>start + i * step</code> are merged, so the domain can be rebuilt from them without
+     * loss.
+     */
+    public List<double[]> getRanges() {
+        if (values.length == 0) {
+            return Collections.emptyList();
+        }
+        List<double[]> ranges = new ArrayList<double[]>();
+        int start = 0;
+        while (start < values.length) {
+            int end = start;
+            double step = 0;
+            if (start + 1 < values.length) {
+                step = values[start + 1] - values[start];
+                end = start + 1;
+                while (end + 1 < values.length
+                        && values[start] + (end + 1 - start) * step == values[end + 1]) {
+                    end++;
+                }
+                // two values are not worth a range unless the next one also follows
+                if (end == start + 1 && values[start] + step != values[end]) {
+                    end = start;
+                }
+            }
+            ranges.add(new double[] { values[start], values[end],
+                    end == start ? 0 : step });
+            start = end + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * Writes the domain in compact text form, one range per line
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write(HEADER + " " + (time ? "time" : "elevation") + " " + created + " "
+                + values.length + "\n");
+        for (double[] range : getRanges()) {
+            writer.write(format(range[0]));
+            if (range[2] != 0) {
+                writer.write("/" + format(range[1]) + "/" + format(range[2]));
+            }
+            writer.write("\n");
+        }
+    }
+
+    String format(double value) {
+        // times are integral, keep them readable
+        return time ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Reads back a domain written by {@link #write(Writer)}
+     *
+     * @throws IOException if the contents are not a valid domain
+     */
+    public static DimensionDomain read(BufferedReader reader) throws IOException {
+        String header = reader.readLine();
+        String[] elements = header == null ? new String[0] : header.trim().split("\\s+");
+        if (elements.length != 4 || !HEADER.equals(elements[0])) {
+            throw new IOException("Invalid dimension domain header: " + header);
+        }
+        try {
+            boolean time = "time".equals(elements[1]);
+            long created = Long.parseLong(elements[2]);
+            int size = Integer.parseInt(elements[3]);
+            double[] values = new double[size];
+            int count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] range = line.split("/");
+                double start = Double.parseDouble(range[0]);
+                if (range.length == 1) {
+                    values[count++] = start;
+                } else {
+                    double end = Double.parseDouble(range[1]);
+                    double step = Double.parseDouble(range[2]);
+                    for (int i = 0; count < size; i++) {
+                        double value = start + i * step;
+                        values[count++] = value;
+                        if (value == end) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (count != size) {
+                throw new IOException("Expected " + size + " values in the domain, found "
+                        + count);
+            }
+            return new DimensionDomain(values, time, created);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid dimension domain contents", e);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.Resource.Type;
+import org.geoserver.security.decorators.SecuredFeatureTypeInfo;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.GeoTools;
+import org.geotools.feature.visitor.UniqueVisitor;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Keeps the time and elevation domains of vector layers in memory, and in the
+ * <code>dimensions</code> folder of the data directory, so that capabilities documents and
+ * default value selection do not need to scan the whole layer on each request.
+ * <p>
+ * The index is disabled by default, it is enabled by setting the time to live of the domains,
+ * in seconds, with the {@link #TTL_PROPERTY} system, context or environment variable, or with
+ * {@link #setTimeToLive(long)}. A negative value makes the domains valid until the layer is
+ * modified. Domains are computed on first use, extended by {@link #add(FeatureTypeInfo, String,
+ * Collection)} as features are inserted, and dropped when the layer or its store are modified in
+ * the catalog, or when {@link #invalidate(String)} is called. Changes made to the data outside of
+ * GeoServer are picked up only when the domains expire.
+ * </p>
+ * <p>
+ * Layers whose data is filtered by the security subsystem for the current user are not indexed,
+ * the domain would otherwise be shared among users seeing different data.
+ * </p>
+ */
+public class DimensionDomainIndex implements CatalogListener, DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(DimensionDomainIndex.class);
+
+    /**
+     * Time to live of the domains, in seconds. Zero or no value disable the index, negative
+     * values keep the domains until they are invalidated
+     */
+    public static final String TTL_PROPERTY = "GEOSERVER_DIMENSION_INDEX_TTL";
+
+    static final String DIRECTORY = "dimensions";
+
+    final Catalog catalog;
+
+    final GeoServerResourceLoader resourceLoader;
+
+    volatile long timeToLive;
+
+    final ConcurrentHashMap<String, Entry> domains = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Keys of the domains extended in memory and not yet written to disk. Their persisted copy is
+     * deleted as they get extended, so that a stale domain is not read back after a crash
+     */
+    final Set<String> dirty = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Bumped on every invalidation, a domain computed while the layer got modified is not kept
+     */
+    final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    final AtomicLong globalGeneration = new AtomicLong();
+
+    final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong builds = new AtomicLong();
+
+    public DimensionDomainIndex(Catalog catalog, GeoServerResourceLoader resourceLoader) {
+        this.catalog = catalog;
+        this.resourceLoader = resourceLoader;
+        this.timeToLive = lookupTimeToLive();
+        catalog.addListener(this);
+    }
+
+    static long lookupTimeToLive() {
+        String value = GeoServerExtensions.getProperty(TTL_PROPERTY);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid value for " + TTL_PROPERTY + ", " + value
+                    + ", should be a number of seconds. The dimension index is disabled");
+            return 0;
+        }
+    }
+
+    /**
+     * Sets the time to live of the domains, in seconds. Zero disables the index, a negative value
+     * keeps the domains until they are invalidated
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        invalidateAll();
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public boolean isEnabled() {
+        return timeToLive != 0;
+    }
+
+    /**
+     * Returns the domain of the specified dimension, computing it if not available yet, or null
+     * if the index is disabled, the dimension is not enabled, or the layer cannot be indexed
+     *
+     * @param typeInfo The layer
+     * @param dimensionName {@link ResourceInfo#TIME} or {@link ResourceInfo#ELEVATION}
+     */
+    public DimensionDomain getDomain(FeatureTypeInfo typeInfo, String dimensionName)
+            throws IOException {
+        if (!isEnabled() || typeInfo == null || typeInfo.getId() == null
+                || !isIndexable(typeInfo)) {
+            return null;
+        }
+        if (!ResourceInfo.TIME.equals(dimensionName)
+                && !ResourceInfo.ELEVATION.equals(dimensionName)) {
+            // custom dimensions are not indexed
+            return null;
+        }
+        DimensionInfo dimension = typeInfo.getMetadata().get(dimensionName, DimensionInfo.class);
+        if (dimension == null || !dimension.isEnabled() || dimension.getAttribute() == null) {
+            return null;
+        }
+        String attribute = dimension.getAttribute();
+        String key = getKey(typeInfo.getId(), dimensionName);
+
+        Entry entry = domains.get(key);
+        if (isValid(entry, attribute)) {
+            hits.incrementAndGet();
+            return entry.domain;
+        }
+
+        // a single thread computes the domain, the others wait for it
+        synchronized (getLock(key)) {
+            entry = domains.get(key);
+            if (isValid(entry, attribute)) {
+                hits.incrementAndGet();
+                return entry.domain;
+            }
+
+            long global = globalGeneration.get();
+            long generation = getGeneration(typeInfo.getId()).get();
+            boolean time = ResourceInfo.TIME.equals(dimensionName);
+            entry = read(key, typeInfo.getId(), attribute);
+            if (!isValid(entry, attribute)) {
+                entry = new Entry(attribute, build(typeInfo, attribute, time));
+                builds.incrementAndGet();
+                if (global == globalGeneration.get()
+                        && generation == getGeneration(typeInfo.getId()).get()) {
+                    write(key, typeInfo.getId(), entry);
+                }
+            }
+            // don't keep domains computed against data that was modified in the meantime
+            if (global == globalGeneration.get()
+                    && generation == getGeneration(typeInfo.getId()).get()) {
+                domains.put(key, entry);
+            }
+            return entry.domain;
+        }
+    }
+
+    /**
+     * Layers whose data is filtered for the current user are not indexed
+     */
+    boolean isIndexable(FeatureTypeInfo typeInfo) {
+        if (typeInfo instanceof SecuredFeatureTypeInfo) {
+            return ((SecuredFeatureTypeInfo) typeInfo).getWrapperPolicy().getLimits() == null;
+        }
+        return true;
+    }
+
+    boolean isValid(Entry entry, String attribute) {
+        if (entry == null || !entry.attribute.equals(attribute)) {
+            return false;
+        }
+        return timeToLive < 0
+                || System.currentTimeMillis() - entry.domain.getCreated() < timeToLive * 1000;
+    }
+
+    DimensionDomain build(FeatureTypeInfo typeInfo, String attribute, boolean time)
+            throws IOException {
+        // scan the unsecured layer, the filtered ones are not indexed anyways
+        FeatureTypeInfo raw = catalog.getFeatureType(typeInfo.getId());
+        if (raw == null) {
+            raw = typeInfo;
+        }
+        FeatureSource source = raw.getFeatureSource(null, GeoTools.getDefaultHints());
+        Query query = new Query(source.getSchema().getName().getLocalPart());
+        query.setPropertyNames(Arrays.asList(attribute));
+        UniqueVisitor visitor = new UniqueVisitor(attribute);
+        source.getFeatures(query).accepts(visitor, null);
+        DimensionDomain domain = DimensionDomain.build(visitor.getUnique(), time);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Indexed " + domain.size() + " values for " + attribute + " in "
+                    + typeInfo.getName());
+        }
+        return domain;
+    }
+
+    /**
+     * Adds values to the domain of the specified dimension, if it has been computed already and
+     * the values are not already part of it. Otherwise the persisted domain, if any, is dropped,
+     * as well as any domain being computed at the same time
+     *
+     * @param typeInfo The layer
+     * @param dimensionName {@link ResourceInfo#TIME} or {@link ResourceInfo#ELEVATION}
+     * @param values The new values
+     */
+    public void add(FeatureTypeInfo typeInfo, String dimensionName, Collection<?> values) {
+        if (!isEnabled() || typeInfo == null || typeInfo.getId() == null || values.isEmpty()) {
+            return;
+        }
+        String key = getKey(typeInfo.getId(), dimensionName);
+        synchronized (getLock(key)) {
+            Entry entry = domains.get(key);
+            if (entry == null) {
+                // not computed yet, the new values will be picked up then, unless a scan started
+                // before they were inserted is running, or a persisted domain is read back
+                getGeneration(typeInfo.getId()).incrementAndGet();
+                deletePersisted(key);
+                return;
+            }
+            DimensionDomain domain = entry.domain.add(values);
+            if (domain != entry.domain) {
+                domains.put(key, new Entry(entry.attribute, domain));
+                if (dirty.add(key)) {
+                    deletePersisted(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the domains of the specified resource
+     *
+     * @param resourceId A resource id
+     */
+    public void invalidate(String resourceId) {
+        getGeneration(resourceId).incrementAndGet();
+        for (String dimensionName : new String[] { ResourceInfo.TIME, ResourceInfo.ELEVATION }) {
+            String key = getKey(resourceId, dimensionName);
+            synchronized (getLock(key)) {
+                domains.remove(key);
+                dirty.remove(key);
+                deletePersisted(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all the domains
+     */
+    public void invalidateAll() {
+        globalGeneration.incrementAndGet();
+        domains.clear();
+        dirty.clear();
+        if (resourceLoader != null) {
+            Resource directory = resourceLoader.get(DIRECTORY);
+            if (directory.getType() == Type.DIRECTORY) {
+                for (Resource resource : directory.list()) {
+                    resource.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the domains extended in memory to disk
+     */
+    public void flush() {
+        for (String key : new ArrayList<String>(dirty)) {
+            synchronized (getLock(key)) {
+                Entry entry = domains.get(key);
+                if (dirty.remove(key) && entry != null) {
+                    write(key, key.substring(0, key.lastIndexOf(':')), entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        flush();
+    }
+
+    static String getKey(String resourceId, String dimensionName) {
+        return resourceId + ":" + dimensionName;
+    }
+
+    Object getLock(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            lock = new Object();
+            Object existing = locks.putIfAbsent(key, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    AtomicLong getGeneration(String resourceId) {
+        AtomicLong generation = generations.get(resourceId);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong existing = generations.putIfAbsent(resourceId, generation);
+            if (existing != null) {
+                generation = existing;
+            }
+        }
+        return generation;
+    }
+
+    Resource getResource(String key) {
+        if (resourceLoader == null) {
+            return null;
+        }
+        // ids can contain characters that are not valid in file names
+        return resourceLoader.get(DIRECTORY + "/" + key.replaceAll("[^\\w\\-\\.]", "_")
+                + ".txt");
+    }
+
+    void deletePersisted(String key) {
+        Resource resource = getResource(key);
+        if (resource != null && resource.getType() == Type.RESOURCE) {
+            resource.delete();
+        }
+    }
+
+    /**
+     * Reads a domain persisted by a previous run, returns null if not available or not matching
+     * the current configuration
+     */
+    Entry read(String key, String resourceId, String attribute) {
+        Resource resource = getResource(key);
+        if (resource == null || resource.getType() != Type.RESOURCE) {
+            return null;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(resource.in(), "UTF-8"));
+            // the file names are sanitized, check the file is really the one we need
+            String header = reader.readLine();
+            if (!(resourceId + " " + attribute).equals(header)) {
+                return null;
+            }
+            return new Entry(attribute, DimensionDomain.read(reader));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the dimension domain in "
+                    + resource.path() + ", will recompute it", e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    void write(String key, String resourceId, Entry entry) {
+        Resource resource = getResource(key);
+        if (resource == null) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(resource.out(), "UTF-8");
+            writer.write(resourceId + " " + entry.attribute + "\n");
+            entry.domain.write(writer);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write the dimension domain in "
+                    + resource.path(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) {
+        // nothing to do, domains are computed on demand
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        invalidate(event.getSource());
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) {
+        // wait for the post modify
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        invalidate(event.getSource());
+    }
+
+    public void reloaded() {
+        invalidateAll();
+    }
+
+    void invalidate(CatalogInfo info) {
+        if (info instanceof FeatureTypeInfo) {
+            invalidate(info.getId());
+        } else if (info instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) info).getResource();
+            if (resource instanceof FeatureTypeInfo) {
+                invalidate(resource.getId());
+            }
+        } else if (info instanceof DataStoreInfo) {
+            for (FeatureTypeInfo featureType : catalog
+                    .getFeatureTypesByDataStore((DataStoreInfo) info)) {
+                invalidate(featureType.getId());
+            }
+        }
+    }
+
+    /**
+     * A domain along with the attribute it was computed from
+     */
+    static class Entry {
+
+        final String attribute;
+
+        final DimensionDomain domain;
+
+        Entry(String attribute, DimensionDomain domain) {
+            this.attribute = attribute;
+            this.domain = domain;
+        }
+    }
+}
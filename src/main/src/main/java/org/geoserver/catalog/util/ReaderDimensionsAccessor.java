@@ -32,6 +32,9 @@ import org.geotools.util.NumberRange;
 import org.geotools.util.Utilities;
 import org.geotools.util.logging.Logging;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * Centralizes the metadata extraction and parsing used to read dimension informations out of a
  * coverage reader
@@ -86,6 +89,22 @@ public class ReaderDimensionsAccessor {
         
     };
 
+    /**
+     * Max number of parsed domains kept in memory
+     */
+    static final int MAX_CACHED_DOMAINS = 100;
+
+    /**
+     * The time and elevation domains parsed out of the reader metadata, keyed by the metadata
+     * value. Parsing large domains is expensive, and the same domain is parsed over and over by
+     * the capabilities documents and the default value selection
+     */
+    static final Cache<String, TreeSet<Object>> TIME_DOMAINS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_DOMAINS).softValues().build();
+
+    static final Cache<String, TreeSet<Object>> ELEVATION_DOMAINS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_DOMAINS).softValues().build();
+
     private final GridCoverage2DReader reader;
 
     private final List<String> metadataNames= new ArrayList<String>();
@@ -121,19 +140,24 @@ public class ReaderDimensionsAccessor {
         if (!hasTime()) {
             Collections.emptySet();
         }
-        final SimpleDateFormat df = getTimeFormat();
         String domain = reader.getMetadataValue(TIME_DOMAIN);
-        String[] timeInstants = domain.split("\\s*,\\s*");
-        TreeSet<Object> values = new TreeSet<Object>(TEMPORAL_COMPARATOR);
-        for (String tp : timeInstants) {
-            try {
-                values.add(parseTimeOrRange(df, tp));
-            } catch (ParseException e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
+        TreeSet<Object> values = TIME_DOMAINS.getIfPresent(domain);
+        if (values == null) {
+            final SimpleDateFormat df = getTimeFormat();
+            String[] timeInstants = domain.split("\\s*,\\s*");
+            values = new TreeSet<Object>(TEMPORAL_COMPARATOR);
+            for (String tp : timeInstants) {
+                try {
+                    values.add(parseTimeOrRange(df, tp));
+                } catch (ParseException e) {
+                    LOGGER.log(Level.WARNING, e.getMessage(), e);
+                }
             }
+            TIME_DOMAINS.put(domain, values);
         }
 
-        return values;
+        // callers are free to modify the set
+        return new TreeSet<Object>(values);
     }
     
     /**
@@ -247,17 +271,23 @@ public class ReaderDimensionsAccessor {
             return null;
         }
         // parse the values from the reader, they are exposed as strings...
-        String[] elevationValues = reader.getMetadataValue(ELEVATION_DOMAIN).split(",");
-        TreeSet<Object> elevations = new TreeSet<Object>(ELEVATION_COMPARATOR);
-        for (String val : elevationValues) {
-            try {
-                elevations.add(parseNumberOrRange(val));
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
+        String domain = reader.getMetadataValue(ELEVATION_DOMAIN);
+        TreeSet<Object> elevations = ELEVATION_DOMAINS.getIfPresent(domain);
+        if (elevations == null) {
+            String[] elevationValues = domain.split(",");
+            elevations = new TreeSet<Object>(ELEVATION_COMPARATOR);
+            for (String val : elevationValues) {
+                try {
+                    elevations.add(parseNumberOrRange(val));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, e.getMessage(), e);
+                }
             }
+            ELEVATION_DOMAINS.put(domain, elevations);
         }
 
-        return elevations;
+        // callers are free to modify the set
+        return new TreeSet<Object>(elevations);
     }
 
     
@@ -0,0 +1,732 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.PublishedInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+/**
+ * A binary snapshot of the catalog, and of the global, logging and workspace settings, used to
+ * speed up the startup of GeoServer instances with large catalogs.
+ * <p>
+ * The snapshot is stored in the <code>catalog.&lt;node&gt;.snapshot</code> file, at the root of
+ * the data directory, where the node name is the host name, or the value of
+ * {@link #NODE_PROPERTY}, so that nodes sharing a data directory do not overwrite each other's
+ * snapshot. It contains the catalog objects encoded with the xstream binary driver, in an order
+ * that allows adding them back to a new catalog as they are read. Parsing the binary records
+ * avoids the cost of opening and parsing one xml file per catalog object.
+ * </p>
+ * <p>
+ * The snapshot header contains a fingerprint of the data directory, computed from the path,
+ * size and last modification time of the xml files describing the catalog and the settings,
+ * while a CRC32 checksum of the contents is appended at the end. The snapshot is used only if
+ * both match, in any other case GeoServer falls back on reading the xml files. The snapshot is
+ * just a cache, the xml files are still the reference configuration.
+ * </p>
+ * <p>
+ * The fingerprint has to describe the files the catalog in memory was read from, so it is taken
+ * before a full load from the xml files, and the snapshot is written only after such a load, if
+ * the files did not change in the meantime. Any configuration change made afterwards deletes
+ * the snapshot, which is written again after the next load from the xml files.
+ * </p>
+ */
+class CatalogSnapshot {
+
+    static Logger LOGGER = GeoServerLoader.LOGGER;
+
+    /**
+     * System/context/env variable with the node name used in the snapshot file name, defaults to
+     * the host name
+     */
+    static final String NODE_PROPERTY = "GEOSERVER_CATALOG_SNAPSHOT_NODE";
+
+    static final int MAGIC = 0x47534353;
+
+    static final int VERSION = 1;
+
+    // record types
+    static final byte END = 0;
+
+    static final byte WORKSPACE = 1;
+
+    static final byte NAMESPACE = 2;
+
+    static final byte DEFAULT_WORKSPACE = 3;
+
+    static final byte DEFAULT_NAMESPACE = 4;
+
+    static final byte STYLE = 5;
+
+    static final byte STORE = 6;
+
+    /**
+     * A data store disabled because the connection failed, to be enabled and checked again
+     */
+    static final byte DISCONNECTED_STORE = 7;
+
+    static final byte RESOURCE = 8;
+
+    static final byte LAYER = 9;
+
+    static final byte LAYER_GROUP = 10;
+
+    static final byte GLOBAL = 11;
+
+    static final byte LOGGING = 12;
+
+    static final byte SETTINGS = 13;
+
+    GeoServerResourceLoader resourceLoader;
+
+    XStreamPersisterFactory xpf;
+
+    long delay = 5000;
+
+    ScheduledThreadPoolExecutor executor;
+
+    ScheduledFuture<?> pending;
+
+    Object writeLock = new Object();
+
+    String node;
+
+    /**
+     * The fingerprint of the xml files read by the last full load, null if the configuration
+     * changed since then
+     */
+    Long loadedFingerprint;
+
+    /**
+     * True while the configuration is being loaded, the changes made by the load itself do not
+     * invalidate the snapshot
+     */
+    volatile boolean loading;
+
+    /**
+     * Incremented on each configuration change, a write started before a change must not leave
+     * the snapshot behind
+     */
+    volatile long generation;
+
+    /**
+     * The configuration records of the last snapshot read, waiting for the configuration load
+     */
+    byte[] global;
+
+    byte[] logging;
+
+    List<byte[]> settings;
+
+    CatalogSnapshot(GeoServerResourceLoader resourceLoader, XStreamPersisterFactory xpf) {
+        this.resourceLoader = resourceLoader;
+        this.xpf = xpf;
+        this.node = getNodeName();
+    }
+
+    static String getNodeName() {
+        String node = GeoServerExtensions.getProperty(NODE_PROPERTY);
+        if (node == null || node.trim().isEmpty()) {
+            try {
+                node = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                LOGGER.log(Level.FINE, "Could not determine the host name", e);
+                node = "localhost";
+            }
+        }
+        return node.trim().replaceAll("[^\\w.-]", "_");
+    }
+
+    /**
+     * Sets the time, in milliseconds, waited after a load from the xml files before writing the
+     * snapshot, so that the snapshot does not slow down the startup
+     */
+    void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    File getFile() {
+        return new File(resourceLoader.getBaseDirectory(), "catalog." + node + ".snapshot");
+    }
+
+    /**
+     * Computes the fingerprint of the catalog and settings xml files in the data directory
+     */
+    long fingerprint() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File base = resourceLoader.getBaseDirectory();
+        for (String name : new String[] { "global.xml", "logging.xml", "styles", "workspaces",
+                "layergroups" }) {
+            fingerprint(new File(base, name), name, digest);
+        }
+
+        long fingerprint = 0;
+        byte[] bytes = digest.digest();
+        for (int i = 0; i < 8; i++) {
+            fingerprint = (fingerprint << 8) | (bytes[i] & 0xFF);
+        }
+        return fingerprint;
+    }
+
+    void fingerprint(File file, String path, MessageDigest digest) {
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names == null) {
+                return;
+            }
+            // make the fingerprint independent of the file system listing order
+            Arrays.sort(names);
+            for (String name : names) {
+                fingerprint(new File(file, name), path + "/" + name, digest);
+            }
+        } else if (file.isFile() && file.getName().endsWith(".xml")) {
+            try {
+                digest.update(path.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            update(digest, file.length());
+            update(digest, file.lastModified());
+        }
+    }
+
+    void update(MessageDigest digest, long value) {
+        for (int i = 56; i >= 0; i -= 8) {
+            digest.update((byte) (value >>> i));
+        }
+    }
+
+    /**
+     * Writes the snapshot of the catalog, and of the configuration when available
+     * 
+     * @param fingerprint The fingerprint of the xml files the catalog and configuration were
+     *        read from
+     */
+    void write(Catalog catalog, GeoServer geoServer, long fingerprint) throws IOException {
+        write(catalog, geoServer, fingerprint, generation);
+    }
+
+    /**
+     * Writes the snapshot, unless the configuration changed after the specified generation
+     */
+    void write(Catalog catalog, GeoServer geoServer, long fingerprint, long generation)
+            throws IOException {
+        // not synchronized on this, not to block the threads scheduling writes
+        synchronized (writeLock) {
+            if (generation != this.generation) {
+                return;
+            }
+            doWrite(catalog, geoServer, fingerprint);
+        }
+        if (generation != this.generation) {
+            // the configuration changed while writing, the snapshot might be out of date
+            getFile().delete();
+        }
+    }
+
+    void doWrite(Catalog catalog, GeoServer geoServer, long fingerprint) throws IOException {
+        long start = System.currentTimeMillis();
+        File file = getFile();
+        // a unique temporary file, another process might be writing its own snapshot
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 65536), crc));
+        boolean written = false;
+        int count = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+
+            Writer writer = new Writer(out, xpf.createBinaryPersister());
+            for (WorkspaceInfo ws : catalog.getWorkspaces()) {
+                writer.write(WORKSPACE, ws);
+            }
+            for (NamespaceInfo ns : catalog.getNamespaces()) {
+                writer.write(NAMESPACE, ns);
+            }
+            WorkspaceInfo defaultWorkspace = catalog.getDefaultWorkspace();
+            if (defaultWorkspace != null) {
+                out.writeByte(DEFAULT_WORKSPACE);
+                out.writeUTF(defaultWorkspace.getName());
+            }
+            NamespaceInfo defaultNamespace = catalog.getDefaultNamespace();
+            if (defaultNamespace != null) {
+                out.writeByte(DEFAULT_NAMESPACE);
+                out.writeUTF(defaultNamespace.getPrefix());
+            }
+            for (StyleInfo style : catalog.getStyles()) {
+                writer.write(STYLE, style);
+            }
+            for (StoreInfo store : catalog.getStores(StoreInfo.class)) {
+                boolean disconnected = store instanceof DataStoreInfo && !store.isEnabled()
+                        && store.getError() != null;
+                writer.write(disconnected ? DISCONNECTED_STORE : STORE, store);
+            }
+            for (ResourceInfo resource : catalog.getResources(ResourceInfo.class)) {
+                writer.write(RESOURCE, resource);
+            }
+            for (LayerInfo layer : catalog.getLayers()) {
+                writer.write(LAYER, layer);
+            }
+            for (LayerGroupInfo group : sortLayerGroups(catalog.getLayerGroups())) {
+                writer.write(LAYER_GROUP, group);
+            }
+
+            if (geoServer != null && geoServer.getGlobal() != null) {
+                writer.write(GLOBAL, geoServer.getGlobal());
+                if (geoServer.getLogging() != null) {
+                    writer.write(LOGGING, geoServer.getLogging());
+                }
+                for (WorkspaceInfo ws : catalog.getWorkspaces()) {
+                    SettingsInfo settings = geoServer.getSettings(ws);
+                    if (settings != null) {
+                        writer.write(SETTINGS, settings);
+                    }
+                }
+            }
+            count = writer.count;
+
+            out.writeByte(END);
+            // the checksum covers everything up to the end marker
+            out.writeLong(crc.getValue());
+            out.flush();
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                tmp.delete();
+            }
+        }
+
+        // replace the old snapshot, the rename is not atomic on all platforms, but readers
+        // will fall back on the xml files if they find a partial or missing snapshot
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        }
+        LOGGER.info("Wrote catalog snapshot with " + count + " objects in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Orders the layer groups so that nested groups come before the groups containing them
+     */
+    List<LayerGroupInfo> sortLayerGroups(List<LayerGroupInfo> groups) {
+        Set<String> visited = new LinkedHashSet<String>();
+        List<LayerGroupInfo> sorted = new ArrayList<LayerGroupInfo>();
+        for (LayerGroupInfo group : groups) {
+            sortLayerGroups(group, visited, sorted);
+        }
+        return sorted;
+    }
+
+    void sortLayerGroups(LayerGroupInfo group, Set<String> visited, List<LayerGroupInfo> sorted) {
+        if (!visited.add(group.getId())) {
+            return;
+        }
+        if (group.getLayers() != null) {
+            for (PublishedInfo published : group.getLayers()) {
+                if (published instanceof LayerGroupInfo) {
+                    sortLayerGroups((LayerGroupInfo) published, visited, sorted);
+                }
+            }
+        }
+        sorted.add(group);
+    }
+
+    /**
+     * Encodes the snapshot records
+     */
+    static class Writer {
+        DataOutputStream out;
+
+        XStreamPersister xp;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+        int count;
+
+        Writer(DataOutputStream out, XStreamPersister xp) {
+            this.out = out;
+            this.xp = xp;
+        }
+
+        void write(byte type, Object info) throws IOException {
+            buffer.reset();
+            xp.save(info, buffer);
+            out.writeByte(type);
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            count++;
+        }
+    }
+
+    /**
+     * Reads the catalog from the snapshot.
+     *
+     * @return the catalog, or null if the snapshot is missing, stale, or cannot be read
+     */
+    synchronized CatalogImpl read() {
+        global = null;
+        logging = null;
+        settings = null;
+
+        File file = getFile();
+        if (!file.exists()) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 65536), crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.info("Ignoring catalog snapshot written by a different GeoServer version");
+                return null;
+            }
+            if (in.readLong() != fingerprint()) {
+                LOGGER.info("The data directory changed after the catalog snapshot was written, "
+                        + "loading the catalog from the xml files");
+                return null;
+            }
+
+            CatalogImpl catalog = new CatalogImpl();
+            catalog.setResourceLoader(resourceLoader);
+            XStreamPersister xp = xpf.createBinaryPersister();
+            xp.setCatalog(catalog);
+            xp.setUnwrapNulls(false);
+
+            List<byte[]> settings = new ArrayList<byte[]>();
+            byte[] global = null;
+            byte[] logging = null;
+            byte type;
+            while ((type = in.readByte()) != END) {
+                switch (type) {
+                case DEFAULT_WORKSPACE:
+                    catalog.setDefaultWorkspace(catalog.getWorkspaceByName(in.readUTF()));
+                    break;
+                case DEFAULT_NAMESPACE:
+                    catalog.setDefaultNamespace(catalog.getNamespaceByPrefix(in.readUTF()));
+                    break;
+                case GLOBAL:
+                    global = record(in);
+                    break;
+                case LOGGING:
+                    logging = record(in);
+                    break;
+                case SETTINGS:
+                    settings.add(record(in));
+                    break;
+                default:
+                    add(catalog, type, xp.load(new ByteArrayInputStream(record(in)), Object.class));
+                }
+            }
+            long checksum = crc.getValue();
+            if (in.readLong() != checksum) {
+                LOGGER.warning("The catalog snapshot is corrupted, "
+                        + "loading the catalog from the xml files");
+                return null;
+            }
+
+            xp.setUnwrapNulls(true);
+            catalog.resolve();
+
+            this.global = global;
+            this.logging = logging;
+            this.settings = settings;
+            return catalog;
+        } catch (EOFException e) {
+            LOGGER.warning("The catalog snapshot is truncated, loading the catalog from the xml files");
+            return null;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to read the catalog snapshot, "
+                    + "loading the catalog from the xml files", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close the catalog snapshot", e);
+                }
+            }
+        }
+    }
+
+    byte[] record(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid record length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    void add(Catalog catalog, byte type, Object info) throws IOException {
+        switch (type) {
+        case WORKSPACE:
+            catalog.add((WorkspaceInfo) info);
+            break;
+        case NAMESPACE:
+            catalog.add((NamespaceInfo) info);
+            break;
+        case STYLE:
+            catalog.add((StyleInfo) info);
+            break;
+        case DISCONNECTED_STORE:
+            ((StoreInfo) info).setEnabled(true);
+            // fall through
+        case STORE:
+            catalog.add((StoreInfo) info);
+            break;
+        case RESOURCE:
+            catalog.add((ResourceInfo) info);
+            break;
+        case LAYER:
+            catalog.add((LayerInfo) info);
+            break;
+        case LAYER_GROUP:
+            catalog.add((LayerGroupInfo) info);
+            break;
+        default:
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * Sets the global, logging and workspace settings read from the last snapshot into the
+     * configuration.
+     *
+     * @return false if the last snapshot read did not contain the configuration, in which case
+     *         it has to be read from the xml files
+     */
+    synchronized boolean readConfiguration(GeoServer geoServer) throws IOException {
+        if (global == null) {
+            return false;
+        }
+        try {
+            XStreamPersister xp = xpf.createBinaryPersister();
+            xp.setCatalog(geoServer.getCatalog());
+            geoServer.setGlobal(xp.load(new ByteArrayInputStream(global), GeoServerInfo.class));
+            if (logging != null) {
+                geoServer.setLogging(xp.load(new ByteArrayInputStream(logging),
+                        LoggingInfo.class));
+            }
+            for (byte[] record : settings) {
+                geoServer.add(xp.load(new ByteArrayInputStream(record), SettingsInfo.class));
+            }
+            return true;
+        } finally {
+            global = null;
+            logging = null;
+            settings = null;
+        }
+    }
+
+    /**
+     * Records the fingerprint of the xml files before they are read, it will be used to stamp
+     * the snapshot written after the load
+     */
+    synchronized void loadStarted() throws IOException {
+        cancel();
+        loading = true;
+        loadedFingerprint = fingerprint();
+    }
+
+    /**
+     * Marks the end of the configuration load, scheduling the snapshot write if required
+     * 
+     * @param write True if the configuration was read from the xml files
+     */
+    synchronized void loadCompleted(Catalog catalog, GeoServer geoServer, boolean write) {
+        loading = false;
+        if (write && loadedFingerprint != null) {
+            schedule(catalog, geoServer);
+        }
+    }
+
+    /**
+     * Deletes the snapshot, as the catalog in memory no longer matches the xml files it was read
+     * from. The snapshot will be written again only after the next load from the xml files.
+     */
+    void invalidate() {
+        synchronized (this) {
+            if (loading) {
+                return;
+            }
+            generation++;
+            loadedFingerprint = null;
+            cancel();
+        }
+        File file = getFile();
+        if (file.exists() && !file.delete()) {
+            LOGGER.warning("Could not delete the catalog snapshot " + file);
+        }
+    }
+
+    /**
+     * Schedules the snapshot write, postponing the one already scheduled, if any
+     */
+    synchronized void schedule(final Catalog catalog, final GeoServer geoServer) {
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "GeoServer catalog snapshot writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // do not keep an idle thread around between writes
+            executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        final long fingerprint = loadedFingerprint;
+        final long generation = this.generation;
+        pending = executor.schedule(new Runnable() {
+            public void run() {
+                try {
+                    // initializers or other processes might have changed the files since they
+                    // were loaded, the catalog in memory would not match the fingerprint
+                    if (fingerprint() != fingerprint) {
+                        LOGGER.info("The configuration files changed after being loaded, "
+                                + "not writing the catalog snapshot");
+                        return;
+                    }
+                    write(catalog, geoServer, fingerprint, generation);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to write the catalog snapshot", e);
+                    getFile().delete();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the scheduled snapshot write, if any
+     */
+    synchronized void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    /**
+     * Invalidates the snapshot on each catalog and configuration change
+     */
+    class Listener extends ConfigurationListenerAdapter implements CatalogListener {
+
+        void changed() {
+            invalidate();
+        }
+
+        public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+            changed();
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+            changed();
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+            changed();
+        }
+
+        @Override
+        public void handlePostGlobalChange(GeoServerInfo global) {
+            changed();
+        }
+
+        @Override
+        public void handleSettingsAdded(SettingsInfo settings) {
+            changed();
+        }
+
+        @Override
+        public void handleSettingsPostModified(SettingsInfo settings) {
+            changed();
+        }
+
+        @Override
+        public void handleSettingsRemoved(SettingsInfo settings) {
+            changed();
+        }
+
+        @Override
+        public void handlePostLoggingChange(LoggingInfo logging) {
+            changed();
+        }
+
+        @Override
+        public void reloaded() {
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,7 +33,9 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMSStoreInfo;
@@ -65,10 +69,30 @@ public abstract class GeoServerLoader {
 
     static Logger LOGGER = Logging.getLogger( "org.geoserver" );
     
+    /**
+     * System/context/env variable enabling parallel loading, either "true", to use as many
+     * threads as available processors, or the number of threads
+     */
+    public static final String PARALLEL_LOADING = "GEOSERVER_PARALLEL_LOADING";
+    
+    /**
+     * System/context/env variable enabling the binary catalog snapshot, see 
+     * {@link CatalogSnapshot}
+     */
+    public static final String CATALOG_SNAPSHOT = "GEOSERVER_CATALOG_SNAPSHOT";
+    
     protected GeoServerResourceLoader resourceLoader;
     GeoServer geoserver;
     XStreamPersisterFactory xpf = new XStreamPersisterFactory();
     
+    int loadingThreads = -1;
+    List<LoadingPhaseStatistics> phases = new CopyOnWriteArrayList<LoadingPhaseStatistics>();
+    
+    Boolean catalogSnapshot;
+    CatalogSnapshot snapshot;
+    CatalogSnapshot.Listener snapshotListener;
+    boolean loadedFromSnapshot;
+    
     //JD: this is a hack for the moment, it is used only to maintain tests since the test setup relies
     // on the old data directory structure, once the tests have been ported to the new structure
     // this ugly hack can die
@@ -90,6 +114,89 @@ public abstract class GeoServerLoader {
         GeoServerLoader.legacy = legacy;
     }
     
+    /**
+     * Sets the number of threads used to read the catalog and the workspace services, a value
+     * lower than 2 means sequential loading. When not set the {@link #PARALLEL_LOADING} property
+     * is used.
+     */
+    public void setLoadingThreads(int loadingThreads) {
+        this.loadingThreads = loadingThreads;
+    }
+    
+    public int getLoadingThreads() {
+        if (loadingThreads >= 0) {
+            return Math.max(1, loadingThreads);
+        }
+        String value = GeoServerExtensions.getProperty(PARALLEL_LOADING);
+        if (value == null || "false".equalsIgnoreCase(value)) {
+            return 1;
+        }
+        if ("true".equalsIgnoreCase(value)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        }
+        catch(NumberFormatException e) {
+            LOGGER.warning("Invalid value for " + PARALLEL_LOADING + ": " + value 
+                + ", loading sequentially");
+            return 1;
+        }
+    }
+    
+    /**
+     * Enables the binary catalog snapshot, used to speed up the next startups. When not set the
+     * {@link #CATALOG_SNAPSHOT} property is used.
+     */
+    public void setCatalogSnapshot(boolean catalogSnapshot) {
+        this.catalogSnapshot = catalogSnapshot;
+    }
+    
+    public boolean isCatalogSnapshot() {
+        if (catalogSnapshot != null) {
+            return catalogSnapshot;
+        }
+        return Boolean.parseBoolean(GeoServerExtensions.getProperty(CATALOG_SNAPSHOT));
+    }
+    
+    /**
+     * The catalog snapshot, or null if the snapshot is not enabled
+     */
+    CatalogSnapshot getSnapshot() {
+        if (snapshot == null && isCatalogSnapshot()) {
+            snapshot = new CatalogSnapshot(resourceLoader, xpf);
+        }
+        return snapshot;
+    }
+    
+    /**
+     * The phases of the last catalog and configuration load
+     */
+    public List<LoadingPhaseStatistics> getLoadingPhases() {
+        return new ArrayList<LoadingPhaseStatistics>(phases);
+    }
+    
+    /**
+     * Keeps track of the objects loaded, and the time taken, by one of the loading phases
+     */
+    class Phase {
+        String name;
+        long start = System.nanoTime();
+        int loaded;
+        int failed;
+        
+        Phase(String name) {
+            this.name = name;
+        }
+        
+        void end() {
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            phases.add(new LoadingPhaseStatistics(name, loaded, failed, time));
+            LOGGER.info("Loaded " + loaded + " " + name + " in " + time + " ms" 
+                + (failed > 0 ? ", " + failed + " failed" : ""));
+        }
+    }
+    
     public final Object postProcessAfterInitialization(Object bean, String beanName)
             throws BeansException {
         return bean;
@@ -127,6 +234,8 @@ public abstract class GeoServerLoader {
                 
                 //load initializers
                 loadInitializers(geoserver);
+                
+                scheduleSnapshot();
             } 
             catch (Exception e) {
                 throw new RuntimeException( e );
@@ -205,6 +314,29 @@ public abstract class GeoServerLoader {
         
         loadCatalog( catalog, xp );
         loadGeoServer( geoserver, xp);
+        
+        scheduleSnapshot();
+    }
+    
+    /**
+     * Schedules the write of the catalog snapshot, unless the catalog has just been read from it,
+     * and makes sure the snapshot gets invalidated on each configuration change
+     */
+    void scheduleSnapshot() {
+        CatalogSnapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        Catalog catalog = geoserver.getCatalog();
+        if ( catalog instanceof Wrapper ) {
+            catalog = ((Wrapper)catalog).unwrap(Catalog.class);
+        }
+        if (snapshotListener == null) {
+            snapshotListener = snapshot.new Listener();
+            catalog.addListener(snapshotListener);
+            geoserver.addListener(snapshotListener);
+        }
+        snapshot.loadCompleted(catalog, geoserver, !loadedFromSnapshot);
     }
 
     protected void readCatalog(Catalog catalog, XStreamPersister xp) throws Exception {
@@ -212,14 +344,25 @@ public abstract class GeoServerLoader {
         // but these two fellas are attached to the new catalog as well
         catalog.removeListeners(ResourcePool.CacheClearingListener.class);
         catalog.removeListeners(GeoServerPersister.class);
+        phases.clear();
         List<CatalogListener> listeners = new ArrayList<CatalogListener>(catalog.getListeners());
 
         //look for catalog.xml, if it exists assume we are dealing with 
         // an old data directory
         File f = resourceLoader.find( "catalog.xml" );
+        loadedFromSnapshot = false;
         if ( f == null ) {
             //assume 2.x style data directory
-            CatalogImpl catalog2 = (CatalogImpl) readCatalog( xp );
+            CatalogSnapshot snapshot = getSnapshot();
+            if (snapshot != null) {
+                // the snapshot written after this load describes the files as they are now
+                snapshot.loadStarted();
+            }
+            CatalogImpl catalog2 = readSnapshot();
+            loadedFromSnapshot = catalog2 != null;
+            if ( catalog2 == null ) {
+                catalog2 = (CatalogImpl) readCatalog( xp );
+            }
             // make to remove the old resource pool catalog listener
             ((CatalogImpl)catalog).sync( catalog2 );
         } else {
@@ -239,6 +382,12 @@ public abstract class GeoServerLoader {
      * Reads the catalog from disk.
      */
     Catalog readCatalog( XStreamPersister xp ) throws Exception {
+        int threads = getLoadingThreads();
+        if (threads > 1) {
+            return new ParallelLoader(this, threads).readCatalog(xp);
+        }
+        
+        Phase phase = new Phase("catalog objects");
         CatalogImpl catalog = new CatalogImpl();
         catalog.setResourceLoader(resourceLoader);
         xp.setCatalog( catalog );
@@ -521,9 +670,63 @@ public abstract class GeoServerLoader {
         }
         xp.setUnwrapNulls(true);
         catalog.resolve();
+        
+        phase.loaded = count(catalog);
+        phase.end();
+        return catalog;
+    }
+    
+    /**
+     * Reads the catalog from the snapshot, if enabled and up to date with the data directory.
+     * 
+     * @return the catalog, or null if it has to be read from the xml files
+     */
+    CatalogImpl readSnapshot() {
+        CatalogSnapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return null;
+        }
+        
+        Phase phase = new Phase("catalog snapshot objects");
+        CatalogImpl catalog = snapshot.read();
+        if (catalog == null) {
+            return null;
+        }
+        phase.loaded = count(catalog);
+        phase.end();
+        
+        //connect to the datastores to determine if we should disable them
+        int threads = getLoadingThreads();
+        if (threads > 1) {
+            new ParallelLoader(this, threads).checkDataStores(catalog);
+        }
+        else {
+            for (DataStoreInfo ds : catalog.getDataStores()) {
+                if (!ds.isEnabled()) {
+                    continue;
+                }
+                try {
+                    ds.getDataStore(null);
+                }
+                catch( Throwable t ) {
+                    LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
+                    LOGGER.log( Level.INFO, "", t );
+                    
+                    ds.setError(t);
+                    ds.setEnabled(false);
+                }
+            }
+        }
         return catalog;
     }
     
+    int count(Catalog catalog) {
+        return catalog.getStyles().size() + catalog.getWorkspaces().size() 
+            + catalog.getNamespaces().size() + catalog.getStores(StoreInfo.class).size()
+            + catalog.getResources(ResourceInfo.class).size() + catalog.getLayers().size() 
+            + catalog.getLayerGroups().size();
+    }
+    
     /**
      * Some config directories in GeoServer are used to store workspace specific configurations, 
      * identify them so that we don't log complaints about their existence
@@ -531,7 +734,7 @@ public abstract class GeoServerLoader {
      * @param f
      * @return
      */
-    private boolean isConfigDirectory(File dir) {
+    boolean isConfigDirectory(File dir) {
         String name = dir.getName();
         boolean result = "styles".equals(name) || "layergroups".equals(name);
         return result;
@@ -607,27 +810,32 @@ public abstract class GeoServerLoader {
     }
     
     protected void readConfiguration(GeoServer geoServer, XStreamPersister xp) throws Exception {
+        Phase phase = new Phase("services and settings");
         //look for services.xml, if it exists assume we are dealing with 
         // an old data directory
         File f = resourceLoader.find( "services.xml" );
         if ( f == null ) {
-            //assume 2.x style
+            //assume 2.x style, the settings might have been read along with the catalog snapshot
+            CatalogSnapshot snapshot = getSnapshot();
+            boolean fromSnapshot = loadedFromSnapshot && snapshot != null 
+                && snapshot.readConfiguration(geoServer);
+            
             f = resourceLoader.find( "global.xml");
-            if ( f != null ) {
+            if ( f != null && !fromSnapshot ) {
                 GeoServerInfo global = depersist(xp, f, GeoServerInfo.class);
                 geoServer.setGlobal( global );
             }
             
             //load logging
             f = resourceLoader.find( "logging.xml" );
-            if ( f != null ) {
+            if ( f != null && !fromSnapshot ) {
                 LoggingInfo logging = depersist(xp, f, LoggingInfo.class );
                 geoServer.setLogging( logging );
             }
 
             // load workspace specific settings
             File workspaces = resourceLoader.find("workspaces");
-            if (workspaces != null) {
+            if (workspaces != null && !fromSnapshot) {
                 for (File dir : workspaces.listFiles()) {
                     if (!dir.isDirectory() && !dir.isHidden()) continue;
     
@@ -646,10 +854,21 @@ public abstract class GeoServerLoader {
 
             //load services specific to workspace
             if (workspaces != null) {
-                for (File dir : workspaces.listFiles()) {
-                    if (!dir.isDirectory() && !dir.isHidden()) continue;
-
-                    loadServices(dir, loaders, geoServer);
+                int threads = getLoadingThreads();
+                if (threads > 1) {
+                    List<File> dirs = new ArrayList<File>();
+                    for (File dir : workspaces.listFiles()) {
+                        if (!dir.isDirectory() && !dir.isHidden()) continue;
+                        dirs.add(dir);
+                    }
+                    new ParallelLoader(this, threads).loadServices(dirs, loaders, geoServer, phase);
+                }
+                else {
+                    for (File dir : workspaces.listFiles()) {
+                        if (!dir.isDirectory() && !dir.isHidden()) continue;
+    
+                        loadServices(dir, loaders, geoServer);
+                    }
                 }
             }
             
@@ -667,6 +886,11 @@ public abstract class GeoServerLoader {
             //rename the services.xml file
             f.renameTo( new File( f.getParentFile(), "services.xml.old" ) );
         }
+        phase.loaded = geoServer.getServices().size();
+        for (WorkspaceInfo ws : geoServer.getCatalog().getWorkspaces()) {
+            phase.loaded += geoServer.getServices(ws).size();
+        }
+        phase.end();
     }
 
     void loadStyles(File styles, Catalog catalog, XStreamPersister xp) {
@@ -772,6 +996,9 @@ public abstract class GeoServerLoader {
     }
     
     public void destroy() throws Exception {
+        if (snapshot != null) {
+            snapshot.cancel();
+        }
         //dispose
         geoserver.dispose();
     }
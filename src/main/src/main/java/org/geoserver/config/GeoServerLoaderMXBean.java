@@ -0,0 +1,28 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.util.List;
+
+/**
+ * JMX management interface exposing how long the last catalog and configuration load took
+ */
+public interface GeoServerLoaderMXBean {
+
+    /**
+     * The number of threads used to read the catalog, 1 when loading sequentially
+     */
+    int getLoadingThreads();
+
+    /**
+     * The phases of the last load, in execution order
+     */
+    List<LoadingPhaseStatistics> getLoadingPhases();
+
+    /**
+     * The total time, in milliseconds, of the last load
+     */
+    long getTotalLoadingTime();
+}
@@ -4,6 +4,9 @@
  */
 package org.geoserver.config;
 
+import java.util.Collections;
+import java.util.List;
+
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.springframework.beans.BeansException;
@@ -23,7 +26,8 @@ import org.springframework.context.ApplicationContextAware;
  * @author Justin Deoliveira, OpenGeo
  *
  */
-public class GeoServerLoaderProxy implements BeanPostProcessor, DisposableBean, ApplicationContextAware {
+public class GeoServerLoaderProxy implements BeanPostProcessor, DisposableBean, ApplicationContextAware, 
+    GeoServerLoaderMXBean {
 
     /**
      * resource loader
@@ -71,6 +75,25 @@ public class GeoServerLoaderProxy implements BeanPostProcessor, DisposableBean,
         }
     }
     
+    public int getLoadingThreads() {
+        return loader != null ? loader.getLoadingThreads() : 1;
+    }
+    
+    public List<LoadingPhaseStatistics> getLoadingPhases() {
+        if (loader != null) {
+            return loader.getLoadingPhases();
+        }
+        return Collections.emptyList();
+    }
+    
+    public long getTotalLoadingTime() {
+        long total = 0;
+        for (LoadingPhaseStatistics phase : getLoadingPhases()) {
+            total += phase.getTime();
+        }
+        return total;
+    }
+    
     protected GeoServerLoader lookupGeoServerLoader(ApplicationContext appContext) {
         GeoServerLoader loader = GeoServerExtensions.bean(GeoServerLoader.class, appContext);
         if (loader == null) {
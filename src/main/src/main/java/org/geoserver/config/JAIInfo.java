@@ -17,7 +17,9 @@ import javax.media.jai.TileCache;
  */
 public interface JAIInfo extends Cloneable, Serializable {
     
-    static enum PngEncoderType { JDK, NATIVE, PNGJ }; 
+    static enum PngEncoderType { JDK, NATIVE, PNGJ, PARALLEL }; 
+
+    static enum TileCacheType { SUN, CONCURRENT };
 
     /**
      * Flag controlling image interpolation.
@@ -101,6 +103,12 @@ public interface JAIInfo extends Cloneable, Serializable {
     JAI getJAI();
     void setJAI(JAI jai);
 
+    /**
+     * The tile cache implementation, either the JAI default one or the concurrent one.
+     */
+    TileCacheType getTileCacheType();
+    void setTileCacheType(TileCacheType type);
+
     /**
      * The jai tile cache.
      */
@@ -0,0 +1,67 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+
+/**
+ * The outcome of one of the phases the {@link GeoServerLoader} goes through when loading the
+ * catalog and the configuration, e.g., "styles", "stores", "layers".
+ */
+public class LoadingPhaseStatistics implements Serializable {
+
+    private static final long serialVersionUID = -3590383384781418036L;
+
+    String name;
+
+    int loaded;
+
+    int failed;
+
+    long time;
+
+    @ConstructorProperties({ "name", "loaded", "failed", "time" })
+    public LoadingPhaseStatistics(String name, int loaded, int failed, long time) {
+        this.name = name;
+        this.loaded = loaded;
+        this.failed = failed;
+        this.time = time;
+    }
+
+    /**
+     * The phase name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of objects successfully loaded
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * The number of objects that could not be loaded
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * The phase duration, in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadingPhaseStatistics(" + name + ", loaded=" + loaded + ", failed=" + failed
+                + ", time=" + time + ")";
+    }
+}
@@ -0,0 +1,582 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.PublishedInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.WMSStoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.ResolvingProxy;
+import org.geoserver.config.GeoServerLoader.Phase;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamServiceLoader;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+/**
+ * Reads a 2.x style data directory using a fork-join pool.
+ * <p>
+ * The catalog is loaded in phases: styles, workspaces, workspace styles, stores, resources,
+ * layers and layer groups. In each phase the xml files are read and unmarshalled in parallel,
+ * each worker thread using its own {@link XStreamPersister}, while the objects are added to the
+ * catalog by the calling thread, in data directory order, once the phase files have all been
+ * parsed. This way each object is parsed when the objects it depends on are already in the
+ * catalog, exactly as it happens when loading sequentially.
+ * </p>
+ */
+class ParallelLoader {
+
+    static Logger LOGGER = GeoServerLoader.LOGGER;
+
+    GeoServerLoader loader;
+
+    GeoServerResourceLoader resourceLoader;
+
+    int threads;
+
+    ForkJoinPool pool;
+
+    ThreadLocal<XStreamPersister> persisters;
+
+    ParallelLoader(GeoServerLoader loader, int threads) {
+        this.loader = loader;
+        this.resourceLoader = loader.resourceLoader;
+        this.threads = threads;
+    }
+
+    /**
+     * A file to be parsed, and the object parsed from it
+     */
+    static class Item {
+        File dir;
+
+        File file;
+
+        Class<?> type;
+
+        String what;
+
+        Object info;
+
+        Item(File dir, File file, Class<?> type, String what) {
+            this.dir = dir;
+            this.file = file;
+            this.type = type;
+            this.what = what;
+        }
+    }
+
+    /**
+     * Reads the catalog from disk.
+     */
+    Catalog readCatalog(XStreamPersister xp) throws Exception {
+        final CatalogImpl catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        xp.setCatalog(catalog);
+        xp.setUnwrapNulls(false);
+
+        persisters = new ThreadLocal<XStreamPersister>() {
+            @Override
+            protected XStreamPersister initialValue() {
+                XStreamPersister persister = loader.xpf.createXMLPersister();
+                persister.setCatalog(catalog);
+                persister.setUnwrapNulls(false);
+                return persister;
+            }
+        };
+        pool = new ForkJoinPool(threads);
+        try {
+            // global styles
+            Phase phase = loader.new Phase("styles");
+            addStyles(parse(styleItems(resourceLoader.find("styles")), phase), catalog, phase);
+            phase.end();
+
+            File workspaces = resourceLoader.find("workspaces");
+            if (workspaces != null) {
+                List<File> workspaceDirs = new ArrayList<File>(loader.list(workspaces,
+                        DirectoryFileFilter.INSTANCE));
+                List<File> loaded = loadWorkspaces(workspaces, workspaceDirs, catalog, xp);
+
+                phase = loader.new Phase("workspace styles");
+                List<Item> styles = new ArrayList<Item>();
+                for (File wsd : loaded) {
+                    styles.addAll(styleItems(resourceLoader.find(wsd, "styles")));
+                }
+                addStyles(parse(styles, phase), catalog, phase);
+                phase.end();
+
+                List<Item> stores = loadStores(workspaceDirs, catalog);
+                List<DataStoreInfo> dataStores = new ArrayList<DataStoreInfo>();
+                for (Item item : stores) {
+                    if (item.info instanceof DataStoreInfo) {
+                        dataStores.add((DataStoreInfo) item.info);
+                    }
+                }
+                checkDataStores(dataStores);
+                List<Item> resources = loadResources(stores, catalog);
+                loadLayers(resources, catalog);
+
+                // workspace specific layer groups first, then the global ones
+                List<File> layerGroupDirs = new ArrayList<File>();
+                for (File wsd : workspaceDirs) {
+                    layerGroupDirs.add(resourceLoader.find(wsd, "layergroups"));
+                }
+                layerGroupDirs.add(resourceLoader.find("layergroups"));
+                loadLayerGroups(layerGroupDirs, catalog);
+            } else {
+                LOGGER.warning("No 'workspaces' directory found, unable to load any stores.");
+                List<File> layerGroupDirs = new ArrayList<File>();
+                layerGroupDirs.add(resourceLoader.find("layergroups"));
+                loadLayerGroups(layerGroupDirs, catalog);
+            }
+        } finally {
+            pool.shutdown();
+            pool = null;
+            persisters = null;
+        }
+
+        xp.setUnwrapNulls(true);
+        catalog.resolve();
+        return catalog;
+    }
+
+    /**
+     * Connects to the enabled data stores of a catalog that has been loaded by other means, e.g.
+     * from a {@link CatalogSnapshot}, disabling the ones that fail
+     */
+    void checkDataStores(Catalog catalog) {
+        pool = new ForkJoinPool(threads);
+        try {
+            checkDataStores(catalog.getDataStores());
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    List<Item> styleItems(File styles) {
+        List<Item> items = new ArrayList<Item>();
+        for (File sf : loader.list(styles, new SuffixFileFilter(".xml"))) {
+            // handle the .xml.xml case
+            if (new File(styles, sf.getName() + ".xml").exists()) {
+                continue;
+            }
+            items.add(new Item(styles, sf, StyleInfo.class, "style"));
+        }
+        return items;
+    }
+
+    void addStyles(List<Item> items, Catalog catalog, Phase phase) {
+        for (Item item : items) {
+            StyleInfo s = (StyleInfo) item.info;
+            if (s != null && add(catalog, s, item, phase)) {
+                LOGGER.info("Loaded style '" + s.getName() + "'");
+            }
+        }
+    }
+
+    List<File> loadWorkspaces(File workspaces, List<File> workspaceDirs, Catalog catalog,
+            XStreamPersister xp) {
+        Phase phase = loader.new Phase("workspaces");
+
+        // the default workspace, see GeoServerLoader.readCatalog for the details
+        File dws = new File(workspaces, "default.xml");
+        WorkspaceInfo defaultWorkspace = null;
+        if (dws.exists()) {
+            try {
+                defaultWorkspace = loader.depersist(xp, dws, WorkspaceInfo.class);
+                LOGGER.info("Loaded default workspace " + defaultWorkspace.getName());
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to load default workspace", e);
+            }
+        } else {
+            LOGGER.warning("No default workspace was found.");
+        }
+
+        List<Item> items = new ArrayList<Item>();
+        for (File wsd : workspaceDirs) {
+            File f = new File(wsd, "workspace.xml");
+            if (f.exists()) {
+                items.add(new Item(wsd, f, WorkspaceInfo.class, "workspace"));
+                File nsf = new File(wsd, "namespace.xml");
+                items.add(nsf.exists() ? new Item(wsd, nsf, NamespaceInfo.class, "namespace")
+                        : null);
+            }
+        }
+        parse(items, phase);
+
+        List<File> loaded = new ArrayList<File>();
+        for (int i = 0; i < items.size(); i += 2) {
+            Item item = items.get(i);
+            WorkspaceInfo ws = (WorkspaceInfo) item.info;
+            if (ws == null || !add(catalog, ws, item, phase)) {
+                continue;
+            }
+            LOGGER.info("Loaded workspace '" + ws.getName() + "'");
+
+            NamespaceInfo ns = null;
+            Item nsItem = items.get(i + 1);
+            if (nsItem != null && nsItem.info != null) {
+                if (add(catalog, (NamespaceInfo) nsItem.info, nsItem, phase)) {
+                    ns = (NamespaceInfo) nsItem.info;
+                }
+            }
+
+            if (defaultWorkspace != null) {
+                if (ws.getName().equals(defaultWorkspace.getName())) {
+                    catalog.setDefaultWorkspace(ws);
+                    if (ns != null) {
+                        catalog.setDefaultNamespace(ns);
+                    }
+                }
+            } else {
+                // create the default.xml file
+                defaultWorkspace = catalog.getDefaultWorkspace();
+                if (defaultWorkspace != null) {
+                    try {
+                        loader.persist(xp, defaultWorkspace, dws);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to persist default workspace '"
+                                + item.dir.getName() + "'", e);
+                    }
+                }
+            }
+            loaded.add(item.dir);
+        }
+        phase.end();
+        return loaded;
+    }
+
+    List<Item> loadStores(List<File> workspaceDirs, Catalog catalog) {
+        Phase phase = loader.new Phase("stores");
+        List<Item> items = new ArrayList<Item>();
+        for (File wsd : workspaceDirs) {
+            for (File sd : loader.list(wsd, DirectoryFileFilter.INSTANCE)) {
+                File f = new File(sd, "datastore.xml");
+                if (f.exists()) {
+                    items.add(new Item(sd, f, DataStoreInfo.class, "data store"));
+                    continue;
+                }
+                f = new File(sd, "coveragestore.xml");
+                if (f.exists()) {
+                    items.add(new Item(sd, f, CoverageStoreInfo.class, "coverage store"));
+                    continue;
+                }
+                f = new File(sd, "wmsstore.xml");
+                if (f.exists()) {
+                    items.add(new Item(sd, f, WMSStoreInfo.class, "wms store"));
+                } else if (!loader.isConfigDirectory(sd)) {
+                    LOGGER.warning("Ignoring store directory '" + sd.getName() + "'");
+                }
+            }
+        }
+        parse(items, phase);
+
+        List<Item> loaded = new ArrayList<Item>();
+        for (Item item : items) {
+            StoreInfo store = (StoreInfo) item.info;
+            if (store != null && add(catalog, store, item, phase)) {
+                LOGGER.info("Loaded " + item.what + " '" + store.getName() + "'");
+                loaded.add(item);
+            }
+        }
+        phase.end();
+        return loaded;
+    }
+
+    /**
+     * Connects to the enabled data stores, disabling the ones that fail, like
+     * {@link GeoServerLoader#readCatalog(XStreamPersister)} does, but in parallel
+     */
+    void checkDataStores(List<DataStoreInfo> stores) {
+        Phase phase = loader.new Phase("data store connections");
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final DataStoreInfo ds : stores) {
+            if (!ds.isEnabled()) {
+                continue;
+            }
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    try {
+                        ds.getDataStore(null);
+                        return true;
+                    } catch (Throwable t) {
+                        LOGGER.warning("Error connecting to '" + ds.getName() + "'. Disabling.");
+                        LOGGER.log(Level.INFO, "", t);
+
+                        ds.setError(t);
+                        ds.setEnabled(false);
+                        return false;
+                    }
+                }
+            });
+        }
+        for (Future<Boolean> future : pool.invokeAll(tasks)) {
+            try {
+                if (future.get()) {
+                    phase.loaded++;
+                } else {
+                    phase.failed++;
+                }
+            } catch (ExecutionException e) {
+                phase.failed++;
+            }
+        }
+        phase.end();
+    }
+
+    List<Item> loadResources(List<Item> stores, Catalog catalog) {
+        Phase phase = loader.new Phase("resources");
+        List<Item> items = new ArrayList<Item>();
+        for (Item store : stores) {
+            String file;
+            Class<?> type;
+            String what;
+            String ignored;
+            if (store.info instanceof DataStoreInfo) {
+                file = "featuretype.xml";
+                type = FeatureTypeInfo.class;
+                what = "feature type";
+                ignored = "feature type";
+            } else if (store.info instanceof CoverageStoreInfo) {
+                file = "coverage.xml";
+                type = CoverageInfo.class;
+                what = "coverage";
+                ignored = "coverage";
+            } else {
+                file = "wmslayer.xml";
+                type = WMSLayerInfo.class;
+                what = "wms layer";
+                ignored = "coverage";
+            }
+            for (File rd : loader.list(store.dir, DirectoryFileFilter.INSTANCE)) {
+                File f = new File(rd, file);
+                if (f.exists()) {
+                    items.add(new Item(rd, f, type, what));
+                } else {
+                    LOGGER.warning("Ignoring " + ignored + " directory " + rd.getAbsolutePath());
+                }
+            }
+        }
+        parse(items, phase);
+
+        List<Item> loaded = new ArrayList<Item>();
+        for (Item item : items) {
+            ResourceInfo resource = (ResourceInfo) item.info;
+            if (resource != null && add(catalog, resource, item, phase)) {
+                LOGGER.info("Loaded " + item.what + " '" + resource.getName() + "'");
+                loaded.add(item);
+            }
+        }
+        phase.end();
+        return loaded;
+    }
+
+    void loadLayers(List<Item> resources, Catalog catalog) {
+        Phase phase = loader.new Phase("layers");
+        List<Item> items = new ArrayList<Item>();
+        for (Item resource : resources) {
+            File f = new File(resource.dir, "layer.xml");
+            if (f.exists()) {
+                items.add(new Item(resource.dir, f, LayerInfo.class, "layer"));
+            }
+        }
+        parse(items, phase);
+
+        for (Item item : items) {
+            LayerInfo l = (LayerInfo) item.info;
+            if (l != null && add(catalog, l, item, phase)) {
+                LOGGER.info("Loaded layer '" + l.getName() + "'");
+            }
+        }
+        phase.end();
+    }
+
+    void loadLayerGroups(List<File> layerGroupDirs, Catalog catalog) {
+        Phase phase = loader.new Phase("layer groups");
+        List<Item> items = new ArrayList<Item>();
+        for (File dir : layerGroupDirs) {
+            for (File lgf : loader.list(dir, new SuffixFileFilter(".xml"))) {
+                items.add(new Item(dir, lgf, LayerGroupInfo.class, "layer group"));
+            }
+        }
+        parse(items, phase);
+
+        for (Item item : items) {
+            LayerGroupInfo lg = (LayerGroupInfo) item.info;
+            if (lg == null) {
+                continue;
+            }
+            if (lg.getLayers() == null || lg.getLayers().size() == 0) {
+                LOGGER.warning("Skipping empty layer group '" + lg.getName()
+                        + "', it is invalid");
+                phase.failed++;
+                continue;
+            }
+            // nested groups were parsed before the groups they refer to were added, resolve now
+            resolveLayers(lg, catalog);
+            if (add(catalog, lg, item, phase)) {
+                LOGGER.info("Loaded layer group '" + lg.getName() + "'");
+            }
+        }
+        phase.end();
+    }
+
+    void resolveLayers(LayerGroupInfo lg, Catalog catalog) {
+        List<PublishedInfo> layers = lg.getLayers();
+        for (int i = 0; i < layers.size(); i++) {
+            PublishedInfo p = layers.get(i);
+            PublishedInfo resolved = ResolvingProxy.resolve(catalog, p);
+            if (resolved != null && resolved != p) {
+                layers.set(i, CatalogImpl.unwrap(resolved));
+            }
+        }
+        if (lg.getRootLayer() != null) {
+            LayerInfo root = ResolvingProxy.resolve(catalog, lg.getRootLayer());
+            if (root != null && root != lg.getRootLayer()) {
+                lg.setRootLayer(CatalogImpl.unwrap(root));
+            }
+        }
+    }
+
+    /**
+     * Parses the items on the pool, setting their info. Null items are skipped, failures are
+     * logged and leave the info unset.
+     */
+    List<Item> parse(List<Item> items, Phase phase) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(items.size());
+        for (final Item item : items) {
+            if (item == null) {
+                continue;
+            }
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    item.info = loader.depersist(persisters.get(), item.file, item.type);
+                    return item.info;
+                }
+            });
+        }
+
+        List<Future<Object>> futures = pool.invokeAll(tasks);
+        int i = 0;
+        for (Item item : items) {
+            if (item == null) {
+                continue;
+            }
+            try {
+                futures.get(i++).get();
+            } catch (Exception e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                LOGGER.log(Level.WARNING, "Failed to load " + item.what + " from file '"
+                        + item.file.getPath() + "'", cause);
+                item.info = null;
+                phase.failed++;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Adds the object to the catalog, logging and counting failures
+     */
+    boolean add(Catalog catalog, Object info, Item item, Phase phase) {
+        try {
+            if (info instanceof WorkspaceInfo) {
+                catalog.add((WorkspaceInfo) info);
+            } else if (info instanceof NamespaceInfo) {
+                catalog.add((NamespaceInfo) info);
+            } else if (info instanceof StyleInfo) {
+                catalog.add((StyleInfo) info);
+            } else if (info instanceof StoreInfo) {
+                catalog.add((StoreInfo) info);
+            } else if (info instanceof ResourceInfo) {
+                catalog.add((ResourceInfo) info);
+            } else if (info instanceof LayerInfo) {
+                catalog.add((LayerInfo) info);
+            } else if (info instanceof LayerGroupInfo) {
+                catalog.add((LayerGroupInfo) info);
+            } else {
+                throw new IllegalArgumentException("Unexpected catalog object " + info);
+            }
+            phase.loaded++;
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + item.what + " '" + item.dir.getName()
+                    + "'", e);
+            phase.failed++;
+            return false;
+        }
+    }
+
+    /**
+     * Loads the workspace specific services, reading the files in parallel and adding the
+     * services to the configuration in workspace and loader order
+     */
+    void loadServices(List<File> workspaceDirs, List<XStreamServiceLoader> loaders,
+            final GeoServer geoServer, Phase phase) {
+        pool = new ForkJoinPool(threads);
+        try {
+            List<Callable<ServiceInfo>> tasks = new ArrayList<Callable<ServiceInfo>>();
+            for (final File dir : workspaceDirs) {
+                for (final XStreamServiceLoader<ServiceInfo> l : loaders) {
+                    tasks.add(new Callable<ServiceInfo>() {
+                        public ServiceInfo call() throws Exception {
+                            return l.load(geoServer, dir);
+                        }
+                    });
+                }
+            }
+            List<Future<ServiceInfo>> futures = pool.invokeAll(tasks);
+
+            int i = 0;
+            for (File dir : workspaceDirs) {
+                for (XStreamServiceLoader<ServiceInfo> l : loaders) {
+                    try {
+                        ServiceInfo s = futures.get(i++).get();
+                        if (s.getWorkspace() == null) {
+                            continue;
+                        }
+                        geoServer.add(s);
+
+                        LOGGER.info("Loaded service '" + s.getId() + "', "
+                                + (s.isEnabled() ? "enabled" : "disabled"));
+                    } catch (Throwable t) {
+                        Throwable cause = t instanceof ExecutionException ? t.getCause() : t;
+                        LOGGER.log(Level.SEVERE,
+                                "Failed to load the service configuration in directory: " + dir
+                                        + " with loader for " + l.getServiceClass(), cause);
+                        phase.failed++;
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+}
@@ -51,6 +51,8 @@ public class JAIInfoImpl implements Serializable, JAIInfo {
     
     PngEncoderType pngEncoderType = PngEncoderType.PNGJ;
 
+    TileCacheType tileCacheType = TileCacheType.SUN;
+
     /**
      * @uml.property name="allowInterpolation"
      */
@@ -216,6 +218,7 @@ public class JAIInfoImpl implements Serializable, JAIInfo {
         result = prime * result + tilePriority;
         result = prime * result + tileThreads;
         result = prime * result + getPngEncoderType().hashCode();
+        result = prime * result + getTileCacheType().hashCode();
         return result;
     }
 
@@ -254,6 +257,8 @@ public class JAIInfoImpl implements Serializable, JAIInfo {
             return false;
         if (getPngEncoderType() != other.getPngEncoderType())
             return false;
+        if (getTileCacheType() != other.getTileCacheType())
+            return false;
         return true;
     }
     
@@ -276,4 +281,16 @@ public class JAIInfoImpl implements Serializable, JAIInfo {
     public void setPngEncoderType(PngEncoderType pngEncoderType) {
         this.pngEncoderType = pngEncoderType;
     }
+
+    public TileCacheType getTileCacheType() {
+        if(tileCacheType == null) {
+            return TileCacheType.SUN;
+        } else {
+            return tileCacheType;
+        }
+    }
+
+    public void setTileCacheType(TileCacheType tileCacheType) {
+        this.tileCacheType = tileCacheType;
+    }
 }
@@ -138,6 +138,7 @@ import com.thoughtworks.xstream.converters.reflection.SortableFieldKeySorter;
 import com.thoughtworks.xstream.converters.reflection.Sun14ReflectionProvider;
 import com.thoughtworks.xstream.io.ExtendedHierarchicalStreamWriterHelper;
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.binary.BinaryStreamDriver;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
 import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import com.thoughtworks.xstream.mapper.ClassAliasingMapper;
@@ -214,6 +215,11 @@ public class XStreamPersister {
      */
     XStream xs;
 
+    /**
+     * The stream driver, or null when the xstream default one is used
+     */
+    HierarchicalStreamDriver streamDriver;
+
     /**
      * GeoServer reference used to resolve references to gloal from services
      */
@@ -268,6 +274,7 @@ public class XStreamPersister {
         
         ReflectionProvider reflectionProvider = new CustomReflectionProvider( new FieldDictionary( sorter ) ); 
             //new Sun14ReflectionProvider( new FieldDictionary( sorter  ) ); 
+        this.streamDriver = streamDriver;
         if ( streamDriver != null ) {
             xs = new XStream( reflectionProvider, streamDriver );
         }
@@ -548,7 +555,15 @@ public class XStreamPersister {
     public void save(Object obj, OutputStream out) throws IOException {
         //unwrap dynamic proxies
         obj = unwrapProxies( obj );
-        xs.toXML(obj, new OutputStreamWriter( out, "UTF-8" ));
+        if ( streamDriver instanceof BinaryStreamDriver ) {
+            //binary drivers cannot write to character streams
+            HierarchicalStreamWriter writer = streamDriver.createWriter( out );
+            xs.marshal( obj, writer );
+            writer.flush();
+        }
+        else {
+            xs.toXML(obj, new OutputStreamWriter( out, "UTF-8" ));
+        }
     }
 
     /**
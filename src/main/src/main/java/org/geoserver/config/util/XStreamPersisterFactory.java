@@ -13,6 +13,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
 import com.thoughtworks.xstream.io.HierarchicalStreamDriver;
+import com.thoughtworks.xstream.io.binary.BinaryStreamDriver;
 import com.thoughtworks.xstream.io.json.JettisonMappedXmlDriver;
 
 /**
@@ -55,6 +56,15 @@ public class XStreamPersisterFactory implements ApplicationContextAware {
         return buildPersister(new JettisonMappedXmlDriver());
     }
 
+    /**
+     * Creates an instance configured to persist in the compact xstream binary format. The
+     * output is not meant to be human readable, nor stable across versions, and is suitable only
+     * for caching purposes.
+     */
+    public XStreamPersister createBinaryPersister() {
+        return buildPersister(new BinaryStreamDriver());
+    }
+
     /**
      * Builds a persister and runs the initializers against it
      */
@@ -0,0 +1,640 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.jai;
+
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.CachedTile;
+import javax.media.jai.TileCache;
+
+import org.geotools.util.logging.Logging;
+
+import com.sun.media.jai.util.CacheDiagnostics;
+
+/**
+ * A {@link TileCache} that can be used concurrently without a global lock, as an alternative to
+ * the JAI own {@link com.sun.media.jai.util.SunTileCache}, which synchronizes every access.
+ * <p>
+ * Tiles are kept in a concurrent map per image, so the tiles of an image can be listed and
+ * removed without scanning the whole cache, and the memory used by each image is tracked. Images
+ * are weakly referenced, the tiles of images that got garbage collected are dropped the next time
+ * the cache is modified.
+ * </p>
+ * <p>
+ * Lookups only update the tile access stamp. When the memory used goes above the capacity a
+ * single thread sorts the tiles, least recently used first (or using the
+ * {@link #setTileComparator(Comparator) tile comparator}, if set) and evicts them until the memory
+ * used goes below the threshold, the other threads keep on working meanwhile.
+ * </p>
+ *
+ */
+public class ConcurrentTileCache implements TileCache, CacheDiagnostics {
+
+    static final Logger LOGGER = Logging.getLogger(ConcurrentTileCache.class);
+
+    /**
+     * Default memory capacity, same as the JAI default one
+     */
+    public static final long DEFAULT_MEMORY_CAPACITY = 64 * 1024 * 1024;
+
+    /**
+     * Default memory threshold, same as the JAI default one
+     */
+    public static final float DEFAULT_MEMORY_THRESHOLD = 0.75f;
+
+    /**
+     * Minimum fraction of the capacity released by an eviction pass, so that a threshold close
+     * to 1 does not result in a sort for each tile added
+     */
+    static final float MIN_EVICTION = 0.05f;
+
+    final ConcurrentHashMap<Object, ImageTiles> images = new ConcurrentHashMap<Object, ImageTiles>();
+
+    final ReferenceQueue<RenderedImage> collected = new ReferenceQueue<RenderedImage>();
+
+    final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * Logical clock used to stamp the tiles on addition and access, cheaper than reading the
+     * system time
+     */
+    final AtomicLong clock = new AtomicLong();
+
+    final AtomicLong memoryUsed = new AtomicLong();
+
+    final AtomicLong tileCount = new AtomicLong();
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong evictions = new AtomicLong();
+
+    volatile long memoryCapacity;
+
+    volatile float memoryThreshold;
+
+    volatile Comparator comparator;
+
+    volatile boolean diagnostics = true;
+
+    public ConcurrentTileCache() {
+        this(DEFAULT_MEMORY_CAPACITY);
+    }
+
+    public ConcurrentTileCache(long memoryCapacity) {
+        if (memoryCapacity < 0) {
+            throw new IllegalArgumentException("Memory capacity must be positive: "
+                    + memoryCapacity);
+        }
+        this.memoryCapacity = memoryCapacity;
+        this.memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    }
+
+    @Override
+    public void add(RenderedImage owner, int tileX, int tileY, Raster data) {
+        add(owner, tileX, tileY, data, null);
+    }
+
+    @Override
+    public void add(RenderedImage owner, int tileX, int tileY, Raster data, Object tileCacheMetric) {
+        if (owner == null || data == null) {
+            return;
+        }
+        long size = getTileSize(data);
+        if (size > memoryCapacity) {
+            // would be evicted right away
+            return;
+        }
+        expungeCollected();
+
+        ImageTiles tiles = getImageTiles(owner, true);
+        Tile tile = new Tile(tiles, tileX, tileY, data, tileCacheMetric, size, clock
+                .incrementAndGet());
+        // account before publishing, whoever removes the tile from the map releases it
+        tiles.added(tile);
+        Tile previous = tiles.tiles.put(tile.index, tile);
+        if (previous != null) {
+            tiles.released(previous);
+        }
+        if (tiles.removed) {
+            // raced with removeTiles(owner)
+            if (tiles.tiles.remove(tile.index, tile)) {
+                tiles.released(tile);
+            }
+        } else if (memoryUsed.get() > memoryCapacity) {
+            memoryControl();
+        }
+    }
+
+    @Override
+    public void addTiles(RenderedImage owner, Point[] tileIndices, Raster[] tiles,
+            Object tileCacheMetric) {
+        if (tileIndices == null || tiles == null) {
+            return;
+        }
+        int count = Math.min(tileIndices.length, tiles.length);
+        for (int i = 0; i < count; i++) {
+            add(owner, tileIndices[i].x, tileIndices[i].y, tiles[i], tileCacheMetric);
+        }
+    }
+
+    @Override
+    public Raster getTile(RenderedImage owner, int tileX, int tileY) {
+        ImageTiles tiles = getImageTiles(owner, false);
+        Tile tile = tiles == null ? null : tiles.tiles.get(index(tileX, tileY));
+        if (tile == null) {
+            if (diagnostics) {
+                misses.incrementAndGet();
+            }
+            return null;
+        }
+        tile.stamp = clock.incrementAndGet();
+        if (diagnostics) {
+            hits.incrementAndGet();
+        }
+        return tile.raster;
+    }
+
+    @Override
+    public Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
+        if (tileIndices == null) {
+            return null;
+        }
+        Raster[] result = new Raster[tileIndices.length];
+        boolean found = false;
+        for (int i = 0; i < tileIndices.length; i++) {
+            result[i] = getTile(owner, tileIndices[i].x, tileIndices[i].y);
+            found |= result[i] != null;
+        }
+        // same as SunTileCache, null if none of the tiles is cached
+        return found ? result : null;
+    }
+
+    @Override
+    public Raster[] getTiles(RenderedImage owner) {
+        ImageTiles tiles = getImageTiles(owner, false);
+        if (tiles == null) {
+            return null;
+        }
+        List<Raster> rasters = new ArrayList<Raster>();
+        for (Tile tile : tiles.tiles.values()) {
+            rasters.add(tile.raster);
+        }
+        return rasters.isEmpty() ? null : rasters.toArray(new Raster[rasters.size()]);
+    }
+
+    @Override
+    public void remove(RenderedImage owner, int tileX, int tileY) {
+        ImageTiles tiles = getImageTiles(owner, false);
+        if (tiles != null) {
+            Tile tile = tiles.tiles.remove(index(tileX, tileY));
+            if (tile != null) {
+                tiles.released(tile);
+            }
+        }
+    }
+
+    @Override
+    public void removeTiles(RenderedImage owner) {
+        if (owner == null) {
+            return;
+        }
+        ImageTiles tiles = images.remove(new Lookup(owner));
+        if (tiles != null) {
+            tiles.clear();
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (Object key : images.keySet()) {
+            ImageTiles tiles = images.remove(key);
+            if (tiles != null) {
+                tiles.clear();
+            }
+        }
+    }
+
+    /**
+     * Evicts tiles until the memory used goes below the configured threshold. If another thread
+     * is already evicting tiles the method returns immediately, the memory used is checked again
+     * once that thread is done.
+     */
+    @Override
+    public void memoryControl() {
+        expungeCollected();
+        while (memoryUsed.get() > memoryCapacity && evictionLock.tryLock()) {
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    void evict() {
+        float threshold = Math.min(memoryThreshold, 1 - MIN_EVICTION);
+        long target = (long) (memoryCapacity * threshold);
+
+        // stamps are copied as they can change while sorting
+        List<Tile> candidates = new ArrayList<Tile>();
+        for (ImageTiles tiles : images.values()) {
+            for (Tile tile : tiles.tiles.values()) {
+                tile.sortStamp = tile.stamp;
+                candidates.add(tile);
+            }
+        }
+        Comparator tileComparator = comparator;
+        if (tileComparator != null) {
+            Collections.sort(candidates, tileComparator);
+        } else {
+            Collections.sort(candidates, LRU);
+        }
+
+        long evicted = 0;
+        for (int i = 0; i < candidates.size() && memoryUsed.get() > target; i++) {
+            Tile tile = candidates.get(i);
+            if (tile.owner.tiles.remove(tile.index, tile)) {
+                tile.owner.released(tile);
+                evicted++;
+            }
+        }
+        evictions.addAndGet(evicted);
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Evicted " + evicted + " tiles, memory used is now " + memoryUsed.get()
+                    + " bytes");
+        }
+    }
+
+    /**
+     * Drops the tiles of the images that got garbage collected
+     */
+    void expungeCollected() {
+        Reference<? extends RenderedImage> ref;
+        while ((ref = collected.poll()) != null) {
+            ImageTiles tiles = images.remove(ref);
+            if (tiles != null) {
+                tiles.clear();
+            }
+        }
+    }
+
+    ImageTiles getImageTiles(RenderedImage owner, boolean create) {
+        if (owner == null) {
+            return null;
+        }
+        ImageTiles tiles = images.get(new Lookup(owner));
+        if (tiles == null && create) {
+            ImageTiles created = new ImageTiles(new ImageKey(owner, collected));
+            tiles = images.putIfAbsent(created.key, created);
+            if (tiles == null) {
+                tiles = created;
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns the memory used by the cached tiles of the specified image, in bytes
+     */
+    public long getImageMemoryUsed(RenderedImage owner) {
+        ImageTiles tiles = getImageTiles(owner, false);
+        return tiles == null ? 0 : tiles.memory.get();
+    }
+
+    /**
+     * Returns the number of cached tiles for the specified image
+     */
+    public long getImageTileCount(RenderedImage owner) {
+        ImageTiles tiles = getImageTiles(owner, false);
+        return tiles == null ? 0 : tiles.count.get();
+    }
+
+    /**
+     * Returns the number of images having tiles in the cache
+     */
+    public int getImageCount() {
+        return images.size();
+    }
+
+    /**
+     * Returns the number of tiles evicted to keep the memory used under the capacity
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the fraction of the memory capacity currently used
+     */
+    public double getMemoryOccupancy() {
+        long capacity = memoryCapacity;
+        return capacity == 0 ? 0 : (double) memoryUsed.get() / capacity;
+    }
+
+    @Override
+    public void setMemoryCapacity(long memoryCapacity) {
+        if (memoryCapacity < 0) {
+            throw new IllegalArgumentException("Memory capacity must be positive: "
+                    + memoryCapacity);
+        }
+        this.memoryCapacity = memoryCapacity;
+        if (memoryCapacity == 0) {
+            flush();
+        } else {
+            memoryControl();
+        }
+    }
+
+    @Override
+    public long getMemoryCapacity() {
+        return memoryCapacity;
+    }
+
+    @Override
+    public void setMemoryThreshold(float memoryThreshold) {
+        if (memoryThreshold < 0 || memoryThreshold > 1) {
+            throw new IllegalArgumentException("Memory threshold must be between 0 and 1: "
+                    + memoryThreshold);
+        }
+        this.memoryThreshold = memoryThreshold;
+        memoryControl();
+    }
+
+    @Override
+    public float getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    @Override
+    public void setTileComparator(Comparator comparator) {
+        this.comparator = comparator;
+    }
+
+    @Override
+    public Comparator getTileComparator() {
+        return comparator;
+    }
+
+    /**
+     * The cache is bound by memory, the tile capacity is ignored, as in SunTileCache
+     */
+    @Override
+    @Deprecated
+    public void setTileCapacity(int tileCapacity) {
+    }
+
+    @Override
+    @Deprecated
+    public int getTileCapacity() {
+        return 0;
+    }
+
+    @Override
+    public void enableDiagnostics() {
+        diagnostics = true;
+    }
+
+    @Override
+    public void disableDiagnostics() {
+        diagnostics = false;
+    }
+
+    @Override
+    public long getCacheTileCount() {
+        return tileCount.get();
+    }
+
+    @Override
+    public long getCacheMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public void resetCounts() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    static long index(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Memory used by the tile data
+     */
+    static long getTileSize(Raster raster) {
+        DataBuffer db = raster.getDataBuffer();
+        int bits = DataBuffer.getDataTypeSize(db.getDataType());
+        return (long) db.getSize() * db.getNumBanks() * bits / 8;
+    }
+
+    static final Comparator<Tile> LRU = new Comparator<Tile>() {
+
+        @Override
+        public int compare(Tile t1, Tile t2) {
+            return t1.sortStamp < t2.sortStamp ? -1 : (t1.sortStamp == t2.sortStamp ? 0 : 1);
+        }
+    };
+
+    /**
+     * The tiles of a single image, along with the memory they use
+     */
+    final class ImageTiles {
+
+        final ImageKey key;
+
+        final ConcurrentHashMap<Long, Tile> tiles = new ConcurrentHashMap<Long, Tile>();
+
+        final AtomicLong memory = new AtomicLong();
+
+        final AtomicLong count = new AtomicLong();
+
+        volatile boolean removed;
+
+        ImageTiles(ImageKey key) {
+            this.key = key;
+        }
+
+        void added(Tile tile) {
+            memory.addAndGet(tile.size);
+            count.incrementAndGet();
+            memoryUsed.addAndGet(tile.size);
+            tileCount.incrementAndGet();
+        }
+
+        /**
+         * Accounts for a tile removal, to be called only by the thread that actually removed
+         * the tile from the map
+         */
+        void released(Tile tile) {
+            memory.addAndGet(-tile.size);
+            count.decrementAndGet();
+            memoryUsed.addAndGet(-tile.size);
+            tileCount.decrementAndGet();
+        }
+
+        void clear() {
+            removed = true;
+            for (Tile tile : tiles.values()) {
+                if (tiles.remove(tile.index, tile)) {
+                    released(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached tile. Implements {@link CachedTile} so that the JAI tile comparators can be used
+     * to drive the eviction
+     */
+    static final class Tile implements CachedTile {
+
+        final ImageTiles owner;
+
+        final Long index;
+
+        final Raster raster;
+
+        final Object metric;
+
+        final long size;
+
+        volatile long stamp;
+
+        long sortStamp;
+
+        Tile(ImageTiles owner, int tileX, int tileY, Raster raster, Object metric, long size,
+                long stamp) {
+            this.owner = owner;
+            this.index = index(tileX, tileY);
+            this.raster = raster;
+            this.metric = metric;
+            this.size = size;
+            this.stamp = stamp;
+        }
+
+        @Override
+        public RenderedImage getOwner() {
+            return owner.key.get();
+        }
+
+        @Override
+        public Raster getTile() {
+            return raster;
+        }
+
+        @Override
+        public Object getTileCacheMetric() {
+            return metric;
+        }
+
+        @Override
+        public long getTileTimeStamp() {
+            return sortStamp;
+        }
+
+        @Override
+        public long getTileSize() {
+            return size;
+        }
+
+        @Override
+        public int getAction() {
+            // tiles are only handed out while sorting for eviction
+            return 0;
+        }
+    }
+
+    /**
+     * Weak, identity based key for the images map
+     */
+    static final class ImageKey extends WeakReference<RenderedImage> {
+
+        final int hash;
+
+        ImageKey(RenderedImage image, ReferenceQueue<RenderedImage> queue) {
+            super(image, queue);
+            this.hash = System.identityHashCode(image);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            RenderedImage image = get();
+            if (image == null) {
+                // collected, only matches itself
+                return false;
+            }
+            if (obj instanceof ImageKey) {
+                return ((ImageKey) obj).get() == image;
+            } else if (obj instanceof Lookup) {
+                return ((Lookup) obj).image == image;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Strong key used for lookups, avoids allocating a weak reference on each access
+     */
+    static final class Lookup {
+
+        final RenderedImage image;
+
+        Lookup(RenderedImage image) {
+            this.image = image;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(image);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof ImageKey) {
+                return ((ImageKey) obj).get() == image;
+            } else if (obj instanceof Lookup) {
+                return ((Lookup) obj).image == image;
+            }
+            return false;
+        }
+    }
+}
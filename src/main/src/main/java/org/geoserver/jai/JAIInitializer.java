@@ -7,12 +7,14 @@ package org.geoserver.jai;
 import java.util.List;
 
 import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
 
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.GeoServerInitializer;
 import org.geoserver.config.JAIInfo;
+import org.geoserver.config.JAIInfo.TileCacheType;
 import org.geotools.image.jai.Registry;
 
 import com.sun.media.jai.util.SunTileCache;
@@ -63,10 +65,11 @@ public class JAIInitializer implements GeoServerInitializer {
             }
         }
         
-        // Setting up Cache Capacity
-        SunTileCache jaiCache = (SunTileCache) jaiDef.getTileCache();
+        // Setting up the tile cache implementation
+        TileCache jaiCache = initTileCache(jaiDef, jai.getTileCacheType());
         jai.setTileCache( jaiCache );
         
+        // Setting up Cache Capacity
         long jaiMemory = (long) (jai.getMemoryCapacity() * Runtime.getRuntime().maxMemory());
         jaiCache.setMemoryCapacity(jaiMemory);
         
@@ -83,4 +86,29 @@ public class JAIInitializer implements GeoServerInitializer {
         // Workaround for native Warp BUG
         Registry.setNativeAccelerationAllowed("Warp", jai.isAllowNativeWarp(), jaiDef);
     }
+
+    /**
+     * Installs the tile cache of the configured type, unless already there. The tiles of the
+     * cache being replaced are released, the images already built keep on using it though.
+     */
+    TileCache initTileCache(JAI jaiDef, TileCacheType type) {
+        TileCache current = jaiDef.getTileCache();
+        TileCache cache;
+        if (type == TileCacheType.CONCURRENT) {
+            if (current instanceof ConcurrentTileCache) {
+                return current;
+            }
+            cache = new ConcurrentTileCache();
+        } else {
+            if (current instanceof SunTileCache) {
+                return current;
+            }
+            cache = new SunTileCache();
+        }
+        jaiDef.setTileCache(cache);
+        if (current != null) {
+            current.flush();
+        }
+        return cache;
+    }
 }
@@ -44,7 +44,11 @@ public class SecuredFeatureTypeInfo extends DecoratingFeatureTypeInfo {
         super(info);
         this.policy = policy;
     }
-    
+
+    public WrapperPolicy getWrapperPolicy() {
+        return policy;
+    }
+
     @Override
     public FeatureType getFeatureType() throws IOException {
         
@@ -6,17 +6,33 @@ package org.geoserver.security.impl;
 
 import static org.geoserver.security.impl.DataAccessRule.*;
 
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.geoserver.catalog.CatalogException;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
 import org.geoserver.security.AccessMode;
 import org.geoserver.security.CatalogMode;
 import org.geoserver.security.DataAccessManager;
+import org.geoserver.security.GeoServerSecurityFilterChainProxy;
 import org.geotools.util.logging.Logging;
 
 /**
@@ -45,6 +61,11 @@ import org.geotools.util.logging.Logging;
  * If no {@link Properties} is provided, one will be looked upon in
  * <code>GEOSERVER_DATA_DIR/security/layers.properties, and the class will
  * keep up to date vs changes in the file</code>
+ * <p>
+ * The access decisions for workspaces and resources are cached by role set, access mode and
+ * object id, so that checking many layers for the same user (e.g., while building a capabilities
+ * document) does not require walking the security tree for each of them. The cache is dropped 
+ * when the rules change, or when workspaces, stores, resources or layers are modified or removed.
  * 
  * @author Andrea Aime - TOPP
  */
@@ -58,10 +79,23 @@ public class DefaultDataAccessManager implements DataAccessManager {
     DataAccessRuleDAO dao;
 
     long lastLoaded = Long.MIN_VALUE;
+    
+    /**
+     * Max number of different role sets whose decisions are cached 
+     */
+    static final int MAX_ROLE_SETS = 100;
+    
+    /**
+     * The cached access decisions, replaced as a whole on invalidation
+     */
+    volatile AccessDecisions decisions = new AccessDecisions();
 
     public DefaultDataAccessManager(DataAccessRuleDAO dao) {
         this.dao = dao;
         this.root = buildAuthorizationTree(dao);
+        if (dao.rawCatalog != null) {
+            dao.rawCatalog.addListener(new CacheInvalidator());
+        }
     }
 
     public CatalogMode getMode() {
@@ -70,8 +104,21 @@ public class DefaultDataAccessManager implements DataAccessManager {
 
     public boolean canAccess(Authentication user, WorkspaceInfo workspace, AccessMode mode) {
         checkPropertyFile();
-        SecureTreeNode node = root.getDeepestNode(new String[] { workspace.getName() });
-        return node.canAccess(user, mode);
+        if (!GeoServerSecurityFilterChainProxy.isSecurityEnabledForCurrentRequest()) {
+            return true;
+        }
+        AccessDecisions decisions = this.decisions;
+        Map<String, Boolean> cache = decisions.get(user, mode);
+        String id = workspace.getId();
+        Boolean decision = id != null ? cache.get(id) : null;
+        if (decision == null) {
+            SecureTreeNode node = root.getDeepestNode(new String[] { workspace.getName() });
+            decision = node.canAccess(user, mode);
+            if (id != null) {
+                cache.put(id, decision);
+            }
+        }
+        return decision;
     }
 
     public boolean canAccess(Authentication user, LayerInfo layer, AccessMode mode) {
@@ -89,6 +136,23 @@ public class DefaultDataAccessManager implements DataAccessManager {
 
     public boolean canAccess(Authentication user, ResourceInfo resource, AccessMode mode) {
         checkPropertyFile();
+        if (!GeoServerSecurityFilterChainProxy.isSecurityEnabledForCurrentRequest()) {
+            return true;
+        }
+        AccessDecisions decisions = this.decisions;
+        Map<String, Boolean> cache = decisions.get(user, mode);
+        String id = resource.getId();
+        Boolean decision = id != null ? cache.get(id) : null;
+        if (decision == null) {
+            decision = computeAccess(user, resource, mode);
+            if (id != null) {
+                cache.put(id, decision);
+            }
+        }
+        return decision;
+    }
+    
+    boolean computeAccess(Authentication user, ResourceInfo resource, AccessMode mode) {
         String workspace;
         try {
             workspace = resource.getStore().getWorkspace().getName();
@@ -108,6 +172,82 @@ public class DefaultDataAccessManager implements DataAccessManager {
         if(lastLoaded < daoLastModified) {
             root = buildAuthorizationTree(dao);
             lastLoaded = daoLastModified;
+            decisions = new AccessDecisions();
+        }
+    }
+    
+    /**
+     * The access decisions, by role set and access mode, then by workspace or resource id. 
+     * <p>
+     * Decisions being computed while the cache is invalidated end up in the discarded instance,
+     * so they cannot outlive the change.
+     */
+    static class AccessDecisions {
+        Map<Set<String>, Map<AccessMode, Map<String, Boolean>>> byRoles = 
+            new ConcurrentHashMap<Set<String>, Map<AccessMode, Map<String, Boolean>>>();
+        
+        Map<String, Boolean> get(Authentication user, AccessMode mode) {
+            Set<String> roles = roles(user);
+            Map<AccessMode, Map<String, Boolean>> modes = byRoles.get(roles);
+            if (modes == null) {
+                if (byRoles.size() >= MAX_ROLE_SETS) {
+                    // too many role combinations, start over rather than growing unbounded
+                    byRoles.clear();
+                }
+                modes = new EnumMap<AccessMode, Map<String, Boolean>>(AccessMode.class);
+                for (AccessMode m : AccessMode.values()) {
+                    modes.put(m, new ConcurrentHashMap<String, Boolean>());
+                }
+                byRoles.put(roles, modes);
+            }
+            return modes.get(mode);
+        }
+        
+        /**
+         * The role set of a user, the only thing access decisions depend on
+         */
+        Set<String> roles(Authentication user) {
+            if (user == null || user.getAuthorities() == null) {
+                return Collections.emptySet();
+            }
+            Set<String> roles = new HashSet<String>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            return roles;
+        }
+    }
+    
+    /**
+     * Drops the cached decisions when the objects they depend on change
+     */
+    class CacheInvalidator implements CatalogListener {
+
+        void invalidate(CatalogEvent event) {
+            Object source = event.getSource();
+            if (source instanceof WorkspaceInfo || source instanceof StoreInfo 
+                    || source instanceof ResourceInfo || source instanceof LayerInfo) {
+                decisions = new AccessDecisions();
+            }
+        }
+
+        public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+            // decisions are cached by id, new objects have no cached decision yet
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+            invalidate(event);
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+            invalidate(event);
+        }
+
+        public void reloaded() {
+            decisions = new AccessDecisions();
         }
     }
 
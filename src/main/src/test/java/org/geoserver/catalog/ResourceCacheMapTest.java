@@ -0,0 +1,140 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geoserver.catalog.ResourceCachePolicy.Type;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceCacheMapTest {
+
+    List<String> evicted;
+
+    ResourceCacheMap.EvictionListener<String, String> listener;
+
+    ResourceCacheMap.Weigher<String, String> weigher;
+
+    @Before
+    public void setUp() {
+        evicted = new ArrayList<String>();
+        listener = new ResourceCacheMap.EvictionListener<String, String>() {
+
+            @Override
+            public void evicted(String key, String value) {
+                evicted.add(key);
+            }
+        };
+        weigher = new ResourceCacheMap.Weigher<String, String>() {
+
+            @Override
+            public int weigh(String key, String value) {
+                return value.length();
+            }
+        };
+    }
+
+    @Test
+    public void testLRU() {
+        ResourceCacheMap<String, String> map = new ResourceCacheMap<String, String>(
+                new ResourceCachePolicy(Type.LRU, 2, 0, 0), listener, null);
+        map.put("a", "a");
+        map.put("b", "b");
+        // touch a, b becomes the least recently used
+        map.get("a");
+        map.put("c", "c");
+
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+    }
+
+    @Test
+    public void testLFU() {
+        ResourceCacheMap<String, String> map = new ResourceCacheMap<String, String>(
+                new ResourceCachePolicy(Type.LFU, 2, 0, 0), listener, null);
+        map.put("a", "a");
+        map.put("b", "b");
+        map.get("a");
+        map.get("a");
+        map.get("b");
+        // the most recently used is b, but a is used more frequently
+        map.put("c", "c");
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+
+        // the entry just added is never evicted
+        map.put("d", "d");
+        assertTrue(map.containsKey("a"));
+        assertTrue(map.containsKey("d"));
+        assertEquals(2, evicted.size());
+        assertEquals("c", evicted.get(1));
+    }
+
+    @Test
+    public void testMaxWeight() {
+        ResourceCacheMap<String, String> map = new ResourceCacheMap<String, String>(
+                new ResourceCachePolicy(Type.LRU, 0, 10, 0), listener, weigher);
+        map.put("a", "12345");
+        map.put("b", "12345");
+        assertEquals(10, map.getTotalWeight());
+        assertTrue(evicted.isEmpty());
+
+        map.put("c", "123");
+        assertEquals(8, map.getTotalWeight());
+        assertEquals(1, evicted.size());
+        assertEquals("a", evicted.get(0));
+
+        // replacing a value updates the weight
+        map.put("c", "1");
+        assertEquals(6, map.getTotalWeight());
+        map.remove("b");
+        assertEquals(1, map.getTotalWeight());
+
+        // a single entry heavier than the limit is kept anyways
+        map.put("d", "123456789012");
+        assertEquals(1, map.size());
+        assertEquals("123456789012", map.get("d"));
+    }
+
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        ResourceCacheMap<String, String> map = new ResourceCacheMap<String, String>(
+                new ResourceCachePolicy(Type.LRU, 0, 0, 50), listener, null);
+        map.put("a", "a");
+        map.put("b", "b");
+        Thread.sleep(100);
+        map.put("c", "c");
+
+        assertEquals(1, map.size());
+        assertNull(map.get("a"));
+        assertEquals("c", map.get("c"));
+        assertEquals(2, evicted.size());
+        assertTrue(evicted.contains("a"));
+        assertTrue(evicted.contains("b"));
+    }
+
+    @Test
+    public void testRemoveDoesNotNotify() {
+        ResourceCacheMap<String, String> map = new ResourceCacheMap<String, String>(
+                new ResourceCachePolicy(Type.LFU, 2, 0, 0), listener, null);
+        map.put("a", "a");
+        assertEquals("a", map.remove("a"));
+        map.put("b", "b");
+        map.clear();
+        assertEquals(0, map.size());
+        assertTrue(evicted.isEmpty());
+    }
+}
@@ -0,0 +1,72 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.geoserver.catalog.ResourceCachePolicy.Type;
+import org.junit.After;
+import org.junit.Test;
+
+public class ResourceCachePolicyTest {
+
+    @After
+    public void clearProperty() {
+        System.clearProperty("GEOSERVER_TEST_CACHE");
+    }
+
+    @Test
+    public void testParse() {
+        ResourceCachePolicy policy = ResourceCachePolicy
+                .parse("LFU, maxEntries=10,maxWeight = 1000,idleTimeout=60");
+        assertEquals(Type.LFU, policy.getType());
+        assertEquals(10, policy.getMaxEntries());
+        assertEquals(1000, policy.getMaxWeight());
+        assertEquals(60000, policy.getIdleTimeout());
+
+        policy = ResourceCachePolicy.parse("soft");
+        assertEquals(Type.SOFT, policy.getType());
+        assertEquals(0, policy.getMaxEntries());
+
+        // round trip
+        policy = ResourceCachePolicy.parse("lru,maxEntries=5,idleTimeout=10");
+        assertEquals(policy.toString(), ResourceCachePolicy.parse(policy.toString()).toString());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        for (String spec : new String[] { "fifo", "lru,maxEntries", "lru,foo=10",
+                "lru,maxEntries=abc", "lru,maxEntries=-1" }) {
+            try {
+                ResourceCachePolicy.parse(spec);
+                fail("Should have failed parsing " + spec);
+            } catch (IllegalArgumentException e) {
+                // fine
+            }
+        }
+    }
+
+    @Test
+    public void testLookup() {
+        ResourceCachePolicy defaultPolicy = ResourceCachePolicy.soft(100);
+        assertSame(defaultPolicy, ResourceCachePolicy.lookup("test", defaultPolicy));
+
+        System.setProperty("GEOSERVER_TEST_CACHE", "lru,maxEntries=20");
+        ResourceCachePolicy policy = ResourceCachePolicy.lookup("test", defaultPolicy);
+        assertEquals(Type.LRU, policy.getType());
+        assertEquals(20, policy.getMaxEntries());
+
+        // soft without size inherits the default one
+        System.setProperty("GEOSERVER_TEST_CACHE", "soft");
+        policy = ResourceCachePolicy.lookup("test", defaultPolicy);
+        assertEquals(Type.SOFT, policy.getType());
+        assertEquals(100, policy.getMaxEntries());
+
+        System.setProperty("GEOSERVER_TEST_CACHE", "invalid");
+        assertSame(defaultPolicy, ResourceCachePolicy.lookup("test", defaultPolicy));
+    }
+}
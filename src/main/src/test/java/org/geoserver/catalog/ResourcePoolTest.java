@@ -20,6 +20,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.media.jai.PlanarImage;
@@ -35,6 +37,7 @@ import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.ows.Request;
 import org.geoserver.test.GeoServerSystemTestSupport;
 import org.geoserver.test.RunTestSetup;
 import org.geoserver.test.SystemTest;
@@ -47,7 +50,6 @@ import org.geotools.feature.NameImpl;
 import org.geotools.resources.image.ImageUtilities;
 import org.geotools.styling.PolygonSymbolizer;
 import org.geotools.styling.Style;
-import org.geotools.util.SoftValueHashMap;
 import org.geotools.util.Version;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -217,6 +219,76 @@ public class ResourcePoolTest extends GeoServerSystemTestSupport {
         assertTrue(disposeCalled);
     }
 
+    @Test public void testEvictWhileInUse() throws IOException {
+        final List<String> disposed = new ArrayList<String>();
+        class ResourcePool2 extends ResourcePool {
+            public ResourcePool2(Catalog catalog) {
+                super(catalog);
+                dataStoreCache = new DataStoreCache(ResourceCachePolicy.parse("lru,maxEntries=1")) {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    protected void dispose(String id, DataAccess dataStore) {
+                        disposed.add(id);
+                        super.dispose(id, dataStore);
+                    }
+                };
+            }
+        }
+
+        Catalog catalog = getCatalog();
+        ResourcePool pool = new ResourcePool2(catalog);
+        DataStoreInfo first = catalog.getDataStores().get(0);
+        DataStoreInfo second = catalog.getDataStores().get(1);
+
+        ResourcePoolCallback callback = new ResourcePoolCallback();
+        Request request = new Request();
+        callback.init(request);
+        try {
+            pool.getDataStore(first);
+            // evicts the first store, still used by the request
+            pool.getDataStore(second);
+            assertTrue(disposed.isEmpty());
+        } finally {
+            callback.finished(request);
+        }
+        // released at the end of the request
+        assertEquals(Arrays.asList(first.getId()), disposed);
+
+        // outside of a request the evicted stores are disposed right away
+        pool.getDataStore(first);
+        assertEquals(Arrays.asList(first.getId(), second.getId()), disposed);
+        pool.dispose();
+    }
+
+    @Test public void testCacheStatistics() throws IOException {
+        Catalog catalog = getCatalog();
+        ResourcePool pool = ResourcePool.create(catalog);
+        DataStoreInfo info = catalog.getDataStores().get(0);
+
+        DataAccess<? extends FeatureType, ? extends Feature> dataStore = pool.getDataStore(info);
+        assertSame(dataStore, pool.getDataStore(info));
+
+        ResourceCacheStatistics stats = null;
+        for (ResourceCacheStatistics s : pool.getCacheStatistics()) {
+            if ("dataStore".equals(s.getName())) {
+                stats = s;
+            }
+        }
+        assertNotNull(stats);
+        assertEquals(1, stats.getSize());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getLoads());
+        assertEquals(0.5, stats.getHitRatio(), 0d);
+
+        pool.resetCacheStatistics();
+        for (ResourceCacheStatistics s : pool.getCacheStatistics()) {
+            assertEquals(0, s.getHits());
+            assertEquals(0, s.getMisses());
+        }
+        pool.dispose();
+    }
+
     @Test public void testConfigureFeatureTypeCacheSize() {
         GeoServer gs = getGeoServer();
         GeoServerInfo global = gs.getGlobal();
@@ -226,7 +298,10 @@ public class ResourcePoolTest extends GeoServerSystemTestSupport {
         Catalog catalog = getCatalog();
         // we actually keep two versions of the feature type in the cache, so we need it 
         // twice as big
-        assertEquals(400, ((SoftValueHashMap)catalog.getResourcePool().getFeatureTypeCache()).getHardReferencesCount());
+        ResourcePool.CatalogResourceCache cache = (ResourcePool.CatalogResourceCache) catalog
+                .getResourcePool().getFeatureTypeCache();
+        assertEquals(ResourceCachePolicy.Type.SOFT, cache.getPolicy().getType());
+        assertEquals(400, cache.getPolicy().getMaxEntries());
     }
     
     @Test public void testDropCoverageStore() throws Exception {
@@ -0,0 +1,138 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightLoaderTest {
+
+    static final int THREADS = 16;
+
+    ExecutorService executor;
+
+    SingleFlightLoader<String, Object> loader;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+        loader = new SingleFlightLoader<String, Object>();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSingleLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> slowLoad = new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new Object();
+            }
+        };
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        futures.add(executor.submit(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return loader.load("key", slowLoad);
+            }
+        }));
+        started.await();
+        for (int i = 1; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    return loader.load("key", slowLoad);
+                }
+            }));
+        }
+        // give the other threads a chance to join the running load
+        while (loader.getSharedLoads() < THREADS - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        Object value = futures.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<Object> future : futures) {
+            assertSame(value, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(0, loader.getLoadingCount());
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        try {
+            loader.load("key", new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        // the next load is attempted again
+        Object value = new Object();
+        assertSame(value, loader.load("key", new ConstantLoader(value)));
+    }
+
+    @Test
+    public void testReentrant() throws Exception {
+        final Object value = new Object();
+        Object result = loader.load("key", new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return loader.load("key", new ConstantLoader(value));
+            }
+        });
+        assertSame(value, result);
+    }
+
+    static class ConstantLoader implements Callable<Object> {
+        Object value;
+
+        ConstantLoader(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return value;
+        }
+    }
+}
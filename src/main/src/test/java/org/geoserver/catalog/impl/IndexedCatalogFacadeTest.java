@@ -0,0 +1,104 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.junit.Test;
+
+/**
+ * Runs the whole catalog test suite against the {@link IndexedCatalogFacade}, plus a few checks
+ * making sure the indexes follow the modifications of the indexed objects
+ */
+public class IndexedCatalogFacadeTest extends CatalogImplTest {
+
+    @Override
+    protected Catalog createCatalog() {
+        CatalogImpl catalog = new CatalogImpl();
+        catalog.setFacade(new IndexedCatalogFacade());
+        return catalog;
+    }
+
+    @Test
+    public void testRenameResourceRenamesLayer() {
+        addLayer();
+
+        FeatureTypeInfo ft2 = catalog.getFeatureTypeByName(ft.getName());
+        ft2.setName("renamed");
+        catalog.save(ft2);
+
+        assertNull(catalog.getFeatureTypeByName(ns.getPrefix(), ft.getName()));
+        assertNotNull(catalog.getFeatureTypeByName(ns.getPrefix(), "renamed"));
+        assertEquals(1, catalog.getFeatureTypesByNamespace(ns).size());
+        assertEquals(1, catalog.getFeatureTypesByDataStore(ds).size());
+
+        LayerInfo l2 = catalog.getLayerByName("renamed");
+        assertNotNull(l2);
+        assertEquals(l.getId(), l2.getId());
+        assertNull(catalog.getFacade().getLayerByName(ft.getName()));
+    }
+
+    @Test
+    public void testRenameDataStore() {
+        addDataStore();
+
+        DataStoreInfo ds2 = catalog.getDataStoreByName(ds.getName());
+        ds2.setName("renamed");
+        catalog.save(ds2);
+
+        assertNull(catalog.getDataStoreByName(ws, ds.getName()));
+        assertNotNull(catalog.getDataStoreByName(ws, "renamed"));
+        assertEquals(1, catalog.getDataStoresByWorkspace(ws).size());
+    }
+
+    @Test
+    public void testChangeLayerStyles() {
+        addLayer();
+        StyleInfo s2 = newStyle("s2", "s2Filename");
+        catalog.add(s2);
+        assertEquals(1, catalog.getLayers(s).size());
+        assertTrue(catalog.getLayers(s2).isEmpty());
+
+        LayerInfo l2 = catalog.getLayerByName(l.getName());
+        l2.setDefaultStyle(s2);
+        catalog.save(l2);
+        assertTrue(catalog.getLayers(s).isEmpty());
+        assertEquals(1, catalog.getLayers(s2).size());
+
+        l2 = catalog.getLayerByName(l.getName());
+        l2.getStyles().add(catalog.getStyleByName(s.getName()));
+        catalog.save(l2);
+        assertEquals(1, catalog.getLayers(s).size());
+        assertEquals(1, catalog.getLayers(s2).size());
+    }
+
+    @Test
+    public void testInsertionOrder() {
+        addDataStore();
+        addNamespace();
+        for (int i = 0; i < 100; i++) {
+            catalog.add(newFeatureType("ft" + i, ds));
+        }
+        catalog.remove(catalog.getFeatureTypeByName(ns.getPrefix(), "ft50"));
+
+        int i = 0;
+        for (FeatureTypeInfo ft : catalog.getFeatureTypesByDataStore(ds)) {
+            if (i == 50) {
+                i++;
+            }
+            assertEquals("ft" + i, ft.getName());
+            i++;
+        }
+        assertEquals(100, i);
+    }
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.util;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DimensionDomainTest {
+
+    static final long HOUR = 3600 * 1000;
+
+    @Test
+    public void testBuild() {
+        DimensionDomain domain = DimensionDomain.build(
+                Arrays.asList(3, 1.5, null, 1.5, "2", "abc"), false);
+        assertEquals(3, domain.size());
+        assertEquals(1.5, domain.getMinimum());
+        assertEquals(3.0, domain.getMaximum());
+        assertEquals(Arrays.asList(1.5, 2.0, 3.0),
+                new ArrayList<Double>(domain.getElevations()));
+
+        DimensionDomain empty = DimensionDomain.build(Collections.emptyList(), true);
+        assertTrue(empty.isEmpty());
+        assertNull(empty.getMinimum());
+        assertNull(empty.getNearest(new Date()));
+        assertTrue(empty.getTimes().isEmpty());
+    }
+
+    @Test
+    public void testTimes() {
+        java.sql.Date sqlDate = java.sql.Date.valueOf("2012-02-11");
+        DimensionDomain domain = DimensionDomain.build(
+                Arrays.asList(new Date(sqlDate.getTime() + HOUR), sqlDate), true);
+        assertTrue(domain.isTime());
+        assertEquals(new Date(sqlDate.getTime()), domain.getMinimum());
+        assertEquals(new Date(sqlDate.getTime() + HOUR), domain.getMaximum());
+        assertEquals(2, domain.getTimes().size());
+    }
+
+    @Test
+    public void testNearest() {
+        DimensionDomain domain = DimensionDomain.build(Arrays.asList(1, 3, 10), false);
+        assertEquals(1.0, domain.getNearest(-5));
+        assertEquals(3.0, domain.getNearest(3));
+        assertEquals(3.0, domain.getNearest(4.5));
+        // ties go to the lower value
+        assertEquals(1.0, domain.getNearest(2));
+        assertEquals(10.0, domain.getNearest(7));
+        assertEquals(10.0, domain.getNearest(100));
+        try {
+            domain.getNearest("abc");
+            fail("Should have failed");
+        } catch (IllegalArgumentException e) {
+            // fine
+        }
+    }
+
+    @Test
+    public void testAdd() {
+        DimensionDomain domain = DimensionDomain.build(Arrays.asList(1, 3), false);
+        assertSame(domain, domain.add(Arrays.asList(3, null)));
+
+        DimensionDomain added = domain.add(Arrays.asList(2, 5, 3));
+        assertEquals(Arrays.asList(1.0, 2.0, 3.0, 5.0),
+                new ArrayList<Double>(added.getElevations()));
+        assertEquals(domain.getCreated(), added.getCreated());
+        // the original domain is not modified
+        assertEquals(2, domain.size());
+    }
+
+    @Test
+    public void testRanges() {
+        List<Date> times = new ArrayList<Date>();
+        long start = java.sql.Date.valueOf("2012-01-01").getTime();
+        for (int i = 0; i < 24; i++) {
+            times.add(new Date(start + i * HOUR));
+        }
+        times.add(new Date(start + 30 * HOUR));
+        DimensionDomain domain = DimensionDomain.build(times, true);
+
+        List<double[]> ranges = domain.getRanges();
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new double[] { start, start + 23 * HOUR, HOUR }, ranges.get(0), 0);
+        assertArrayEquals(new double[] { start + 30 * HOUR, start + 30 * HOUR, 0 },
+                ranges.get(1), 0);
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            values.add(i * 0.1);
+        }
+        values.add(1000);
+        values.add(2000);
+        assertRoundTrip(DimensionDomain.build(values, false));
+
+        List<Object> times = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            times.add(new Date(i * HOUR));
+            times.add(new Date(i * HOUR + 7));
+        }
+        assertRoundTrip(DimensionDomain.build(times, true));
+        assertRoundTrip(DimensionDomain.build(Collections.emptyList(), true));
+    }
+
+    void assertRoundTrip(DimensionDomain domain) throws IOException {
+        StringWriter writer = new StringWriter();
+        domain.write(writer);
+        DimensionDomain read = DimensionDomain.read(new BufferedReader(new StringReader(writer
+                .toString())));
+        assertEquals(domain.isTime(), read.isTime());
+        assertEquals(domain.getCreated(), read.getCreated());
+        assertArrayEquals(domain.values, read.values, 0);
+    }
+
+    @Test
+    public void testReadInvalid() throws IOException {
+        try {
+            DimensionDomain.read(new BufferedReader(new StringReader("DOMAIN time 0 3\n1\n2\n")));
+            fail("Should have failed");
+        } catch (IOException e) {
+            // fine, one value missing
+        }
+        try {
+            DimensionDomain.read(new BufferedReader(new StringReader("abc")));
+            fail("Should have failed");
+        } catch (IOException e) {
+            // fine
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.net.URL;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.impl.GeoServerImpl;
+import org.geoserver.config.impl.GeoServerInfoImpl;
+import org.geoserver.config.impl.LoggingInfoImpl;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerExtensionsHelper;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.data.DataUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CatalogSnapshotTest {
+
+    File dataDir;
+
+    GeoServerResourceLoader resourceLoader;
+
+    DefaultGeoServerLoader loader;
+
+    XStreamPersisterFactory xpf;
+
+    CatalogSnapshot snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = CatalogSnapshotTest.class.getResource("/data_dir/nested_layer_groups");
+        dataDir = File.createTempFile("snapshot", "data");
+        dataDir.delete();
+        FileUtils.copyDirectory(DataUtilities.urlToFile(url), dataDir);
+
+        resourceLoader = new GeoServerResourceLoader(dataDir);
+        GeoServerExtensionsHelper.singleton("resourceLoader", resourceLoader);
+        GeoServerExtensionsHelper.property(CatalogSnapshot.NODE_PROPERTY, "node1");
+
+        loader = new DefaultGeoServerLoader(resourceLoader);
+        xpf = new XStreamPersisterFactory();
+        snapshot = new CatalogSnapshot(resourceLoader, xpf);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GeoServerExtensionsHelper.clear();
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    Catalog readCatalog() throws Exception {
+        Catalog catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        XStreamPersister xp = xpf.createXMLPersister();
+        loader.readCatalog(catalog, xp);
+        return catalog;
+    }
+
+    GeoServer geoServer(Catalog catalog) {
+        GeoServerImpl geoServer = new GeoServerImpl();
+        geoServer.setCatalog(catalog);
+        GeoServerInfoImpl global = new GeoServerInfoImpl(geoServer);
+        global.getSettings().setNumDecimals(7);
+        geoServer.setGlobal(global);
+        LoggingInfoImpl logging = new LoggingInfoImpl();
+        logging.setLevel("VERBOSE_LOGGING.properties");
+        geoServer.setLogging(logging);
+        return geoServer;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        long fingerprint = snapshot.fingerprint();
+        Catalog catalog = readCatalog();
+        snapshot.write(catalog, geoServer(catalog), fingerprint);
+        assertTrue(snapshot.getFile().exists());
+
+        CatalogImpl read = snapshot.read();
+        assertNotNull(read);
+        assertEquals("topp", read.getDefaultWorkspace().getName());
+        assertEquals("topp", read.getDefaultNamespace().getPrefix());
+        assertEquals(catalog.getStyles().size(), read.getStyles().size());
+        assertEquals(1, read.getStores(StoreInfo.class).size());
+        assertEquals(2, read.getLayers().size());
+        LayerGroupInfo nested = read.getLayerGroupByName("topp", "nestedgroup");
+        assertNotNull(nested);
+        assertEquals(2, nested.getLayers().size());
+        assertTrue(nested.getLayers().get(0) instanceof LayerGroupInfo);
+        assertEquals(read.getLayerGroupByName("topp", "simplegroup").getId(),
+                nested.getLayers().get(0).getId());
+        assertTrue(nested.getLayers().get(1) instanceof LayerInfo);
+
+        // the configuration is read back too
+        GeoServerImpl geoServer = new GeoServerImpl();
+        geoServer.setCatalog(read);
+        assertTrue(snapshot.readConfiguration(geoServer));
+        assertEquals(7, geoServer.getGlobal().getSettings().getNumDecimals());
+        assertEquals("VERBOSE_LOGGING.properties", geoServer.getLogging().getLevel());
+        // and only once
+        assertFalse(snapshot.readConfiguration(geoServer));
+    }
+
+    File getLayerFile() {
+        for (File f : FileUtils.listFiles(new File(dataDir, "workspaces"), null, true)) {
+            if (f.getName().equals("layer.xml")) {
+                return f;
+            }
+        }
+        fail("Could not find a layer.xml file");
+        return null;
+    }
+
+    @Test
+    public void testWriteAfterLoad() throws Exception {
+        snapshot.setDelay(0);
+        snapshot.loadStarted();
+        Catalog catalog = readCatalog();
+        snapshot.loadCompleted(catalog, geoServer(catalog), true);
+        snapshot.pending.get();
+        assertNotNull(snapshot.read());
+
+        // a configuration change deletes the snapshot
+        snapshot.new Listener().changed();
+        assertFalse(snapshot.getFile().exists());
+        // and it is not written again until the next load from the xml files
+        snapshot.loadCompleted(catalog, geoServer(catalog), true);
+        assertFalse(snapshot.getFile().exists());
+    }
+
+    @Test
+    public void testNoWriteIfChangedAfterLoad() throws Exception {
+        snapshot.setDelay(0);
+        snapshot.loadStarted();
+        Catalog catalog = readCatalog();
+        // another node modifies the data directory after the catalog was read
+        File layer = getLayerFile();
+        assertTrue(layer.setLastModified(layer.lastModified() + 10000));
+        snapshot.loadCompleted(catalog, geoServer(catalog), true);
+        snapshot.pending.get();
+        assertFalse(snapshot.getFile().exists());
+    }
+
+    @Test
+    public void testChangesDuringLoad() throws Exception {
+        snapshot.loadStarted();
+        readCatalog();
+        // the events fired by the load itself do not invalidate the snapshot
+        snapshot.new Listener().changed();
+        assertNotNull(snapshot.loadedFingerprint);
+        snapshot.cancel();
+    }
+
+    @Test
+    public void testNodeFiles() throws Exception {
+        assertEquals("catalog.node1.snapshot", snapshot.getFile().getName());
+        GeoServerExtensionsHelper.property(CatalogSnapshot.NODE_PROPERTY, "node 2");
+        CatalogSnapshot other = new CatalogSnapshot(resourceLoader, xpf);
+        assertEquals("catalog.node_2.snapshot", other.getFile().getName());
+
+        long fingerprint = snapshot.fingerprint();
+        Catalog catalog = readCatalog();
+        snapshot.write(catalog, geoServer(catalog), fingerprint);
+        assertNull(other.read());
+        other.write(catalog, geoServer(catalog), fingerprint);
+        assertNotNull(other.read());
+        assertNotNull(snapshot.read());
+        // no temporary files left behind
+        assertEquals(2, dataDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("catalog.");
+            }
+        }).length);
+    }
+
+    @Test
+    public void testStaleSnapshot() throws Exception {
+        long fingerprint = snapshot.fingerprint();
+        Catalog catalog = readCatalog();
+        snapshot.write(catalog, geoServer(catalog), fingerprint);
+
+        File layer = getLayerFile();
+        assertTrue(layer.setLastModified(layer.lastModified() + 10000));
+        assertNull(snapshot.read());
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws Exception {
+        long fingerprint = snapshot.fingerprint();
+        Catalog catalog = readCatalog();
+        snapshot.write(catalog, geoServer(catalog), fingerprint);
+
+        RandomAccessFile raf = new RandomAccessFile(snapshot.getFile(), "rw");
+        try {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+        assertNull(snapshot.read());
+
+        // truncated
+        raf = new RandomAccessFile(snapshot.getFile(), "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        assertNull(snapshot.read());
+    }
+
+    @Test
+    public void testLoaderUsesSnapshot() throws Exception {
+        long fingerprint = snapshot.fingerprint();
+        Catalog catalog = readCatalog();
+        snapshot.write(catalog, geoServer(catalog), fingerprint);
+
+        loader.setCatalogSnapshot(true);
+        catalog = readCatalog();
+        assertTrue(loader.loadedFromSnapshot);
+        assertEquals("catalog snapshot objects", loader.getLoadingPhases().get(0).getName());
+        assertEquals(10, loader.getLoadingPhases().get(0).getLoaded());
+        assertNotNull(catalog.getLayerGroupByName("topp", "nestedgroup"));
+
+        // falls back on the xml files when the snapshot is missing
+        snapshot.getFile().delete();
+        catalog = readCatalog();
+        assertFalse(loader.loadedFromSnapshot);
+        assertNotNull(catalog.getLayerGroupByName("topp", "nestedgroup"));
+    }
+}
@@ -7,10 +7,13 @@ package org.geoserver.config;
 import static org.junit.Assert.*;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StoreInfo;
 import org.geoserver.catalog.impl.CatalogImpl;
 import org.geoserver.config.util.XStreamPersister;
 import org.geoserver.config.util.XStreamPersisterFactory;
@@ -61,4 +64,55 @@ public class DefaultGeoServerLoaderTest {
         assertNotNull(((LayerGroupInfo)nestedLayerGroup.getLayers().get(0)).getLayers());
         assertTrue(nestedLayerGroup.getLayers().get(1) instanceof LayerInfo);
     }
+    
+    @Test
+    public void testLoadNestedLayerGroupsParallel() throws Exception {
+        loader.setLoadingThreads(4);
+        loader.readCatalog(catalog, xp);
+        
+        assertNotNull(catalog.getWorkspaceByName("topp"));
+        assertEquals("topp", catalog.getDefaultWorkspace().getName());
+        assertNotNull(catalog.getNamespaceByPrefix("topp"));
+        assertEquals(1, catalog.getStores(StoreInfo.class).size());
+        assertEquals(2, catalog.getLayers().size());
+        assertNotNull(catalog.getLayerGroupByName("topp", "simplegroup"));
+        LayerGroupInfo nestedLayerGroup = catalog.getLayerGroupByName("topp", "nestedgroup");
+        assertNotNull(nestedLayerGroup);
+        assertEquals(2, nestedLayerGroup.getLayers().size());
+        assertTrue(nestedLayerGroup.getLayers().get(0) instanceof LayerGroupInfo);
+        assertNotNull(((LayerGroupInfo)nestedLayerGroup.getLayers().get(0)).getLayers());
+        assertTrue(nestedLayerGroup.getLayers().get(1) instanceof LayerInfo);
+        
+        List<String> names = new ArrayList<String>();
+        for (LoadingPhaseStatistics phase : loader.getLoadingPhases()) {
+            names.add(phase.getName());
+            assertEquals(phase.getName(), 0, phase.getFailed());
+        }
+        assertTrue(names.contains("styles"));
+        assertTrue(names.contains("stores"));
+        assertTrue(names.contains("layer groups"));
+        assertEquals(2, phase(loader.getLoadingPhases(), "layers").getLoaded());
+        assertEquals(2, phase(loader.getLoadingPhases(), "layer groups").getLoaded());
+    }
+    
+    @Test
+    public void testLoadingPhasesSequential() throws Exception {
+        loader.setLoadingThreads(1);
+        loader.readCatalog(catalog, xp);
+        
+        List<LoadingPhaseStatistics> phases = loader.getLoadingPhases();
+        assertEquals(1, phases.size());
+        // 1 style, workspace, namespace, store, 2 feature types and layers, 2 groups
+        assertEquals(10, phases.get(0).getLoaded());
+    }
+    
+    LoadingPhaseStatistics phase(List<LoadingPhaseStatistics> phases, String name) {
+        for (LoadingPhaseStatistics phase : phases) {
+            if (phase.getName().equals(name)) {
+                return phase;
+            }
+        }
+        fail("Could not find phase " + name);
+        return null;
+    }
 }
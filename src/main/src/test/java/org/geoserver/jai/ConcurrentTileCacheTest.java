@@ -0,0 +1,200 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.jai;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+
+import org.geoserver.config.JAIInfo.TileCacheType;
+import org.geoserver.config.impl.JAIInfoImpl;
+import org.junit.Test;
+
+import com.sun.media.jai.util.SunTileCache;
+
+public class ConcurrentTileCacheTest {
+
+    static final int TILE_SIZE = 64 * 64;
+
+    RenderedImage image() {
+        return new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    Raster tile() {
+        return Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 64, 64, 1, null);
+    }
+
+    @Test
+    public void testAddGet() {
+        ConcurrentTileCache cache = new ConcurrentTileCache();
+        RenderedImage image = image();
+        Raster tile = tile();
+
+        assertNull(cache.getTile(image, 0, 0));
+        cache.add(image, 0, 0, tile);
+        assertSame(tile, cache.getTile(image, 0, 0));
+        assertNull(cache.getTile(image, 0, 1));
+        assertNull(cache.getTile(image(), 0, 0));
+
+        assertEquals(1, cache.getCacheHitCount());
+        assertEquals(3, cache.getCacheMissCount());
+        assertEquals(1, cache.getCacheTileCount());
+        assertEquals(TILE_SIZE, cache.getCacheMemoryUsed());
+
+        // replacing a tile does not change the accounting
+        cache.add(image, 0, 0, tile());
+        assertEquals(1, cache.getCacheTileCount());
+        assertEquals(TILE_SIZE, cache.getCacheMemoryUsed());
+    }
+
+    @Test
+    public void testImageAccounting() {
+        ConcurrentTileCache cache = new ConcurrentTileCache();
+        RenderedImage image1 = image();
+        RenderedImage image2 = image();
+        cache.add(image1, 0, 0, tile());
+        cache.add(image1, 1, 0, tile());
+        cache.add(image2, 0, 0, tile());
+
+        assertEquals(2, cache.getImageCount());
+        assertEquals(2, cache.getImageTileCount(image1));
+        assertEquals(2 * TILE_SIZE, cache.getImageMemoryUsed(image1));
+        assertEquals(2, cache.getTiles(image1).length);
+
+        cache.removeTiles(image1);
+        assertEquals(0, cache.getImageMemoryUsed(image1));
+        assertNull(cache.getTiles(image1));
+        assertEquals(1, cache.getCacheTileCount());
+        assertEquals(TILE_SIZE, cache.getCacheMemoryUsed());
+
+        cache.remove(image2, 0, 0);
+        assertEquals(0, cache.getCacheTileCount());
+        assertEquals(0, cache.getCacheMemoryUsed());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(4 * TILE_SIZE);
+        cache.setMemoryThreshold(0.5f);
+        RenderedImage image = image();
+        for (int i = 0; i < 4; i++) {
+            cache.add(image, i, 0, tile());
+        }
+        // touch the first two tiles, the other two become the eviction candidates
+        cache.getTile(image, 0, 0);
+        cache.getTile(image, 1, 0);
+
+        cache.add(image, 0, 1, tile());
+        assertEquals(2, cache.getCacheTileCount());
+        assertEquals(3, cache.getEvictionCount());
+        assertNotNull(cache.getTile(image, 0, 1));
+        assertNull(cache.getTile(image, 2, 0));
+        assertNull(cache.getTile(image, 3, 0));
+        assertTrue(cache.getCacheMemoryUsed() <= cache.getMemoryCapacity());
+    }
+
+    @Test
+    public void testCapacity() {
+        ConcurrentTileCache cache = new ConcurrentTileCache(TILE_SIZE / 2);
+        RenderedImage image = image();
+        // too large to fit
+        cache.add(image, 0, 0, tile());
+        assertEquals(0, cache.getCacheTileCount());
+
+        cache.setMemoryCapacity(10 * TILE_SIZE);
+        cache.add(image, 0, 0, tile());
+        cache.add(image, 1, 0, tile());
+        assertEquals(0.2, cache.getMemoryOccupancy(), 1e-6);
+
+        cache.setMemoryCapacity(0);
+        assertEquals(0, cache.getCacheTileCount());
+        assertEquals(0, cache.getCacheMemoryUsed());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentTileCache cache = new ConcurrentTileCache(100 * TILE_SIZE);
+        final RenderedImage[] images = new RenderedImage[4];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = image();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final int seed = t;
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 2000; i++) {
+                            RenderedImage image = images[(i + seed) % images.length];
+                            int x = (i * 7 + seed) % 16;
+                            int y = (i * 13 + seed) % 16;
+                            if (cache.getTile(image, x, y) == null) {
+                                cache.add(image, x, y, tile());
+                            }
+                            if (i % 500 == 0) {
+                                cache.removeTiles(image);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the global accounting matches the per image one
+        long tiles = 0;
+        long memory = 0;
+        for (RenderedImage image : images) {
+            tiles += cache.getImageTileCount(image);
+            memory += cache.getImageMemoryUsed(image);
+        }
+        assertEquals(tiles, cache.getCacheTileCount());
+        assertEquals(memory, cache.getCacheMemoryUsed());
+        assertEquals(tiles * TILE_SIZE, memory);
+        assertTrue(memory <= cache.getMemoryCapacity());
+    }
+
+    @Test
+    public void testInitializerSwitch() {
+        JAI jai = JAI.getDefaultInstance();
+        TileCache original = jai.getTileCache();
+        JAIInitializer initializer = new JAIInitializer();
+        try {
+            JAIInfoImpl info = new JAIInfoImpl();
+            info.setTileCacheType(TileCacheType.CONCURRENT);
+            initializer.initJAI(info);
+            assertTrue(jai.getTileCache() instanceof ConcurrentTileCache);
+            assertSame(jai.getTileCache(), info.getTileCache());
+            assertEquals((long) (info.getMemoryCapacity() * Runtime.getRuntime().maxMemory()),
+                    jai.getTileCache().getMemoryCapacity());
+
+            info.setTileCacheType(TileCacheType.SUN);
+            initializer.initJAI(info);
+            assertTrue(jai.getTileCache() instanceof SunTileCache);
+        } finally {
+            jai.setTileCache(original);
+        }
+    }
+}
@@ -5,8 +5,16 @@
 package org.geoserver.security.impl;
 import static org.junit.Assert.*;
 
+import java.util.Properties;
+
 import org.springframework.security.core.Authentication;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.NamespaceInfo;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
 import org.geoserver.security.AccessMode;
 import org.geoserver.security.CatalogMode;
 import org.geoserver.security.DataAccessManager;
@@ -112,6 +120,53 @@ public class DefaultDataAccessManagerAuthTest extends AbstractAuthorizationTest
         assertTrue(wo.canAccess(milUser, arcGridLayer, AccessMode.WRITE));
     }
     
+    @Test
+    public void testDecisionCache() throws Exception {
+        // a real catalog, so that objects have ids and modifications trigger events
+        CatalogImpl catalog = new CatalogImpl();
+        CatalogFactory factory = catalog.getFactory();
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("topp");
+        catalog.add(ws);
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("topp");
+        ns.setURI("http://www.openplans.org/topp");
+        catalog.add(ns);
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("shapes");
+        ds.setWorkspace(ws);
+        catalog.add(ds);
+        FeatureTypeInfo ft = factory.createFeatureType();
+        ft.setName("roads");
+        ft.setNativeName("roads");
+        ft.setStore(ds);
+        ft.setNamespace(ns);
+        catalog.add(ft);
+
+        Properties props = new Properties();
+        props.load(getClass().getResourceAsStream("complex.properties"));
+        DefaultDataAccessManager manager = new DefaultDataAccessManager(
+                new MemoryDataAccessRuleDAO(catalog, props));
+
+        assertTrue(manager.canAccess(anonymous, ft, AccessMode.READ));
+        assertTrue(manager.canAccess(roUser, ft, AccessMode.READ));
+        assertFalse(manager.canAccess(roUser, ft, AccessMode.WRITE));
+        assertTrue(manager.canAccess(anonymous, ws, AccessMode.READ));
+        // one entry per role set, the decisions are then served from the cache
+        assertEquals(2, manager.decisions.byRoles.size());
+        assertEquals(Boolean.TRUE, manager.decisions.get(roUser, AccessMode.READ).get(ft.getId()));
+        assertTrue(manager.canAccess(roUser, ft, AccessMode.READ));
+
+        // renaming the resource makes a different rule apply
+        FeatureTypeInfo renamed = catalog.getFeatureType(ft.getId());
+        renamed.setName("bases");
+        catalog.save(renamed);
+        assertTrue(manager.decisions.byRoles.isEmpty());
+        assertFalse(manager.canAccess(anonymous, ft, AccessMode.READ));
+        assertFalse(manager.canAccess(roUser, ft, AccessMode.READ));
+        assertTrue(manager.canAccess(milUser, ft, AccessMode.READ));
+    }
+    
     @Test
     public void testDefaultMode() throws Exception {
         DataAccessManager wo = buildLegacyAccessManager("lockedDown.properties");
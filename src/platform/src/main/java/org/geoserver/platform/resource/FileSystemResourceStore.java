@@ -15,10 +15,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import org.springframework.beans.factory.DisposableBean;
+
 /**
  * Implementation of ResourceStore backed by the file system.
  */
-public class FileSystemResourceStore implements ResourceStore {
+public class FileSystemResourceStore implements ResourceStore, DisposableBean {
     
     /** LockProvider used to secure resources for exclusive access */
     protected LockProvider lockProvider = new NullLockProvider();
@@ -101,6 +103,17 @@ public class FileSystemResourceStore implements ResourceStore {
         }
     }
     
+    /**
+     * Stops watching the file system for changes, releasing the watcher threads
+     */
+    @Override
+    public synchronized void destroy() {
+        if (watcher != null) {
+            watcher.destroy();
+            watcher = null;
+        }
+    }
+    
     @Override
     public Resource get(String path) {
         path = Paths.valid(path);
@@ -1,26 +1,51 @@
 package org.geoserver.platform.resource;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.resource.ResourceNotification.Kind;
+import org.geotools.util.logging.Logging;
 
 
 /**
  * Active object (using a ScheduledExecutorService) used to watch file system for changes.
  * <p>
- * This implementation currently polls the file system and should be updated with Java 7 WatchService when available. The internal design is similar
- * to WatchService, WatchKey and WatchEvent in order to facilitate this transition.
+ * The directories containing the watched files are registered with a Java 7 {@link WatchService},
+ * and a watched file is checked only when an event is reported for it. Files that cannot be
+ * registered (e.g. because their directory does not exist yet) are polled, and registration is
+ * retried on each poll. Polling is used for all files when the platform only offers a polling
+ * WatchService, or when the {@link #POLLING} property is set to true, e.g. for data directories
+ * on network file systems that do not deliver change events.
  * <p>
  * This implementation makes a few concessions to being associated with ResourceStore, reporting changes with resource paths rather than files.
  * 
@@ -86,10 +111,20 @@ public class FileSystemWatcher {
         boolean exsists;
         
         File[] contents; // directory contents at last check
+        
+        /** Location used to match WatchService events */
+        final Path location;
+        
+        /** Directories registered with the WatchService on behalf of this watch */
+        Set<Path> directories = new CopyOnWriteArraySet<Path>();
+        
+        /** True if the file has to be polled, false if WatchService events are delivered for it */
+        volatile boolean polled = true;
 
         public Watch(File file, String path) {
             this.file = file;
             this.path = path;
+            this.location = location(file);
             this.exsists = file.exists();
             this.last = exsists ? file.lastModified() : 0;            
             if (file.isDirectory()) {
@@ -266,7 +301,15 @@ public class FileSystemWatcher {
         }
     }
 
-    private ScheduledExecutorService pool;
+    static final Logger LOGGER = Logging.getLogger(FileSystemWatcher.class);
+    
+    /**
+     * System/context/env variable forcing the watcher to poll the file system rather than using
+     * the WatchService events
+     */
+    public static final String POLLING = "GEOSERVER_FILE_WATCHER_POLLING";
+    
+    ScheduledExecutorService pool;
 
     //private FileSystemResourceStore store;
 
@@ -274,10 +317,47 @@ public class FileSystemWatcher {
 
     CopyOnWriteArrayList<Watch> watchers = new CopyOnWriteArrayList<Watch>();
     
+    /**
+     * True to poll all the watched files
+     */
+    final boolean polling;
+    
+    /**
+     * The WatchService, lazily created, or null if the file system has to be polled
+     */
+    private WatchService service;
+    
+    private boolean initialized;
+    
+    /**
+     * The thread waiting for the WatchService events, if any
+     */
+    Thread events;
+    
+    /**
+     * A directory registered with the WatchService
+     */
+    private static class Registration {
+        final WatchKey key;
+        
+        /** The watches interested in the directory events */
+        final Set<Watch> watches = new CopyOnWriteArraySet<Watch>();
+        
+        Registration(WatchKey key) {
+            this.key = key;
+        }
+    }
+    
+    Map<Path, Registration> registrations = new ConcurrentHashMap<Path, Registration>();
+    
+    Map<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+    
+    /** Watches by location, used to look up the watches affected by an event */
+    Map<Path, List<Watch>> locations = new ConcurrentHashMap<Path, List<Watch>>();
+    
     /**
      * Note we have a single runnable here to review all outstanding Watch instances.
-     * The focus is on using minimal system resources while we wait for Java 7 WatchService
-     * (to be more efficient).
+     * Only the watches that could not be registered with the WatchService are checked.
      */
     private Runnable sync = new Runnable() {
         @Override
@@ -286,29 +366,15 @@ public class FileSystemWatcher {
             for (Watch watch : watchers) {
                 if( watch.getListeners().isEmpty()){
                     watchers.remove(watch);
+                    unregister(watch);
                     continue;
                 }
-                Delta delta = watch.changed(now);
-                if (delta != null) {
-                    
-                    /** Created based on created/removed/modified files */
-                    List<ResourceNotification.Event> events = ResourceNotification.delta(
-                            watch.file, delta.created, delta.removed, delta.modified);
-                    
-                    ResourceNotification notify = new ResourceNotification( watch.getPath(),
-                            delta.kind, watch.last, events);
-                    
-                    for (ResourceListener listener : watch.getListeners()) {
-                        try {
-                            listener.changed(notify);
-                        } catch (Throwable t) {
-                            Logger logger = Logger.getLogger(listener.getClass().getPackage()
-                                    .getName());
-                            logger.log(Level.FINE,
-                                    "Unable to notify " + watch + ":" + t.getMessage(), t);
-                        }
-                    }
+                if (!watch.polled) {
+                    continue; // notified by the WatchService
                 }
+                // the directory might be around now
+                register(watch);
+                check(watch, now);
             }
         }
     };
@@ -325,14 +391,31 @@ public class FileSystemWatcher {
      * Internally a single threaded schedule executor is used to monitor files.
      */
     FileSystemWatcher() {
+        this(Boolean.parseBoolean(GeoServerExtensions.getProperty(POLLING)));
+    }
+    
+    /**
+     * FileSystemWatcher used to track file changes, polling the file system for all the watched
+     * files if requested.
+     */
+    FileSystemWatcher(boolean polling) {
         this.pool = Executors.newSingleThreadScheduledExecutor();
+        this.polling = polling;
+    }
+    
+    static Path location(File file) {
+        return file.getAbsoluteFile().toPath().normalize();
     }
     
     private Watch watch(File file, String path ){
         if( file == null || path == null ){
             return null;
         }
-        for( Watch watch : watchers ){
+        List<Watch> located = locations.get(location(file));
+        if( located == null ){
+            return null;
+        }
+        for( Watch watch : located ){
             if( watch.isMatch(file,path)){
                 return watch;
             }
@@ -350,6 +433,21 @@ public class FileSystemWatcher {
         if( watch == null ){
             watch = new Watch(file, path);
             watchers.add(watch);
+            List<Watch> located = locations.get(watch.location);
+            if (located == null) {
+                located = new CopyOnWriteArrayList<Watch>();
+                locations.put(watch.location, located);
+            }
+            located.add(watch);
+            if (register(watch)) {
+                // catch up with changes that happened before the registration
+                final Watch registered = watch;
+                pool.execute(new Runnable() {
+                    public void run() {
+                        check(registered, System.currentTimeMillis());
+                    }
+                });
+            }
             if( monitor == null){
                 monitor = pool.scheduleWithFixedDelay(sync, delay, delay, unit);
             }                
@@ -370,6 +468,7 @@ public class FileSystemWatcher {
             watch.removeListener(listener);
             if( watch.getListeners().isEmpty()){
                 removed = watchers.remove(watch);
+                unregister(watch);
             }
         }
         if (removed && watchers.isEmpty()) {
@@ -379,6 +478,233 @@ public class FileSystemWatcher {
             }
         }
     }
+    
+    /**
+     * Checks a watch for changes, notifying its listeners
+     */
+    void check(Watch watch, long now) {
+        Delta delta = watch.changed(now);
+        if (delta == null) {
+            return;
+        }
+        if (!watch.polled) {
+            // a created directory needs its own registration to report its contents changes
+            register(watch);
+        }
+        
+        /** Created based on created/removed/modified files */
+        List<ResourceNotification.Event> events = ResourceNotification.delta(
+                watch.file, delta.created, delta.removed, delta.modified);
+        
+        ResourceNotification notify = new ResourceNotification( watch.getPath(),
+                delta.kind, watch.last, events);
+        
+        for (ResourceListener listener : watch.getListeners()) {
+            try {
+                listener.changed(notify);
+            } catch (Throwable t) {
+                Logger logger = Logger.getLogger(listener.getClass().getPackage()
+                        .getName());
+                logger.log(Level.FINE,
+                        "Unable to notify " + watch + ":" + t.getMessage(), t);
+            }
+        }
+    }
+    
+    /**
+     * Lazily creates the WatchService, and the thread waiting for its events.
+     * 
+     * @return the WatchService, or null if the file system has to be polled
+     */
+    private WatchService service() {
+        if (initialized || polling) {
+            return service;
+        }
+        initialized = true;
+        try {
+            WatchService ws = FileSystems.getDefault().newWatchService();
+            if (ws.getClass().getSimpleName().contains("Polling")) {
+                // the JDK polls as well on this platform, and much less often than we do
+                LOGGER.fine("No native file system events support, using polling");
+                ws.close();
+            } else {
+                service = ws;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "WatchService not available, using polling", e);
+        } catch (UnsupportedOperationException e) {
+            LOGGER.log(Level.FINE, "WatchService not available, using polling", e);
+        }
+        if (service != null) {
+            events = new Thread(new Runnable() {
+                public void run() {
+                    processEvents();
+                }
+            }, "GeoServer file system watcher");
+            events.setDaemon(true);
+            events.start();
+        }
+        return service;
+    }
+    
+    /**
+     * Registers the directories a watch needs to receive events, the parent directory for
+     * creation, modification and removal, and the directory itself for its contents.
+     * 
+     * @return true if the watch receives events, false if it has to be polled
+     */
+    synchronized boolean register(Watch watch) {
+        WatchService service = service();
+        if (service == null) {
+            return false;
+        }
+        List<Path> required = new ArrayList<Path>(2);
+        Path parent = watch.location.getParent();
+        if (parent != null) {
+            required.add(parent);
+        }
+        if (watch.file.isDirectory()) {
+            required.add(watch.location);
+        }
+        boolean registered = true;
+        for (Path dir : required) {
+            if (watch.directories.contains(dir)) {
+                continue;
+            }
+            try {
+                Registration registration = registrations.get(dir);
+                if (registration == null) {
+                    WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    registration = new Registration(key);
+                    registrations.put(dir, registration);
+                    directories.put(key, dir);
+                }
+                registration.watches.add(watch);
+                watch.directories.add(dir);
+            } catch (IOException e) {
+                // most likely the directory does not exist (yet)
+                registered = false;
+            } catch (ClosedWatchServiceException e) {
+                registered = false;
+            }
+        }
+        watch.polled = !registered;
+        return registered;
+    }
+    
+    /**
+     * Releases the WatchService registrations no longer needed once a watch is removed
+     */
+    synchronized void unregister(Watch watch) {
+        List<Watch> located = locations.get(watch.location);
+        if (located != null) {
+            located.remove(watch);
+            if (located.isEmpty()) {
+                locations.remove(watch.location);
+            }
+        }
+        for (Path dir : watch.directories) {
+            Registration registration = registrations.get(dir);
+            if (registration != null) {
+                registration.watches.remove(watch);
+                if (registration.watches.isEmpty()) {
+                    registration.key.cancel();
+                    registrations.remove(dir);
+                    directories.remove(registration.key);
+                }
+            }
+        }
+        watch.directories.clear();
+    }
+    
+    /**
+     * Drops the registration of a directory that is no longer accessible, e.g. because it has
+     * been removed, the watches depending on it will be polled until it can be registered again
+     */
+    synchronized void invalidate(Path dir, Collection<Watch> dirty) {
+        Registration registration = registrations.remove(dir);
+        if (registration == null) {
+            return;
+        }
+        directories.remove(registration.key);
+        for (Watch watch : registration.watches) {
+            watch.directories.remove(dir);
+            watch.polled = true;
+            dirty.add(watch);
+        }
+    }
+    
+    /**
+     * Waits for the WatchService events, and checks the affected watches on the executor
+     * thread, the one polling the file system as well, so that the watch state is only ever
+     * modified by a single thread
+     */
+    void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            final Set<Watch> dirty = new LinkedHashSet<Watch>();
+            try {
+                // collect all the pending events, a single change often results in several
+                do {
+                    collect(key, dirty);
+                } while ((key = service.poll()) != null);
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            if (!dirty.isEmpty()) {
+                try {
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            long now = System.currentTimeMillis();
+                            for (Watch watch : dirty) {
+                                if (!watch.getListeners().isEmpty()) {
+                                    check(watch, now);
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    return; // shut down
+                }
+            }
+        }
+    }
+    
+    void collect(WatchKey key, Set<Watch> dirty) {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue; // cancelled in the meantime
+            }
+            if (event.kind() == OVERFLOW) {
+                Registration registration = registrations.get(dir);
+                if (registration != null) {
+                    dirty.addAll(registration.watches);
+                }
+                continue;
+            }
+            // the entry itself, and the directory, whose contents changed
+            Path child = dir.resolve((Path) event.context());
+            List<Watch> located = locations.get(child);
+            if (located != null) {
+                dirty.addAll(located);
+            }
+            located = locations.get(dir);
+            if (located != null) {
+                dirty.addAll(located);
+            }
+        }
+        if (!key.reset() && dir != null) {
+            invalidate(dir, dirty);
+        }
+    }
 
     /**
      * Package visibility to allow test cases to set a shorter delay for testing.
@@ -394,4 +720,32 @@ public class FileSystemWatcher {
             monitor = pool.scheduleWithFixedDelay(sync, delay, delay, unit);
         }
     }
+    
+    /**
+     * Package visibility to allow test cases to check how a file is watched.
+     * 
+     * @return true if the file is polled, false if it is notified by the WatchService
+     */
+    boolean isPolled(File file, String path) {
+        Watch watch = watch(file, path);
+        if (watch == null) {
+            throw new IllegalArgumentException("Not watching " + file);
+        }
+        return watch.polled;
+    }
+    
+    /**
+     * Stops watching the file system, releasing the WatchService and the threads used to
+     * deliver notifications
+     */
+    public synchronized void destroy() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the WatchService", e);
+            }
+        }
+        pool.shutdownNow();
+    }
 }
@@ -0,0 +1,180 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.platform.resource.ResourceNotification.Event;
+import org.geoserver.platform.resource.ResourceNotification.Kind;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    FileSystemWatcher watcher;
+
+    QueueListener listener = new QueueListener();
+
+    @After
+    public void destroy() {
+        if (watcher != null) {
+            watcher.destroy();
+        }
+    }
+
+    @Test
+    public void testFileEvents() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        // events only, a poll would never happen during the test
+        watcher.schedule(1, TimeUnit.HOURS);
+        File file = folder.newFile("file.properties");
+        watcher.addListener(file, "file.properties", listener);
+        assumeTrue(!watcher.isPolled(file, "file.properties"));
+
+        write(file, "a=b", 2000);
+        ResourceNotification n = listener.next();
+        assertEquals(Kind.ENTRY_MODIFY, n.getKind());
+        assertEquals("file.properties", n.getPath());
+
+        assertTrue(file.delete());
+        assertEquals(Kind.ENTRY_DELETE, listener.next().getKind());
+
+        write(file, "a=c", 0);
+        assertEquals(Kind.ENTRY_CREATE, listener.next().getKind());
+        // creating and writing might be reported as two changes
+        Thread.sleep(500);
+        listener.queue.clear();
+
+        // a change in the same directory to a file nobody is watching
+        write(folder.newFile("other.properties"), "c=d", 0);
+        assertNull(listener.queue.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDirectoryEvents() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        watcher.schedule(1, TimeUnit.HOURS);
+        File dir = folder.newFolder("styles");
+        watcher.addListener(dir, "styles", listener);
+        assumeTrue(!watcher.isPolled(dir, "styles"));
+
+        File style = new File(dir, "point.sld");
+        write(style, "<sld/>", 0);
+        ResourceNotification n = listener.next();
+        assertEquals(Kind.ENTRY_MODIFY, n.getKind());
+        assertEquals("styles", n.getPath());
+        Event e = n.events().get(0);
+        assertEquals(Kind.ENTRY_CREATE, e.getKind());
+        assertEquals("point.sld", e.getPath());
+
+        assertTrue(style.delete());
+        n = listener.next();
+        e = n.events().get(0);
+        assertEquals(Kind.ENTRY_DELETE, e.getKind());
+        assertEquals("point.sld", e.getPath());
+    }
+
+    @Test
+    public void testMissingDirectoryPolled() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        File dir = new File(folder.getRoot(), "security");
+        File file = new File(dir, "users.properties");
+        watcher.addListener(file, "security/users.properties", listener);
+        // the directory does not exist, cannot be registered
+        assertTrue(watcher.isPolled(file, "security/users.properties"));
+
+        assertTrue(dir.mkdir());
+        write(file, "admin=geoserver", 0);
+        assertEquals(Kind.ENTRY_CREATE, listener.next().getKind());
+    }
+
+    @Test
+    public void testPolling() throws Exception {
+        watcher = new FileSystemWatcher(true);
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        File file = folder.newFile("file.properties");
+        watcher.addListener(file, "file.properties", listener);
+        assertTrue(watcher.isPolled(file, "file.properties"));
+
+        assertTrue(file.delete());
+        assertEquals(Kind.ENTRY_DELETE, listener.next().getKind());
+    }
+
+    @Test
+    public void testRemoveListener() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        File file = folder.newFile("file.properties");
+        watcher.addListener(file, "file.properties", listener);
+        watcher.removeListener(file, "file.properties", listener);
+
+        assertTrue(watcher.watchers.isEmpty());
+        assertTrue(watcher.locations.isEmpty());
+        assertTrue(watcher.registrations.isEmpty());
+    }
+
+    @Test
+    public void testStoreDestroy() throws Exception {
+        FileSystemResourceStore store = new FileSystemResourceStore(folder.getRoot());
+        File file = folder.newFile("file.properties");
+        store.addListener(file, "file.properties", listener);
+        FileSystemWatcher storeWatcher = store.watcher;
+        assertNotNull(storeWatcher);
+        Thread events = storeWatcher.events;
+
+        // as done by Spring when the application context is closed
+        store.destroy();
+        assertNull(store.watcher);
+        assertTrue(storeWatcher.pool.awaitTermination(5, TimeUnit.SECONDS));
+        if (events != null) {
+            events.join(5000);
+            assertFalse(events.isAlive());
+        }
+    }
+
+    /**
+     * Writes the file, making sure the modification time moves forward by the given amount
+     */
+    void write(File file, String contents, long forward) throws IOException {
+        long last = file.lastModified();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        if (forward > 0) {
+            file.setLastModified(last + forward);
+        }
+    }
+
+    static class QueueListener implements ResourceListener {
+        BlockingQueue<ResourceNotification> queue = new LinkedBlockingQueue<ResourceNotification>();
+
+        @Override
+        public void changed(ResourceNotification notify) {
+            queue.add(notify);
+        }
+
+        ResourceNotification next() throws InterruptedException {
+            ResourceNotification n = queue.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Expected a notification", n);
+            return n;
+        }
+    }
+}
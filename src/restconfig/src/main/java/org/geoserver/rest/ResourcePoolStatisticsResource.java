@@ -0,0 +1,50 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.ResourceCacheStatistics;
+
+/**
+ * Returns the usage statistics of the resource pool caches
+ */
+public class ResourcePoolStatisticsResource extends MapResource {
+
+    Catalog catalog;
+
+    public ResourcePoolStatisticsResource(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    @Override
+    public Map getMap() throws Exception {
+        List<Map<String, Object>> caches = new ArrayList<Map<String, Object>>();
+        for (ResourceCacheStatistics stats : catalog.getResourcePool().getCacheStatistics()) {
+            Map<String, Object> cache = new LinkedHashMap<String, Object>();
+            cache.put("name", stats.getName());
+            cache.put("policy", stats.getPolicy());
+            cache.put("size", stats.getSize());
+            cache.put("weight", stats.getWeight());
+            cache.put("hits", stats.getHits());
+            cache.put("misses", stats.getMisses());
+            cache.put("hitRatio", stats.getHitRatio());
+            cache.put("loads", stats.getLoads());
+            cache.put("totalLoadTime", stats.getTotalLoadTime());
+            cache.put("averageLoadTime", stats.getAverageLoadTime());
+            cache.put("evictions", stats.getEvictions());
+            caches.add(cache);
+        }
+
+        HashMap map = new HashMap();
+        map.put("caches", caches);
+        return map;
+    }
+}
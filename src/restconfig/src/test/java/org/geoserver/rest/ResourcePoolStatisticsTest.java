@@ -0,0 +1,50 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.geoserver.test.GeoServerSystemTestSupport;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class ResourcePoolStatisticsTest extends GeoServerSystemTestSupport {
+
+    @Test
+    public void testGetAsXML() throws Exception {
+        Document dom = getAsDOM("/rest/resourcepool/caches.xml");
+
+        Element caches = getFirstElementByTagName(dom, "caches");
+        assertNotNull(caches);
+        assertTrue(caches.getElementsByTagName("entry").getLength() > 0);
+        assertNotNull(getFirstElementByTagName(caches, "hits"));
+    }
+
+    @Test
+    public void testGetAsJSON() throws Exception {
+        // make sure at least one cache gets used
+        getCatalog().getResourcePool().getDataStore(getCatalog().getDataStores().get(0));
+
+        JSON json = getAsJSON("/rest/resourcepool/caches.json");
+        assertTrue(json instanceof JSONObject);
+        JSONArray caches = ((JSONObject) json).getJSONArray("caches");
+        boolean found = false;
+        for (Object o : caches) {
+            JSONObject cache = (JSONObject) o;
+            if ("dataStore".equals(cache.getString("name"))) {
+                found = true;
+                assertTrue(cache.getInt("size") > 0);
+            }
+        }
+        assertTrue(found);
+        assertEquals(7, caches.size());
+    }
+}
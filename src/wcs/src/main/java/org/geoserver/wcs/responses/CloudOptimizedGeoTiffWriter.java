@@ -0,0 +1,783 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wcs.responses;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a tiled TIFF with internal overviews in the cloud optimized GeoTIFF layout: all the IFDs
+ * at the beginning of the file, full resolution first, followed by the tile data, smallest
+ * overview first and full resolution last. A client can then get the structure of the file, and
+ * any overview, with a few range requests.
+ * <p>
+ * The layout requires the size of every tile before the first one is written. Uncompressed tiles
+ * have a known size and are streamed as they are read from the images, compressed tiles are kept
+ * in memory until all of them are ready. No temporary files are used in either case. Only classic
+ * TIFF is written, the output cannot exceed 4GB.
+ * </p>
+ * <p>
+ * The images are written pixel interleaved, the samples must be 8, 16, 32 or 64 bits, the same for
+ * all the bands. The overviews are provided by the caller and must have the same sample model as
+ * the full resolution image.
+ * </p>
+ */
+public class CloudOptimizedGeoTiffWriter {
+
+    public static final int COMPRESSION_NONE = 1;
+
+    public static final int COMPRESSION_LZW = 5;
+
+    public static final int COMPRESSION_DEFLATE = 8;
+
+    public static final int COMPRESSION_PACKBITS = 32773;
+
+    public static final int TYPE_ASCII = 2;
+
+    public static final int TYPE_SHORT = 3;
+
+    public static final int TYPE_LONG = 4;
+
+    public static final int TYPE_DOUBLE = 12;
+
+    static final int TAG_NEW_SUBFILE_TYPE = 254;
+
+    static final int TAG_IMAGE_WIDTH = 256;
+
+    static final int TAG_IMAGE_LENGTH = 257;
+
+    static final int TAG_BITS_PER_SAMPLE = 258;
+
+    static final int TAG_COMPRESSION = 259;
+
+    static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+
+    static final int TAG_SAMPLES_PER_PIXEL = 277;
+
+    static final int TAG_PLANAR_CONFIGURATION = 284;
+
+    static final int TAG_COLOR_MAP = 320;
+
+    static final int TAG_TILE_WIDTH = 322;
+
+    static final int TAG_TILE_LENGTH = 323;
+
+    static final int TAG_TILE_OFFSETS = 324;
+
+    static final int TAG_TILE_BYTE_COUNTS = 325;
+
+    static final int TAG_EXTRA_SAMPLES = 338;
+
+    static final int TAG_SAMPLE_FORMAT = 339;
+
+    static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    final int tileWidth;
+
+    final int tileHeight;
+
+    final int compression;
+
+    /**
+     * Additional fields, such as the GeoTIFF ones, written in the full resolution IFD
+     */
+    final List<Field> fields = new ArrayList<Field>();
+
+    /**
+     * @param tileWidth The tile width, a multiple of 16
+     * @param tileHeight The tile height, a multiple of 16
+     * @param compression One of the <code>COMPRESSION_*</code> constants
+     */
+    public CloudOptimizedGeoTiffWriter(int tileWidth, int tileHeight, int compression) {
+        if (tileWidth <= 0 || tileWidth % 16 != 0 || tileHeight <= 0 || tileHeight % 16 != 0) {
+            throw new IllegalArgumentException("Tile sizes must be positive multiples of 16, got "
+                    + tileWidth + "x" + tileHeight);
+        }
+        if (compression != COMPRESSION_NONE && compression != COMPRESSION_LZW
+                && compression != COMPRESSION_DEFLATE && compression != COMPRESSION_PACKBITS) {
+            throw new IllegalArgumentException("Unsupported compression " + compression);
+        }
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.compression = compression;
+    }
+
+    /**
+     * Adds a field to the full resolution IFD
+     *
+     * @param tag The TIFF tag
+     * @param type One of the <code>TYPE_*</code> constants
+     * @param data A char[] for shorts, a long[] for longs, a double[] for doubles, a String[] for
+     *        ascii values
+     */
+    public void addField(int tag, int type, Object data) {
+        fields.add(new Field(tag, type, data));
+    }
+
+    /**
+     * Returns true if the writer can encode the image
+     */
+    public static boolean isSupported(RenderedImage image) {
+        return getUnsupportedReason(image.getSampleModel()) == null;
+    }
+
+    static String getUnsupportedReason(SampleModel sm) {
+        int[] sizes = sm.getSampleSize();
+        for (int size : sizes) {
+            if (size != sizes[0]) {
+                return "bands have different sample sizes";
+            }
+        }
+        int bits = sizes[0];
+        if (bits != 8 && bits != 16 && bits != 32 && bits != 64) {
+            return bits + " bits samples are not supported";
+        }
+        int dataType = sm.getDataType();
+        if (dataType == DataBuffer.TYPE_UNDEFINED) {
+            return "undefined data type";
+        }
+        if ((dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE)
+                && bits != DataBuffer.getDataTypeSize(dataType)) {
+            return "packed floating point samples are not supported";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the images, full resolution first, followed by the overviews in decreasing
+     * resolution order. The stream is flushed, but not closed.
+     */
+    public void write(List<RenderedImage> images, OutputStream output) throws IOException {
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No image to write");
+        }
+        Format format = new Format(images.get(0));
+        List<Level> levels = new ArrayList<Level>();
+        for (int i = 0; i < images.size(); i++) {
+            RenderedImage image = images.get(i);
+            SampleModel sm = image.getSampleModel();
+            if (sm.getNumBands() != format.bands || sm.getDataType() != format.dataType
+                    || sm.getSampleSize(0) != format.bits) {
+                throw new IllegalArgumentException("Overview " + i
+                        + " has a different sample model than the full resolution image");
+            }
+            levels.add(new Level(image, i > 0));
+        }
+
+        // tile sizes first, compressing if needed, smallest overview first
+        final int tileBytes = tileWidth * tileHeight * format.bytesPerPixel;
+        byte[] tile = new byte[tileBytes];
+        Compressor compressor = compression == COMPRESSION_NONE ? null : new Compressor(format);
+        try {
+            for (int i = levels.size() - 1; i >= 0; i--) {
+                Level level = levels.get(i);
+                if (compressor == null) {
+                    Arrays.fill(level.byteCounts, tileBytes);
+                } else {
+                    level.tiles = new byte[level.byteCounts.length][];
+                    for (int t = 0; t < level.tiles.length; t++) {
+                        readTile(level, t, format, tile);
+                        level.tiles[t] = compressor.compress(tile);
+                        level.byteCounts[t] = level.tiles[t].length;
+                    }
+                }
+            }
+        } finally {
+            if (compressor != null) {
+                compressor.dispose();
+            }
+        }
+
+        // then the layout: header, IFDs, tile data
+        List<List<Field>> ifds = new ArrayList<List<Field>>();
+        long offset = 8;
+        for (int i = 0; i < levels.size(); i++) {
+            Level level = levels.get(i);
+            List<Field> ifd = getIFD(level, format, i == 0);
+            level.ifdOffset = offset;
+            offset += getIFDSize(ifd);
+            ifds.add(ifd);
+        }
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            Level level = levels.get(i);
+            for (int t = 0; t < level.offsets.length; t++) {
+                level.offsets[t] = offset;
+                offset += level.byteCounts[t];
+            }
+        }
+        if (offset > MAX_SIZE) {
+            throw new IOException("The output would be " + offset
+                    + " bytes, larger than the 4GB supported by classic TIFF");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeByte('M');
+        out.writeByte('M');
+        out.writeShort(42);
+        out.writeInt(8);
+        for (int i = 0; i < levels.size(); i++) {
+            long next = i < levels.size() - 1 ? levels.get(i + 1).ifdOffset : 0;
+            writeIFD(out, ifds.get(i), levels.get(i).ifdOffset, next);
+        }
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            Level level = levels.get(i);
+            for (int t = 0; t < level.offsets.length; t++) {
+                if (level.tiles != null) {
+                    out.write(level.tiles[t]);
+                    // release memory as we go
+                    level.tiles[t] = null;
+                } else {
+                    readTile(level, t, format, tile);
+                    out.write(tile, 0, tileBytes);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    List<Field> getIFD(Level level, Format format, boolean fullResolution) {
+        List<Field> ifd = new ArrayList<Field>();
+        ifd.add(new Field(TAG_NEW_SUBFILE_TYPE, TYPE_LONG, new long[] { level.overview ? 1 : 0 }));
+        ifd.add(new Field(TAG_IMAGE_WIDTH, TYPE_LONG, new long[] { level.image.getWidth() }));
+        ifd.add(new Field(TAG_IMAGE_LENGTH, TYPE_LONG, new long[] { level.image.getHeight() }));
+        ifd.add(new Field(TAG_BITS_PER_SAMPLE, TYPE_SHORT, repeat(format.bits, format.bands)));
+        ifd.add(new Field(TAG_COMPRESSION, TYPE_SHORT, new char[] { (char) compression }));
+        ifd.add(new Field(TAG_PHOTOMETRIC_INTERPRETATION, TYPE_SHORT,
+                new char[] { (char) format.photometric }));
+        ifd.add(new Field(TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, new char[] { (char) format.bands }));
+        ifd.add(new Field(TAG_PLANAR_CONFIGURATION, TYPE_SHORT, new char[] { 1 }));
+        if (format.colorMap != null) {
+            ifd.add(new Field(TAG_COLOR_MAP, TYPE_SHORT, format.colorMap));
+        }
+        ifd.add(new Field(TAG_TILE_WIDTH, TYPE_LONG, new long[] { tileWidth }));
+        ifd.add(new Field(TAG_TILE_LENGTH, TYPE_LONG, new long[] { tileHeight }));
+        // filled once the layout is computed
+        ifd.add(new Field(TAG_TILE_OFFSETS, TYPE_LONG, level.offsets));
+        ifd.add(new Field(TAG_TILE_BYTE_COUNTS, TYPE_LONG, level.byteCounts));
+        if (format.extraSamples != null) {
+            ifd.add(new Field(TAG_EXTRA_SAMPLES, TYPE_SHORT, format.extraSamples));
+        }
+        ifd.add(new Field(TAG_SAMPLE_FORMAT, TYPE_SHORT,
+                repeat(format.sampleFormat, format.bands)));
+        if (fullResolution) {
+            ifd.addAll(fields);
+        }
+        // TIFF wants the entries sorted by tag
+        Collections.sort(ifd, new Comparator<Field>() {
+
+            @Override
+            public int compare(Field f1, Field f2) {
+                return f1.tag - f2.tag;
+            }
+        });
+        return ifd;
+    }
+
+    static char[] repeat(int value, int count) {
+        char[] values = new char[count];
+        Arrays.fill(values, (char) value);
+        return values;
+    }
+
+    static long getIFDSize(List<Field> ifd) {
+        long size = 2 + 12 * ifd.size() + 4;
+        for (Field field : ifd) {
+            if (field.size() > 4) {
+                size += even(field.size());
+            }
+        }
+        return size;
+    }
+
+    static long even(long size) {
+        return size + (size & 1);
+    }
+
+    static void writeIFD(DataOutputStream out, List<Field> ifd, long ifdOffset, long nextOffset)
+            throws IOException {
+        // values larger than 4 bytes go after the IFD, at even offsets
+        long valueOffset = ifdOffset + 2 + 12 * ifd.size() + 4;
+        out.writeShort(ifd.size());
+        for (Field field : ifd) {
+            out.writeShort(field.tag);
+            out.writeShort(field.type);
+            out.writeInt(field.count());
+            int size = field.size();
+            if (size > 4) {
+                out.writeInt((int) valueOffset);
+                valueOffset += even(size);
+            } else {
+                field.writeValues(out);
+                for (int i = size; i < 4; i++) {
+                    out.writeByte(0);
+                }
+            }
+        }
+        out.writeInt((int) nextOffset);
+        for (Field field : ifd) {
+            int size = field.size();
+            if (size > 4) {
+                field.writeValues(out);
+                if ((size & 1) != 0) {
+                    out.writeByte(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a tile, as big endian pixel interleaved samples. Tiles crossing the image borders are
+     * padded with zeroes
+     */
+    void readTile(Level level, int index, Format format, byte[] tile) {
+        RenderedImage image = level.image;
+        int tx = index % level.tilesAcross;
+        int ty = index / level.tilesAcross;
+        int x = image.getMinX() + tx * tileWidth;
+        int y = image.getMinY() + ty * tileHeight;
+        int w = Math.min(tileWidth, image.getMinX() + image.getWidth() - x);
+        int h = Math.min(tileHeight, image.getMinY() + image.getHeight() - y);
+        if (w < tileWidth || h < tileHeight) {
+            Arrays.fill(tile, (byte) 0);
+        }
+
+        Raster raster;
+        if (image.getTileWidth() == tileWidth && image.getTileHeight() == tileHeight
+                && image.getTileGridXOffset() == image.getMinX()
+                && image.getTileGridYOffset() == image.getMinY()) {
+            // same tiling, no need to copy the data
+            raster = image.getTile(image.getMinTileX() + tx, image.getMinTileY() + ty);
+        } else {
+            raster = image.getData(new Rectangle(x, y, w, h));
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(tile);
+        int rowBytes = tileWidth * format.bytesPerPixel;
+        int samples = w * format.bands;
+        if (format.dataType == DataBuffer.TYPE_FLOAT) {
+            float[] row = new float[samples];
+            for (int r = 0; r < h; r++) {
+                raster.getPixels(x, y + r, w, 1, row);
+                buffer.position(r * rowBytes);
+                for (int s = 0; s < samples; s++) {
+                    buffer.putFloat(row[s]);
+                }
+            }
+        } else if (format.dataType == DataBuffer.TYPE_DOUBLE) {
+            double[] row = new double[samples];
+            for (int r = 0; r < h; r++) {
+                raster.getPixels(x, y + r, w, 1, row);
+                buffer.position(r * rowBytes);
+                for (int s = 0; s < samples; s++) {
+                    buffer.putDouble(row[s]);
+                }
+            }
+        } else {
+            int[] row = new int[samples];
+            for (int r = 0; r < h; r++) {
+                raster.getPixels(x, y + r, w, 1, row);
+                buffer.position(r * rowBytes);
+                if (format.bits == 8) {
+                    for (int s = 0; s < samples; s++) {
+                        buffer.put((byte) row[s]);
+                    }
+                } else if (format.bits == 16) {
+                    for (int s = 0; s < samples; s++) {
+                        buffer.putShort((short) row[s]);
+                    }
+                } else {
+                    for (int s = 0; s < samples; s++) {
+                        buffer.putInt(row[s]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The sample layout and color interpretation of the images
+     */
+    static class Format {
+
+        final int bands;
+
+        final int dataType;
+
+        final int bits;
+
+        final int bytesPerPixel;
+
+        final int sampleFormat;
+
+        final int photometric;
+
+        final char[] extraSamples;
+
+        final char[] colorMap;
+
+        Format(RenderedImage image) {
+            SampleModel sm = image.getSampleModel();
+            String reason = getUnsupportedReason(sm);
+            if (reason != null) {
+                throw new IllegalArgumentException("Cannot write the image, " + reason);
+            }
+            bands = sm.getNumBands();
+            dataType = sm.getDataType();
+            bits = sm.getSampleSize(0);
+            bytesPerPixel = bands * bits / 8;
+            if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) {
+                sampleFormat = 3;
+            } else if ((dataType == DataBuffer.TYPE_SHORT || dataType == DataBuffer.TYPE_INT)
+                    && bits == DataBuffer.getDataTypeSize(dataType)) {
+                sampleFormat = 2;
+            } else {
+                // bytes, unsigned shorts, or unsigned samples packed in a larger type
+                sampleFormat = 1;
+            }
+
+            ColorModel cm = image.getColorModel();
+            int colorBands;
+            if (cm instanceof IndexColorModel && bands == 1 && bits == 8) {
+                photometric = 3;
+                colorBands = 1;
+                IndexColorModel icm = (IndexColorModel) cm;
+                colorMap = new char[3 * 256];
+                for (int i = 0; i < icm.getMapSize() && i < 256; i++) {
+                    colorMap[i] = (char) (icm.getRed(i) * 257);
+                    colorMap[256 + i] = (char) (icm.getGreen(i) * 257);
+                    colorMap[512 + i] = (char) (icm.getBlue(i) * 257);
+                }
+            } else if (cm != null && !(cm instanceof IndexColorModel)
+                    && cm.getColorSpace().getType() == ColorSpace.TYPE_RGB
+                    && cm.getNumColorComponents() == 3 && bands >= 3) {
+                photometric = 2;
+                colorBands = 3;
+                colorMap = null;
+            } else {
+                photometric = 1;
+                colorBands = 1;
+                colorMap = null;
+            }
+            if (bands > colorBands) {
+                extraSamples = new char[bands - colorBands];
+                if (cm != null && cm.hasAlpha() && photometric != 3) {
+                    // associated or unassociated alpha in the last band
+                    extraSamples[extraSamples.length - 1] = (char) (cm.isAlphaPremultiplied() ? 1
+                            : 2);
+                }
+            } else {
+                extraSamples = null;
+            }
+        }
+    }
+
+    /**
+     * A full resolution image or an overview, with its tile offsets and sizes
+     */
+    class Level {
+
+        final RenderedImage image;
+
+        final boolean overview;
+
+        final int tilesAcross;
+
+        final long[] offsets;
+
+        final long[] byteCounts;
+
+        long ifdOffset;
+
+        /** The compressed tiles, null if not compressed */
+        byte[][] tiles;
+
+        Level(RenderedImage image, boolean overview) {
+            this.image = image;
+            this.overview = overview;
+            this.tilesAcross = (image.getWidth() + tileWidth - 1) / tileWidth;
+            int tilesDown = (image.getHeight() + tileHeight - 1) / tileHeight;
+            this.offsets = new long[tilesAcross * tilesDown];
+            this.byteCounts = new long[offsets.length];
+        }
+    }
+
+    /**
+     * A TIFF field
+     */
+    static class Field {
+
+        final int tag;
+
+        final int type;
+
+        final Object data;
+
+        Field(int tag, int type, Object data) {
+            if (!(type == TYPE_SHORT && data instanceof char[])
+                    && !(type == TYPE_LONG && data instanceof long[])
+                    && !(type == TYPE_DOUBLE && data instanceof double[])
+                    && !(type == TYPE_ASCII && data instanceof String[])) {
+                throw new IllegalArgumentException("Unsupported type " + type + " for tag " + tag
+                        + " with data " + data);
+            }
+            this.tag = tag;
+            this.type = type;
+            this.data = data;
+        }
+
+        int count() {
+            if (data instanceof char[]) {
+                return ((char[]) data).length;
+            } else if (data instanceof long[]) {
+                return ((long[]) data).length;
+            } else if (data instanceof double[]) {
+                return ((double[]) data).length;
+            } else {
+                // each string is NUL terminated
+                int count = 0;
+                for (String s : (String[]) data) {
+                    count += s.length() + 1;
+                }
+                return count;
+            }
+        }
+
+        int size() {
+            int count = count();
+            switch (type) {
+            case TYPE_SHORT:
+                return count * 2;
+            case TYPE_LONG:
+                return count * 4;
+            case TYPE_DOUBLE:
+                return count * 8;
+            default:
+                return count;
+            }
+        }
+
+        void writeValues(DataOutputStream out) throws IOException {
+            if (data instanceof char[]) {
+                for (char value : (char[]) data) {
+                    out.writeShort(value);
+                }
+            } else if (data instanceof long[]) {
+                for (long value : (long[]) data) {
+                    out.writeInt((int) value);
+                }
+            } else if (data instanceof double[]) {
+                for (double value : (double[]) data) {
+                    out.writeDouble(value);
+                }
+            } else {
+                for (String s : (String[]) data) {
+                    out.write(s.getBytes("US-ASCII"));
+                    out.writeByte(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses tiles, reusing the same buffers
+     */
+    class Compressor {
+
+        final int rowBytes;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Deflater deflater;
+
+        LZWEncoder lzw;
+
+        byte[] chunk;
+
+        Compressor(Format format) {
+            this.rowBytes = tileWidth * format.bytesPerPixel;
+            if (compression == COMPRESSION_DEFLATE) {
+                deflater = new Deflater();
+                chunk = new byte[64 * 1024];
+            } else if (compression == COMPRESSION_LZW) {
+                lzw = new LZWEncoder();
+            }
+        }
+
+        byte[] compress(byte[] tile) {
+            bytes.reset();
+            if (compression == COMPRESSION_DEFLATE) {
+                deflater.reset();
+                deflater.setInput(tile);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(chunk);
+                    bytes.write(chunk, 0, count);
+                }
+            } else if (compression == COMPRESSION_LZW) {
+                lzw.encode(tile, bytes);
+            } else {
+                // PackBits runs cannot cross rows
+                for (int offset = 0; offset < tile.length; offset += rowBytes) {
+                    packBits(tile, offset, rowBytes, bytes);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        void dispose() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    static void packBits(byte[] data, int offset, int length, ByteArrayOutputStream out) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int run = 1;
+            while (i + run < end && run < 128 && data[i + run] == data[i]) {
+                run++;
+            }
+            if (run > 1) {
+                out.write(1 - run);
+                out.write(data[i]);
+                i += run;
+            } else {
+                // literals, up to the start of the next run
+                int start = i++;
+                while (i < end && i - start < 128 && (i + 1 >= end || data[i] != data[i + 1])) {
+                    i++;
+                }
+                out.write(i - start - 1);
+                out.write(data, start, i - start);
+            }
+        }
+    }
+
+    /**
+     * TIFF flavour of LZW, most significant bit first and code size increased one code early, as
+     * libtiff does
+     */
+    static class LZWEncoder {
+
+        static final int CLEAR = 256;
+
+        static final int EOI = 257;
+
+        static final int FIRST = 258;
+
+        /** The table is reset when it reaches this size */
+        static final int LIMIT = 4094;
+
+        final int[] firstChild = new int[4096];
+
+        final int[] nextSibling = new int[4096];
+
+        final int[] suffix = new int[4096];
+
+        ByteArrayOutputStream out;
+
+        int nextCode;
+
+        int codeSize;
+
+        int bitBuffer;
+
+        int bitCount;
+
+        void encode(byte[] data, ByteArrayOutputStream out) {
+            this.out = out;
+            bitBuffer = 0;
+            bitCount = 0;
+            reset();
+            write(CLEAR);
+            if (data.length > 0) {
+                int prefix = data[0] & 0xff;
+                for (int i = 1; i < data.length; i++) {
+                    int b = data[i] & 0xff;
+                    int code = find(prefix, b);
+                    if (code >= 0) {
+                        prefix = code;
+                    } else {
+                        write(prefix);
+                        add(prefix, b);
+                        prefix = b;
+                    }
+                }
+                write(prefix);
+                // the decoder adds an entry when reading the last code, follow its code size
+                nextCode++;
+                if (nextCode == LIMIT) {
+                    write(CLEAR);
+                    reset();
+                } else if (nextCode > (1 << codeSize) - 1) {
+                    codeSize++;
+                }
+            }
+            write(EOI);
+            if (bitCount > 0) {
+                out.write((bitBuffer << (8 - bitCount)) & 0xff);
+            }
+        }
+
+        void reset() {
+            Arrays.fill(firstChild, -1);
+            nextCode = FIRST;
+            codeSize = 9;
+        }
+
+        int find(int prefix, int b) {
+            for (int code = firstChild[prefix]; code >= 0; code = nextSibling[code]) {
+                if (suffix[code] == b) {
+                    return code;
+                }
+            }
+            return -1;
+        }
+
+        void add(int prefix, int b) {
+            int code = nextCode++;
+            suffix[code] = b;
+            firstChild[code] = -1;
+            nextSibling[code] = firstChild[prefix];
+            firstChild[prefix] = code;
+            if (nextCode == LIMIT) {
+                write(CLEAR);
+                reset();
+            } else if (nextCode > (1 << codeSize) - 1) {
+                codeSize++;
+            }
+        }
+
+        void write(int code) {
+            bitBuffer = (bitBuffer << codeSize) | code;
+            bitCount += codeSize;
+            while (bitCount >= 8) {
+                out.write((bitBuffer >>> (bitCount - 8)) & 0xff);
+                bitCount -= 8;
+            }
+            bitBuffer &= (1 << bitCount) - 1;
+        }
+    }
+}
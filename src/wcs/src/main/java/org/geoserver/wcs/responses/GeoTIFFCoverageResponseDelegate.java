@@ -4,24 +4,44 @@
  */
 package org.geoserver.wcs.responses;
 
+import it.geosolutions.imageio.plugins.tiff.TIFFField;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageMetadata;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReader;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
 import it.geosolutions.imageioimpl.plugins.tiff.TIFFLZWCompressor;
 
 import java.awt.Dimension;
+import java.awt.RenderingHints;
+import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
 import javax.media.jai.JAI;
+import javax.media.jai.TiledImage;
+import javax.media.jai.operator.ScaleDescriptor;
+import javax.media.jai.operator.SubsampleAverageDescriptor;
 
 import org.geoserver.config.GeoServer;
 import org.geoserver.platform.OWS20Exception;
 import org.geoserver.wcs.WCSInfo;
+import org.geotools.coverage.CoverageFactoryFinder;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
 import org.geotools.gce.geotiff.GeoTiffFormat;
@@ -51,6 +71,23 @@ public class GeoTIFFCoverageResponseDelegate extends BaseCoverageResponseDelegat
     private static final float DEFAULT_JPEG_COMPRESSION_QUALITY = 0.75f;
 
 	private static final GeoTiffFormat GEOTIF_FORMAT = new GeoTiffFormat();
+
+    /** Value of the overviews parameter building overviews until one fits in a tile */
+    static final int AUTO_OVERVIEWS = -1;
+
+    /** Tile size used for the output with overviews, when tiling is not specified */
+    private static final int DEFAULT_OVERVIEWS_TILE_SIZE = 256;
+
+    /** The GeoTIFF tags copied in the output with overviews */
+    private static final int[] GEOTIFF_TAGS = { 33550, // ModelPixelScale
+            33922, // ModelTiepoint
+            34264, // ModelTransformation
+            34735, // GeoKeyDirectory
+            34736, // GeoDoubleParams
+            34737, // GeoAsciiParams
+            42112, // GDAL_METADATA
+            42113 // GDAL_NODATA
+    };
 	
         public static final String GEOTIFF_CONTENT_TYPE = "image/tiff";
 
@@ -105,10 +142,23 @@ public class GeoTIFFCoverageResponseDelegate extends BaseCoverageResponseDelegat
         final ParameterValueGroup writerParams = GEOTIF_FORMAT.getWriteParameters();
         writerParams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(wp);
         
-        if(geoserver.getService(WCSInfo.class).isLatLon()){
+        final boolean retainAxesOrder = geoserver.getService(WCSInfo.class).isLatLon();
+        if(retainAxesOrder){
             writerParams.parameter(GeoTiffFormat.RETAIN_AXES_ORDER.getName().toString()).setValue(true);
         }
 
+        // internal overviews, the GeoTiffWriter cannot write them
+        final int overviews = getOverviews(econdingParameters);
+        if (overviews != 0) {
+            try {
+                writeWithOverviews(sourceCoverage, econdingParameters, overviews, retainAxesOrder,
+                        output);
+            } finally {
+                sourceCoverage.dispose(false);
+            }
+            return;
+        }
+
         // write down
         GeoTiffWriter writer = (GeoTiffWriter) GEOTIF_FORMAT.getWriter(output);
         try {
@@ -202,6 +252,28 @@ public class GeoTIFFCoverageResponseDelegate extends BaseCoverageResponseDelegat
         //
         // tiling
         //
+        parseTiling(econdingParameters, tileDimensions);
+
+        // set tile dimensions
+        if(tileDimensions.width!=sourceTileW||tileDimensions.height!=sourceTileH){
+            LOGGER.fine("Final tiling:"+tileDimensions.width+"x"+tileDimensions.height);
+            wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+            wp.setTiling(tileDimensions.width, tileDimensions.height);
+        } else {
+            LOGGER.fine("Mantaining original tiling");
+        }
+    }
+
+    /**
+     * Overrides the tile dimensions with the ones in the tiling encoding parameters, if any.
+     * 
+     * @param econdingParameters a {@link Map} of {@link String} keys with {@link String} values to hold the encoding parameters.
+     * @param tileDimensions the default tile dimensions, updated with the requested ones
+     * 
+     * @throws WcsException in case there are invalid or unsupported options.
+     */
+    private void parseTiling(Map<String, String> econdingParameters, final Dimension tileDimensions)
+            throws WcsException {
         if(econdingParameters.containsKey("tiling")){
             
             final String tilingS= econdingParameters.get("tiling");
@@ -260,15 +332,6 @@ public class GeoTIFFCoverageResponseDelegate extends BaseCoverageResponseDelegat
                 }
             }
         }
-
-        // set tile dimensions
-        if(tileDimensions.width!=sourceTileW||tileDimensions.height!=sourceTileH){
-            LOGGER.fine("Final tiling:"+tileDimensions.width+"x"+tileDimensions.height);
-            wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
-            wp.setTiling(tileDimensions.width, tileDimensions.height);
-        } else {
-            LOGGER.fine("Mantaining original tiling");
-        }
     }
 
     /**
@@ -364,6 +427,178 @@ public class GeoTIFFCoverageResponseDelegate extends BaseCoverageResponseDelegat
         }
     }
 
+
+    /**
+     * Parses the overviews encoding parameter, the number of overviews to add or "auto" to add
+     * overviews until the smallest fits in a single tile.
+     * 
+     * @return the number of overviews, zero if not requested, or {@link #AUTO_OVERVIEWS}
+     * @throws WcsException in case of invalid values.
+     */
+    private int getOverviews(Map<String, String> econdingParameters) throws WcsException {
+        final String overviewsS = econdingParameters.get("overviews");
+        if (overviewsS == null) {
+            return 0;
+        } else if (overviewsS.equalsIgnoreCase("auto")) {
+            return AUTO_OVERVIEWS;
+        }
+        try {
+            final int overviews = Integer.parseInt(overviewsS);
+            if (overviews >= 0) {
+                return overviews;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new OWS20Exception("Invalid number of overviews provided",
+                ows20Code(WcsExceptionCode.InvalidParameterValue), overviewsS);
+    }
+
+    /**
+     * Writes a tiled GeoTIFF with internal overviews, in the cloud optimized layout, straight to
+     * the output.
+     */
+    private void writeWithOverviews(GridCoverage2D sourceCoverage,
+            Map<String, String> econdingParameters, int overviews, boolean retainAxesOrder,
+            OutputStream output) throws IOException {
+        final RenderedImage image = sourceCoverage.getRenderedImage();
+        if (!CloudOptimizedGeoTiffWriter.isSupported(image)) {
+            throw new OWS20Exception("Overviews are not supported for the coverage sample model",
+                    ows20Code(WcsExceptionCode.InvalidParameterValue), "overviews");
+        }
+        final Dimension tileDimensions = new Dimension(DEFAULT_OVERVIEWS_TILE_SIZE,
+                DEFAULT_OVERVIEWS_TILE_SIZE);
+        parseTiling(econdingParameters, tileDimensions);
+
+        // averaging palette indexes makes no sense
+        boolean average = false;
+        final String resamplingS = econdingParameters.get("overviewresampling");
+        if (resamplingS != null) {
+            if (resamplingS.equalsIgnoreCase("average")) {
+                average = !(image.getColorModel() instanceof IndexColorModel);
+            } else if (!resamplingS.equalsIgnoreCase("nearest")) {
+                throw new OWS20Exception("Invalid overview resampling provided",
+                        ows20Code(WcsExceptionCode.InvalidParameterValue), resamplingS);
+            }
+        }
+
+        final CloudOptimizedGeoTiffWriter writer = new CloudOptimizedGeoTiffWriter(
+                tileDimensions.width, tileDimensions.height,
+                getOverviewsCompression(econdingParameters));
+        addGeoTiffFields(writer, sourceCoverage, retainAxesOrder);
+        writer.write(buildOverviews(image, overviews, tileDimensions, average), output);
+    }
+
+    /**
+     * Maps the compression encoding parameters to the ones supported with overviews, the
+     * parameters have already been validated by {@link #handleCompression}
+     */
+    private int getOverviewsCompression(Map<String, String> econdingParameters)
+            throws WcsException {
+        final String compressionS = econdingParameters.get("compression");
+        if (compressionS == null || compressionS.equalsIgnoreCase("none")) {
+            return CloudOptimizedGeoTiffWriter.COMPRESSION_NONE;
+        } else if (compressionS.equals("LZW")) {
+            final String predictorS = econdingParameters.get("predictor");
+            if (predictorS != null && !predictorS.equals("None")) {
+                throw new OWS20Exception("Predictors are not supported with overviews",
+                        ows20Code(WcsExceptionCode.PredictorNotSupported), predictorS);
+            }
+            return CloudOptimizedGeoTiffWriter.COMPRESSION_LZW;
+        } else if (compressionS.equals("DEFLATE")) {
+            return CloudOptimizedGeoTiffWriter.COMPRESSION_DEFLATE;
+        } else if (compressionS.equals("PackBits")) {
+            return CloudOptimizedGeoTiffWriter.COMPRESSION_PACKBITS;
+        }
+        throw new OWS20Exception("Compression is not supported with overviews",
+                ows20Code(WcsExceptionCode.CompressionNotSupported), compressionS);
+    }
+
+    /**
+     * Builds the overviews, each one half the size of the previous one. The overviews are
+     * computed lazily, tile by tile, as they are written
+     * 
+     * @param overviews the number of overviews, or {@link #AUTO_OVERVIEWS}
+     */
+    static List<RenderedImage> buildOverviews(RenderedImage image, int overviews,
+            Dimension tileDimensions, boolean average) {
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileWidth(tileDimensions.width);
+        layout.setTileHeight(tileDimensions.height);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+
+        final List<RenderedImage> levels = new ArrayList<RenderedImage>();
+        levels.add(image);
+        RenderedImage level = image;
+        while (overviews == AUTO_OVERVIEWS ? level.getWidth() > tileDimensions.width
+                || level.getHeight() > tileDimensions.height : levels.size() <= overviews) {
+            if (level.getWidth() < 2 || level.getHeight() < 2) {
+                break;
+            }
+            if (average) {
+                level = SubsampleAverageDescriptor.create(level, 0.5, 0.5, hints);
+            } else {
+                level = ScaleDescriptor.create(level, 0.5f, 0.5f, 0f, 0f,
+                        Interpolation.getInstance(Interpolation.INTERP_NEAREST), hints);
+            }
+            levels.add(level);
+        }
+        LOGGER.fine("Writing " + (levels.size() - 1) + " overviews");
+        return levels;
+    }
+
+    /**
+     * Copies the GeoTIFF tags the {@link GeoTiffWriter} would write for the coverage. The
+     * georeferencing is encoded writing a single pixel coverage with the same grid to world
+     * transformation, sample dimensions and properties, then read back from its metadata.
+     */
+    private void addGeoTiffFields(CloudOptimizedGeoTiffWriter cogWriter,
+            GridCoverage2D sourceCoverage, boolean retainAxesOrder) throws IOException {
+        final GridGeometry2D gridGeometry = sourceCoverage.getGridGeometry();
+        final GridEnvelope2D range = gridGeometry.getGridRange2D();
+        final RenderedImage image = sourceCoverage.getRenderedImage();
+        final TiledImage pixel = new TiledImage(range.x, range.y, 1, 1, range.x, range.y, image
+                .getSampleModel().createCompatibleSampleModel(1, 1), image.getColorModel());
+        final GridGeometry2D pixelGeometry = new GridGeometry2D(new GridEnvelope2D(range.x,
+                range.y, 1, 1), gridGeometry.getGridToCRS(),
+                sourceCoverage.getCoordinateReferenceSystem());
+        final GridCoverage2D pixelCoverage = CoverageFactoryFinder.getGridCoverageFactory(null)
+                .create(sourceCoverage.getName(), pixel, pixelGeometry,
+                        sourceCoverage.getSampleDimensions(), null,
+                        sourceCoverage.getProperties());
+
+        final ParameterValueGroup writerParams = GEOTIF_FORMAT.getWriteParameters();
+        if (retainAxesOrder) {
+            writerParams.parameter(GeoTiffFormat.RETAIN_AXES_ORDER.getName().toString()).setValue(
+                    true);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GeoTiffWriter writer = (GeoTiffWriter) GEOTIF_FORMAT.getWriter(bytes);
+        try {
+            writer.write(pixelCoverage, (GeneralParameterValue[]) writerParams.values().toArray(
+                    new GeneralParameterValue[1]));
+        } finally {
+            writer.dispose();
+        }
+
+        final TIFFImageReader reader = (TIFFImageReader) new TIFFImageReaderSpi()
+                .createReaderInstance();
+        final ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        try {
+            reader.setInput(input);
+            final TIFFImageMetadata metadata = (TIFFImageMetadata) reader.getImageMetadata(0);
+            for (int tag : GEOTIFF_TAGS) {
+                final TIFFField field = metadata.getTIFFField(tag);
+                if (field != null) {
+                    cogWriter.addField(tag, field.getType(), field.getData());
+                }
+            }
+        } finally {
+            reader.dispose();
+            input.close();
+        }
+    }
     
     @Override
     public String getConformanceClass(String format) {
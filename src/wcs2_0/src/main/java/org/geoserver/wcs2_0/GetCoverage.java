@@ -17,6 +17,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -267,12 +268,36 @@ public class GetCoverage {
                 // If the estimated size does not exceed the limit, the first coverage is added to the GranuleStack
                 stack.addCoverage(firstCoverage);
 
-                // Get a coverage for each subrequest
+                // Get a coverage for each subrequest, reading a few in parallel if configured to,
+                // as long as the slices being read fit in the input limit
+                final WCSDimensionsSubsetHelper sliceHelper = helper;
+                final GetCoverageType sliceRequest = request;
+                final Map<String, ExtensionItemType> sliceExtensions = extensions;
+                final ImageSizeRecorder outputSize = incrementalOutputSize;
+                final ImageSizeRecorder inputSize = incrementalInputSize;
+                List<Callable<GridCoverage2D>> slices = new ArrayList<Callable<GridCoverage2D>>();
                 while (requestsIterator.hasNext()) {
-                    GridCoverageRequest subRequest = requestsIterator.next();
-                    GridCoverage2D singleCoverage = setupCoverage(helper, subRequest, request, reader, hints, extensions, dimensions,
-                            incrementalOutputSize, incrementalInputSize, coverageFactory);
-                    stack.addCoverage(singleCoverage);
+                    final GridCoverageRequest subRequest = requestsIterator.next();
+                    slices.add(new Callable<GridCoverage2D>() {
+
+                        @Override
+                        public GridCoverage2D call() throws Exception {
+                            return setupCoverage(sliceHelper, subRequest, sliceRequest, reader,
+                                    hints, sliceExtensions, dimensions, outputSize, inputSize,
+                                    coverageFactory);
+                        }
+                    });
+                }
+                int window = GranuleStackReader.getWindow(actual, inputLimit);
+                GranuleStackReader sliceReaders = new GranuleStackReader(
+                        window > 1 ? GranuleStackReader.getExecutor() : null, window);
+                try {
+                    for (GridCoverage2D singleCoverage : sliceReaders.read(slices)) {
+                        stack.addCoverage(singleCoverage);
+                    }
+                } catch (Exception e) {
+                    stack.dispose(true);
+                    throw e;
                 }
                 coverage = stack;
             } else {
@@ -1346,7 +1371,7 @@ public class GetCoverage {
          * 
          * @param GridCoverage2D
          */
-        public void addSize(GridCoverage2D coverage) {
+        public synchronized void addSize(GridCoverage2D coverage) {
             incrementalSize += getCoverageSize(coverage.getGridGeometry().getGridRange2D(),
                     coverage.getRenderedImage().getSampleModel());
             isSizeExceeded();
@@ -1357,7 +1382,7 @@ public class GetCoverage {
          * 
          * @return
          */
-        public long finalSize() {
+        public synchronized long finalSize() {
             return incrementalSize;
         }
 
@@ -1373,7 +1398,7 @@ public class GetCoverage {
         /**
          * Reset the total size stored to 0
          */
-        public void reset() {
+        public synchronized void reset() {
             incrementalSize = 0;
         }
 
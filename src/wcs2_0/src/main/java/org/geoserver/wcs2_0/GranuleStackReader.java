@@ -0,0 +1,226 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wcs2_0;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Reads the slices of a multidimensional GetCoverage request, the ones making up a
+ * {@link org.geoserver.wcs2_0.response.GranuleStack}, either sequentially or, when
+ * {@link #THREADS_PROPERTY} is set to more than one, in parallel.
+ * <p>
+ * In parallel mode at most <code>window</code> slices are being read at any time, and the
+ * coverages are returned in the same order as the slices. When a slice fails the slices not
+ * started yet are cancelled, and the coverages read by the others are disposed.
+ * </p>
+ */
+class GranuleStackReader {
+
+    static final Logger LOGGER = Logging.getLogger(GranuleStackReader.class);
+
+    /**
+     * Max number of slices read in parallel, by all the requests. One, the default, reads the
+     * slices sequentially in the request thread
+     */
+    static final String THREADS_PROPERTY = "GEOSERVER_WCS_SLICE_READ_THREADS";
+
+    static final int THREADS = getThreads();
+
+    static ExecutorService EXECUTOR;
+
+    static int getThreads() {
+        String value = GeoServerExtensions.getProperty(THREADS_PROPERTY);
+        if (value == null) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid value for " + THREADS_PROPERTY + ", " + value
+                    + ", should be a positive integer. Reading slices sequentially");
+            return 1;
+        }
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (EXECUTOR == null) {
+            final AtomicInteger count = new AtomicInteger();
+            EXECUTOR = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WCS slice reader " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return EXECUTOR;
+    }
+
+    /**
+     * Returns the number of slices a request can read at the same time: the configured threads,
+     * reduced so that the slices being read, each estimated at <code>sliceSize</code> bytes, fit
+     * in the input memory limit
+     *
+     * @param sliceSize The estimated size of a slice, in bytes
+     * @param inputLimit The input memory limit, in bytes, or zero for no limit
+     */
+    static int getWindow(long sliceSize, long inputLimit) {
+        int window = THREADS;
+        if (inputLimit > 0 && sliceSize > 0) {
+            window = (int) Math.max(1, Math.min(window, inputLimit / sliceSize));
+        }
+        return window;
+    }
+
+    final ExecutorService executor;
+
+    final int window;
+
+    GranuleStackReader(ExecutorService executor, int window) {
+        this.executor = executor;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Reads the slices, returning the coverages in the slices order
+     *
+     * @param slices The slice readers
+     */
+    List<GridCoverage2D> read(List<? extends Callable<GridCoverage2D>> slices) throws Exception {
+        List<Slice> timed = new ArrayList<Slice>(slices.size());
+        for (int i = 0; i < slices.size(); i++) {
+            timed.add(new Slice(slices.get(i), i, slices.size()));
+        }
+        List<Future<GridCoverage2D>> futures = new ArrayList<Future<GridCoverage2D>>();
+        List<GridCoverage2D> result = new ArrayList<GridCoverage2D>(slices.size());
+        try {
+            if (window == 1 || executor == null || slices.size() < 2) {
+                for (Slice slice : timed) {
+                    result.add(slice.read());
+                }
+                return result;
+            }
+
+            // collect the thread locals (security, request, local workspace) in the request
+            // thread, the pool threads will apply them before reading
+            ThreadLocalsTransfer transfer = new ThreadLocalsTransfer();
+            int next = 0;
+            for (int i = 0; i < timed.size(); i++) {
+                // keep the window full
+                while (next < timed.size() && next < i + window) {
+                    futures.add(executor.submit(new TransferringCallable(timed.get(next),
+                            transfer)));
+                    next++;
+                }
+                result.add(futures.get(i).get());
+            }
+            return result;
+        } catch (Throwable t) {
+            for (GridCoverage2D coverage : result) {
+                coverage.dispose(true);
+            }
+            for (int i = result.size(); i < futures.size(); i++) {
+                // don't interrupt, readers might be sharing channels with other requests
+                Future<GridCoverage2D> future = futures.get(i);
+                if (!future.cancel(false)) {
+                    // already running or done, wait for it to release its coverage
+                    try {
+                        future.get().dispose(true);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "Slice read failed while aborting the request", e);
+                    }
+                }
+            }
+            throw unwrap(t);
+        }
+    }
+
+    static Exception unwrap(Throwable t) {
+        if (t instanceof ExecutionException) {
+            t = t.getCause();
+        } else if (t instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    /**
+     * Times the read of a slice
+     */
+    static class Slice {
+
+        final Callable<GridCoverage2D> delegate;
+
+        final int index;
+
+        final int count;
+
+        Slice(Callable<GridCoverage2D> delegate, int index, int count) {
+            this.delegate = delegate;
+            this.index = index;
+            this.count = count;
+        }
+
+        GridCoverage2D read() throws Exception {
+            long start = System.currentTimeMillis();
+            GridCoverage2D coverage = delegate.call();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Read slice " + (index + 1) + " of " + count + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+            return coverage;
+        }
+    }
+
+    /**
+     * Runs a slice read in a pool thread with the thread locals of the request thread
+     */
+    static class TransferringCallable implements Callable<GridCoverage2D> {
+
+        final Slice slice;
+
+        final ThreadLocalsTransfer transfer;
+
+        TransferringCallable(Slice slice, ThreadLocalsTransfer transfer) {
+            this.slice = slice;
+            this.transfer = transfer;
+        }
+
+        @Override
+        public GridCoverage2D call() throws Exception {
+            try {
+                transfer.apply();
+                return slice.read();
+            } finally {
+                transfer.cleanup();
+            }
+        }
+    }
+}
@@ -69,7 +69,8 @@ public class WCS20GetCoverageRequestReader extends EMFKvpRequestReader {
 
     private void parseGeoTiffExtension(GetCoverageType gc, Map kvp) {
         List<String> geoTiffParams = Arrays.asList("compression", "jpeg_quality", "predictor",
-                "interleave", "tiling", "tileheight", "tilewidth");
+                "interleave", "tiling", "tileheight", "tilewidth", "overviews",
+                "overviewresampling");
         parseSimpleContentList(gc, kvp, geoTiffParams, GEOTIFF_NS);
     }
 
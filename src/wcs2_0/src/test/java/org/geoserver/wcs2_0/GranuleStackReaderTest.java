@@ -0,0 +1,145 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wcs2_0;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.coverage.CoverageFactoryFinder;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GranuleStackReaderTest {
+
+    ExecutorService executor;
+
+    GridCoverage2D base;
+
+    AtomicInteger running = new AtomicInteger();
+
+    AtomicInteger maxRunning = new AtomicInteger();
+
+    AtomicInteger started = new AtomicInteger();
+
+    Set<String> disposed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+        base = CoverageFactoryFinder.getGridCoverageFactory(null).create("base",
+                new float[][] { { 1, 2 }, { 3, 4 } },
+                new ReferencedEnvelope(0, 1, 0, 1, DefaultGeographicCRS.WGS84));
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    List<Callable<GridCoverage2D>> slices(int count, final int failing) {
+        List<Callable<GridCoverage2D>> slices = new ArrayList<Callable<GridCoverage2D>>();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            slices.add(new Callable<GridCoverage2D>() {
+
+                @Override
+                public GridCoverage2D call() throws Exception {
+                    started.incrementAndGet();
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+                    try {
+                        // later slices are faster, so they complete out of order
+                        Thread.sleep(5 * (10 - index % 10));
+                        if (index == failing) {
+                            throw new IOException("Failed reading slice " + index);
+                        }
+                        return new GridCoverage2D("slice" + index, base) {
+
+                            @Override
+                            public boolean dispose(boolean force) {
+                                disposed.add(getName().toString());
+                                return true;
+                            }
+                        };
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+        return slices;
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        List<GridCoverage2D> coverages = new GranuleStackReader(null, 1).read(slices(5, -1));
+        assertEquals(5, coverages.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("slice" + i, coverages.get(i).getName().toString());
+        }
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testParallelOrder() throws Exception {
+        List<GridCoverage2D> coverages = new GranuleStackReader(executor, 3).read(slices(10, -1));
+        assertEquals(10, coverages.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("slice" + i, coverages.get(i).getName().toString());
+        }
+        // never more slices than the window, even if the pool has more threads
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= 3);
+        assertTrue(disposed.isEmpty());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        try {
+            new GranuleStackReader(executor, 2).read(slices(20, 2));
+            fail("Should have failed");
+        } catch (IOException e) {
+            assertEquals("Failed reading slice 2", e.getMessage());
+        }
+        // the slices after the window have not been read at all
+        assertTrue(started.get() < 20);
+        // wait for the running ones to complete
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        // the coverages read before and during the failure have been disposed
+        assertTrue(disposed.contains("slice0"));
+        assertTrue(disposed.contains("slice1"));
+        assertTrue(disposed.contains("slice3"));
+    }
+
+    @Test
+    public void testSequentialFailure() throws Exception {
+        try {
+            new GranuleStackReader(null, 1).read(slices(5, 1));
+            fail("Should have failed");
+        } catch (IOException e) {
+            // fine
+        }
+        assertEquals(2, started.get());
+        assertEquals(Collections.singleton("slice0"), disposed);
+    }
+}
@@ -432,6 +432,106 @@ public class GeoTiffKvpTest extends WCSKVPTestSupport {
         }
     }
 
+    @Test
+    public void overviews() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wcs?request=GetCoverage&service=WCS&version=2.0.1" +
+                        "&coverageId=wcs__BlueMarble&overviews=2&compression=DEFLATE&tiling=true&tileheight=128&tilewidth=128");
+        
+        assertEquals("image/tiff", response.getContentType());
+        byte[] tiffContents = getBinary(response);
+        File file = File.createTempFile("bm_gtiff", "bm_gtiff.tiff", new File("./target"));
+        FileUtils.writeByteArrayToFile(file, tiffContents);
+        
+        final TIFFImageReader reader = (TIFFImageReader) new TIFFImageReaderSpi().createReaderInstance();
+        reader.setInput(new FileImageInputStream(file));
+        try {
+            // full resolution plus two overviews, all tiled and compressed
+            assertEquals(3, reader.getNumImages(true));
+            for (int i = 0; i < 3; i++) {
+                assertTrue(reader.isImageTiled(i));
+                assertEquals(128, reader.getTileWidth(i));
+                assertEquals(128, reader.getTileHeight(i));
+                TIFFImageMetadata metadata = (TIFFImageMetadata) reader.getImageMetadata(i);
+                assertEquals(8, metadata.getTIFFField(BaselineTIFFTagSet.TAG_COMPRESSION).getAsInt(0));
+                assertEquals(i == 0 ? 0 : 1, metadata.getTIFFField(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE).getAsInt(0));
+                if (i > 0) {
+                    assertTrue(Math.abs(reader.getWidth(i - 1) / 2 - reader.getWidth(i)) <= 1);
+                    assertTrue(Math.abs(reader.getHeight(i - 1) / 2 - reader.getHeight(i)) <= 1);
+                }
+            }
+            
+            // cloud optimized layout, the smallest overview data comes first, the full resolution one last
+            long fullResolutionOffset = ((TIFFImageMetadata) reader.getImageMetadata(0))
+                    .getTIFFField(BaselineTIFFTagSet.TAG_TILE_OFFSETS).getAsLong(0);
+            long overviewOffset = ((TIFFImageMetadata) reader.getImageMetadata(2))
+                    .getTIFFField(BaselineTIFFTagSet.TAG_TILE_OFFSETS).getAsLong(0);
+            assertTrue(overviewOffset < fullResolutionOffset);
+        } finally {
+            reader.dispose();
+        }
+        
+        // same georeferencing as the GeoTIFF without overviews
+        GeoTiffReader readerTarget = new GeoTiffReader(file);
+        GridCoverage2D targetCoverage = null, sourceCoverage=null;
+        try {
+            targetCoverage = readerTarget.read(null);
+            sourceCoverage=(GridCoverage2D) this.getCatalog().getCoverageByName("BlueMarble").getGridCoverageReader(null, null).read(null);
+            
+            assertEquals(sourceCoverage.getGridGeometry().getGridRange(), targetCoverage.getGridGeometry().getGridRange());
+            assertEquals(sourceCoverage.getCoordinateReferenceSystem(), targetCoverage.getCoordinateReferenceSystem());
+            assertEquals(sourceCoverage.getEnvelope(), targetCoverage.getEnvelope());
+        } finally {
+            readerTarget.dispose();
+            scheduleForCleaning(targetCoverage);
+            scheduleForCleaning(sourceCoverage);
+        }
+    }
     
+    @Test
+    public void overviewsAuto() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wcs?request=GetCoverage&service=WCS&version=2.0.1" +
+                        "&coverageId=wcs__BlueMarble&overviews=auto&overviewresampling=average&compression=LZW");
+        
+        assertEquals("image/tiff", response.getContentType());
+        byte[] tiffContents = getBinary(response);
+        File file = File.createTempFile("bm_gtiff", "bm_gtiff.tiff", new File("./target"));
+        FileUtils.writeByteArrayToFile(file, tiffContents);
+        
+        final TIFFImageReader reader = (TIFFImageReader) new TIFFImageReaderSpi().createReaderInstance();
+        reader.setInput(new FileImageInputStream(file));
+        try {
+            // overviews down to a single tile, with the default tile size
+            int images = reader.getNumImages(true);
+            assertTrue(images > 1);
+            assertEquals(256, reader.getTileWidth(0));
+            assertTrue(reader.getWidth(images - 1) <= 256);
+            assertTrue(reader.getHeight(images - 1) <= 256);
+            assertTrue(reader.getWidth(images - 2) > 256 || reader.getHeight(images - 2) > 256);
+            // and the pixels can be read back
+            assertEquals(reader.getWidth(images - 1), reader.read(images - 1).getWidth());
+        } finally {
+            reader.dispose();
+        }
+    }
     
+    @Test
+    public void wrongOverviews() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wcs?request=GetCoverage&service=WCS&version=2.0.1" +
+                        "&coverageId=wcs__BlueMarble&overviews=-1");
+        
+        assertEquals("application/xml", response.getContentType());
+        checkOws20Exception(response, 404, WcsExceptionCode.InvalidParameterValue.toString(), "-1");
+        
+        response = getAsServletResponse("wcs?request=GetCoverage&service=WCS&version=2.0.1" +
+                "&coverageId=wcs__BlueMarble&overviews=2&overviewresampling=bicubic");
+        
+        assertEquals("application/xml", response.getContentType());
+        checkOws20Exception(response, 404, WcsExceptionCode.InvalidParameterValue.toString(), "bicubic");
+        
+        response = getAsServletResponse("wcs?request=GetCoverage&service=WCS&version=2.0.1" +
+                "&coverageId=wcs__BlueMarble&overviews=2&compression=JPEG");
+        
+        assertEquals("application/xml", response.getContentType());
+        checkOws20Exception(response, 404, WcsExceptionCode.CompressionNotSupported.toString(), "JPEG");
+    }
 }
@@ -22,6 +22,7 @@ import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.JAIInfo;
 import org.geoserver.config.JAIInfo.PngEncoderType;
+import org.geoserver.config.JAIInfo.TileCacheType;
 import org.geoserver.web.wicket.ParamResourceModel;
 
 import com.sun.media.imageioimpl.common.PackageUtil;
@@ -53,6 +54,7 @@ public class JAIPage extends ServerAdminPage {
         TextField memoryThreshold = new TextField("memoryThreshold");
         memoryThreshold.add(percentageValidator);
         form.add(memoryThreshold);
+        addTileCacheEditor(form);
         TextField tileThreads = new TextField("tileThreads");
         tileThreads.add(NumberValidator.POSITIVE);
         form.add(tileThreads);
@@ -86,6 +88,23 @@ public class JAIPage extends ServerAdminPage {
         form.add(cancel);
     }
 
+    private void addTileCacheEditor(Form form) {
+        List<TileCacheType> types = Arrays.asList(TileCacheType.values());
+        DropDownChoice<TileCacheType> editor = new DropDownChoice<TileCacheType>("tileCacheType", types, new IChoiceRenderer<TileCacheType>() {
+
+            @Override
+            public Object getDisplayValue(TileCacheType type) {
+                return new ParamResourceModel("tileCache." + type.name(), JAIPage.this).getString();
+            }
+
+            @Override
+            public String getIdValue(TileCacheType type, int index) {
+                return type.name();
+            }
+        });
+        form.add(editor);
+    }
+
     private void addPngEncoderEditor(Form form) {
         // get the list of available encoders
         List<PngEncoderType> encoders = new ArrayList(Arrays.asList(JAIInfo.PngEncoderType.values()));
@@ -4,7 +4,14 @@
  */
 package org.geoserver.web.admin;
 
+import static org.junit.Assert.*;
+
+import org.apache.wicket.markup.html.basic.Label;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.JAIInfo;
+import org.geoserver.config.JAIInfo.TileCacheType;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.jai.ConcurrentTileCache;
 import org.geoserver.web.GeoServerWicketTestSupport;
 import org.junit.Test;
 
@@ -40,4 +47,31 @@ public class StatusPageTest extends GeoServerWicketTestSupport {
         // check we did not NPE
         tester.assertRenderedPage(StatusPage.class);
     }
+    
+    @Test
+    public void testConcurrentTileCache() throws Exception {
+        GeoServerInfo global = getGeoServer().getGlobal();
+        JAIInfo jai = global.getJAI();
+        TileCacheType original = jai.getTileCacheType();
+        try {
+            jai.setTileCacheType(TileCacheType.CONCURRENT);
+            global.setJAI(jai);
+            getGeoServer().save(global);
+            assertTrue(getGeoServer().getGlobal().getJAI().getTileCache() instanceof ConcurrentTileCache);
+
+            login();
+            tester.startPage(StatusPage.class);
+            tester.assertRenderedPage(StatusPage.class);
+
+            // the memory usage is reported by the cache diagnostics
+            Label used = (Label) tester.getComponentFromLastRenderedPage("jai.memory.used");
+            assertFalse("-".equals(used.getDefaultModelObjectAsString()));
+        } finally {
+            global = getGeoServer().getGlobal();
+            jai = global.getJAI();
+            jai.setTileCacheType(original);
+            global.setJAI(jai);
+            getGeoServer().save(global);
+        }
+    }
 }
@@ -6,6 +6,7 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 
@@ -26,11 +27,25 @@ class CountExecutor {
 
     int providedCount = COUNT_UNSET;
 
+    FeatureCountCache cache;
+
+    FeatureTypeInfo meta;
+
     public CountExecutor(FeatureSource source, Query query) {
         this.source = source;
         this.query = query;
     }
 
+    /**
+     * Builds an executor that looks up the count in the cache before running it
+     */
+    public CountExecutor(FeatureSource source, Query query, FeatureCountCache cache,
+            FeatureTypeInfo meta) {
+        this(source, query);
+        this.cache = cache;
+        this.meta = meta;
+    }
+
     public CountExecutor(int providedCount) {
         this.providedCount = providedCount;
     }
@@ -38,6 +53,8 @@ class CountExecutor {
     public int getCount() throws IOException {
         if(providedCount != COUNT_UNSET) {
             return providedCount;
+        } else if (cache != null) {
+            return cache.getCount(meta, source, query);
         } else {
             return source.getCount(query);
         }
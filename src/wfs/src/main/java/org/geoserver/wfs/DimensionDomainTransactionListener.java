@@ -0,0 +1,191 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.util.DimensionDomainIndex;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Keeps the {@link DimensionDomainIndex} up to date with the WFS transactions: the time and
+ * elevation values of the inserted features are added to the indexed domains, while updates and
+ * deletes drop the domains of the modified layer, to be recomputed on the next request.
+ * <p>
+ * The transaction events are fired before the commit, so the changes are collected in a state
+ * attached to the GeoTools transaction and applied to the index only when the transaction is
+ * closed after a successful commit. A rolled back transaction leaves the index untouched.
+ * </p>
+ */
+public class DimensionDomainTransactionListener implements TransactionListener {
+
+    Catalog catalog;
+
+    DimensionDomainIndex index;
+
+    public DimensionDomainTransactionListener(Catalog catalog, DimensionDomainIndex index) {
+        this.catalog = catalog;
+        this.index = index;
+    }
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (!index.isEnabled() || event.getType() == TransactionEventType.PRE_INSERT) {
+            return;
+        }
+
+        QName layerName = event.getLayerName();
+        FeatureTypeInfo featureType = null;
+        if (layerName != null) {
+            featureType = catalog.getFeatureTypeByName(layerName.getNamespaceURI(),
+                    layerName.getLocalPart());
+        }
+
+        PendingChanges changes = new PendingChanges();
+        Transaction transaction = event.getTransaction();
+        boolean pending = transaction != null && transaction != Transaction.AUTO_COMMIT;
+        if (pending) {
+            PendingChanges existing = (PendingChanges) transaction.getState(this);
+            if (existing == null) {
+                transaction.putState(this, changes);
+            } else {
+                changes = existing;
+            }
+        }
+
+        if (featureType == null) {
+            // we don't know which layer changed, drop all domains
+            changes.all = true;
+        } else if (event.getType() == TransactionEventType.POST_INSERT) {
+            // the affected features are read now, they might not be available after the commit
+            changes.add(featureType, ResourceInfo.TIME, getValues(featureType,
+                    ResourceInfo.TIME, event));
+            changes.add(featureType, ResourceInfo.ELEVATION, getValues(featureType,
+                    ResourceInfo.ELEVATION, event));
+        } else {
+            changes.invalidated.add(featureType.getId());
+        }
+
+        if (!pending) {
+            // not part of a transaction, the changes are already visible
+            changes.apply();
+        }
+    }
+
+    List<Object> getValues(FeatureTypeInfo featureType, String dimensionName,
+            TransactionEvent event) {
+        DimensionInfo dimension = featureType.getMetadata().get(dimensionName,
+                DimensionInfo.class);
+        List<Object> values = new ArrayList<Object>();
+        if (dimension == null || !dimension.isEnabled() || dimension.getAttribute() == null
+                || event.getAffectedFeatures() == null) {
+            return values;
+        }
+        SimpleFeatureIterator it = event.getAffectedFeatures().features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                Object value = feature.getAttribute(dimension.getAttribute());
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return values;
+    }
+
+    /**
+     * The index changes of a transaction. The TransactionPlugin callbacks are not fired for WFS
+     * 2.0 transactions, so the state is attached to the GeoTools transaction instead, and applied
+     * when it gets closed if it was committed
+     */
+    class PendingChanges implements Transaction.State {
+
+        boolean all;
+
+        /** The ids of the layers updated or deleted from */
+        Set<String> invalidated = new HashSet<String>();
+
+        /** The inserted values, by layer id and dimension name */
+        Map<String, Map<String, List<Object>>> inserted =
+                new HashMap<String, Map<String, List<Object>>>();
+
+        Map<String, FeatureTypeInfo> insertedTypes = new HashMap<String, FeatureTypeInfo>();
+
+        boolean committed;
+
+        void add(FeatureTypeInfo featureType, String dimensionName, List<Object> values) {
+            if (values.isEmpty()) {
+                return;
+            }
+            Map<String, List<Object>> dimensions = inserted.get(featureType.getId());
+            if (dimensions == null) {
+                dimensions = new HashMap<String, List<Object>>();
+                inserted.put(featureType.getId(), dimensions);
+                insertedTypes.put(featureType.getId(), featureType);
+            }
+            List<Object> existing = dimensions.get(dimensionName);
+            if (existing == null) {
+                dimensions.put(dimensionName, values);
+            } else {
+                existing.addAll(values);
+            }
+        }
+
+        void apply() {
+            if (all) {
+                index.invalidateAll();
+                return;
+            }
+            for (String id : invalidated) {
+                index.invalidate(id);
+            }
+            for (Map.Entry<String, Map<String, List<Object>>> entry : inserted.entrySet()) {
+                if (invalidated.contains(entry.getKey())) {
+                    // will be recomputed with the new values anyway
+                    continue;
+                }
+                FeatureTypeInfo featureType = insertedTypes.get(entry.getKey());
+                for (Map.Entry<String, List<Object>> values : entry.getValue().entrySet()) {
+                    index.add(featureType, values.getKey(), values.getValue());
+                }
+            }
+        }
+
+        public void setTransaction(Transaction transaction) {
+            if (transaction == null && committed) {
+                // closed after the commit, the changes are now visible to the domain scans
+                apply();
+            }
+        }
+
+        public void addAuthorization(String authID) throws IOException {
+            // nothing to do
+        }
+
+        public void commit() throws IOException {
+            committed = true;
+        }
+
+        public void rollback() throws IOException {
+            committed = false;
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogVisitorAdapter;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.security.decorators.SecuredFeatureSource;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.factory.Hints;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the feature counts GetFeature runs to compute the number of matched features, so that
+ * hits requests and the numberMatched of the pages of a paged WFS 2.0 request do not run the same
+ * count over and over.
+ * <p>
+ * The cache is disabled by default, it is enabled by setting the time to live of the counts, in
+ * seconds, in the {@link #COUNT_CACHE_TTL} WFS metadata entry. The counts are keyed by layer,
+ * filter, paging, SQL view parameters and the roles of the current user, and are dropped when
+ * the layer is modified by a WFS transaction or in the catalog. Changes made to the data outside
+ * of GeoServer are picked up only when the counts expire.
+ * </p>
+ * <p>
+ * The transaction events are fired before the commit, so the counts of the layers a transaction
+ * modifies are not cached until the transaction is closed, and are dropped again at that point,
+ * see {@link PendingChanges}.
+ * </p>
+ * <p>
+ * Setting {@link #COUNT_CACHE_ESTIMATE} to true allows unfiltered counts on PostGIS tables to be
+ * taken from the planner statistics instead of running a full count, making numberMatched an
+ * approximation of the actual number of features.
+ * </p>
+ */
+public class FeatureCountCache implements TransactionListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureCountCache.class);
+
+    /**
+     * WFS metadata key for the time to live of the cached counts, in seconds. Zero or no value
+     * disable the cache
+     */
+    public static final String COUNT_CACHE_TTL = "COUNT_CACHE_TTL";
+
+    /**
+     * WFS metadata key enabling estimated counts from the database statistics
+     */
+    public static final String COUNT_CACHE_ESTIMATE = "COUNT_CACHE_ESTIMATE";
+
+    /**
+     * Max number of cached counts
+     */
+    static final int MAX_ENTRIES = 1000;
+
+    static final String ESTIMATE_SQL = "SELECT c.reltuples FROM pg_catalog.pg_class c "
+            + "JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace "
+            + "WHERE c.relname = ? AND n.nspname = ?";
+
+    private GeoServer geoServer;
+
+    private Catalog catalog;
+
+    private volatile Cache<CountKey, Integer> counts;
+
+    private volatile boolean configured;
+
+    /**
+     * Bumped on every invalidation, a count computed while the layer got modified is not cached
+     */
+    final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    final AtomicLong globalGeneration = new AtomicLong();
+
+    /**
+     * The number of open transactions modifying each layer, their counts are not cached until
+     * they are closed
+     */
+    final Map<String, AtomicInteger> pending = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The number of open transactions modifying layers not found in the catalog
+     */
+    final AtomicInteger globalPending = new AtomicInteger();
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong estimates = new AtomicLong();
+
+    public FeatureCountCache(GeoServer geoServer) {
+        this.geoServer = geoServer;
+        this.catalog = geoServer.getCatalog();
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            public void handlePostServiceChange(ServiceInfo service) {
+                if (service instanceof WFSInfo) {
+                    configure();
+                }
+            }
+
+            public void reloaded() {
+                configure();
+            }
+        });
+        catalog.addListener(new LayerInvalidatingListener());
+    }
+
+    /**
+     * For testing only
+     */
+    FeatureCountCache(int ttl) {
+        setTimeToLive(ttl);
+    }
+
+    WFSInfo getWFS() {
+        return geoServer == null ? null : geoServer.getService(WFSInfo.class);
+    }
+
+    void configure() {
+        WFSInfo wfs = getWFS();
+        Integer value = wfs == null ? null : wfs.getMetadata().get(COUNT_CACHE_TTL, Integer.class);
+        setTimeToLive(value == null ? 0 : value.intValue());
+        invalidateAll();
+    }
+
+    synchronized void setTimeToLive(int ttl) {
+        if (ttl > 0) {
+            counts = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES)
+                    .expireAfterWrite(ttl, TimeUnit.SECONDS).build();
+        } else {
+            counts = null;
+        }
+        configured = true;
+    }
+
+    private Cache<CountKey, Integer> getCounts() {
+        // lazy initialization, the configuration is not loaded yet when the bean is built
+        if (!configured) {
+            configure();
+        }
+        return counts;
+    }
+
+    boolean isEstimateEnabled() {
+        WFSInfo wfs = getWFS();
+        if (wfs == null) {
+            return false;
+        }
+        Boolean value = wfs.getMetadata().get(COUNT_CACHE_ESTIMATE, Boolean.class);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the number of features matched by the query, using a cached value when available.
+     * Falls back on {@link FeatureSource#getCount(Query)} when the cache is disabled or the query
+     * cannot be cached. As for the latter, -1 is returned if the count is not available.
+     *
+     * @param meta The layer the source comes from
+     * @param source The source the count is run against
+     * @param query The query to be counted
+     */
+    public int getCount(FeatureTypeInfo meta, FeatureSource source, Query query)
+            throws IOException {
+        Cache<CountKey, Integer> cache = getCounts();
+        if (cache == null || meta == null || meta.getId() == null || !isCacheable(query)) {
+            return source.getCount(query);
+        }
+
+        CountKey key = new CountKey(meta.getId(), query);
+        Integer count = cache.getIfPresent(key);
+        if (count != null) {
+            hits.incrementAndGet();
+            return count;
+        }
+        misses.incrementAndGet();
+
+        long global = globalGeneration.get();
+        long generation = getGeneration(meta.getId()).get();
+        int result = -1;
+        if (isEstimateEnabled() && canEstimate(meta, source, query)) {
+            result = estimate(meta);
+            if (result >= 0) {
+                estimates.incrementAndGet();
+            }
+        }
+        if (result < 0) {
+            result = source.getCount(query);
+        }
+        // don't cache unknown counts, counts that might have been computed against data
+        // modified in the meantime, and counts of layers with uncommitted changes
+        if (result >= 0 && global == globalGeneration.get()
+                && generation == getGeneration(meta.getId()).get() && globalPending.get() == 0
+                && getPending(meta.getId()).get() == 0) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    boolean isCacheable(Query query) {
+        return query.getJoins() == null || query.getJoins().isEmpty();
+    }
+
+    /**
+     * Estimates are used only when they can replace the full table count: no filtering, paging,
+     * SQL views or data security involved, and a PostGIS table as the source
+     */
+    boolean canEstimate(FeatureTypeInfo meta, FeatureSource source, Query query) {
+        if (!Filter.INCLUDE.equals(query.getFilter()) || query.getStartIndex() != null
+                && query.getStartIndex() > 0 || query.getMaxFeatures() != Query.DEFAULT_MAX
+                || getViewParams(query) != null) {
+            return false;
+        }
+        if (meta.getFilter() != null
+                || meta.getMetadata().containsKey(FeatureTypeInfo.JDBC_VIRTUAL_TABLE)
+                || source instanceof SecuredFeatureSource) {
+            return false;
+        }
+        return getPostGISStore(meta) != null;
+    }
+
+    JDBCDataStore getPostGISStore(FeatureTypeInfo meta) {
+        try {
+            DataAccess store = meta.getStore().getDataStore(null);
+            if (store instanceof JDBCDataStore) {
+                JDBCDataStore jdbc = (JDBCDataStore) store;
+                if (jdbc.getSQLDialect().getClass().getName()
+                        .startsWith("org.geotools.data.postgis")) {
+                    return jdbc;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not access the store of " + meta.getName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the row count estimated by the PostgreSQL planner, or -1 if the table was never
+     * analyzed or the estimate could not be read
+     */
+    int estimate(FeatureTypeInfo meta) {
+        JDBCDataStore store = getPostGISStore(meta);
+        if (store == null) {
+            return -1;
+        }
+        String schema = store.getDatabaseSchema() != null ? store.getDatabaseSchema() : "public";
+        Connection cx = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            cx = store.getConnection(Transaction.AUTO_COMMIT);
+            ps = cx.prepareStatement(ESTIMATE_SQL);
+            ps.setString(1, meta.getNativeName());
+            ps.setString(2, schema);
+            rs = ps.executeQuery();
+            if (rs.next()) {
+                float tuples = rs.getFloat(1);
+                if (tuples > 0) {
+                    return (int) Math.min(Integer.MAX_VALUE, Math.round(tuples));
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not estimate the feature count of " + meta.getName()
+                    + ", running a full count instead", e);
+        } finally {
+            store.closeSafe(rs);
+            store.closeSafe(ps);
+            store.closeSafe(cx);
+        }
+        return -1;
+    }
+
+    static Map getViewParams(Query query) {
+        Hints hints = query.getHints();
+        return hints == null ? null : (Map) hints.get(Hints.VIRTUAL_TABLE_PARAMETERS);
+    }
+
+    private AtomicLong getGeneration(String typeId) {
+        AtomicLong generation = generations.get(typeId);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong existing = ((ConcurrentHashMap<String, AtomicLong>) generations)
+                    .putIfAbsent(typeId, generation);
+            if (existing != null) {
+                generation = existing;
+            }
+        }
+        return generation;
+    }
+
+    private AtomicInteger getPending(String typeId) {
+        AtomicInteger count = pending.get(typeId);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = ((ConcurrentHashMap<String, AtomicInteger>) pending)
+                    .putIfAbsent(typeId, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes the cached counts of the specified feature type
+     *
+     * @param typeId A feature type id
+     */
+    public void invalidate(String typeId) {
+        invalidate(Collections.singleton(typeId));
+    }
+
+    void invalidate(Set<String> typeIds) {
+        for (String typeId : typeIds) {
+            getGeneration(typeId).incrementAndGet();
+        }
+        Cache<CountKey, Integer> cache = counts;
+        if (cache == null) {
+            return;
+        }
+        for (Iterator<CountKey> it = cache.asMap().keySet().iterator(); it.hasNext();) {
+            if (typeIds.contains(it.next().typeId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the cached counts
+     */
+    public void invalidateAll() {
+        globalGeneration.incrementAndGet();
+        Cache<CountKey, Integer> cache = counts;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        QName layerName = event.getLayerName();
+        FeatureTypeInfo featureType = null;
+        if (catalog != null && layerName != null) {
+            featureType = catalog.getFeatureTypeByName(layerName.getNamespaceURI(),
+                    layerName.getLocalPart());
+        }
+        String typeId = featureType != null ? featureType.getId() : null;
+        if (typeId != null) {
+            invalidate(typeId);
+        } else {
+            // we don't know which layer changed, wipe out the cache
+            invalidateAll();
+        }
+
+        // the changes are not committed yet, hold the caching until the transaction is closed
+        Transaction transaction = event.getTransaction();
+        if (transaction != null && transaction != Transaction.AUTO_COMMIT) {
+            PendingChanges changes = (PendingChanges) transaction.getState(this);
+            if (changes == null) {
+                changes = new PendingChanges();
+                transaction.putState(this, changes);
+            }
+            changes.add(typeId);
+        }
+    }
+
+    @Override
+    public void onReset() {
+        // data might have changed in the meantime
+        invalidateAll();
+    }
+
+    @Override
+    public void onDispose() {
+        invalidateAll();
+    }
+
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        invalidateAll();
+    }
+
+    /**
+     * Key of a cached count
+     */
+    static class CountKey {
+
+        String typeId;
+
+        Filter filter;
+
+        Integer startIndex;
+
+        int maxFeatures;
+
+        String version;
+
+        Map viewParams;
+
+        String user;
+
+        Set<String> roles;
+
+        CountKey(String typeId, Query query) {
+            this.typeId = typeId;
+            this.filter = query.getFilter();
+            this.startIndex = query.getStartIndex();
+            this.maxFeatures = query.getMaxFeatures();
+            this.version = query.getVersion();
+            this.viewParams = getViewParams(query);
+            // security wrappers filter the data based on the current user
+            Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+            if (auth != null) {
+                this.user = auth.getName();
+                this.roles = new HashSet<String>();
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    roles.add(authority.getAuthority());
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CountKey)) {
+                return false;
+            }
+            CountKey other = (CountKey) obj;
+            return new EqualsBuilder().append(typeId, other.typeId).append(filter, other.filter)
+                    .append(startIndex, other.startIndex).append(maxFeatures, other.maxFeatures)
+                    .append(version, other.version).append(viewParams, other.viewParams)
+                    .append(user, other.user).append(roles, other.roles).isEquals();
+        }
+
+        @Override
+        public int hashCode() {
+            return new HashCodeBuilder().append(typeId).append(filter).append(startIndex)
+                    .append(maxFeatures).append(version).append(viewParams).append(user)
+                    .append(roles).toHashCode();
+        }
+    }
+
+    /**
+     * Tracks the layers modified by a transaction. The TransactionPlugin callbacks are not fired
+     * for WFS 2.0 transactions, so the state is attached to the GeoTools transaction instead, and
+     * the counts of the modified layers are dropped once more when it gets closed, that is, after
+     * the commit or the rollback
+     */
+    class PendingChanges implements Transaction.State {
+
+        Set<String> typeIds = new HashSet<String>();
+
+        boolean all;
+
+        void add(String typeId) {
+            if (typeId == null) {
+                if (!all) {
+                    all = true;
+                    globalPending.incrementAndGet();
+                }
+            } else if (typeIds.add(typeId)) {
+                getPending(typeId).incrementAndGet();
+            }
+        }
+
+        public void setTransaction(Transaction transaction) {
+            if (transaction != null) {
+                return;
+            }
+            // closed, the invalidation bumps the generations before releasing the hold, so that
+            // the counts running across the commit are not cached either
+            if (all) {
+                invalidateAll();
+                globalPending.decrementAndGet();
+            }
+            if (!typeIds.isEmpty()) {
+                invalidate(typeIds);
+                for (String typeId : typeIds) {
+                    getPending(typeId).decrementAndGet();
+                }
+            }
+            all = false;
+            typeIds.clear();
+        }
+
+        public void addAuthorization(String authID) throws IOException {
+            // nothing to do
+        }
+
+        public void commit() throws IOException {
+            // nothing to do, the invalidation happens on close
+        }
+
+        public void rollback() throws IOException {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Invalidates the counts of the feature types modified or removed from the catalog
+     */
+    class LayerInvalidatingListener extends CatalogVisitorAdapter implements CatalogListener {
+
+        public void handleAddEvent(CatalogAddEvent event) {
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) {
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+            event.getSource().accept(this);
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) {
+            event.getSource().accept(this);
+        }
+
+        public void reloaded() {
+            invalidateAll();
+        }
+
+        @Override
+        public void visit(DataStoreInfo dataStore) {
+            Set<String> keys = new HashSet<String>();
+            for (FeatureTypeInfo featureType : catalog.getFeatureTypesByDataStore(dataStore)) {
+                keys.add(featureType.getId());
+            }
+            invalidate(keys);
+        }
+
+        @Override
+        public void visit(FeatureTypeInfo featureType) {
+            invalidate(featureType.getId());
+        }
+
+        @Override
+        public void visit(LayerInfo layer) {
+            if (layer.getResource() instanceof FeatureTypeInfo) {
+                invalidate(layer.getResource().getId());
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
@@ -32,12 +33,14 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.request.Lock;
 import org.geoserver.wfs.request.LockFeatureRequest;
 import org.geoserver.wfs.request.LockFeatureResponse;
 import org.geoserver.wfs.request.Query;
+import org.geoserver.wfs.response.ShapeZipOutputFormat;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Join;
@@ -174,12 +177,16 @@ public class GetFeature {
     /** stored query provider */
     StoredQueryProvider storedQueryProvider;
 
+    /** feature count cache, might be null */
+    FeatureCountCache countCache;
+
     /**
      * Creates the WFS 1.0/1.1 GetFeature operation.
      */
     public GetFeature(WFSInfo wfs, Catalog catalog) {
         this.wfs = wfs;
         this.catalog = catalog;
+        this.countCache = GeoServerExtensions.bean(FeatureCountCache.class);
     }
 
     /**
@@ -219,6 +226,13 @@ public class GetFeature {
         this.storedQueryProvider = storedQueryProvider;
     }
 
+    /**
+     * Sets the cache used to look up the feature counts
+     */
+    public void setCountCache(FeatureCountCache countCache) {
+        this.countCache = countCache;
+    }
+
     public FeatureCollectionResponse run(GetFeatureRequest request)
         throws WFSException {
         List<Query> queries = request.getQueries();
@@ -472,6 +486,19 @@ public class GetFeature {
                         queryMaxFeatures, source, request, allPropNames.get(0), viewParam,
                             joins, primaryTypeName, primaryAlias);
 
+                // the streaming shapefile output reads the features three times, make the order
+                // stable if the store can (otherwise it falls back on the temp files)
+                if (joins == null && "SHAPE-ZIP".equalsIgnoreCase(request.getOutputFormat())
+                        && ShapeZipOutputFormat.isStreamingRequested(request, wfs)
+                        && ShapeZipOutputFormat.supportsNaturalOrder(primaryMeta)) {
+                    List<SortBy> sortBy = new ArrayList<SortBy>();
+                    if (gtQuery.getSortBy() != null) {
+                        sortBy.addAll(Arrays.asList(gtQuery.getSortBy()));
+                    }
+                    sortBy.add(SortBy.NATURAL_ORDER);
+                    gtQuery.setSortBy(sortBy.toArray(new SortBy[sortBy.size()]));
+                }
+
                 LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
 
                 FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
@@ -502,7 +529,15 @@ public class GetFeature {
 
                 int size = 0;
                 if (calculateSize) {
-                    size = features.size();
+                    // hits requests only need the count, which might have been cached
+                    size = -1;
+                    if (countCache != null && request.isResultTypeHits()
+                            && features.getSchema() instanceof SimpleFeatureType) {
+                        size = countCache.getCount(primaryMeta, source, gtQuery);
+                    }
+                    if (size < 0) {
+                        size = features.size();
+                    }
                 }
                 
                 //update the count
@@ -523,7 +558,8 @@ public class GetFeature {
                                     viewParam, joins, primaryTypeName, primaryAlias);
                         
                         //int size2 = getFeatures(request, source, q2).size();
-                        int size2 = source.getCount(q2);
+                        int size2 = countCache != null ? countCache.getCount(primaryMeta,
+                                source, q2) : source.getCount(q2);
                         if (size2 > 0) {
                             //adjust the offset for the next query
                             offset = Math.max(0, offset - size2);
@@ -540,7 +576,8 @@ public class GetFeature {
                         org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
                                 Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
                                 joins, primaryTypeName, primaryAlias);
-                    totalCountExecutors.add(new CountExecutor(source, qTotal));
+                    totalCountExecutors.add(new CountExecutor(source, qTotal, countCache,
+                            primaryMeta));
                 }
 
                 // we may need to shave off geometries we did load only to make bounds
@@ -105,6 +105,6 @@ public class TransactionEvent {
      * for post-commit events.
      */
     public Transaction getTransaction() {
-        return request.getTransaction();
+        return request == null ? null : request.getTransaction();
     }
 }
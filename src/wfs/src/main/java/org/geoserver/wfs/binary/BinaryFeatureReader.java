@@ -0,0 +1,202 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.binary;
+
+import static org.geoserver.wfs.binary.BinaryFeatures.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * Reads back the feature collections written by {@link BinaryFeatureWriter}, see
+ * {@link BinaryFeatures} for the format description. Each collection is fully loaded in memory.
+ */
+public class BinaryFeatureReader {
+
+    static final Logger LOGGER = Logging.getLogger(BinaryFeatureReader.class);
+
+    final DataInputStream in;
+
+    final WKBReader wkb = new WKBReader();
+
+    boolean finished;
+
+    public BinaryFeatureReader(InputStream input) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(input, 65536));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("The stream does not contain binary features");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary features version " + version);
+        }
+    }
+
+    /**
+     * Reads the next feature collection, or returns null if the end of the stream has been
+     * reached
+     */
+    public SimpleFeatureCollection read() throws IOException {
+        if (finished) {
+            return null;
+        }
+        byte marker = in.readByte();
+        if (marker == END) {
+            finished = true;
+            return null;
+        } else if (marker != COLLECTION) {
+            throw new IOException("Unexpected marker " + marker + " in binary features stream");
+        }
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(readString());
+        tb.setNamespaceURI(readString());
+        String defaultGeometry = readString();
+        int count = in.readInt();
+        byte[] types = new byte[count];
+        for (int i = 0; i < count; i++) {
+            String name = readString();
+            types[i] = in.readByte();
+            if (types[i] == GEOMETRY) {
+                tb.add(name, getGeometryBinding(readString()), parseCRS(readString()));
+            } else if (types[i] > 0 && types[i] < BINDINGS.length) {
+                tb.add(name, BINDINGS[types[i]]);
+            } else {
+                throw new IOException("Unknown type " + types[i] + " for attribute " + name);
+            }
+        }
+        if (defaultGeometry != null) {
+            tb.setDefaultGeometry(defaultGeometry);
+        }
+        SimpleFeatureType schema = tb.buildFeatureType();
+
+        ListFeatureCollection features = new ListFeatureCollection(schema);
+        int size;
+        while ((size = in.readInt()) > 0) {
+            String[] fids = new String[size];
+            for (int j = 0; j < size; j++) {
+                fids[j] = readString();
+            }
+            Object[][] values = new Object[size][count];
+            byte[] nulls = new byte[(size + 7) / 8];
+            for (int i = 0; i < count; i++) {
+                in.readFully(nulls);
+                for (int j = 0; j < size; j++) {
+                    if ((nulls[j >> 3] & (1 << (j & 7))) == 0) {
+                        values[j][i] = readValue(types[i]);
+                    }
+                }
+            }
+            for (int j = 0; j < size; j++) {
+                features.add(SimpleFeatureBuilder.build(schema, values[j], fids[j]));
+            }
+        }
+        return features;
+    }
+
+    Class<?> getGeometryBinding(String className) {
+        try {
+            Class<?> binding = Class.forName(className);
+            if (Geometry.class.isAssignableFrom(binding)) {
+                return binding;
+            }
+        } catch (ClassNotFoundException e) {
+            // fall back on the generic geometry
+        }
+        return Geometry.class;
+    }
+
+    CoordinateReferenceSystem parseCRS(String wkt) {
+        if (wkt == null) {
+            return null;
+        }
+        try {
+            return CRS.parseWKT(wkt);
+        } catch (FactoryException e) {
+            LOGGER.log(Level.WARNING, "Could not parse the CRS of the binary features, "
+                    + "the geometries will have no CRS", e);
+            return null;
+        }
+    }
+
+    Object readValue(byte type) throws IOException {
+        switch (type) {
+        case INTEGER:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case SHORT:
+            return in.readShort();
+        case BYTE:
+            return in.readByte();
+        case FLOAT:
+            return in.readFloat();
+        case DOUBLE:
+            return in.readDouble();
+        case BOOLEAN:
+            return in.readBoolean();
+        case DATE:
+            return new Date(in.readLong());
+        case SQL_DATE:
+            return new java.sql.Date(in.readLong());
+        case TIME:
+            return new Time(in.readLong());
+        case TIMESTAMP:
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+        case BIG_DECIMAL:
+            return new BigDecimal(readString());
+        case BIG_INTEGER:
+            return new BigInteger(readString());
+        case GEOMETRY:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try {
+                return wkb.read(bytes);
+            } catch (ParseException e) {
+                throw new IOException("Invalid geometry in binary features stream", e);
+            }
+        default:
+            return readString();
+        }
+    }
+
+    String readString() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, BinaryFeatureWriter.UTF8);
+    }
+}
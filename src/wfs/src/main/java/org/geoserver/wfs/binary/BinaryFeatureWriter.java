@@ -0,0 +1,220 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.binary;
+
+import static org.geoserver.wfs.binary.BinaryFeatures.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * Writes simple feature collections in the binary feature format described in
+ * {@link BinaryFeatures}. Features are read from the collection iterator and written out in
+ * batches of {@link BinaryFeatures#BATCH_SIZE}, so only one batch is kept in memory.
+ * <p>
+ * Call {@link #write(FeatureCollection)} for each collection, and then {@link #finish()}.
+ * </p>
+ */
+public class BinaryFeatureWriter {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final DataOutputStream out;
+
+    final WKBWriter wkb2d = new WKBWriter(2);
+
+    final WKBWriter wkb3d = new WKBWriter(3);
+
+    public BinaryFeatureWriter(OutputStream output) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(output, 65536));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * Writes out a feature collection, its schema first, then its features
+     */
+    public void write(FeatureCollection<SimpleFeatureType, SimpleFeature> collection)
+            throws IOException {
+        SimpleFeatureType schema = collection.getSchema();
+        int count = schema.getAttributeCount();
+        byte[] types = new byte[count];
+
+        out.writeByte(COLLECTION);
+        writeString(schema.getTypeName());
+        writeString(schema.getName().getNamespaceURI());
+        GeometryDescriptor defaultGeometry = schema.getGeometryDescriptor();
+        writeString(defaultGeometry == null ? null : defaultGeometry.getLocalName());
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            AttributeDescriptor ad = schema.getDescriptor(i);
+            types[i] = getTypeCode(ad.getType().getBinding());
+            writeString(ad.getLocalName());
+            out.writeByte(types[i]);
+            if (types[i] == GEOMETRY) {
+                writeString(ad.getType().getBinding().getName());
+                writeString(toWKT(((GeometryDescriptor) ad).getCoordinateReferenceSystem()));
+            }
+        }
+
+        List<SimpleFeature> batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+        FeatureIterator<SimpleFeature> it = collection.features();
+        try {
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() == BATCH_SIZE) {
+                    writeBatch(batch, types);
+                    batch.clear();
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, types);
+        }
+        out.writeInt(0);
+    }
+
+    String toWKT(CoordinateReferenceSystem crs) {
+        if (crs == null) {
+            return null;
+        }
+        try {
+            return crs.toWKT();
+        } catch (UnsupportedOperationException e) {
+            // not all CRS can be formatted, the geometries are still usable without it
+            return null;
+        }
+    }
+
+    void writeBatch(List<SimpleFeature> batch, byte[] types) throws IOException {
+        int size = batch.size();
+        out.writeInt(size);
+        for (SimpleFeature feature : batch) {
+            writeString(feature.getID());
+        }
+
+        byte[] nulls = new byte[(size + 7) / 8];
+        Object[] values = new Object[size];
+        for (int i = 0; i < types.length; i++) {
+            Class<?> binding = BINDINGS[types[i]];
+            for (int j = 0; j < size; j++) {
+                Object value = batch.get(j).getAttribute(i);
+                if (value != null && binding == String.class) {
+                    value = value.toString();
+                } else if (value != null && !binding.isInstance(value)) {
+                    Object converted = Converters.convert(value, binding);
+                    if (converted == null) {
+                        throw new IOException("Cannot convert value " + value + " of attribute "
+                                + batch.get(j).getFeatureType().getDescriptor(i).getLocalName()
+                                + " to " + binding.getSimpleName());
+                    }
+                    value = converted;
+                }
+                if (value instanceof Point && ((Point) value).isEmpty()) {
+                    // WKB cannot represent empty points
+                    value = null;
+                }
+                values[j] = value;
+                if (value == null) {
+                    nulls[j >> 3] |= 1 << (j & 7);
+                } else {
+                    nulls[j >> 3] &= ~(1 << (j & 7));
+                }
+            }
+            out.write(nulls);
+            for (int j = 0; j < size; j++) {
+                if (values[j] != null) {
+                    writeValue(types[i], values[j]);
+                }
+            }
+        }
+    }
+
+    void writeValue(byte type, Object value) throws IOException {
+        switch (type) {
+        case INTEGER:
+            out.writeInt(((Integer) value).intValue());
+            break;
+        case LONG:
+            out.writeLong(((Long) value).longValue());
+            break;
+        case SHORT:
+            out.writeShort(((Short) value).shortValue());
+            break;
+        case BYTE:
+            out.writeByte(((Byte) value).byteValue());
+            break;
+        case FLOAT:
+            out.writeFloat(((Float) value).floatValue());
+            break;
+        case DOUBLE:
+            out.writeDouble(((Double) value).doubleValue());
+            break;
+        case BOOLEAN:
+            out.writeBoolean(((Boolean) value).booleanValue());
+            break;
+        case DATE:
+        case SQL_DATE:
+        case TIME:
+            out.writeLong(((Date) value).getTime());
+            break;
+        case TIMESTAMP:
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+            break;
+        case GEOMETRY:
+            Geometry geometry = (Geometry) value;
+            Coordinate c = geometry.isEmpty() ? null : geometry.getCoordinate();
+            byte[] bytes = (c != null && !Double.isNaN(c.z) ? wkb3d : wkb2d).write(geometry);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            break;
+        default:
+            // strings, big numbers and whatever else is best represented as text
+            writeString(value.toString());
+        }
+    }
+
+    void writeString(String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Writes the end of stream marker and flushes the output, the wrapped stream is not closed
+     */
+    public void finish() throws IOException {
+        out.writeByte(END);
+        out.flush();
+    }
+}
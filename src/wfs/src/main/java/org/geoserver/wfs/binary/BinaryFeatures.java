@@ -0,0 +1,111 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.binary;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Constants describing the binary feature format, a compact encoding of simple feature
+ * collections meant for bulk transfers between machines (e.g., from GeoServer to an ETL, or
+ * between two GeoServer instances chaining WPS processes).
+ * <p>
+ * The stream, all numbers big endian, is made of:
+ * <ul>
+ * <li>The {@link #MAGIC} bytes and the format {@link #VERSION}</li>
+ * <li>For each feature collection a {@link #COLLECTION} marker followed by the schema: type name,
+ * namespace, default geometry name, number of attributes and, for each attribute, its name and
+ * type code. Geometry attributes are also followed by their binding class name and the WKT of
+ * their CRS</li>
+ * <li>The features, in batches: each batch starts with the number of features in it, followed by
+ * the column of feature ids and then one column per attribute, made of a bitmap of the null
+ * values followed by the non null values. A batch size of zero ends the collection</li>
+ * <li>An {@link #END} marker</li>
+ * </ul>
+ * Strings are written as the length of their UTF-8 encoding, -1 for null, followed by the
+ * bytes. Geometries are written as the length of their WKB encoding followed by the bytes.
+ * </p>
+ */
+public final class BinaryFeatures {
+
+    public static final String MIME_TYPE = "application/x-geoserver-features";
+
+    static final byte[] MAGIC = { 'G', 'S', 'F', 'B' };
+
+    static final byte VERSION = 1;
+
+    static final byte END = 0;
+
+    static final byte COLLECTION = 1;
+
+    /**
+     * Maximum number of features in a batch
+     */
+    static final int BATCH_SIZE = 1024;
+
+    // attribute type codes, values not matching any of these are written as strings
+    static final byte STRING = 1;
+
+    static final byte INTEGER = 2;
+
+    static final byte LONG = 3;
+
+    static final byte SHORT = 4;
+
+    static final byte BYTE = 5;
+
+    static final byte FLOAT = 6;
+
+    static final byte DOUBLE = 7;
+
+    static final byte BOOLEAN = 8;
+
+    static final byte DATE = 9;
+
+    static final byte SQL_DATE = 10;
+
+    static final byte TIME = 11;
+
+    static final byte TIMESTAMP = 12;
+
+    static final byte BIG_DECIMAL = 13;
+
+    static final byte BIG_INTEGER = 14;
+
+    static final byte GEOMETRY = 15;
+
+    static final Class<?>[] BINDINGS = { null, String.class, Integer.class, Long.class,
+            Short.class, Byte.class, Float.class, Double.class, Boolean.class, Date.class,
+            java.sql.Date.class, Time.class, Timestamp.class, BigDecimal.class, BigInteger.class,
+            Geometry.class };
+
+    private BinaryFeatures() {
+    }
+
+    /**
+     * Returns the type code for an attribute binding
+     */
+    static byte getTypeCode(Class<?> binding) {
+        if (Geometry.class.isAssignableFrom(binding)) {
+            return GEOMETRY;
+        }
+        // most specific classes first, the date ones are subclasses of Date
+        for (byte code = (byte) (BINDINGS.length - 1); code > 0; code--) {
+            if (BINDINGS[code].isAssignableFrom(binding)) {
+                return code;
+            }
+        }
+        // other numbers, keep them exact
+        if (Number.class.isAssignableFrom(binding)) {
+            return BIG_DECIMAL;
+        }
+        return STRING;
+    }
+}
@@ -0,0 +1,70 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.WFSException;
+import org.geoserver.wfs.WFSGetFeatureOutputFormat;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.feature.FeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * A GetFeature response encoding simple features in the compact binary format described in
+ * {@link BinaryFeatures}, streamed straight from the feature iterators. Meant for machine to
+ * machine bulk transfers, where most of the time would otherwise go in encoding and parsing
+ * GML or GeoJSON.
+ */
+public class BinaryGetFeatureResponse extends WFSGetFeatureOutputFormat {
+
+    static final String FORMAT_NAME = "BINARY";
+
+    public BinaryGetFeatureResponse(GeoServer gs) {
+        super(gs, getFormats());
+    }
+
+    static Set<String> getFormats() {
+        Set<String> formats = new HashSet<String>();
+        formats.add(BinaryFeatures.MIME_TYPE);
+        formats.add(FORMAT_NAME);
+        return formats;
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return BinaryFeatures.MIME_TYPE;
+    }
+
+    @Override
+    public String getCapabilitiesElementName() {
+        return FORMAT_NAME;
+    }
+
+    @Override
+    protected void write(FeatureCollectionResponse featureCollection, OutputStream output,
+            Operation getFeature) throws IOException, ServiceException {
+        // check upfront, once the first collection is written out an error cannot be reported
+        for (Object fc : featureCollection.getFeature()) {
+            if (!(((FeatureCollection) fc).getSchema() instanceof SimpleFeatureType)) {
+                throw new WFSException("The " + FORMAT_NAME
+                        + " output format supports only simple features");
+            }
+        }
+
+        BinaryFeatureWriter writer = new BinaryFeatureWriter(output);
+        for (Object fc : featureCollection.getFeature()) {
+            writer.write((FeatureCollection<SimpleFeatureType, SimpleFeature>) fc);
+        }
+        writer.finish();
+    }
+}
@@ -4,11 +4,9 @@
  */
 package org.geoserver.wfs.json;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -121,8 +119,6 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             id_option = JSONType.getIdPolicy( (Map<String,String>) request.getKvp() );
         }
         // prepare to write out
-        OutputStreamWriter osw = null;
-        Writer outWriter = null;
         boolean hasGeom = false;
 
         // get feature count for request
@@ -139,14 +135,14 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         }
         
         try {
-            osw = new OutputStreamWriter(output, gs.getSettings().getCharset());
-            outWriter = new BufferedWriter(osw);
+            Charset charset = Charset.forName(gs.getSettings().getCharset());
+            final GeoJSONWriter jsonWriter = new GeoJSONWriter(output, charset,
+                    getNumDecimals(featureCollection.getFeature()));
 
             if (jsonp) {
-                outWriter.write(getCallbackFunction() + "(");
+                jsonWriter.writeRaw(getCallbackFunction() + "(");
             }
 
-            final GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
             jsonWriter.object().key("type").value("FeatureCollection");
             if(featureCount != null) {
                 jsonWriter.key("totalFeatures").value(featureCount);
@@ -307,10 +303,10 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             jsonWriter.endObject(); // end featurecollection
 
             if (jsonp) {
-                outWriter.write(")");
+                jsonWriter.writeRaw(")");
             }
 
-            outWriter.flush();
+            jsonWriter.flush();
 
         } catch (JSONException jsonException) {
             ServiceException serviceException = new ServiceException("Error: "
@@ -320,8 +316,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         }
     }
 
-    private void writeCrs(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) throws FactoryException {
+    private void writeCrs(final GeoJSONWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws FactoryException, IOException {
         if (crs != null) {
             String identifier = CRS.lookupIdentifier(crs, true);
             // If we get a plain EPSG code, generate a URI as the GeoJSON spec says to 
@@ -349,8 +345,8 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
     }
     
     // Doesn't follow spec, but GeoServer used to do this.
-    private void writeCrsLegacy(final GeoJSONBuilder jsonWriter,
-            CoordinateReferenceSystem crs) {
+    private void writeCrsLegacy(final GeoJSONWriter jsonWriter,
+            CoordinateReferenceSystem crs) throws IOException {
         // Coordinate Referense System, currently only if the namespace is
         // EPSG
         if (crs != null) {
@@ -375,6 +371,25 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
         }
     }
 
+    /**
+     * Returns the number of decimals used to encode the ordinates, the maximum of the ones
+     * configured on the feature types, or the global setting if none is configured
+     */
+    int getNumDecimals(List<FeatureCollection> collections) {
+        int numDecimals = -1;
+        Catalog catalog = gs.getCatalog();
+        for (FeatureCollection collection : collections) {
+            FeatureTypeInfo info = catalog.getFeatureTypeByName(collection.getSchema().getName());
+            if (info != null && info.getNumDecimals() > 0) {
+                numDecimals = Math.max(numDecimals, info.getNumDecimals());
+            }
+        }
+        if (numDecimals == -1) {
+            numDecimals = gs.getSettings().getNumDecimals();
+        }
+        return numDecimals;
+    }
+
     private String getCallbackFunction() {
         Request request = Dispatcher.REQUEST.get();
         if (request == null) {
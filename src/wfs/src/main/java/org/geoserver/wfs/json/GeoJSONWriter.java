@@ -0,0 +1,571 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+import net.sf.json.JSONException;
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.geometry.jts.coordinatesequence.CoordinateSequences;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Streaming GeoJSON encoder, an alternative to {@link GeoJSONBuilder} that writes directly to an
+ * output stream through its own byte buffer.
+ * <p>
+ * Structure and ordinates are written as ASCII bytes, the ordinates are rounded to the configured
+ * number of decimals with trailing zeroes removed, without allocating objects for each
+ * coordinate. Other values are encoded the same way as the json-lib {@link GeoJSONBuilder} does.
+ * </p>
+ * <p>
+ * The writer performs the minimal amount of state tracking needed to place separators, it's up to
+ * the caller to open and close objects and arrays properly.
+ * </p>
+ */
+public class GeoJSONWriter {
+
+    static final int BUFFER_SIZE = 8192;
+
+    /** Largest number of decimals whose scale factor still fits in a long */
+    static final int MAX_DECIMALS = 17;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final byte[] NULL = ascii("null");
+
+    static final byte[] TRUE = ascii("true");
+
+    static final byte[] FALSE = ascii("false");
+
+    final OutputStream out;
+
+    final Charset charset;
+
+    final boolean utf8;
+
+    final byte[] buffer = new byte[BUFFER_SIZE];
+
+    int position;
+
+    /** Whether the next element at each nesting level is the first one */
+    boolean[] first = new boolean[16];
+
+    int depth;
+
+    /** Set after a key, the value following it does not need a separator */
+    boolean afterKey;
+
+    final int numDecimals;
+
+    /** 10^numDecimals, as a long and as a double */
+    final long scale;
+
+    final double doubleScale;
+
+    /** Values at or above this cannot be scaled into a long */
+    final double limit;
+
+    CRS.AxisOrder axisOrder = CRS.AxisOrder.EAST_NORTH;
+
+    /**
+     * Builds a writer using the UTF-8 encoding
+     *
+     * @param out The stream to write to, not closed by the writer
+     * @param numDecimals The number of decimals used to encode ordinates
+     */
+    public GeoJSONWriter(OutputStream out, int numDecimals) {
+        this(out, UTF8, numDecimals);
+    }
+
+    /**
+     * Builds a writer using the specified encoding
+     *
+     * @param out The stream to write to, not closed by the writer
+     * @param charset The charset used to encode non ASCII characters
+     * @param numDecimals The number of decimals used to encode ordinates
+     */
+    public GeoJSONWriter(OutputStream out, Charset charset, int numDecimals) {
+        this.out = out;
+        this.charset = charset;
+        this.utf8 = UTF8.equals(charset);
+        this.numDecimals = Math.max(0, Math.min(numDecimals, MAX_DECIMALS));
+        long s = 1;
+        for (int i = 0; i < this.numDecimals; i++) {
+            s *= 10;
+        }
+        this.scale = s;
+        this.doubleScale = s;
+        this.limit = Long.MAX_VALUE / doubleScale;
+    }
+
+    /**
+     * Set the axis order to assume all input will be provided in. Has no effect on geometries
+     * that have already been written.
+     */
+    public void setAxisOrder(CRS.AxisOrder axisOrder) {
+        this.axisOrder = axisOrder;
+    }
+
+    public int getNumDecimals() {
+        return numDecimals;
+    }
+
+    public GeoJSONWriter object() throws IOException {
+        separator();
+        write('{');
+        push();
+        return this;
+    }
+
+    public GeoJSONWriter endObject() throws IOException {
+        pop();
+        write('}');
+        return this;
+    }
+
+    public GeoJSONWriter array() throws IOException {
+        separator();
+        write('[');
+        push();
+        return this;
+    }
+
+    public GeoJSONWriter endArray() throws IOException {
+        pop();
+        write(']');
+        return this;
+    }
+
+    public GeoJSONWriter key(String key) throws IOException {
+        if (key == null) {
+            throw new JSONException("Null key.");
+        }
+        separator();
+        writeString(key);
+        write(':');
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a value, encoding dates and calendars as ISO 8601 strings like
+     * {@link GeoJSONBuilder#value(Object)} does
+     */
+    public GeoJSONWriter value(Object value) throws IOException {
+        if (value == null) {
+            separator();
+            write(NULL);
+        } else if (value instanceof String) {
+            separator();
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            value(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            value(((Boolean) value).booleanValue());
+        } else if (value instanceof java.util.Date || value instanceof Calendar) {
+            separator();
+            writeString(Converters.convert(value, String.class));
+        } else {
+            // other numbers and the json-lib own types
+            separator();
+            writeRaw(JSONUtils.valueToString(value));
+        }
+        return this;
+    }
+
+    public GeoJSONWriter value(long value) throws IOException {
+        separator();
+        writeLong(value);
+        return this;
+    }
+
+    public GeoJSONWriter value(boolean value) throws IOException {
+        separator();
+        write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    /**
+     * Writes an ordinate value, rounded to the configured number of decimals
+     */
+    public GeoJSONWriter ordinate(double value) throws IOException {
+        separator();
+        writeOrdinate(value);
+        return this;
+    }
+
+    /**
+     * Writes any geometry object
+     */
+    public GeoJSONWriter writeGeom(Geometry geometry) throws IOException {
+        object();
+        key("type");
+        value(GeoJSONBuilder.getGeometryName(geometry));
+
+        final int geometryType = GeoJSONBuilder.getGeometryType(geometry);
+        if (geometryType != GeoJSONBuilder.MULTIGEOMETRY) {
+            key("coordinates");
+
+            switch (geometryType) {
+            case GeoJSONBuilder.POINT:
+                writeCoordinate(((Point) geometry).getCoordinateSequence(), 0, true);
+                break;
+            case GeoJSONBuilder.LINESTRING:
+                writeCoordinates(((LineString) geometry).getCoordinateSequence());
+                break;
+            case GeoJSONBuilder.MULTIPOINT:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writeCoordinate(((Point) geometry.getGeometryN(i)).getCoordinateSequence(), 0,
+                            true);
+                }
+                endArray();
+                break;
+            case GeoJSONBuilder.POLYGON:
+                writePolygon((Polygon) geometry);
+                break;
+            case GeoJSONBuilder.MULTILINESTRING:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writeCoordinates(((LineString) geometry.getGeometryN(i))
+                            .getCoordinateSequence());
+                }
+                endArray();
+                break;
+            case GeoJSONBuilder.MULTIPOLYGON:
+                array();
+                for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                    writePolygon((Polygon) geometry.getGeometryN(i));
+                }
+                endArray();
+                break;
+            }
+        } else {
+            key("geometries");
+            array();
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                writeGeom(geometry.getGeometryN(i));
+            }
+            endArray();
+        }
+
+        return endObject();
+    }
+
+    /**
+     * Writes the "bbox" key followed by the envelope as an array [minX,minY,maxX,maxY]
+     */
+    public GeoJSONWriter writeBoundingBox(Envelope env) throws IOException {
+        key("bbox");
+        array();
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            ordinate(env.getMinY());
+            ordinate(env.getMinX());
+            ordinate(env.getMaxY());
+            ordinate(env.getMaxX());
+        } else {
+            ordinate(env.getMinX());
+            ordinate(env.getMinY());
+            ordinate(env.getMaxX());
+            ordinate(env.getMaxY());
+        }
+        return endArray();
+    }
+
+    /**
+     * Writes the text as is, without separators or escaping (e.g., a JSONP callback)
+     */
+    public void writeRaw(String text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[position++] = (byte) c;
+            } else {
+                i = writeEncoded(text, i);
+            }
+        }
+    }
+
+    /**
+     * Writes out the buffered bytes and flushes the underlying stream
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    void writePolygon(Polygon polygon) throws IOException {
+        array();
+        writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        endArray();
+    }
+
+    void writeCoordinates(CoordinateSequence coords) throws IOException {
+        array();
+        // guess the dimension of the coordinate sequence
+        boolean z = CoordinateSequences.coordinateDimension(coords) > 2;
+        for (int i = 0, n = coords.size(); i < n; i++) {
+            writeCoordinate(coords, i, z);
+        }
+        endArray();
+    }
+
+    void writeCoordinate(CoordinateSequence coords, int i, boolean z) throws IOException {
+        array();
+        if (coords.size() > i) {
+            if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+                ordinate(coords.getY(i));
+                ordinate(coords.getX(i));
+            } else {
+                ordinate(coords.getX(i));
+                ordinate(coords.getY(i));
+            }
+            if (z) {
+                double value = coords.getOrdinate(i, CoordinateSequence.Z);
+                if (!Double.isNaN(value)) {
+                    ordinate(value);
+                }
+            }
+        }
+        endArray();
+    }
+
+    /**
+     * Writes the value rounded to {@link #numDecimals}, with no trailing zeroes and no decimal
+     * separator for integral values, e.g. 1.5, 0, -12.0625
+     */
+    void writeOrdinate(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+        double abs = Math.abs(value);
+        if (abs >= limit) {
+            writeRaw(JSONUtils.numberToString(Double.valueOf(value)));
+            return;
+        }
+        long scaled = Math.round(abs * doubleScale);
+        if (scaled == 0) {
+            // no negative zeroes
+            write('0');
+            return;
+        }
+        // sign, 19 integer digits, separator and the decimals
+        ensure(21 + numDecimals);
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        long fraction = scaled % scale;
+        putLong(scaled / scale);
+        if (fraction != 0) {
+            int digits = numDecimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            buffer[position++] = '.';
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            position += digits;
+        }
+    }
+
+    void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        putLong(value);
+    }
+
+    /**
+     * Puts a non negative long in the buffer, the caller must ensure there is enough space
+     */
+    void putLong(long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Writes a quoted string, falling back on {@link JSONUtils#quote(String)} when escaping is
+     * needed so that the output is the same as the json-lib one
+     */
+    void writeString(String s) throws IOException {
+        int length = s.length();
+        if (needsEscaping(s, length)) {
+            writeRaw(JSONUtils.quote(s));
+            return;
+        }
+        write('"');
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (position == buffer.length) {
+                    flushBuffer();
+                }
+                buffer[position++] = (byte) c;
+            } else {
+                i = writeEncoded(s, i);
+            }
+        }
+        write('"');
+    }
+
+    static boolean needsEscaping(String s, int length) {
+        // json-lib does not quote strings that look like javascript functions
+        if (s.startsWith("function")) {
+            return true;
+        }
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < ' ' || (c == '/' && previous == '<')
+                    || (c >= 0x80 && c < 0xA0) || (c >= 0x2000 && c < 0x2100)) {
+                return true;
+            }
+            previous = c;
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the non ASCII character at the specified position, returns the position of the last
+     * character consumed
+     */
+    int writeEncoded(String s, int i) throws IOException {
+        char c = s.charAt(i);
+        int end = i + 1;
+        if (Character.isHighSurrogate(c) && end < s.length()
+                && Character.isLowSurrogate(s.charAt(end))) {
+            end++;
+        }
+        if (!utf8) {
+            write(s.substring(i, end).getBytes(charset));
+            return end - 1;
+        }
+
+        ensure(4);
+        if (end - i == 2) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buffer[position++] = (byte) (0xF0 | (cp >> 18));
+            buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, same replacement the JDK encoder uses
+            buffer[position++] = '?';
+        } else if (c < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (c >> 6));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buffer[position++] = (byte) (0xE0 | (c >> 12));
+            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return end - 1;
+    }
+
+    void separator() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else if (depth > 0) {
+            if (first[depth]) {
+                first[depth] = false;
+            } else {
+                write(',');
+            }
+        }
+    }
+
+    void push() {
+        depth++;
+        if (depth == first.length) {
+            boolean[] grown = new boolean[first.length * 2];
+            System.arraycopy(first, 0, grown, 0, first.length);
+            first = grown;
+        }
+        first[depth] = true;
+    }
+
+    void pop() {
+        if (depth == 0) {
+            throw new JSONException("Misplaced endObject/endArray.");
+        }
+        depth--;
+    }
+
+    void write(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    void write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    void ensure(int length) throws IOException {
+        if (buffer.length - position < length) {
+            flushBuffer();
+        }
+    }
+
+    void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
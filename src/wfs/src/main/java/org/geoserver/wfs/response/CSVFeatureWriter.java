@@ -0,0 +1,171 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Writes simple features as CSV rows, either on the calling thread, or formatting chunks of
+ * features on a set of worker threads while the calling thread keeps on reading the features and
+ * writes out the formatted chunks in the original order.
+ */
+class CSVFeatureWriter {
+
+    /**
+     * Number of features formatted by a single worker task
+     */
+    static final int CHUNK_SIZE = 1000;
+
+    /**
+     * Buffered chars written out during a sequential encoding
+     */
+    static final int FLUSH_SIZE = 8192;
+
+    final SimpleFeatureType schema;
+
+    final CSVGeometryEncoder geometryEncoder;
+
+    final char separator;
+
+    final int numDecimals;
+
+    final boolean[] geometries;
+
+    CSVFeatureWriter(SimpleFeatureType schema, CSVGeometryEncoder geometryEncoder,
+            char separator, int numDecimals) {
+        this.schema = schema;
+        this.geometryEncoder = geometryEncoder;
+        this.separator = separator;
+        this.numDecimals = numDecimals;
+        this.geometries = new boolean[schema.getAttributeCount()];
+        for (int i = 0; i < geometries.length; i++) {
+            geometries[i] = schema.getDescriptor(i) instanceof GeometryDescriptor;
+        }
+    }
+
+    CSVFormatter newFormatter() {
+        return new CSVFormatter(separator, numDecimals, FLUSH_SIZE * 2);
+    }
+
+    void writeHeader(CSVFormatter formatter) {
+        formatter.field("FID");
+        for (int i = 0; i < geometries.length; i++) {
+            AttributeDescriptor ad = schema.getDescriptor(i);
+            if (geometries[i]) {
+                for (String name : geometryEncoder.getColumnNames(ad.getLocalName())) {
+                    formatter.field(name);
+                }
+            } else {
+                formatter.field(ad.getLocalName());
+            }
+        }
+        formatter.endRow();
+    }
+
+    void encode(SimpleFeature feature, CSVFormatter formatter) {
+        formatter.field(feature.getID());
+        for (int i = 0; i < geometries.length; i++) {
+            Object value = feature.getAttribute(i);
+            if (geometries[i]) {
+                geometryEncoder.encode((Geometry) value, formatter);
+            } else {
+                formatter.value(value);
+            }
+        }
+        formatter.endRow();
+    }
+
+    /**
+     * Writes the header and the features on the calling thread
+     */
+    void write(FeatureIterator<SimpleFeature> features, Writer writer) throws IOException {
+        CSVFormatter formatter = newFormatter();
+        writeHeader(formatter);
+        while (features.hasNext()) {
+            encode(features.next(), formatter);
+            if (formatter.length() > FLUSH_SIZE) {
+                formatter.writeTo(writer);
+            }
+        }
+        formatter.writeTo(writer);
+    }
+
+    /**
+     * Writes the header and the features, formatting chunks of features in the executor. At most
+     * <code>maxPending</code> chunks are kept in memory, when the limit is reached the calling
+     * thread waits for the oldest chunk to be ready and writes it out.
+     */
+    void write(FeatureIterator<SimpleFeature> features, Writer writer, ExecutorService executor,
+            int maxPending) throws IOException {
+        CSVFormatter header = newFormatter();
+        writeHeader(header);
+        header.writeTo(writer);
+
+        LinkedList<Future<CSVFormatter>> pending = new LinkedList<Future<CSVFormatter>>();
+        try {
+            while (features.hasNext()) {
+                final List<SimpleFeature> chunk = new ArrayList<SimpleFeature>(CHUNK_SIZE);
+                while (chunk.size() < CHUNK_SIZE && features.hasNext()) {
+                    chunk.add(features.next());
+                }
+                pending.add(executor.submit(new Callable<CSVFormatter>() {
+
+                    @Override
+                    public CSVFormatter call() throws Exception {
+                        CSVFormatter formatter = newFormatter();
+                        for (SimpleFeature feature : chunk) {
+                            encode(feature, formatter);
+                        }
+                        return formatter;
+                    }
+                }));
+                if (pending.size() >= maxPending) {
+                    next(pending).writeTo(writer);
+                }
+            }
+            while (!pending.isEmpty()) {
+                next(pending).writeTo(writer);
+            }
+        } finally {
+            // on failure, don't waste time formatting chunks nobody will write out
+            for (Future<CSVFormatter> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    CSVFormatter next(LinkedList<Future<CSVFormatter>> pending) throws IOException {
+        Future<CSVFormatter> future = pending.removeFirst();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the CSV encoding");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to encode the features in CSV", cause);
+        }
+    }
+}
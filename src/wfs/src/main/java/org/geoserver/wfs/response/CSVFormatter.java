@@ -0,0 +1,274 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.NumberFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.geotools.feature.type.DateUtil;
+
+/**
+ * Accumulates CSV rows in memory, escaping the fields as required by RFC 4180 and formatting
+ * numbers and dates without going through the general purpose formatters when possible.
+ * <p>
+ * Separators between the fields of a row are added automatically, callers just call one of the
+ * field methods per column and then {@link #endRow()}. The output is the same the
+ * {@link NumberFormat} based code used to produce: numbers are rounded half even to the
+ * configured number of decimals, without grouping or scientific notation, and dates are
+ * serialized in ISO format.
+ * </p>
+ * <p>
+ * Instances are not thread safe, use one per thread.
+ * </p>
+ */
+public class CSVFormatter {
+
+    static final long[] POWERS = new long[16];
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Above this magnitude the scaled value of a double cannot be rounded reliably in a long
+     */
+    static final double MAX_SCALED = 1e15;
+
+    final char separator;
+
+    final int numDecimals;
+
+    final double scale;
+
+    final StringBuilder sb;
+
+    boolean first = true;
+
+    NumberFormat numberFormat;
+
+    char[] chars;
+
+    // dates are often repeated on consecutive rows, keep the last one around
+    Class<?> lastDateClass;
+
+    long lastDateTime;
+
+    String lastDateString;
+
+    /**
+     * Builds a new formatter
+     *
+     * @param separator The field separator, usually a comma or a tab
+     * @param numDecimals The maximum number of decimals used when formatting numbers
+     */
+    public CSVFormatter(char separator, int numDecimals) {
+        this(separator, numDecimals, 8192);
+    }
+
+    CSVFormatter(char separator, int numDecimals, int capacity) {
+        if (separator == '"' || separator == '\r' || separator == '\n') {
+            throw new IllegalArgumentException("Invalid CSV separator: " + separator);
+        }
+        this.separator = separator;
+        this.numDecimals = Math.max(0, numDecimals);
+        this.scale = this.numDecimals < POWERS.length ? POWERS[this.numDecimals] : 0;
+        this.sb = new StringBuilder(capacity);
+    }
+
+    /**
+     * Writes a textual field, quoting it if it contains separators, quotes or line ends. A null
+     * value results in an empty field
+     */
+    public void field(String value) {
+        separator();
+        if (value == null) {
+            return;
+        }
+
+        int length = value.length();
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == '"' || c == '\n' || c == '\r' || c == separator;
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+
+        // "embedded double-quote characters must be represented by a pair of double-quote
+        // characters"
+        sb.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Writes a field, picking the formatting based on the value type. A null value results in
+     * an empty field
+     */
+    public void value(Object value) {
+        if (value == null) {
+            field(null);
+        } else if (value instanceof Double || value instanceof Float) {
+            number(((Number) value).doubleValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            number(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            separator();
+            sb.append(getNumberFormat().format(value));
+        } else if (value instanceof Date) {
+            date((Date) value);
+        } else {
+            // everything else we just "toString"
+            field(value.toString());
+        }
+    }
+
+    /**
+     * Writes an integral number field
+     */
+    public void number(long value) {
+        separator();
+        sb.append(value);
+    }
+
+    /**
+     * Writes a floating point number field, rounded to the configured number of decimals
+     */
+    public void number(double value) {
+        separator();
+        if (scale > 0) {
+            double scaled = value * scale;
+            if (Math.abs(scaled) < MAX_SCALED) {
+                double floor = Math.floor(scaled);
+                // exact, floor and scaled are too close for the subtraction to lose precision
+                double fraction = scaled - floor;
+                // the multiplication above can be off by half an ulp, close to a tie the
+                // rounding direction would depend on it
+                if (Math.abs(fraction - 0.5) > Math.ulp(scaled)) {
+                    long units = (long) (fraction < 0.5 ? floor : floor + 1);
+                    // NumberFormat writes "-0" for small negative values, let it handle them
+                    if (units != 0 || Double.doubleToRawLongBits(value) == 0) {
+                        appendUnits(units);
+                        return;
+                    }
+                }
+            }
+        }
+        // don't allow scientific notation in the output, as OpenOffice won't
+        // recognize that as a number
+        sb.append(getNumberFormat().format(value));
+    }
+
+    void appendUnits(long units) {
+        if (units < 0) {
+            sb.append('-');
+            units = -units;
+        }
+        long divisor = POWERS[numDecimals];
+        sb.append(units / divisor);
+        long decimals = units % divisor;
+        if (decimals != 0) {
+            int digits = numDecimals;
+            while (decimals % 10 == 0) {
+                decimals /= 10;
+                digits--;
+            }
+            sb.append('.');
+            for (int i = digits - 1; i > 0 && decimals < POWERS[i]; i--) {
+                sb.append('0');
+            }
+            sb.append(decimals);
+        }
+    }
+
+    /**
+     * Writes a date field in ISO format
+     */
+    public void date(Date date) {
+        separator();
+        long time = date.getTime();
+        if (date.getClass() != lastDateClass || time != lastDateTime) {
+            if (date instanceof java.sql.Date) {
+                lastDateString = DateUtil.serializeSqlDate((java.sql.Date) date);
+            } else if (date instanceof java.sql.Time) {
+                lastDateString = DateUtil.serializeSqlTime((java.sql.Time) date);
+            } else {
+                lastDateString = DateUtil.serializeDateTime(date);
+            }
+            lastDateClass = date.getClass();
+            lastDateTime = time;
+        }
+        sb.append(lastDateString);
+    }
+
+    /**
+     * Terminates the current row, by RFC each line is terminated by CRLF
+     */
+    public void endRow() {
+        sb.append("\r\n");
+        first = true;
+    }
+
+    void separator() {
+        if (first) {
+            first = false;
+        } else {
+            sb.append(separator);
+        }
+    }
+
+    NumberFormat getNumberFormat() {
+        if (numberFormat == null) {
+            numberFormat = NumberFormat.getInstance(Locale.US);
+            numberFormat.setMaximumFractionDigits(numDecimals);
+            numberFormat.setGroupingUsed(false);
+        }
+        return numberFormat;
+    }
+
+    /**
+     * Number of buffered chars
+     */
+    public int length() {
+        return sb.length();
+    }
+
+    /**
+     * Writes out the buffered rows and clears the buffer
+     */
+    public void writeTo(Writer writer) throws IOException {
+        int length = sb.length();
+        int offset = 0;
+        if (chars == null) {
+            chars = new char[8192];
+        }
+        while (offset < length) {
+            int end = Math.min(length, offset + chars.length);
+            sb.getChars(offset, end, chars, 0);
+            writer.write(chars, 0, end - offset);
+            offset = end;
+        }
+        sb.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -0,0 +1,33 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Encodes the geometries of a CSV output as one or more columns. Implementations are looked up
+ * in the application context and picked with the GEOMETRY format option of the CSV output
+ * format, they have to be thread safe.
+ */
+public interface CSVGeometryEncoder {
+
+    /**
+     * The name used to pick this encoder in the GEOMETRY format option (case insensitive)
+     */
+    String getName();
+
+    /**
+     * Returns the header names of the columns used to encode a geometry attribute
+     */
+    List<String> getColumnNames(String attributeName);
+
+    /**
+     * Writes the geometry, calling the formatter once per column. The geometry can be null, in
+     * which case empty fields should be written
+     */
+    void encode(Geometry geometry, CSVFormatter formatter);
+}
@@ -4,32 +4,36 @@
  */
 package org.geoserver.wfs.response;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.text.NumberFormat;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Collection;
-import java.util.Date;
-import java.util.Iterator;
-import java.util.Locale;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.xsd.XSDElementDeclaration;
 import org.eclipse.xsd.impl.XSDElementDeclarationImpl;
 import org.geoserver.config.GeoServer;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.WFSException;
 import org.geoserver.wfs.WFSGetFeatureOutputFormat;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
-import org.geotools.feature.type.DateUtil;
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.PropertyDescriptor;
 
 /**
@@ -43,6 +47,75 @@ import org.opengis.feature.type.PropertyDescriptor;
  */
 public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
+    /**
+     * WFS metadata key holding the number of threads used to format simple features, zero or
+     * missing means the features are formatted on the request thread. The threads are shared by
+     * all the CSV requests.
+     */
+    public static final String CSV_THREADS = "CSV_THREADS";
+
+    static final String TSV_MIME_TYPE = "text/tab-separated-values";
+
+    static ExecutorService EXECUTOR;
+
+    static int EXECUTOR_THREADS;
+
+    /**
+     * The number of requests using each pool, a replaced pool is shut down once idle
+     */
+    static final Map<ExecutorService, Integer> EXECUTOR_USERS =
+            new IdentityHashMap<ExecutorService, Integer>();
+
+    /**
+     * Returns the pool shared by all the CSV requests, rebuilt when the configured number of
+     * threads changes
+     */
+    static synchronized ExecutorService getExecutor(int threads) {
+        if (EXECUTOR == null || EXECUTOR_THREADS != threads) {
+            if (EXECUTOR != null && !EXECUTOR_USERS.containsKey(EXECUTOR)) {
+                // the requests still using the old pool will shut it down
+                EXECUTOR.shutdown();
+            }
+            final AtomicInteger count = new AtomicInteger();
+            EXECUTOR = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GeoServer CSV formatting thread "
+                            + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            EXECUTOR_THREADS = threads;
+        }
+        return EXECUTOR;
+    }
+
+    /**
+     * Returns the shared pool, which is not going to be shut down until released with
+     * {@link #releaseExecutor(ExecutorService)}
+     */
+    static synchronized ExecutorService acquireExecutor(int threads) {
+        ExecutorService executor = getExecutor(threads);
+        Integer users = EXECUTOR_USERS.get(executor);
+        EXECUTOR_USERS.put(executor, users == null ? 1 : users + 1);
+        return executor;
+    }
+
+    static synchronized void releaseExecutor(ExecutorService executor) {
+        int users = EXECUTOR_USERS.get(executor) - 1;
+        if (users > 0) {
+            EXECUTOR_USERS.put(executor, users);
+        } else {
+            EXECUTOR_USERS.remove(executor);
+            if (executor != EXECUTOR) {
+                // replaced while in use, now idle
+                executor.shutdown();
+            }
+        }
+    }
+
     public CSVOutputFormat(GeoServer gs) {
         //this is the name of your output format, it is the string
         // that will be used when requesting the format in a 
@@ -52,11 +125,14 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     }
     
     /**
-     * @return "text/csv";
+     * @return "text/csv", or "text/tab-separated-values" if the tab separator was requested
      */
     @Override
     public String getMimeType(Object value, Operation operation)
                throws ServiceException {
+        if (getSeparator(operation) == '\t') {
+            return TSV_MIME_TYPE;
+        }
         // won't allow browsers to open it directly, but that's the mime
         // state in the RFC
         return "text/csv";
@@ -71,7 +147,7 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     public String getAttachmentFileName(Object value, Operation operation) {
         GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
         String outputFileName = request.getQueries().get(0).getTypeNames().get(0).getLocalPart();
-        return outputFileName + ".csv";
+        return outputFileName + (getSeparator(operation) == '\t' ? ".tsv" : ".csv");
     }
     
     /**
@@ -81,164 +157,150 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     protected void write(FeatureCollectionResponse featureCollection,
             OutputStream output, Operation getFeature) throws IOException,
             ServiceException {
-    	   //write out content here
-        
-        //create a writer
-        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output ) );
-                   
+        SettingsInfo settings = gs.getSettings();
+        Writer w = new OutputStreamWriter(output, Charset.forName(settings.getCharset()));
+        char separator = getSeparator(getFeature);
+        int numDecimals = settings.getNumDecimals();
+
         //get the feature collection
         FeatureCollection<?, ?> fc = 
             (FeatureCollection<?, ?>) featureCollection.getFeature().get(0);           
         
         if (fc.getSchema() instanceof SimpleFeatureType) {
-            //write out the header
-            SimpleFeatureType ft = (SimpleFeatureType) fc.getSchema();
-            w.write("FID,");
-            for ( int i = 0; i < ft.getAttributeCount(); i++ ) {
-                AttributeDescriptor ad = ft.getDescriptor( i );
-                w.write( prepCSVField(ad.getLocalName()) );
-                   
-                if ( i < ft.getAttributeCount()-1 ) {
-                   w.write( "," );
+            CSVFeatureWriter writer = new CSVFeatureWriter((SimpleFeatureType) fc.getSchema(),
+                    getGeometryEncoder(getFeature), separator, numDecimals);
+            Integer threads = getInfo().getMetadata().get(CSV_THREADS, Integer.class);
+            FeatureIterator<SimpleFeature> i = 
+                ((FeatureCollection<SimpleFeatureType, SimpleFeature>) fc).features();
+            try {
+                if (threads != null && threads > 1) {
+                    // the same pool is used for the whole request, even if the threads change
+                    ExecutorService executor = acquireExecutor(threads);
+                    try {
+                        writer.write(i, w, executor, threads * 2);
+                    } finally {
+                        releaseExecutor(executor);
+                    }
+                } else {
+                    writer.write(i, w);
                 }
+            } finally {
+                i.close();
             }
         } else {
-            // complex features
-            w.write("gml:id,");
-
-            int i = 0;
-            for (PropertyDescriptor att : fc.getSchema().getDescriptors()) {
-                // exclude temporary attributes
-                if (!att.getName().getLocalPart().startsWith("FEATURE_LINK")) {
-                    if (i > 0) {
-                        w.write(",");
-                    }
-                    String elName = att.getName().toString();
-                    Object xsd = att.getUserData().get(XSDElementDeclaration.class);
-                    if (xsd != null && xsd instanceof XSDElementDeclarationImpl) {
-                        // get the prefixed name if possible
-                        // otherwise defaults to the full name with namespace URI
-                        XSDElementDeclarationImpl xsdEl = (XSDElementDeclarationImpl) xsd;
-                        elName = xsdEl.getQName();
-                    }
-                    w.write(prepCSVField(elName));
-                    i++;
+            writeComplex(fc, new CSVFormatter(separator, numDecimals), w);
+        }
+
+        w.flush();
+    }
+
+    void writeComplex(FeatureCollection<?, ?> fc, CSVFormatter formatter, Writer w)
+            throws IOException {
+        formatter.field("gml:id");
+        for (PropertyDescriptor att : fc.getSchema().getDescriptors()) {
+            // exclude temporary attributes
+            if (!att.getName().getLocalPart().startsWith("FEATURE_LINK")) {
+                String elName = att.getName().toString();
+                Object xsd = att.getUserData().get(XSDElementDeclaration.class);
+                if (xsd != null && xsd instanceof XSDElementDeclarationImpl) {
+                    // get the prefixed name if possible
+                    // otherwise defaults to the full name with namespace URI
+                    XSDElementDeclarationImpl xsdEl = (XSDElementDeclarationImpl) xsd;
+                    elName = xsdEl.getQName();
                 }
+                formatter.field(elName);
             }
         }
-        // by RFC each line is terminated by CRLF
-        w.write( "\r\n" );
-        
-        // prepare the formatter for numbers
-        NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
-        coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getSettings().getNumDecimals());
-        coordFormatter.setGroupingUsed(false);
-           
+        formatter.endRow();
+
         //write out the features
         FeatureIterator<?> i = fc.features();
         try {
             while( i.hasNext() ) {                
                 Feature f = i.next();
                 // dump fid
-                w.write(prepCSVField(f.getIdentifier().getID()));
-                w.write(",");
-                if (f instanceof SimpleFeature) {
-                    // dump attributes
-                    for ( int j = 0; j < ((SimpleFeature) f).getAttributeCount(); j++ ) {
-                        Object att = ((SimpleFeature) f).getAttribute( j );
-                        if ( att != null ) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write( prepCSVField(value) );
-                        }
-                        if ( j < ((SimpleFeature) f).getAttributeCount()-1 ) {
-                            w.write(",");    
-                        }
+                formatter.field(f.getIdentifier().getID());
+                // dump attributes
+                for (PropertyDescriptor desc : fc.getSchema().getDescriptors()) {
+                    if (desc.getName().getLocalPart().startsWith("FEATURE_LINK")) {
+                        // skip temporary attributes
+                        continue;
                     }
-                } else {
-                    // complex feature
-                    Iterator<PropertyDescriptor> descriptors = fc.getSchema().getDescriptors().iterator();
-                    
-                    // dump attributes
-                    int j = 0;
-                    while (descriptors.hasNext()) {
-                        PropertyDescriptor desc = descriptors.next();
-                        
-                        if (desc.getName().getLocalPart().startsWith("FEATURE_LINK")) {
-                            // skip temporary attributes
-                            continue;
-                        }
-                        if (j > 0) {
-                            w.write(",");
-                        }
-                        j++;
-                        // Multi valued properties aren't supported, only for SF0 for now
-                        Collection<Property> values = f.getProperties(desc.getName());
-                        if (values.size() > 1) {
-                            throw new UnsupportedOperationException(
-                                    "Multi valued properties aren't supported with CSV format!");
-                        }
-
-                        Object att = null;
-                        if (!values.isEmpty()) {
-                            att = values.iterator().next().getValue();
-                        }
-
-                        if (att != null) {
-                            String value = formatToString(att, coordFormatter);
-                            w.write(prepCSVField(value));
-                        }     
+                    // Multi valued properties aren't supported, only for SF0 for now
+                    Collection<Property> values = f.getProperties(desc.getName());
+                    if (values.size() > 1) {
+                        throw new UnsupportedOperationException(
+                                "Multi valued properties aren't supported with CSV format!");
+                    }
+
+                    Object att = null;
+                    if (!values.isEmpty()) {
+                        att = values.iterator().next().getValue();
                     }
+                    formatter.value(att);
+                }
+                formatter.endRow();
+                if (formatter.length() > CSVFeatureWriter.FLUSH_SIZE) {
+                    formatter.writeTo(w);
                 }
-                // by RFC each line is terminated by CRLF
-                w.write("\r\n");
             }
         } finally {
             i.close();
         }
-           
-        w.flush();
+        formatter.writeTo(w);
     }
-    
-    private String formatToString(Object att, NumberFormat coordFormatter) {
-        String value = null;
-        if (att instanceof Number) {
-            // don't allow scientific notation in the output, as OpenOffice won't
-            // recognize that as a number
-            value = coordFormatter.format(att);
-        } else if (att instanceof Date) {
-            // serialize dates in ISO format
-            if (att instanceof java.sql.Date)
-                value = DateUtil.serializeSqlDate((java.sql.Date) att);
-            else if (att instanceof java.sql.Time)
-                value = DateUtil.serializeSqlTime((java.sql.Time) att);
-            else
-                value = DateUtil.serializeDateTime((Date) att);
-        } else {
-            // everything else we just "toString"
-            value = att.toString();
+
+    /**
+     * Returns the field separator, a comma unless the SEPARATOR format option asks for a
+     * different one, either as a single char or as "tab"
+     */
+    char getSeparator(Operation operation) {
+        Object separator = getFormatOption(operation, "SEPARATOR");
+        if (separator == null) {
+            return ',';
+        }
+        String value = separator.toString();
+        if ("tab".equalsIgnoreCase(value) || "\\t".equals(value)) {
+            return '\t';
+        } else if (value.length() != 1 || value.charAt(0) == '"' || value.charAt(0) == '\r'
+                || value.charAt(0) == '\n') {
+            throw new WFSException("Invalid CSV separator: " + value,
+                    ServiceException.INVALID_PARAMETER_VALUE, "format_options");
         }
-        return value;
+        return value.charAt(0);
     }
 
-    /*
-     * The CSV "spec" explains that fields with certain properties must be
-     * delimited by double quotes, and also that double quotes within fields
-     * must be escaped.  This method takes a field and returns one that
-     * obeys the CSV spec.
-     */    
-    private String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-    	String mod = field.replaceAll("\"", "\"\"");
-    	
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-    	if(mod.matches(".*(\"|\n|,).*")){
-    		mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
+    /**
+     * Returns the geometry encoder picked by the GEOMETRY format option, among the ones
+     * registered in the application context, defaulting to WKT
+     */
+    CSVGeometryEncoder getGeometryEncoder(Operation operation) {
+        Object name = getFormatOption(operation, "GEOMETRY");
+        if (name == null) {
+            name = WKTGeometryEncoder.NAME;
+        }
+        for (CSVGeometryEncoder encoder : GeoServerExtensions.extensions(CSVGeometryEncoder.class)) {
+            if (encoder.getName().equalsIgnoreCase(name.toString())) {
+                return encoder;
+            }
+        }
+        if (WKTGeometryEncoder.NAME.equalsIgnoreCase(name.toString())) {
+            return new WKTGeometryEncoder();
+        }
+        throw new WFSException("Unknown CSV geometry encoding: " + name,
+                ServiceException.INVALID_PARAMETER_VALUE, "format_options");
+    }
+
+    Object getFormatOption(Operation operation, String key) {
+        if (operation == null || operation.getParameters() == null
+                || operation.getParameters().length == 0) {
+            return null;
+        }
+        GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
+        if (request == null || request.getFormatOptions() == null) {
+            return null;
+        }
+        return request.getFormatOptions().get(key);
     }
     
     @Override
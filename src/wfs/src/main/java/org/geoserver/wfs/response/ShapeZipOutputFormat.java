@@ -31,12 +31,14 @@ import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogBuilder;
 import org.geoserver.catalog.FeatureTypeInfo;
@@ -58,8 +60,11 @@ import org.geoserver.wfs.WFSGetFeatureOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geoserver.wfs.request.Query;
+import org.geotools.data.DataAccess;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureWriter;
 import org.geotools.data.Transaction;
 import org.geotools.data.shapefile.ShapefileDataStore;
@@ -73,10 +78,13 @@ import org.geotools.util.logging.Logging;
 import org.geotools.wfs.v1_1.WFS;
 import org.geotools.wfs.v1_1.WFSConfiguration;
 import org.geotools.xml.Encoder;
+import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.sort.SortBy;
 import org.opengis.referencing.FactoryException;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -109,6 +117,10 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private static final Logger LOGGER = Logging.getLogger(ShapeZipOutputFormat.class);
     public static final String GS_SHAPEFILE_CHARSET = "GS-SHAPEFILE-CHARSET";
     public static final String SHAPE_ZIP_DEFAULT_PRJ_IS_ESRI = "SHAPE-ZIP_DEFAULT_PRJ_IS_ESRI";
+    /**
+     * WFS metadata key making the streaming output the default, see {@link #isStreaming}
+     */
+    public static final String SHAPE_ZIP_STREAMING = "SHAPE-ZIP_STREAMING";
     
     private static final Configuration templateConfig = new Configuration();
     
@@ -213,6 +225,11 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
      */
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, 
         GetFeatureRequest request) throws IOException, ServiceException {
+        if (isStreaming(collections, request)) {
+            writeStreaming(collections, charset, output, request);
+            return;
+        }
+
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
         File tempDir = IOUtils.createTempDirectory("shpziptemp");
@@ -278,6 +295,161 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Returns true if the output should be streamed, that is, if asked to with the STREAMING
+     * format option or by default in the WFS metadata, if all the collections have a specific
+     * geometry type (the generic ones are fanned out to one shapefile per geometry type, which
+     * cannot be done in a single pass) and if all of them return the features in a stable order
+     */
+    boolean isStreaming(List<SimpleFeatureCollection> collections, GetFeatureRequest request) {
+        if (!isStreamingRequested(request, gs.getService(WFSInfo.class))) {
+            return false;
+        }
+        // GetFeature does not sort the joins
+        if (request != null) {
+            for (Query query : request.getQueries()) {
+                if (query.getTypeNames().size() > 1) {
+                    return false;
+                }
+            }
+        }
+
+        for (SimpleFeatureCollection collection : collections) {
+            GeometryDescriptor gd = collection.getSchema().getGeometryDescriptor();
+            if (gd == null) {
+                return false;
+            }
+            Class geomType = gd.getType().getBinding();
+            if (GeometryCollection.class.equals(geomType) || Geometry.class.equals(geomType)) {
+                return false;
+            }
+            if (!hasStableOrder(collection)) {
+                LOGGER.fine("The store of " + collection.getSchema().getName() + " cannot sort "
+                        + "the features on their natural order, not streaming the shapefile");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the streaming output is asked for, either with the STREAMING format option
+     * or by default in the WFS metadata
+     */
+    public static boolean isStreamingRequested(GetFeatureRequest request, WFSInfo wfs) {
+        Object streaming = null;
+        if (request != null && request.getFormatOptions() != null) {
+            streaming = request.getFormatOptions().get("STREAMING");
+        }
+        if (streaming == null) {
+            streaming = wfs.getMetadata().get(SHAPE_ZIP_STREAMING, Boolean.class);
+        }
+        return streaming != null && Boolean.valueOf(streaming.toString());
+    }
+
+    /**
+     * Returns true if the collection returns the features in the same order on every read. The
+     * streaming writer reads them three times, this is the case only for the sources that can
+     * sort on the natural order, since GetFeature then adds that sort to the query.
+     */
+    boolean hasStableOrder(SimpleFeatureCollection collection) {
+        FeatureTypeInfo ftInfo = catalog.getFeatureTypeByName(collection.getSchema().getName());
+        return ftInfo != null && supportsNaturalOrder(ftInfo);
+    }
+
+    /**
+     * Returns true if the native store of the feature type can sort on the natural order (e.g.,
+     * the primary key of a table). The GeoServer feature source sorts in memory what the store
+     * cannot, so the capabilities of the native one are checked.
+     */
+    public static boolean supportsNaturalOrder(FeatureTypeInfo ftInfo) {
+        try {
+            DataAccess<? extends FeatureType, ? extends Feature> dataAccess = ftInfo.getStore()
+                    .getDataStore(null);
+            FeatureSource<? extends FeatureType, ? extends Feature> source;
+            if (dataAccess instanceof DataStore) {
+                source = ((DataStore) dataAccess).getFeatureSource(ftInfo.getNativeName());
+            } else {
+                source = dataAccess.getFeatureSource(ftInfo.getQualifiedNativeName());
+            }
+            return source.getQueryCapabilities().supportsSorting(
+                    new SortBy[] { SortBy.NATURAL_ORDER });
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not check the sorting capabilities of "
+                    + ftInfo.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the shapefiles straight into the zip output, see {@link StreamingShapefileWriter}
+     */
+    void writeStreaming(List<SimpleFeatureCollection> collections, Charset charset,
+            OutputStream output, GetFeatureRequest request) throws IOException {
+        // scan all the collections before writing anything, so that a shapefile too large for
+        // its header fails the request with a proper error instead of a truncated zip
+        List<StreamingShapefileWriter> writers = new ArrayList<StreamingShapefileWriter>();
+        for (SimpleFeatureCollection collection : collections) {
+            FeatureTypeInfo ftInfo = getFeatureTypeInfo(collection);
+            String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, null);
+            SimpleFeatureCollection remapped = remapCollectionSchema(collection, null);
+            StreamingShapefileWriter writer = createStreamingWriter(remapped, fileName, charset);
+            writer.scan();
+            writers.add(writer);
+        }
+
+        ZipOutputStream zipOut = new ZipOutputStream(output);
+
+        // the small entries go first, so that the client starts receiving data right away
+        final Request dispatcherRequest = Dispatcher.REQUEST.get();
+        if (dispatcherRequest != null && request != null) {
+            FeatureTypeInfo ftInfo = getFeatureTypeInfo(collections.get(0));
+            String fileName = new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
+            zipOut.putNextEntry(new ZipEntry(fileName));
+            writeRequestDump(dispatcherRequest, request, new CloseShieldOutputStream(zipOut));
+            zipOut.closeEntry();
+        }
+
+        for (StreamingShapefileWriter writer : writers) {
+            String fileName = writer.fileName;
+            SimpleFeatureType schema = writer.features.getSchema();
+
+            // dump the charset into a .cst file, for debugging and control purposes
+            writeEntry(zipOut, fileName + ".cst", charset.name());
+            String prj = null;
+            try {
+                if (isESRIFormat(request)) {
+                    prj = getESRIPrj(schema);
+                }
+                if (prj == null && schema.getCoordinateReferenceSystem() != null) {
+                    prj = schema.getCoordinateReferenceSystem().toWKT();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not properly create the .prj file", e);
+            }
+            if (prj != null) {
+                writeEntry(zipOut, fileName + ".prj", prj);
+            }
+            zipOut.flush();
+
+            writer.write(zipOut);
+        }
+
+        zipOut.finish();
+    }
+
+    StreamingShapefileWriter createStreamingWriter(SimpleFeatureCollection features,
+            String fileName, Charset charset) {
+        return new StreamingShapefileWriter(features, fileName, charset);
+    }
+
+    private void writeEntry(ZipOutputStream zipOut, String name, String contents)
+            throws IOException {
+        zipOut.putNextEntry(new ZipEntry(name));
+        zipOut.write(contents.getBytes());
+        zipOut.closeEntry();
+    }
+
     /**
      * Dumps the request
      * @param simpleFeatureCollection
@@ -295,37 +467,13 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         File target = new File(tempDir, fileName);
         
         try {
-            if(request.isGet()) {
-                final HttpServletRequest httpRequest = request.getHttpRequest();
-                String baseUrl = ResponseUtils.baseURL(httpRequest);
-                String path = request.getPath();
-                //encode proxy url if existing
-                String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
-                StringBuilder url = new StringBuilder();
-                String parameters = httpRequest.getQueryString();
-				url.append(mangledUrl).append("?").append(parameters);
-                FileUtils.writeStringToFile(target, url.toString());
-            } else {
-                org.geotools.xml.Configuration cfg = null;
-                QName elementName = null;
-                if(gft.getVersion().equals("1.1.0")) {
-                    cfg = new WFSConfiguration();
-                    elementName = WFS.GetFeature;
-                } else {
-                    cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
-                    elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
-                }
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(target);
-                    Encoder encoder = new Encoder(cfg);
-                    encoder.setIndenting(true);
-                    encoder.setIndentSize(2);
-                    encoder.encode(gft, elementName, fos);
-                } finally {
-                    if(fos != null)
-                        fos.close();
-                }
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(target);
+                writeRequestDump(request, gft, fos);
+            } finally {
+                if(fos != null)
+                    fos.close();
             }
         } catch(IOException e) {
             throw new WFSException(gft, "Failed to dump the WFS request");
@@ -333,6 +481,38 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         
     }
 
+    /**
+     * Writes the request, as a GET url or as a XML document for POST requests
+     */
+    private void writeRequestDump(Request request, GetFeatureRequest gft, OutputStream out)
+            throws IOException {
+        if(request.isGet()) {
+            final HttpServletRequest httpRequest = request.getHttpRequest();
+            String baseUrl = ResponseUtils.baseURL(httpRequest);
+            String path = request.getPath();
+            //encode proxy url if existing
+            String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
+            StringBuilder url = new StringBuilder();
+            String parameters = httpRequest.getQueryString();
+            url.append(mangledUrl).append("?").append(parameters);
+            out.write(url.toString().getBytes());
+        } else {
+            org.geotools.xml.Configuration cfg = null;
+            QName elementName = null;
+            if(gft.getVersion().equals("1.1.0")) {
+                cfg = new WFSConfiguration();
+                elementName = WFS.GetFeature;
+            } else {
+                cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
+                elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
+            }
+            Encoder encoder = new Encoder(cfg);
+            encoder.setIndenting(true);
+            encoder.setIndentSize(2);
+            encoder.encode(gft, elementName, out);
+        }
+    }
+
     private void createEmptyZipWarning(File tempDir) throws IOException {
         PrintWriter pw = null;
         try {
@@ -437,12 +617,17 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private void changeWKTFormatIfFileFormatIsESRI(File tempDir, GetFeatureRequest request,
             String fileName, SimpleFeatureType remappedSchema) throws FactoryException,
             IOException, FileNotFoundException {
-        
+        if (isESRIFormat(request)) {
+            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+        }
+    }
+
+    private boolean isESRIFormat(GetFeatureRequest request) {
         boolean useEsriFormat = false;
         
         // if the request originates from the WPS we won't actually have any GetFeatureType request
         if(request == null) {
-            return;
+            return false;
         }
         
         Map<String, ?> formatOptions = request.getFormatOptions();
@@ -455,20 +640,37 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }else{
             useEsriFormat = "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
         }
-        
-        if (useEsriFormat) {
-            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
-        }
+        return useEsriFormat;
     }
 
     private void replaceOGCPrjFileByESRIPrjFile(File tempDir, String fileName,
             SimpleFeatureType remappedSchema) throws FactoryException, IOException,
             FileNotFoundException {
+        String data = getESRIPrj(remappedSchema);
+        if (data != null) {
+            File prjShapeFile = new File(tempDir, fileName + ".prj");
+            prjShapeFile.delete();
+
+            BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the ESRI WKT for the schema CRS in user_projections/esri.properties, returns null
+     * if not found
+     */
+    private String getESRIPrj(SimpleFeatureType remappedSchema) throws FactoryException,
+            IOException {
         final Integer epsgCode = CRS.lookupEpsgCode(remappedSchema.getGeometryDescriptor()
                 .getCoordinateReferenceSystem(), true);
         if(epsgCode == null){
             LOGGER.info("Can't find the EPSG code for the shapefile CRS");
-            return;
+            return null;
         }
         File file = resourceLoader.find("user_projections", "esri.properties");
 
@@ -485,23 +687,15 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
 
             String data = (String) properties.get(epsgCode.toString());
 
-            if (data != null) {
-                File prjShapeFile = new File(tempDir, fileName + ".prj");
-                prjShapeFile.delete();
-
-                BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
-                try {
-                    out.write(data);
-                } finally {
-                    out.close();
-                }
-            } else {
+            if (data == null) {
                 LOGGER.info("Requested shapefile with ESRI WKT .prj format but couldn't find an entry for ESPG code "
                         + epsgCode + " in esri.properties");
             }
+            return data;
         } else {
             LOGGER.info("Requested shapefile with ESRI WKT .prj format but the esri.properties file does not exist in the user_projections directory");
         }
+        return null;
     }
     
     /**
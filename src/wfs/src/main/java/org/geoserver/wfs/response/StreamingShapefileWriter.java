@@ -0,0 +1,402 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureTypes;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes a feature collection as the .shp, .shx and .dbf entries of a zip stream, without staging
+ * the files on disk.
+ * <p>
+ * The headers of the .shp and .dbf files contain the number of records, the file length and the
+ * bounds, so the collection is read a first time to collect them, along with the record lengths
+ * that make up the .shx index. The .shp and .dbf entries are then streamed by a second and a third
+ * read. The records must come back in the same order every time, {@link ShapeZipOutputFormat} only
+ * streams the sources that can sort on their natural order, and {@link org.geoserver.wfs.GetFeature}
+ * adds that sort to the query. The feature ids are still checked, the output fails if the order
+ * changed in between anyway.
+ * </p>
+ * <p>
+ * The header stores the .shp length as a 32 bit count of 16 bit words, {@link #scan()} fails if the
+ * features do not fit, so that the caller can report the error before writing any output.
+ * </p>
+ * <p>
+ * The collection is expected to have a specific geometry type and attribute names that are already
+ * shapefile compatible, see {@link ShapeZipOutputFormat#remapCollectionSchema}.
+ * </p>
+ */
+class StreamingShapefileWriter {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int HEADER_LENGTH = 100;
+
+    /** The maximum .shp file length, in 16 bit words */
+    static final long MAX_LENGTH = Integer.MAX_VALUE;
+
+    final SimpleFeatureCollection features;
+
+    final String fileName;
+
+    final Charset charset;
+
+    final GeometryFactory geometryFactory = new GeometryFactory();
+
+    ShapeType shapeType;
+
+    ShapeHandler handler;
+
+    final Envelope bounds = new Envelope();
+
+    /** The content length of each record, in 16 bit words */
+    IntList lengths = new IntList();
+
+    /** The hash of the feature id of each record */
+    IntList ids = new IntList();
+
+    /** The .shp file length, in 16 bit words */
+    long shpLength = HEADER_LENGTH / 2;
+
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    long maxLength = MAX_LENGTH;
+
+    /**
+     * @param features The features to write, with shapefile compatible names
+     * @param fileName The name of the shapefile, without extension
+     * @param charset The charset used to encode the .dbf contents
+     */
+    StreamingShapefileWriter(SimpleFeatureCollection features, String fileName, Charset charset) {
+        this.features = features;
+        this.fileName = fileName;
+        this.charset = charset;
+    }
+
+    /**
+     * Writes the .shp, .shx and .dbf entries, {@link #scan()} must have been called first
+     */
+    void write(ZipOutputStream zip) throws IOException {
+        writeShp(zip);
+        writeShx(zip);
+        writeDbf(zip);
+    }
+
+    /**
+     * Collects the shape type, the bounds and the record lengths
+     *
+     * @throws IOException If the features do not fit in a shapefile
+     */
+    void scan() throws IOException {
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                Geometry g = (Geometry) f.getDefaultGeometry();
+                int length;
+                if (g == null) {
+                    // the null shape type
+                    length = 4;
+                } else {
+                    if (handler == null) {
+                        // same as the shapefile datastore, the first geometry sets the type
+                        int dims = JTSUtilities.guessCoorinateDims(g.getCoordinates());
+                        setShapeType(JTSUtilities.getShapeType(g, dims));
+                    }
+                    g = JTSUtilities.convertToCollection(g, shapeType);
+                    bounds.expandToInclude(g.getEnvelopeInternal());
+                    length = handler.getLength(g);
+                }
+                lengths.add(length / 2);
+                ids.add(f.getID().hashCode());
+                shpLength += 4 + length / 2;
+                if (shpLength > maxLength) {
+                    throw new IOException("The features of " + fileName + " do not fit in a "
+                            + "shapefile, the .shp file would be larger than "
+                            + (maxLength * 2 / (1024 * 1024)) + "MB");
+                }
+            }
+        } finally {
+            it.close();
+        }
+        if (handler == null) {
+            setShapeType(getShapeType(features.getSchema()));
+        }
+    }
+
+    void setShapeType(ShapeType shapeType) throws IOException {
+        this.shapeType = shapeType;
+        this.handler = shapeType.getShapeHandler(geometryFactory);
+    }
+
+    /**
+     * The shape type used for empty outputs, same mapping as the shapefile datastore
+     */
+    static ShapeType getShapeType(SimpleFeatureType schema) throws IOException {
+        Class<?> binding = schema.getGeometryDescriptor().getType().getBinding();
+        if (Point.class.isAssignableFrom(binding)) {
+            return ShapeType.POINT;
+        } else if (MultiPoint.class.isAssignableFrom(binding)) {
+            return ShapeType.MULTIPOINT;
+        } else if (LineString.class.isAssignableFrom(binding)
+                || MultiLineString.class.isAssignableFrom(binding)) {
+            return ShapeType.ARC;
+        } else if (Polygon.class.isAssignableFrom(binding)
+                || MultiPolygon.class.isAssignableFrom(binding)) {
+            return ShapeType.POLYGON;
+        }
+        throw new IOException("Cannot write geometries of type " + binding.getName());
+    }
+
+    void writeShp(ZipOutputStream zip) throws IOException {
+        zip.putNextEntry(new ZipEntry(fileName + ".shp"));
+        buffer.clear();
+        putHeader(shpLength);
+
+        SimpleFeatureIterator it = features.features();
+        int record = 0;
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                checkOrder(f, record);
+                Geometry g = (Geometry) f.getDefaultGeometry();
+                int length = 4;
+                if (g != null) {
+                    g = JTSUtilities.convertToCollection(g, shapeType);
+                    length = handler.getLength(g);
+                }
+                if (length / 2 != lengths.get(record)) {
+                    throw orderChanged();
+                }
+
+                ensure(zip, 8 + length);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                buffer.putInt(record + 1);
+                buffer.putInt(length / 2);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (g == null) {
+                    buffer.putInt(ShapeType.NULL.id);
+                } else {
+                    buffer.putInt(shapeType.id);
+                    handler.write(buffer, g);
+                }
+                record++;
+            }
+        } finally {
+            it.close();
+        }
+        if (record != lengths.size()) {
+            throw orderChanged();
+        }
+        flush(zip);
+        zip.closeEntry();
+    }
+
+    void writeShx(ZipOutputStream zip) throws IOException {
+        zip.putNextEntry(new ZipEntry(fileName + ".shx"));
+        buffer.clear();
+        putHeader(HEADER_LENGTH / 2 + 4L * lengths.size());
+
+        // scan() made sure the offsets fit in the header ints
+        long offset = HEADER_LENGTH / 2;
+        for (int i = 0; i < lengths.size(); i++) {
+            ensure(zip, 8);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.putInt((int) offset);
+            buffer.putInt(lengths.get(i));
+            offset += 4 + lengths.get(i);
+        }
+        flush(zip);
+        zip.closeEntry();
+    }
+
+    void writeDbf(ZipOutputStream zip) throws IOException {
+        zip.putNextEntry(new ZipEntry(fileName + ".dbf"));
+        SimpleFeatureType schema = features.getSchema();
+        DbaseFileHeader header = createDbaseHeader(schema);
+        header.setNumRecords(lengths.size());
+
+        // the dbase writer closes the channel, keep the zip stream open
+        DbaseFileWriter writer = new DbaseFileWriter(header,
+                Channels.newChannel(new CloseShieldOutputStream(zip)), charset);
+        List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+        int[] columns = new int[header.getNumFields()];
+        for (int i = 0, column = 0; i < descriptors.size(); i++) {
+            if (!Geometry.class.isAssignableFrom(descriptors.get(i).getType().getBinding())) {
+                columns[column++] = i;
+            }
+        }
+        Object[] values = new Object[columns.length];
+
+        SimpleFeatureIterator it = features.features();
+        int record = 0;
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                checkOrder(f, record);
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = f.getAttribute(columns[i]);
+                }
+                writer.write(values);
+                record++;
+            }
+        } finally {
+            it.close();
+            writer.close();
+        }
+        if (record != lengths.size()) {
+            throw orderChanged();
+        }
+        zip.closeEntry();
+    }
+
+    /**
+     * Builds the .dbf header, using the same column types and lengths as the shapefile datastore
+     */
+    static DbaseFileHeader createDbaseHeader(SimpleFeatureType schema) throws IOException {
+        DbaseFileHeader header = new DbaseFileHeader();
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            Class<?> binding = ad.getType().getBinding();
+            String name = ad.getLocalName();
+            int fieldLength = FeatureTypes.getFieldLength(ad);
+            if (fieldLength == FeatureTypes.ANY_LENGTH) {
+                fieldLength = 255;
+            }
+            if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 9), 0);
+            } else if (binding == Long.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 19), 0);
+            } else if (binding == BigInteger.class) {
+                header.addColumn(name, 'N', Math.min(fieldLength, 33), 0);
+            } else if (Number.class.isAssignableFrom(binding)) {
+                int length = Math.min(fieldLength, 33);
+                header.addColumn(name, 'N', length, Math.max(length - 2, 0));
+            } else if (java.util.Date.class.isAssignableFrom(binding)
+                    || Calendar.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'D', fieldLength, 0);
+            } else if (binding == Boolean.class) {
+                header.addColumn(name, 'L', 1, 0);
+            } else if (CharSequence.class.isAssignableFrom(binding)
+                    || binding == java.util.UUID.class) {
+                header.addColumn(name, 'C', Math.max(1, Math.min(fieldLength, 254)), 0);
+            } else if (!Geometry.class.isAssignableFrom(binding)) {
+                throw new IOException("Unable to write column " + name + " of type "
+                        + binding.getName());
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Puts the 100 bytes header shared by the .shp and .shx files
+     *
+     * @param length The file length in 16 bit words, at most {@link #MAX_LENGTH}
+     */
+    void putHeader(long length) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(9994);
+        for (int i = 0; i < 5; i++) {
+            buffer.putInt(0);
+        }
+        buffer.putInt((int) length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1000);
+        buffer.putInt(shapeType.id);
+        buffer.putDouble(bounds.getMinX());
+        buffer.putDouble(bounds.getMinY());
+        buffer.putDouble(bounds.getMaxX());
+        buffer.putDouble(bounds.getMaxY());
+        // z and m ranges
+        for (int i = 0; i < 4; i++) {
+            buffer.putDouble(0);
+        }
+    }
+
+    void checkOrder(SimpleFeature f, int record) throws IOException {
+        if (record >= ids.size() || ids.get(record) != f.getID().hashCode()) {
+            throw orderChanged();
+        }
+    }
+
+    IOException orderChanged() {
+        return new IOException("The features of " + fileName + " changed between reads, "
+                + "cannot stream the shapefile. Sort the output or disable streaming");
+    }
+
+    /**
+     * Makes room in the buffer for the specified amount of bytes, writing out its contents if
+     * needed
+     */
+    void ensure(ZipOutputStream zip, int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush(zip);
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+    }
+
+    void flush(ZipOutputStream zip) throws IOException {
+        zip.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * A growable list of primitive ints
+     */
+    static class IntList {
+        int[] values = new int[1024];
+
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Encodes geometries as a single WKT column, the default for the CSV output format
+ */
+public class WKTGeometryEncoder implements CSVGeometryEncoder {
+
+    public static final String NAME = "WKT";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> getColumnNames(String attributeName) {
+        return Collections.singletonList(attributeName);
+    }
+
+    @Override
+    public void encode(Geometry geometry, CSVFormatter formatter) {
+        formatter.field(geometry == null ? null : geometry.toText());
+    }
+}
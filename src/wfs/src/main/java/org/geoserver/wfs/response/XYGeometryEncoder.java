@@ -0,0 +1,49 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Encodes geometries as two numeric columns, named after the attribute with a "_x" and "_y"
+ * suffix, which spreadsheets and most CSV importers can map without parsing WKT (e.g., longitude
+ * and latitude for geographic data). Points are written as they are, other geometries are
+ * represented by their centroid.
+ */
+public class XYGeometryEncoder implements CSVGeometryEncoder {
+
+    public static final String NAME = "XY";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<String> getColumnNames(String attributeName) {
+        return Arrays.asList(attributeName + "_x", attributeName + "_y");
+    }
+
+    @Override
+    public void encode(Geometry geometry, CSVFormatter formatter) {
+        Point point = null;
+        if (geometry instanceof Point) {
+            point = (Point) geometry;
+        } else if (geometry != null) {
+            point = geometry.getCentroid();
+        }
+        if (point == null || point.isEmpty()) {
+            formatter.field(null);
+            formatter.field(null);
+        } else {
+            formatter.number(point.getX());
+            formatter.number(point.getY());
+        }
+    }
+}
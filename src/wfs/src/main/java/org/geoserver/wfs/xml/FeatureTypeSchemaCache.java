@@ -0,0 +1,551 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.xsd.XSDSchema;
+import org.eclipse.xsd.util.XSDResourceImpl;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.WFSInfo;
+import org.geotools.coverage.grid.io.GridCoverageReader;
+import org.geotools.data.DataAccess;
+import org.geotools.util.logging.Logging;
+import org.geotools.xml.Schemas;
+import org.opengis.feature.type.FeatureType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Caches the application schemas built for the feature types, so that DescribeFeatureType and
+ * GetFeature do not build and parse the same schemas on every request.
+ * <p>
+ * Two kinds of entries are kept, the serialized XSD documents returned by DescribeFeatureType,
+ * and the {@link ApplicationSchemaXSD2} used by the GML 3.2 encoder, along with the schemas built
+ * for it. Both are keyed by the schema builder, the feature type ids, the base URL and the roles
+ * of the current user, as data security can hide attributes, and are dropped when the feature
+ * types, their stores or namespaces change in the catalog, or when the service configuration
+ * changes.
+ * </p>
+ * <p>
+ * The application schemas are shared by the requests encoding at the same time, so each request
+ * borrows the one it uses until it is finished, and an evicted schema is disposed only once the
+ * last borrower is done with it.
+ * </p>
+ * <p>
+ * The max number of entries of each kind is configurable with the
+ * <code>GEOSERVER_FEATURE_SCHEMA_CACHE_SIZE</code> system property, context parameter or
+ * environment variable, zero disables the cache. The CPU time the cache saved to each request is
+ * logged at the end of the request, and accumulated in the cache statistics.
+ * </p>
+ */
+public class FeatureTypeSchemaCache extends AbstractDispatcherCallback {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureTypeSchemaCache.class);
+
+    /**
+     * Default max number of cached entries
+     */
+    static final int DEFAULT_MAX_ENTRIES = 100;
+
+    static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * CPU time saved by the cache to the current request, in nanoseconds
+     */
+    static final ThreadLocal<long[]> SAVED_TIME = new ThreadLocal<long[]>();
+
+    /**
+     * The application schemas borrowed by the current request
+     */
+    static final ThreadLocal<List<CachedSchema>> BORROWED = new ThreadLocal<List<CachedSchema>>();
+
+    boolean enabled;
+
+    Cache<SchemaKey, CachedDocument> documents;
+
+    Cache<SchemaKey, CachedSchema> schemas;
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong savedTime = new AtomicLong();
+
+    public FeatureTypeSchemaCache(GeoServer geoServer) {
+        this(getMaxEntriesProperty());
+        final Catalog catalog = geoServer.getCatalog();
+        catalog.addListener(new SchemaInvalidatingListener());
+        catalog.getResourcePool().addListener(new ResourcePool.Listener() {
+
+            public void disposed(FeatureTypeInfo featureType, FeatureType ft) {
+                invalidate(featureType.getId());
+            }
+
+            public void disposed(CoverageStoreInfo coverageStore, GridCoverageReader gcr) {
+            }
+
+            public void disposed(DataStoreInfo dataStore, DataAccess da) {
+                invalidateAll();
+            }
+        });
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                invalidateAll();
+            }
+
+            public void handleSettingsModified(SettingsInfo settings, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                invalidateAll();
+            }
+
+            public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
+                    List<Object> oldValues, List<Object> newValues) {
+                if (service instanceof WFSInfo) {
+                    invalidateAll();
+                }
+            }
+
+            public void reloaded() {
+                invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * For testing only
+     */
+    FeatureTypeSchemaCache(int maxEntries) {
+        enabled = maxEntries > 0;
+        maxEntries = Math.max(0, maxEntries);
+        documents = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+        schemas = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .removalListener(new RemovalListener<SchemaKey, CachedSchema>() {
+
+                    @Override
+                    public void onRemoval(RemovalNotification<SchemaKey, CachedSchema> notification) {
+                        notification.getValue().evict();
+                    }
+                }).build();
+    }
+
+    static int getMaxEntriesProperty() {
+        String value = GeoServerExtensions.getProperty("GEOSERVER_FEATURE_SCHEMA_CACHE_SIZE");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for GEOSERVER_FEATURE_SCHEMA_CACHE_SIZE, " + value
+                        + ", should be the max number of cached schemas. Using the default, "
+                        + DEFAULT_MAX_ENTRIES);
+            }
+        }
+        return DEFAULT_MAX_ENTRIES;
+    }
+
+    /**
+     * Returns the XSD document describing the specified feature types, serialized with the
+     * specified encoding
+     *
+     * @param builder The schema builder, determines the GML version of the schema
+     * @param featureTypes The feature types to be described
+     * @param baseUrl The base URL used to build the schema locations
+     * @param encoding The XML document encoding
+     */
+    public byte[] getSchemaDocument(FeatureTypeSchemaBuilder builder,
+            FeatureTypeInfo[] featureTypes, String baseUrl, String encoding) throws IOException {
+        if (!enabled) {
+            return serialize(builder.build(featureTypes, baseUrl), encoding);
+        }
+        SchemaKey key = new SchemaKey(builder, featureTypes, baseUrl, encoding);
+        CachedDocument cached = documents.getIfPresent(key);
+        if (cached != null) {
+            hit(cached.cost);
+            return cached.bytes;
+        }
+
+        long start = cpuTime();
+        byte[] bytes = serialize(builder.build(featureTypes, baseUrl), encoding);
+        miss();
+        documents.put(key, new CachedDocument(bytes, cpuTime() - start));
+        return bytes;
+    }
+
+    byte[] serialize(XSDSchema schema, String encoding) {
+        schema.updateElement();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        XSDResourceImpl.serialize(bos, schema.getElement(), encoding);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns the application schema for the specified feature types, with the schema already
+     * built. The returned object is shared among requests and must not be modified, it stays
+     * usable until the current request is finished. Outside of a dispatcher request the schema is
+     * built from scratch, as with the cache disabled.
+     *
+     * @param builder The schema builder, determines the GML version of the schema
+     * @param featureTypes The feature types grouped by namespace URI
+     * @param baseUrl The base URL used to build the schema locations
+     */
+    public ApplicationSchemaXSD2 getApplicationSchema(FeatureTypeSchemaBuilder builder,
+            Map<String, Set<FeatureTypeInfo>> featureTypes, String baseUrl) throws IOException {
+        if (!enabled || Dispatcher.REQUEST.get() == null) {
+            ApplicationSchemaXSD2 xsd = new ApplicationSchemaXSD2(builder, featureTypes);
+            xsd.setBaseURL(baseUrl);
+            return xsd;
+        }
+        List<FeatureTypeInfo> types = new ArrayList<FeatureTypeInfo>();
+        for (Set<FeatureTypeInfo> fts : featureTypes.values()) {
+            types.addAll(fts);
+        }
+        SchemaKey key = new SchemaKey(builder, types.toArray(new FeatureTypeInfo[types.size()]),
+                baseUrl, null);
+        CachedSchema cached = schemas.getIfPresent(key);
+        if (cached != null && borrow(cached)) {
+            hit(cached.cost);
+            return cached.xsd;
+        }
+
+        long start = cpuTime();
+        ApplicationSchemaXSD2 xsd = new ApplicationSchemaXSD2(builder, featureTypes);
+        xsd.setBaseURL(baseUrl);
+        // collect the schemas built along the way instead of having them disposed at the end
+        // of the request, they are disposed when evicted from the cache instead
+        List<XSDSchema> scheduled = SchemaCleanerCallback.schemas.get();
+        SchemaCleanerCallback.schemas.remove();
+        List<XSDSchema> built;
+        try {
+            xsd.getSchema();
+        } finally {
+            built = SchemaCleanerCallback.schemas.get();
+            if (scheduled != null) {
+                SchemaCleanerCallback.schemas.set(scheduled);
+            } else {
+                SchemaCleanerCallback.schemas.remove();
+            }
+        }
+        miss();
+        cached = new CachedSchema(xsd, built, cpuTime() - start);
+        // borrow before publishing it, an eviction right away must not dispose it
+        borrow(cached);
+        schemas.put(key, cached);
+        return xsd;
+    }
+
+    /**
+     * Marks the schema as used by the current request, returns false if it has been evicted in
+     * the meantime
+     */
+    boolean borrow(CachedSchema cached) {
+        if (!cached.acquire()) {
+            return false;
+        }
+        List<CachedSchema> borrowed = BORROWED.get();
+        if (borrowed == null) {
+            borrowed = new ArrayList<CachedSchema>();
+            BORROWED.set(borrowed);
+        }
+        borrowed.add(cached);
+        return true;
+    }
+
+    void hit(long cost) {
+        hits.incrementAndGet();
+        savedTime.addAndGet(cost);
+        long[] saved = SAVED_TIME.get();
+        if (saved == null) {
+            saved = new long[1];
+            SAVED_TIME.set(saved);
+        }
+        saved[0] += cost;
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    static long cpuTime() {
+        if (THREAD_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Removes the entries involving the specified feature type
+     */
+    public void invalidate(String typeId) {
+        invalidate(documents.asMap().keySet(), typeId);
+        invalidate(schemas.asMap().keySet(), typeId);
+    }
+
+    void invalidate(Collection<SchemaKey> keys, String typeId) {
+        for (Iterator<SchemaKey> it = keys.iterator(); it.hasNext();) {
+            if (it.next().typeIds.contains(typeId)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    public void invalidateAll() {
+        documents.invalidateAll();
+        schemas.invalidateAll();
+    }
+
+    /**
+     * The CPU time saved by the cache to the current request, in nanoseconds
+     */
+    public static long getRequestSavedTime() {
+        long[] saved = SAVED_TIME.get();
+        return saved == null ? 0 : saved[0];
+    }
+
+    @Override
+    public void finished(Request request) {
+        List<CachedSchema> borrowed = BORROWED.get();
+        if (borrowed != null) {
+            BORROWED.remove();
+            for (CachedSchema cached : borrowed) {
+                cached.release();
+            }
+        }
+
+        long[] saved = SAVED_TIME.get();
+        if (saved != null) {
+            SAVED_TIME.remove();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Feature type schema cache saved "
+                        + TimeUnit.NANOSECONDS.toMillis(saved[0]) + "ms of CPU time to request "
+                        + request.getRequest());
+            }
+        }
+    }
+
+    /**
+     * Key of a cached schema
+     */
+    static class SchemaKey {
+
+        String builder;
+
+        Set<String> typeIds;
+
+        String baseUrl;
+
+        String encoding;
+
+        String user;
+
+        Set<String> roles;
+
+        SchemaKey(FeatureTypeSchemaBuilder builder, FeatureTypeInfo[] featureTypes,
+                String baseUrl, String encoding) {
+            this.builder = builder.getClass().getName();
+            this.typeIds = new TreeSet<String>();
+            for (FeatureTypeInfo featureType : featureTypes) {
+                typeIds.add(featureType.getId());
+            }
+            this.baseUrl = baseUrl;
+            this.encoding = encoding;
+            // data security might hide some of the attributes to the current user
+            Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+            if (auth != null) {
+                this.user = auth.getName();
+                this.roles = new HashSet<String>();
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    roles.add(authority.getAuthority());
+                }
+            } else {
+                this.roles = Collections.emptySet();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = builder.hashCode();
+            result = prime * result + typeIds.hashCode();
+            result = prime * result + ((baseUrl == null) ? 0 : baseUrl.hashCode());
+            result = prime * result + ((encoding == null) ? 0 : encoding.hashCode());
+            result = prime * result + ((user == null) ? 0 : user.hashCode());
+            result = prime * result + roles.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SchemaKey)) {
+                return false;
+            }
+            SchemaKey other = (SchemaKey) obj;
+            return builder.equals(other.builder) && typeIds.equals(other.typeIds)
+                    && equals(baseUrl, other.baseUrl) && equals(encoding, other.encoding)
+                    && equals(user, other.user) && roles.equals(other.roles);
+        }
+
+        static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    static class CachedDocument {
+        byte[] bytes;
+
+        long cost;
+
+        CachedDocument(byte[] bytes, long cost) {
+            this.bytes = bytes;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * A cached application schema, counting the requests using it. Once evicted it cannot be
+     * borrowed anymore, and is disposed when the last borrower releases it.
+     */
+    static class CachedSchema {
+        ApplicationSchemaXSD2 xsd;
+
+        List<XSDSchema> built;
+
+        long cost;
+
+        int borrowers;
+
+        boolean evicted;
+
+        boolean disposed;
+
+        CachedSchema(ApplicationSchemaXSD2 xsd, List<XSDSchema> built, long cost) {
+            this.xsd = xsd;
+            this.built = built;
+            this.cost = cost;
+        }
+
+        synchronized boolean acquire() {
+            if (evicted) {
+                return false;
+            }
+            borrowers++;
+            return true;
+        }
+
+        synchronized void release() {
+            borrowers--;
+            if (evicted && borrowers == 0) {
+                dispose();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            if (borrowers == 0) {
+                dispose();
+            }
+        }
+
+        void dispose() {
+            disposed = true;
+            if (built == null) {
+                return;
+            }
+            for (XSDSchema schema : built) {
+                Schemas.dispose(schema);
+            }
+        }
+    }
+
+    /**
+     * Drops the schemas of the feature types modified or removed from the catalog, everything for
+     * changes affecting the namespaces and stores
+     */
+    class SchemaInvalidatingListener implements CatalogListener {
+
+        public void handleAddEvent(CatalogAddEvent event) {
+            // the schemas declare the prefixes of all the namespaces
+            if (event.getSource() instanceof NamespaceInfo) {
+                invalidateAll();
+            }
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) {
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+            handle(event);
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) {
+            handle(event);
+        }
+
+        void handle(CatalogEvent event) {
+            Object source = event.getSource();
+            if (source instanceof FeatureTypeInfo) {
+                invalidate(((FeatureTypeInfo) source).getId());
+            } else if (source instanceof LayerInfo) {
+                if (((LayerInfo) source).getResource() instanceof FeatureTypeInfo) {
+                    invalidate(((LayerInfo) source).getResource().getId());
+                }
+            } else if (source instanceof DataStoreInfo || source instanceof NamespaceInfo
+                    || source instanceof WorkspaceInfo) {
+                invalidateAll();
+            }
+        }
+
+        public void reloaded() {
+            invalidateAll();
+        }
+    }
+}
@@ -22,7 +22,9 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.ows.util.ResponseUtils;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
@@ -94,8 +96,19 @@ public class GML32OutputFormat extends GML3OutputFormat {
             }
         }
         
-        ApplicationSchemaXSD2 xsd = new ApplicationSchemaXSD2(schemaBuilder, featureTypes);
-        xsd.setBaseURL(GetFeatureRequest.adapt(request).getBaseURL());
+        String baseURL = GetFeatureRequest.adapt(request).getBaseURL();
+        ApplicationSchemaXSD2 xsd;
+        FeatureTypeSchemaCache cache = GeoServerExtensions.bean(FeatureTypeSchemaCache.class);
+        if (cache != null) {
+            try {
+                xsd = cache.getApplicationSchema(schemaBuilder, featureTypes, baseURL);
+            } catch (IOException e) {
+                throw new ServiceException("Failed to build the application schema", e);
+            }
+        } else {
+            xsd = new ApplicationSchemaXSD2(schemaBuilder, featureTypes);
+            xsd.setBaseURL(baseURL);
+        }
 
         org.geotools.wfs.v2_0.WFSConfiguration wfs = new org.geotools.wfs.v2_0.WFSConfiguration();
         wfs.getDependency(GMLConfiguration.class).setSrsSyntax(
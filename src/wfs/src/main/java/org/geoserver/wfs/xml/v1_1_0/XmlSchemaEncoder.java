@@ -24,6 +24,7 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
@@ -31,6 +32,7 @@ import org.geoserver.wfs.WFSDescribeFeatureTypeOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
+import org.geoserver.wfs.xml.FeatureTypeSchemaCache;
 import org.geotools.xml.Schemas;
 
 
@@ -103,11 +105,18 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         Object request = describeFeatureType.getParameters()[0];
         DescribeFeatureTypeRequest req = DescribeFeatureTypeRequest.adapt(request);
         
+        final String encoding = gs.getSettings().getCharset();
+        FeatureTypeSchemaCache cache = GeoServerExtensions.bean(FeatureTypeSchemaCache.class);
+        if (cache != null) {
+            output.write(cache.getSchemaDocument(schemaBuilder, featureTypeInfos,
+                    req.getBaseURL(), encoding));
+            return;
+        }
+
         XSDSchema schema = schemaBuilder.build(featureTypeInfos, req.getBaseURL());
 
         //serialize
         schema.updateElement();
-        final String encoding = gs.getSettings().getCharset();
         XSDResourceImpl.serialize(output, schema.getElement(), encoding);
     }
     
@@ -0,0 +1,223 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.WfsFactory;
+
+import org.easymock.IAnswer;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.security.impl.GeoServerRole;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class FeatureCountCacheTest {
+
+    FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+
+    FeatureTypeInfo meta;
+
+    FeatureSource source;
+
+    @Before
+    public void setUp() {
+        meta = createMock(FeatureTypeInfo.class);
+        expect(meta.getId()).andReturn("ft1").anyTimes();
+        replay(meta);
+        source = createMock(FeatureSource.class);
+    }
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.getContext().setAuthentication(null);
+    }
+
+    Query query(Filter filter) {
+        return new Query("test", filter);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(0);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(10).times(2);
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        Filter filter = ff.equals(ff.property("name"), ff.literal("abc"));
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(10).once();
+        expect(source.getCount(query(filter))).andReturn(3).once();
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        // an equal filter built from scratch hits the cache too
+        assertEquals(3, cache.getCount(meta, source, query(filter)));
+        assertEquals(3, cache.getCount(meta, source,
+                query(ff.equals(ff.property("name"), ff.literal("abc")))));
+        verify(source);
+        assertEquals(2, cache.hits.get());
+        assertEquals(2, cache.misses.get());
+    }
+
+    @Test
+    public void testViewParams() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        Query q1 = query(Filter.INCLUDE);
+        q1.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, Collections.singletonMap("a", "1")));
+        Query q2 = query(Filter.INCLUDE);
+        q2.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, Collections.singletonMap("a", "2")));
+        expect(source.getCount(q1)).andReturn(1).once();
+        expect(source.getCount(q2)).andReturn(2).once();
+        replay(source);
+
+        assertEquals(1, cache.getCount(meta, source, q1));
+        assertEquals(2, cache.getCount(meta, source, q2));
+        assertEquals(1, cache.getCount(meta, source, q1));
+        verify(source);
+    }
+
+    @Test
+    public void testRoles() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(10).once();
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(5).once();
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        // the data security rules might give a different count to another user
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken("user", "pwd", Arrays.asList(
+                        new GeoServerRole("ROLE_USER"))));
+        assertEquals(5, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(5, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testUnknownNotCached() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(-1).times(2);
+        replay(source);
+
+        assertEquals(-1, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(-1, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(10).once();
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(11).once();
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(12).once();
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        cache.invalidate("ft2");
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        cache.invalidate("ft1");
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        // no catalog to resolve the layer name, the whole cache is dropped
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.POST_INSERT, null,
+                new QName("http://www.test.org", "test"), null));
+        assertEquals(12, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(12, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testModifiedWhileCounting() throws Exception {
+        final FeatureCountCache cache = new FeatureCountCache(60);
+        expect(source.getCount(query(Filter.INCLUDE))).andAnswer(new IAnswer<Integer>() {
+
+            @Override
+            public Integer answer() throws Throwable {
+                // a transaction modifies the layer while the count is running
+                cache.invalidate("ft1");
+                return 10;
+            }
+        }).once();
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(11).once();
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testUncommittedChanges() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(60);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(10).times(2);
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(11).once();
+        replay(source);
+
+        DefaultTransaction transaction = new DefaultTransaction();
+        TransactionRequest request = TransactionRequest.adapt(WfsFactory.eINSTANCE
+                .createTransactionType());
+        request.setTransaction(transaction);
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_INSERT, request,
+                new QName("http://www.test.org", "test"), null));
+        // the changes are not committed yet, the counts are not cached
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+
+        transaction.commit();
+        transaction.close();
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+    }
+
+    @Test
+    public void testCountedBeforeCommit() throws Exception {
+        final FeatureCountCache cache = new FeatureCountCache(60);
+        final FeatureCountCache.PendingChanges changes = cache.new PendingChanges();
+        changes.add("ft1");
+        expect(source.getCount(query(Filter.INCLUDE))).andAnswer(new IAnswer<Integer>() {
+
+            @Override
+            public Integer answer() throws Throwable {
+                // the transaction commits and closes while the count is running
+                changes.setTransaction(null);
+                return 10;
+            }
+        }).once();
+        expect(source.getCount(query(Filter.INCLUDE))).andReturn(11).once();
+        replay(source);
+
+        assertEquals(10, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        assertEquals(11, cache.getCount(meta, source, query(Filter.INCLUDE)));
+        verify(source);
+        assertEquals(0, cache.pending.get("ft1").get());
+    }
+}
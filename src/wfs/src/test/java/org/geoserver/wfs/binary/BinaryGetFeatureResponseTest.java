@@ -0,0 +1,163 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.binary;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import org.geoserver.data.test.MockData;
+import org.geoserver.wfs.WFSTestSupport;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.CRS;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+
+public class BinaryGetFeatureResponseTest extends WFSTestSupport {
+
+    @Test
+    public void testGetFeature() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wfs?request=GetFeature"
+                + "&version=1.1.0&typeName=sf:PrimitiveGeoFeature&outputFormat=binary");
+        assertEquals(BinaryFeatures.MIME_TYPE, response.getContentType());
+
+        BinaryFeatureReader reader = new BinaryFeatureReader(getBinaryInputStream(response));
+        SimpleFeatureCollection read = reader.read();
+        assertNull(reader.read());
+
+        FeatureSource source = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        assertEquals(source.getCount(Query.ALL), read.size());
+        SimpleFeatureType schema = read.getSchema();
+        assertEquals("PrimitiveGeoFeature", schema.getTypeName());
+        assertEquals(MockData.SF_URI, schema.getName().getNamespaceURI());
+        assertEquals(source.getSchema().getDescriptors().size(), schema.getAttributeCount());
+        assertNotNull(schema.getGeometryDescriptor().getCoordinateReferenceSystem());
+    }
+
+    @Test
+    public void testMultipleTypes() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wfs?request=GetFeature"
+                + "&version=1.1.0&typeName=cite:Points,cite:Lines&outputFormat="
+                + BinaryFeatures.MIME_TYPE);
+
+        BinaryFeatureReader reader = new BinaryFeatureReader(getBinaryInputStream(response));
+        SimpleFeatureCollection points = reader.read();
+        assertEquals("Points", points.getSchema().getTypeName());
+        assertEquals(Point.class, points.getSchema().getGeometryDescriptor().getType()
+                .getBinding());
+        SimpleFeatureCollection lines = reader.read();
+        assertEquals("Lines", lines.getSchema().getTypeName());
+        assertEquals(LineString.class, lines.getSchema().getGeometryDescriptor().getType()
+                .getBinding());
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("all");
+        tb.setNamespaceURI("http://www.geoserver.org/test");
+        tb.add("label", String.class);
+        tb.add("geom", Point.class, CRS.decode("EPSG:4326", true));
+        tb.add("count", Integer.class);
+        tb.add("big", Long.class);
+        tb.add("value", Double.class);
+        tb.add("flag", Boolean.class);
+        tb.add("date", Date.class);
+        tb.add("time", Timestamp.class);
+        tb.add("amount", BigDecimal.class);
+        tb.add("line", LineString.class);
+        SimpleFeatureType schema = tb.buildFeatureType();
+
+        // enough features to need more than one batch
+        GeometryFactory gf = new GeometryFactory();
+        ListFeatureCollection features = new ListFeatureCollection(schema);
+        int size = BinaryFeatures.BATCH_SIZE * 2 + 7;
+        for (int i = 0; i < size; i++) {
+            Timestamp time = new Timestamp(1400000000000L + i);
+            time.setNanos(123456789);
+            Object[] values = { i % 3 == 0 ? null : "label \u00e8 " + i,
+                    gf.createPoint(new Coordinate(i, -i, i % 2 == 0 ? Double.NaN : i)),
+                    i, i * 10000000000L, i % 5 == 0 ? null : i / 3d, i % 2 == 0,
+                    new Date(1400000000000L - i), time, new BigDecimal("1.00" + i),
+                    gf.createLineString(new Coordinate[] { new Coordinate(0, 0),
+                            new Coordinate(i, i) }) };
+            features.add(SimpleFeatureBuilder.build(schema, values, "all." + i));
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BinaryFeatureWriter writer = new BinaryFeatureWriter(bos);
+        writer.write(features);
+        writer.finish();
+
+        BinaryFeatureReader reader = new BinaryFeatureReader(new ByteArrayInputStream(
+                bos.toByteArray()));
+        SimpleFeatureCollection read = reader.read();
+        assertNull(reader.read());
+
+        SimpleFeatureType readSchema = read.getSchema();
+        assertEquals(schema.getName(), readSchema.getName());
+        assertEquals("geom", readSchema.getGeometryDescriptor().getLocalName());
+        assertTrue(CRS.equalsIgnoreMetadata(CRS.decode("EPSG:4326", true), readSchema
+                .getCoordinateReferenceSystem()));
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            assertEquals(ad.getType().getBinding(),
+                    readSchema.getDescriptor(ad.getLocalName()).getType().getBinding());
+        }
+
+        assertEquals(size, read.size());
+        FeatureIterator<SimpleFeature> expected = features.features();
+        SimpleFeatureIterator actual = read.features();
+        try {
+            while (expected.hasNext()) {
+                SimpleFeature e = expected.next();
+                SimpleFeature a = actual.next();
+                assertEquals(e.getID(), a.getID());
+                List<Object> values = e.getAttributes();
+                for (int i = 0; i < values.size(); i++) {
+                    Object value = values.get(i);
+                    if (value instanceof Geometry) {
+                        assertTrue(((Geometry) value).equalsExact((Geometry) a.getAttribute(i)));
+                    } else {
+                        assertEquals(value, a.getAttribute(i));
+                    }
+                }
+                Point p = (Point) a.getAttribute("geom");
+                assertEquals((Integer) e.getAttribute("count") % 2 == 0,
+                        Double.isNaN(p.getCoordinate().z));
+            }
+            assertFalse(actual.hasNext());
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testInvalidStream() throws Exception {
+        new BinaryFeatureReader(new ByteArrayInputStream("<gml/>".getBytes()));
+    }
+}
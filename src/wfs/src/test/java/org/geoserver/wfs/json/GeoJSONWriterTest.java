@@ -0,0 +1,157 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import net.sf.json.JSONException;
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.referencing.CRS;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeoJSONWriterTest {
+
+    ByteArrayOutputStream bytes;
+
+    GeoJSONWriter writer;
+
+    @Before
+    public void setUp() {
+        bytes = new ByteArrayOutputStream();
+        writer = new GeoJSONWriter(bytes, 4);
+    }
+
+    String output() throws Exception {
+        writer.flush();
+        return bytes.toString("UTF-8");
+    }
+
+    @Test
+    public void testWriteNormal() throws Exception {
+        Geometry g = new WKTReader().read("MULTILINESTRING((0 0, 1 1))");
+        writer.writeGeom(g);
+
+        assertEquals("{\"type\":\"MultiLineString\",\"coordinates\":[[[0,0],[1,1]]]}", output());
+    }
+
+    @Test
+    public void testSameAsBuilder() throws Exception {
+        String[] wkts = { "POINT(1 2)", "POINT(1.5 -2.25 3)", "LINESTRING(0 0 0, 1 1 1)",
+                "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 1, 2 2, 1 1))",
+                "MULTIPOINT((0 0), (-1.125 1))", "MULTILINESTRING((0 0, 1 1), (2 2, 3 3))",
+                "MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))",
+                "GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))" };
+        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        cal.clear();
+        cal.set(2011, 9, 25);
+        Object[] values = { "plain", "quote \" and \\ backslash", "</script>", "tab\tnew\nline",
+                "citt\u00e0", "\u0085\u2028", "", null, 1, 12345678901L, 1.5d, 2.0f, true,
+                new java.sql.Date(cal.getTimeInMillis()) };
+
+        StringWriter sw = new StringWriter();
+        GeoJSONBuilder builder = new GeoJSONBuilder(sw);
+        builder.object().key("geometries").array();
+        writer.object().key("geometries").array();
+        WKTReader reader = new WKTReader();
+        for (String wkt : wkts) {
+            builder.writeGeom(reader.read(wkt));
+            writer.writeGeom(reader.read(wkt));
+        }
+        builder.endArray();
+        writer.endArray();
+        builder.setAxisOrder(CRS.AxisOrder.NORTH_EAST);
+        writer.setAxisOrder(CRS.AxisOrder.NORTH_EAST);
+        builder.key("swapped");
+        writer.key("swapped");
+        builder.writeGeom(reader.read("POINT(1 2)"));
+        writer.writeGeom(reader.read("POINT(1 2)"));
+        builder.writeBoundingBox(new Envelope(-1, 1, -2, 2));
+        writer.writeBoundingBox(new Envelope(-1, 1, -2, 2));
+        builder.key("properties").object();
+        writer.key("properties").object();
+        for (int i = 0; i < values.length; i++) {
+            builder.key("p" + i).value(values[i]);
+            writer.key("p" + i).value(values[i]);
+        }
+        builder.endObject().endObject();
+        writer.endObject().endObject();
+
+        assertEquals(sw.toString(), output());
+    }
+
+    @Test
+    public void testOrdinates() throws Exception {
+        writer.array();
+        writer.ordinate(1.23456);
+        writer.ordinate(-1.23454);
+        writer.ordinate(0.00001);
+        writer.ordinate(-0.00004);
+        writer.ordinate(100.1);
+        writer.ordinate(-12.0625);
+        writer.ordinate(0.99999);
+        writer.ordinate(500525);
+        writer.ordinate(1e20);
+        writer.endArray();
+
+        assertEquals("[1.2346,-1.2345,0,0,100.1,-12.0625,1,500525,"
+                + JSONUtils.numberToString(1e20) + "]", output());
+    }
+
+    @Test
+    public void testNumDecimals() throws Exception {
+        writer = new GeoJSONWriter(bytes, 0);
+        writer.array().ordinate(1.5).ordinate(-2.4).endArray();
+        assertEquals("[2,-2]", output());
+
+        bytes.reset();
+        writer = new GeoJSONWriter(bytes, 8);
+        writer.array().ordinate(0.123456789).ordinate(1e-8).endArray();
+        assertEquals("[0.12345679,0.00000001]", output());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testNonFinite() throws Exception {
+        writer.ordinate(Double.NaN);
+    }
+
+    @Test
+    public void testCharset() throws Exception {
+        String value = "citt\u00e0 \ud83d\ude00";
+        writer.value(value);
+        assertEquals("\"" + value + "\"", output());
+
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        bytes.reset();
+        writer = new GeoJSONWriter(bytes, latin1, 4);
+        writer.value("citt\u00e0");
+        writer.flush();
+        assertEquals("\"citt\u00e0\"", bytes.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void testLargeOutput() throws Exception {
+        StringBuilder expected = new StringBuilder("[");
+        writer.array();
+        for (int i = 0; i < 10000; i++) {
+            writer.ordinate(i + 0.5);
+            expected.append(i == 0 ? "" : ",").append(i).append(".5");
+        }
+        writer.endArray();
+        expected.append("]");
+        assertEquals(expected.toString(), output());
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CSVFormatterTest {
+
+    @Test
+    public void testRows() throws Exception {
+        CSVFormatter formatter = new CSVFormatter(',', 4);
+        formatter.field("a");
+        formatter.field(null);
+        formatter.value(Integer.valueOf(10));
+        formatter.endRow();
+        formatter.value(Long.valueOf(-5));
+        formatter.value(Double.valueOf(1.5));
+        formatter.value(new BigDecimal("12.34567"));
+        formatter.endRow();
+
+        StringWriter writer = new StringWriter();
+        formatter.writeTo(writer);
+        assertEquals("a,,10\r\n-5,1.5,12.3457\r\n", writer.toString());
+        assertEquals(0, formatter.length());
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        assertEquals("plain", field(',', "plain"));
+        assertEquals("\"with, comma\"", field(',', "with, comma"));
+        assertEquals("with, comma", field('\t', "with, comma"));
+        assertEquals("\"with\ttab\"", field('\t', "with\ttab"));
+        assertEquals("\"A label with \"\"quotes\"\"\"", field(',', "A label with \"quotes\""));
+        assertEquals("\"two\nnew\nlines\"", field(',', "two\nnew\nlines"));
+        assertEquals("\"carriage\rreturn\"", field(',', "carriage\rreturn"));
+    }
+
+    String field(char separator, String value) {
+        CSVFormatter formatter = new CSVFormatter(separator, 4);
+        formatter.field(value);
+        return formatter.toString();
+    }
+
+    @Test
+    public void testSameAsNumberFormat() throws Exception {
+        double[] values = { 0, -0d, 1, -1, 0.5, 1.5, 2.5, -2.5, 0.125, 0.00005, -0.00005,
+                0.00004, -0.00004, 1e-10, -1e-10, 0.8055, 1.0005, 123456789.123456789, 1e14,
+                1e15, 1e20, -1e20, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        Random random = new Random(0);
+        for (int decimals = 0; decimals < 18; decimals++) {
+            NumberFormat nf = NumberFormat.getInstance(Locale.US);
+            nf.setMaximumFractionDigits(decimals);
+            nf.setGroupingUsed(false);
+            for (double value : values) {
+                assertSameAsNumberFormat(value, nf);
+            }
+            for (int i = 0; i < 2000; i++) {
+                double magnitude = Math.pow(10, random.nextInt(24) - 8);
+                assertSameAsNumberFormat((random.nextDouble() - 0.5) * magnitude, nf);
+                // values that are exact or close to ties once scaled
+                double tie = (random.nextInt(20000) - 10000 + 0.5) / Math.pow(10, decimals);
+                assertSameAsNumberFormat(tie, nf);
+                assertSameAsNumberFormat(Math.nextUp(tie), nf);
+                assertSameAsNumberFormat(Math.nextAfter(tie, Double.NEGATIVE_INFINITY), nf);
+            }
+        }
+    }
+
+    void assertSameAsNumberFormat(double value, NumberFormat nf) {
+        int decimals = nf.getMaximumFractionDigits();
+        CSVFormatter formatter = new CSVFormatter(',', decimals, 32);
+        formatter.number(value);
+        assertEquals(value + " with " + decimals + " decimals", nf.format(value),
+                formatter.toString());
+    }
+}
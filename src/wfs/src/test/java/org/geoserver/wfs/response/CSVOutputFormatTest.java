@@ -4,17 +4,25 @@
  */
 package org.geoserver.wfs.response;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import net.opengis.wfs.GetFeatureType;
 import net.opengis.wfs.WfsFactory;
 import org.geoserver.data.test.MockData;
 import org.geoserver.platform.Operation;
+import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geotools.data.FeatureSource;
@@ -26,6 +34,7 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.junit.Test;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.w3c.dom.Document;
 import au.com.bytecode.opencsv.CSVReader;
 import com.mockrunner.mock.web.MockHttpServletResponse;
 import com.vividsolutions.jts.geom.Coordinate;
@@ -107,14 +116,126 @@ public class CSVOutputFormatTest extends WFSTestSupport {
         assertEquals(f2.getAttribute("label"), lines.get(2)[2]);
     }
     
+    @Test
+    public void testTabSeparator() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=sf:PrimitiveGeoFeature&outputFormat=csv&format_options=separator:tab");
+
+        assertEquals("text/tab-separated-values", resp.getContentType());
+        assertEquals("attachment; filename=PrimitiveGeoFeature.tsv",
+                resp.getHeader("Content-Disposition"));
+
+        FeatureSource fs = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        List<String[]> lines = readLines(resp.getOutputStreamContent(), '\t');
+        assertEquals(fs.getCount(Query.ALL) + 1, lines.size());
+        for (String[] line : lines) {
+            assertEquals(fs.getSchema().getDescriptors().size() + 1, line.length);
+        }
+    }
+
+    @Test
+    public void testXYGeometry() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=cite:Points&outputFormat=csv&format_options=geometry:xy");
+
+        List<String[]> lines = readLines(resp.getOutputStreamContent());
+        assertArrayEquals(new String[] { "FID", "id", "altitude", "pointProperty_x",
+                "pointProperty_y" }, lines.get(0));
+        assertArrayEquals(new String[] { "Points.0", "t0000", "500", "500050", "500050" },
+                lines.get(1));
+    }
+
+    @Test
+    public void testInvalidOptions() throws Exception {
+        Document dom = getAsDOM("wfs?version=1.1.0&request=GetFeature"
+                + "&typeName=cite:Points&outputFormat=csv&format_options=geometry:foo");
+        checkOws10Exception(dom, "InvalidParameterValue");
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        // enough features for several chunks, and more chunks than can be pending at once
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.add("geom", Point.class);
+        builder.add("label", String.class);
+        builder.setName("manyPoints");
+        SimpleFeatureType type = builder.buildFeatureType();
+
+        GeometryFactory gf = new GeometryFactory();
+        MemoryDataStore data = new MemoryDataStore();
+        int count = CSVFeatureWriter.CHUNK_SIZE * 5 + 7;
+        for (int i = 0; i < count; i++) {
+            data.addFeature(SimpleFeatureBuilder.build(type, new Object[] {
+                    gf.createPoint(new Coordinate(i, i)), "label " + i }, "manyPoints." + i));
+        }
+        SimpleFeatureSource fs = data.getFeatureSource("manyPoints");
+        String sequential = writeOut(fs);
+
+        WFSInfo wfs = getGeoServer().getService(WFSInfo.class);
+        wfs.getMetadata().put(CSVOutputFormat.CSV_THREADS, 2);
+        getGeoServer().save(wfs);
+        try {
+            String parallel = writeOut(fs);
+            assertEquals(sequential, parallel);
+            assertEquals(count + 1, readLines(parallel).size());
+            // the pool is shared among requests
+            assertSame(CSVOutputFormat.getExecutor(2), CSVOutputFormat.getExecutor(2));
+        } finally {
+            wfs.getMetadata().remove(CSVOutputFormat.CSV_THREADS);
+            getGeoServer().save(wfs);
+        }
+    }
+
+    @Test
+    public void testReplaceExecutorInUse() throws Exception {
+        ExecutorService used = CSVOutputFormat.acquireExecutor(2);
+        ExecutorService other = null;
+        try {
+            // the threads configuration changed while a request is using the pool
+            other = CSVOutputFormat.acquireExecutor(3);
+            assertNotSame(used, other);
+            assertFalse(used.isShutdown());
+            assertEquals("ok", used.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    return "ok";
+                }
+            }).get());
+        } finally {
+            CSVOutputFormat.releaseExecutor(used);
+            if (other != null) {
+                CSVOutputFormat.releaseExecutor(other);
+            }
+        }
+        // replaced and idle, shut down, while the current one stays around
+        assertTrue(used.isShutdown());
+        assertFalse(other.isShutdown());
+    }
+
+    private String writeOut(SimpleFeatureSource fs) throws IOException {
+        GetFeatureType gft = WfsFactory.eINSTANCE.createGetFeatureType();
+        Operation op = new Operation("GetFeature", getServiceDescriptor10(), null, new Object[] {gft});
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FeatureCollectionResponse fct = 
+            FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        fct.getFeature().add(fs.getFeatures());
+        new CSVOutputFormat(getGeoServer()).write(fct, bos, op);
+        return bos.toString();
+    }
+
+    private List<String[]> readLines(String csvContent) throws IOException  {
+        return readLines(csvContent, ',');
+    }
+
     /**
      * Convenience to read the csv content and 
      * @param csvContent
      * @return
      * @throws IOException
      */
-    private List<String[]> readLines(String csvContent) throws IOException  {
-        CSVReader reader = new CSVReader(new StringReader(csvContent));
+    private List<String[]> readLines(String csvContent, char separator) throws IOException  {
+        CSVReader reader = new CSVReader(new StringReader(csvContent), separator);
         
         List<String[]> result = new ArrayList<String[]>();
         String [] nextLine;
@@ -4,6 +4,7 @@
  */
 package org.geoserver.wfs.response;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -18,9 +19,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
@@ -42,6 +45,7 @@ import org.geoserver.test.TestSetupFrequency;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -475,11 +479,167 @@ public class ShapeZipTest extends WFSTestSupport {
                 get4326_ESRI_WKTContent());
     }
 
+    @Test
+    public void testStreaming() throws Exception {
+        byte[] legacy = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures());
+        setStreaming();
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(),
+                streamingFormat());
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+        // same geometries and index as the shapefile datastore
+        assertArrayEquals(getEntry("BasicPolygons.shp", legacy), getEntry("BasicPolygons.shp", zip));
+        assertArrayEquals(getEntry("BasicPolygons.shx", legacy), getEntry("BasicPolygons.shx", zip));
+    }
+
+    @Test
+    public void testStreamingNullGeometries() throws Exception {
+        byte[] legacy = writeOut(getFeatureSource(NULLGEOM).getFeatures());
+        setStreaming();
+        byte[] zip = writeOut(getFeatureSource(NULLGEOM).getFeatures(), streamingFormat());
+
+        checkShapefileIntegrity(new String[] { "nullgeom" }, new ByteArrayInputStream(zip));
+        assertArrayEquals(getEntry("nullgeom.shp", legacy), getEntry("nullgeom.shp", zip));
+        assertArrayEquals(getEntry("nullgeom.shx", legacy), getEntry("nullgeom.shx", zip));
+    }
+
+    @Test
+    public void testStreamingLongNames() throws Exception {
+        setStreaming();
+        byte[] zip = writeOut(getFeatureSource(LONGNAMES).getFeatures(), streamingFormat());
+
+        SimpleFeatureType schema = checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+        checkLongNamesSchema(schema);
+    }
+
+    @Test
+    public void testStreamingEmptyResult() throws Exception {
+        setStreaming();
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures(
+                Filter.EXCLUDE), streamingFormat());
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingMultiType() throws Exception {
+        // generic geometries are fanned out with the non streaming code
+        setStreaming();
+        byte[] zip = writeOut(getFeatureSource(ALL_TYPES).getFeatures(), streamingFormat());
+
+        final String[] expectedTypes = new String[] { "AllTypesPoint", "AllTypesMPoint",
+                "AllTypesPolygon", "AllTypesLine" };
+        checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingUnsortedSource() throws Exception {
+        // the property store cannot sort, the features might come back in a different order
+        setStreaming();
+        List<SimpleFeatureCollection> collections = new ArrayList<SimpleFeatureCollection>();
+        collections.add((SimpleFeatureCollection) getFeatureSource(
+                SystemTestData.BASIC_POLYGONS).getFeatures());
+        GetFeatureRequest request = GetFeatureRequest.adapt(gft);
+        assertFalse(new ShapeZipOutputFormat().isStreaming(collections, request));
+        assertTrue(streamingFormat().isStreaming(collections, request));
+
+        // falls back on the temp files
+        byte[] zip = writeOut(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures());
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingTooLarge() throws Exception {
+        setStreaming();
+        ShapeZipOutputFormat format = new ShapeZipOutputFormat() {
+            @Override
+            boolean hasStableOrder(SimpleFeatureCollection collection) {
+                return true;
+            }
+
+            @Override
+            StreamingShapefileWriter createStreamingWriter(SimpleFeatureCollection features,
+                    String fileName, Charset charset) {
+                StreamingShapefileWriter writer = super.createStreamingWriter(features,
+                        fileName, charset);
+                // room for the header and a few bytes
+                writer.maxLength = StreamingShapefileWriter.HEADER_LENGTH / 2 + 10;
+                return writer;
+            }
+        };
+        FeatureCollectionResponse fct = 
+            FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        fct.getFeature().add(getFeatureSource(SystemTestData.BASIC_POLYGONS).getFeatures());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            format.write(fct, bos, op);
+            fail("The shapefile should have been too large");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("do not fit in a shapefile"));
+        }
+        // failed before writing anything
+        assertEquals(0, bos.size());
+    }
+
+    @Test
+    public void testStreamingRequestUrl() throws Exception {
+        MockHttpServletResponse response = getAsServletResponse("wfs?service=WFS&version=1.0.0" +
+                "&request=GetFeature&typeName=" + getLayerId(SystemTestData.BASIC_POLYGONS) + 
+                "&outputFormat=SHAPE-ZIP&format_options=streaming:true");
+        assertEquals("application/zip", response.getContentType());
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, getBinaryInputStream(response));
+        assertEquals("http://localhost:8080/geoserver/wfs?service=WFS&version=1.0.0&request=GetFeature&typeName=cite:BasicPolygons&outputFormat=SHAPE-ZIP&format_options=streaming:true", 
+                getRequest(getBinaryInputStream(response)));
+    }
+
+    /**
+     * The property files are read in the same order every time, the streaming output can be
+     * tested on them even if the store cannot sort
+     */
+    private ShapeZipOutputFormat streamingFormat() {
+        return new ShapeZipOutputFormat() {
+            @Override
+            boolean hasStableOrder(SimpleFeatureCollection collection) {
+                return true;
+            }
+        };
+    }
+
+    private void setStreaming() {
+        Map options = new HashMap();
+        options.put("STREAMING", "true");
+        gft.setFormatOptions(options);
+    }
+
+    /**
+     * Returns the contents of the specified zip entry
+     */
+    private byte[] getEntry(String name, byte[] zip) throws IOException {
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+        try {
+            ZipEntry entry = null;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().equals(name)) {
+                    return IOUtils.toByteArray(zis);
+                }
+            }
+        } finally {
+            zis.close();
+        }
+        fail(name + " was not found in the zip file");
+        return null;
+    }
+
     /**
      * Saves the feature source contents into a zipped shapefile, returns the output as a byte array
      */
     byte[] writeOut(FeatureCollection fc) throws IOException {
-        ShapeZipOutputFormat zip = new ShapeZipOutputFormat();
+        return writeOut(fc, new ShapeZipOutputFormat());
+    }
+
+    byte[] writeOut(FeatureCollection fc, ShapeZipOutputFormat zip) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         FeatureCollectionResponse fct = 
             FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
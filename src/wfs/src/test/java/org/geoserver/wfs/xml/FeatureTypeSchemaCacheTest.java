@@ -0,0 +1,192 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.custommonkey.xmlunit.XMLAssert;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.custommonkey.xmlunit.XpathEngine;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.CiteTestData;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.wfs.v2_0.WFS20TestSupport;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class FeatureTypeSchemaCacheTest extends WFS20TestSupport {
+
+    FeatureTypeSchemaCache cache;
+
+    @Before
+    public void resetCache() {
+        cache = applicationContext.getBean(FeatureTypeSchemaCache.class);
+        cache.invalidateAll();
+        cache.hits.set(0);
+        cache.misses.set(0);
+    }
+
+    String describeFeatureType() {
+        return "wfs?service=WFS&version=2.0.0&request=DescribeFeatureType&typeName="
+                + getLayerId(CiteTestData.PRIMITIVEGEOFEATURE);
+    }
+
+    String getFeature() {
+        return "wfs?service=WFS&version=2.0.0&request=GetFeature&typeNames="
+                + getLayerId(CiteTestData.PRIMITIVEGEOFEATURE);
+    }
+
+    @Test
+    public void testDescribeFeatureType() throws Exception {
+        String first = getAsString(describeFeatureType());
+        assertEquals(0, cache.hits.get());
+        assertEquals(1, cache.misses.get());
+
+        String second = getAsString(describeFeatureType());
+        assertEquals(1, cache.hits.get());
+        assertEquals(1, cache.misses.get());
+        assertEquals(first, second);
+
+        Document doc = getAsDOM(describeFeatureType());
+        XMLAssert.assertXpathExists("//xsd:element[@name='PrimitiveGeoFeature']", doc);
+    }
+
+    @Test
+    public void testInvalidateOnCatalogChange() throws Exception {
+        getAsString(describeFeatureType());
+        assertEquals(1, cache.documents.size());
+
+        Catalog catalog = getCatalog();
+        FeatureTypeInfo ft = catalog.getFeatureTypeByName(
+                getLayerId(CiteTestData.PRIMITIVEGEOFEATURE));
+        String title = ft.getTitle();
+        try {
+            ft.setTitle("Changed title");
+            catalog.save(ft);
+            assertEquals(0, cache.documents.size());
+        } finally {
+            ft = catalog.getFeatureTypeByName(getLayerId(CiteTestData.PRIMITIVEGEOFEATURE));
+            ft.setTitle(title);
+            catalog.save(ft);
+        }
+
+        getAsString(describeFeatureType());
+        assertEquals(0, cache.hits.get());
+        assertEquals(2, cache.misses.get());
+    }
+
+    @Test
+    public void testGetFeature() throws Exception {
+        Document first = getAsDOM(getFeature());
+        assertGML32(first);
+        assertEquals(1, cache.schemas.size());
+        assertEquals(1, cache.misses.get());
+
+        Document second = getAsDOM(getFeature());
+        assertGML32(second);
+        assertEquals(1, cache.hits.get());
+        XMLAssert.assertXpathEvaluatesTo("5", "count(//sf:PrimitiveGeoFeature)", second);
+        XpathEngine xpath = XMLUnit.newXpathEngine();
+        XMLAssert.assertXpathEvaluatesTo(xpath.evaluate("count(//sf:PrimitiveGeoFeature/*)",
+                first), "count(//sf:PrimitiveGeoFeature/*)", second);
+    }
+
+    @Test
+    public void testInvalidateWhileEncoding() throws Exception {
+        Catalog catalog = getCatalog();
+        FeatureTypeInfo ft = catalog.getFeatureTypeByName(
+                getLayerId(CiteTestData.PRIMITIVEGEOFEATURE));
+        Map<String, Set<FeatureTypeInfo>> featureTypes =
+                new HashMap<String, Set<FeatureTypeInfo>>();
+        featureTypes.put(ft.getNamespace().getURI(), Collections.singleton(ft));
+        FeatureTypeSchemaBuilder builder = new FeatureTypeSchemaBuilder.GML32(getGeoServer());
+
+        Request request = new Request();
+        Dispatcher.REQUEST.set(request);
+        try {
+            // the request borrows the schema
+            ApplicationSchemaXSD2 xsd = cache.getApplicationSchema(builder, featureTypes,
+                    "http://localhost:8080/geoserver");
+            final FeatureTypeSchemaCache.CachedSchema cached = cache.schemas.asMap().values()
+                    .iterator().next();
+            assertSame(xsd, cached.xsd);
+
+            // another thread, e.g. a catalog listener, drops the schemas
+            Thread invalidator = new Thread() {
+                public void run() {
+                    cache.invalidateAll();
+                }
+            };
+            invalidator.start();
+            invalidator.join();
+            assertEquals(0, cache.schemas.size());
+            assertFalse(cached.disposed);
+
+            // an evicted schema is not handed out anymore
+            assertNotSame(xsd, cache.getApplicationSchema(builder, featureTypes,
+                    "http://localhost:8080/geoserver"));
+
+            // disposed once the request is done with it
+            cache.finished(request);
+            assertTrue(cached.disposed);
+        } finally {
+            Dispatcher.REQUEST.remove();
+            cache.finished(request);
+        }
+    }
+
+    @Test
+    public void testConcurrentEncodeAndInvalidate() throws Exception {
+        final int expected = getFeatureSource(CiteTestData.PRIMITIVEGEOFEATURE).getFeatures()
+                .size();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread invalidator = new Thread() {
+            public void run() {
+                while (running.get()) {
+                    cache.invalidateAll();
+                    Thread.yield();
+                }
+            }
+        };
+        invalidator.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Document>> futures = new ArrayList<Future<Document>>();
+            for (int i = 0; i < 40; i++) {
+                futures.add(executor.submit(new Callable<Document>() {
+                    public Document call() throws Exception {
+                        return getAsDOM(getFeature());
+                    }
+                }));
+            }
+            for (Future<Document> future : futures) {
+                Document dom = future.get();
+                assertGML32(dom);
+                XMLAssert.assertXpathEvaluatesTo(String.valueOf(expected),
+                        "count(//sf:PrimitiveGeoFeature)", dom);
+            }
+        } finally {
+            running.set(false);
+            invalidator.join();
+            executor.shutdown();
+        }
+    }
+}
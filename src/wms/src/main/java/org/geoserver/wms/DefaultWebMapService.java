@@ -9,7 +9,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.opengis.wfs.FeatureCollectionType;
 
@@ -137,6 +139,17 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     private static Boolean USE_GLOBAL_RENDERING_POOL = null;
 
+    /**
+     * Number of threads used to render the layers of a map in parallel, zero disables parallel
+     * layer rendering
+     */
+    private static Integer PARALLEL_LAYER_RENDERING = null;
+
+    /**
+     * The bounded pool used to render the layers of a map in parallel
+     */
+    private static volatile ExecutorService LAYER_RENDERING_POOL;
+
     private GetCapabilities getCapabilities;
 
     private DescribeLayer describeLayer;
@@ -246,6 +259,18 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
             else
                 USE_GLOBAL_RENDERING_POOL = Boolean.valueOf(usePool);
         }
+
+        // parallel layer rendering, accepts true/false or the number of threads to use
+        if (PARALLEL_LAYER_RENDERING == null) {
+            String parallel = GeoServerExtensions.getProperty("PARALLEL_LAYER_RENDERING", context);
+            // default to false, but allow switching on
+            if (parallel == null || "false".equalsIgnoreCase(parallel))
+                PARALLEL_LAYER_RENDERING = 0;
+            else if ("true".equalsIgnoreCase(parallel))
+                PARALLEL_LAYER_RENDERING = Runtime.getRuntime().availableProcessors();
+            else
+                PARALLEL_LAYER_RENDERING = Math.max(0, Integer.valueOf(parallel));
+        }
     }
 
     /**
@@ -688,12 +713,48 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
         return RENDERING_POOL;
     }
 
+    /**
+     * Returns the app wide, bounded pool used to render the layers of a map in parallel, or null
+     * if parallel layer rendering has not been enabled with the PARALLEL_LAYER_RENDERING property
+     * 
+     * @return
+     */
+    public static ExecutorService getLayerRenderingPool() {
+        if (PARALLEL_LAYER_RENDERING == null || PARALLEL_LAYER_RENDERING <= 0) {
+            return null;
+        }
+        if (LAYER_RENDERING_POOL == null) {
+            synchronized (DefaultWebMapService.class) {
+                if (LAYER_RENDERING_POOL == null) {
+                    LAYER_RENDERING_POOL = Executors.newFixedThreadPool(PARALLEL_LAYER_RENDERING,
+                            new ThreadFactory() {
+                                AtomicInteger count = new AtomicInteger();
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t = new Thread(r, "GeoServer layer rendering thread "
+                                            + count.incrementAndGet());
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                }
+            }
+        }
+
+        return LAYER_RENDERING_POOL;
+    }
+
     public void destroy() throws Exception {
         if (RENDERING_POOL != null) {
             RENDERING_POOL.shutdown();
             RENDERING_POOL.awaitTermination(10, TimeUnit.SECONDS);
             RENDERING_POOL = null;
         }
+        if (LAYER_RENDERING_POOL != null) {
+            LAYER_RENDERING_POOL.shutdown();
+            LAYER_RENDERING_POOL.awaitTermination(10, TimeUnit.SECONDS);
+            LAYER_RENDERING_POOL = null;
+        }
     }
 
 }
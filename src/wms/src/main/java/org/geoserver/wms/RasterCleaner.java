@@ -14,6 +14,8 @@ import javax.media.jai.RenderedImageList;
 
 import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.Request;
+import org.geoserver.wms.animate.StreamingRenderedImageList;
+import org.geoserver.wms.map.CanvasPool;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.resources.image.ImageUtilities;
 
@@ -69,7 +71,10 @@ public class RasterCleaner extends AbstractDispatcherCallback {
         if (list != null) {
             images.remove();
             for (RenderedImage image : list) {
-                if (image instanceof RenderedImageList) {
+                if (image instanceof StreamingRenderedImageList) {
+                    // frames are released as they are consumed, stop rendering the others
+                    ((StreamingRenderedImageList) image).dispose();
+                } else if (image instanceof RenderedImageList) {
                     RenderedImageList ril = (RenderedImageList) image;
                     for (int i = 0; i < ril.size(); i++) {
                         disposeImage((RenderedImage) ril.get(i));
@@ -87,7 +92,10 @@ public class RasterCleaner extends AbstractDispatcherCallback {
             ImageUtilities.disposePlanarImageChain((PlanarImage) image);
         } else if (image instanceof BufferedImage) {
             BufferedImage bi = (BufferedImage) image;
-            bi.flush();
+            // canvases coming from the pool are given back for reuse
+            if (!CanvasPool.get().release(bi)) {
+                bi.flush();
+            }
         } 
     }
 
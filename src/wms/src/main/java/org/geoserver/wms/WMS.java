@@ -34,6 +34,8 @@ import org.geoserver.catalog.PublishedInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.util.DimensionDomain;
+import org.geoserver.catalog.util.DimensionDomainIndex;
 import org.geoserver.catalog.util.ReaderDimensionsAccessor;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
@@ -1039,6 +1041,20 @@ public class WMS implements ApplicationContextAware {
                     + " does not have time support enabled");
         }
 
+        // use the indexed domain if available
+        DimensionDomain domain = getDimensionDomain(typeInfo, ResourceInfo.TIME);
+        if (domain != null) {
+            if (time.getPresentation() == DimensionPresentation.LIST) {
+                return domain.isEmpty() ? null : domain.getTimes();
+            }
+            TreeSet<Date> result = new TreeSet<Date>();
+            if (!domain.isEmpty()) {
+                result.add((Date) domain.getMinimum());
+                result.add((Date) domain.getMaximum());
+            }
+            return result;
+        }
+
         FeatureCollection collection = getDimensionCollection(typeInfo, time);
 
         TreeSet<Date> result = new TreeSet<Date>();
@@ -1088,12 +1104,28 @@ public class WMS implements ApplicationContextAware {
                     + " does not have elevation support enabled");
         }
 
+        boolean allValues = elevation.getPresentation() == DimensionPresentation.LIST
+                || (elevation.getPresentation() == DimensionPresentation.DISCRETE_INTERVAL && elevation
+                        .getResolution() == null);
+
+        // use the indexed domain if available
+        DimensionDomain domain = getDimensionDomain(typeInfo, ResourceInfo.ELEVATION);
+        if (domain != null) {
+            if (allValues) {
+                return domain.isEmpty() ? null : domain.getElevations();
+            }
+            TreeSet<Double> result = new TreeSet<Double>();
+            if (!domain.isEmpty()) {
+                result.add((Double) domain.getMinimum());
+                result.add((Double) domain.getMaximum());
+            }
+            return result;
+        }
+
         FeatureCollection collection = getDimensionCollection(typeInfo, elevation);
 
         TreeSet<Double> result = new TreeSet<Double>();
-        if (elevation.getPresentation() == DimensionPresentation.LIST
-                || (elevation.getPresentation() == DimensionPresentation.DISCRETE_INTERVAL && elevation
-                        .getResolution() == null)) {
+        if (allValues) {
             final UniqueVisitor visitor = new UniqueVisitor(elevation.getAttribute());
             collection.accepts(visitor, null);
 
@@ -1199,6 +1231,19 @@ public class WMS implements ApplicationContextAware {
          }
     }
 
+    /**
+     * Returns the domain of the dimension from the {@link DimensionDomainIndex}, or null if the
+     * index is not available or not enabled
+     */
+    DimensionDomain getDimensionDomain(FeatureTypeInfo typeInfo, String dimensionName)
+            throws IOException {
+        DimensionDomainIndex index = GeoServerExtensions.bean(DimensionDomainIndex.class);
+        if (index == null || !index.isEnabled()) {
+            return null;
+        }
+        return index.getDomain(typeInfo, dimensionName);
+    }
+
     /**
      * Returns the collection of all values of the dimension attribute, eventually sorted if the
      * native capabilities allow for it
@@ -10,13 +10,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
 
 import javax.media.jai.RenderedImageList;
 
@@ -24,6 +21,7 @@ import org.apache.commons.beanutils.BeanUtils;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.util.CaseInsensitiveMap;
 import org.geoserver.ows.util.KvpUtils;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapProducerCapabilities;
@@ -32,28 +30,36 @@ import org.geoserver.wms.WebMapService;
 import org.geoserver.wms.map.GetMapKvpRequestReader;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
+import org.geotools.util.logging.Logging;
 
 /**
  * The Frame Visitor contains the logic to produce frame images.<br/>
- * The "visit" method initializes the runnables and the animatorExecutor service, while
- * the "produce" method runs the tasks and generated the frames images.
+ * The "visit" method initializes the frame loaders, while the "produce" method returns a list
+ * of images that renders the frames on the animatorExecutor service as they are consumed.
  * @author Alessio Fabiani, GeoSolutions S.A.S., alessio.fabiani@geo-solutions.it
  * @author Andrea Aime, GeoSolutions S.A.S., andrea.aime@geo-solutions.it
  */
 public class FrameCatalogVisitor {
 
+    static final Logger LOGGER = Logging.getLogger(FrameCatalogVisitor.class);
+
+    /**
+     * Default number of frames rendered ahead of the one being encoded
+     */
+    static final int DEFAULT_FRAME_WINDOW = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     /**
      * total number of available frames for this visitor
      */
     int framesNumber;
 
     /**
-     * the list of runnables to be executed
+     * the list of frame loaders to be executed
      */
-    List<Future<RenderedImage>> tasks;
+    List<FrameLoader> loaders;
 
     /**
-     * Adds a new visitor to the runnables list and initializes the animatorExecutor service is not yet initialied. 
+     * Adds a new frame loader to the list, the frame is not rendered until requested
      * @param request
      * @param wms
      * @param wmsConfiguration
@@ -61,87 +67,59 @@ public class FrameCatalogVisitor {
      * @param avalue
      */
     public void visit(final GetMapRequest request, WebMapService wms, WMS wmsConfiguration, String aparam, String avalue) {
-        if (this.tasks == null) {
-            this.tasks = new LinkedList<Future<RenderedImage>>();
+        if (this.loaders == null) {
+            this.loaders = new ArrayList<FrameLoader>();
         }
 
-        FrameLoader loader = new FrameLoader(request, wms, wmsConfiguration, aparam, avalue);
-        
-        
-        final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
-        this.tasks.add(task);
+        this.loaders.add(new FrameLoader(request, wms, wmsConfiguration, aparam, avalue));
         this.framesNumber++;
-
-        // run the loading in this thread
-        wmsConfiguration.getAnimatorExecutorService().execute(task);
     }
 
     /**
-     * Invokes the Executor service and produces the frames images.
+     * Returns the frames images. The frames are rendered concurrently on the animatorExecutor
+     * service as the list is read, only a window of them is in memory at any given time.
+     * The first frame is rendered before returning, so that failures in it can be reported
+     * as a service exception.
      * @param wmsConfiguration
      * @return
      * @throws IOException
      */
     public RenderedImageList produce(WMS wmsConfiguration) throws IOException {
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
-
-        long gifAnimatedSize = 0;
-
-        for (Future<RenderedImage> future : tasks) {
-            RenderedImage image = null;
-            try {
-                image = future.get();
-            } catch (InterruptedException e) {
-                dispose();
-                throw new IOException(e);
-            } catch (ExecutionException e) {
-                dispose();
-                throw new IOException(e);
-            }
-
-            if (image == null) {
-                continue;
-            }
-
-            // collect the images
-            gifAnimatedSize += getImageSizeInBytes(image);
-            if (wmsConfiguration.getMaxRenderingSize() != null
-                    && gifAnimatedSize >= wmsConfiguration.getMaxRenderingSize()) {
-                dispose();
-                throw new IOException("Max rendering size exceed!");
-            }
-
-            images.add(image);
-        }
-
-        if (images == null || images.size() == 0) {
+        if (loaders == null || loaders.size() == 0) {
             dispose();
             throw new IOException("Empty list of frames.");
         }
 
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders,
+                wmsConfiguration.getAnimatorExecutorService(), getFrameWindow(),
+                wmsConfiguration.getMaxRenderingSize());
         dispose();
-        return new RenderedImageList(images);
-    }
 
-    private long getImageSizeInBytes(RenderedImage image) {
-        int tileWidth = image.getTileWidth();
-        int tileLength = image.getNumXTiles();
-        int numBands = image.getSampleModel().getNumBands();
-        int[] sampleSize = image.getSampleModel().getSampleSize();
+        frames.get(0);
+        return frames;
+    }
 
-        return (long) Math.ceil(2 * tileWidth * tileLength * numBands * (sampleSize[0] / 8.0));
+    static int getFrameWindow() {
+        String value = GeoServerExtensions.getProperty("GEOSERVER_ANIMATOR_FRAME_WINDOW");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for GEOSERVER_ANIMATOR_FRAME_WINDOW, " + value
+                        + ", should be the number of frames rendered ahead. Using the default, "
+                        + DEFAULT_FRAME_WINDOW);
+            }
+        }
+        return DEFAULT_FRAME_WINDOW;
     }
 
     /**
-     * Suddenly stops the Executor service and clear instantiated visitors.
+     * Clears the instantiated frame loaders.
      */
     private void dispose() {
         this.framesNumber = 0;
 
-        if (this.tasks != null)
-            this.tasks.clear();
-        
-        this.tasks = null;
+        this.loaders = null;
     }
 
 }
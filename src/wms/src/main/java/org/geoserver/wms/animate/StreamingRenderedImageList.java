@@ -0,0 +1,211 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.animate;
+
+import java.awt.image.RenderedImage;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.RenderedImageList;
+
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A {@link RenderedImageList} whose frames are rendered on demand, so that long animations do not
+ * need to be held in memory as a whole.
+ * <p>
+ * The frames are rendered concurrently on the provided executor, but only a window of them is
+ * in flight at any time: when frame <code>n</code> is requested the list waits for it, releases
+ * the previous one, and schedules the rendering up to frame <code>n + window - 1</code>. The
+ * frames are meant to be read once and in order, as the animated GIF encoder does: a frame
+ * that has already been released is returned as <code>null</code>, as are the frames whose
+ * rendering produced no image.
+ * </p>
+ * <p>
+ * Call {@link #dispose()} once done to stop rendering the frames that have not been read yet.
+ * </p>
+ */
+public class StreamingRenderedImageList extends RenderedImageList {
+
+    private static final long serialVersionUID = -1840302566349436424L;
+
+    static final Logger LOGGER = Logging.getLogger(StreamingRenderedImageList.class);
+
+    final Frames frames;
+
+    /**
+     * Builds a new streaming list
+     *
+     * @param loaders The frame loaders, in frame order
+     * @param executor The executor rendering the frames
+     * @param window The max number of frames being rendered or held at any time
+     * @param maxRenderingSize The max memory the frames in the window can use, or null for no
+     *        limit
+     */
+    public StreamingRenderedImageList(List<? extends Callable<RenderedImage>> loaders,
+            ExecutorService executor, int window, Long maxRenderingSize) {
+        super();
+        if (loaders == null || loaders.isEmpty()) {
+            throw new IllegalArgumentException("Empty list of frames.");
+        }
+        this.frames = new Frames(loaders, executor, Math.max(1, window), maxRenderingSize);
+        this.imageCollection = frames;
+    }
+
+    /**
+     * Stops rendering the frames not read yet, and releases the current one
+     */
+    public void dispose() {
+        frames.dispose();
+    }
+
+    /**
+     * The frame window size
+     */
+    public int getWindow() {
+        return frames.window;
+    }
+
+    /**
+     * Memory used by an image, as estimated by the animator before frame streaming
+     */
+    static long getImageSizeInBytes(RenderedImage image) {
+        int tileWidth = image.getTileWidth();
+        int tileLength = image.getNumXTiles();
+        int numBands = image.getSampleModel().getNumBands();
+        int[] sampleSize = image.getSampleModel().getSampleSize();
+
+        return (long) Math.ceil(2 * tileWidth * tileLength * numBands * (sampleSize[0] / 8.0));
+    }
+
+    static class Frames extends AbstractList<RenderedImage> {
+
+        final List<? extends Callable<RenderedImage>> loaders;
+
+        final ExecutorService executor;
+
+        final int window;
+
+        final Long maxRenderingSize;
+
+        final List<Future<RenderedImage>> futures;
+
+        /**
+         * Index of the next frame to be scheduled
+         */
+        int next;
+
+        /**
+         * Index and image of the frame last read
+         */
+        int current = -1;
+
+        RenderedImage currentImage;
+
+        boolean disposed;
+
+        Frames(List<? extends Callable<RenderedImage>> loaders, ExecutorService executor,
+                int window, Long maxRenderingSize) {
+            this.loaders = loaders;
+            this.executor = executor;
+            this.window = window;
+            this.maxRenderingSize = maxRenderingSize;
+            this.futures = new ArrayList<Future<RenderedImage>>(loaders.size());
+        }
+
+        @Override
+        public int size() {
+            return loaders.size();
+        }
+
+        @Override
+        public synchronized RenderedImage get(int index) {
+            if (index < 0 || index >= loaders.size()) {
+                throw new IndexOutOfBoundsException("Frame " + index + " out of "
+                        + loaders.size());
+            }
+            if (index == current) {
+                return currentImage;
+            }
+            if (disposed || index < current) {
+                return null;
+            }
+
+            while (current < index) {
+                currentImage = null;
+                current++;
+                schedule();
+                Future<RenderedImage> future = futures.set(current, null);
+                currentImage = await(future);
+                checkSize(currentImage);
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Got animation frame " + current);
+            }
+            return currentImage;
+        }
+
+        /**
+         * Schedules the frames up to the end of the window
+         */
+        void schedule() {
+            while (next < loaders.size() && next < current + window) {
+                futures.add(executor.submit(loaders.get(next)));
+                next++;
+            }
+        }
+
+        RenderedImage await(Future<RenderedImage> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                dispose();
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while rendering animation frame "
+                        + current, e);
+            } catch (ExecutionException e) {
+                dispose();
+                throw new ServiceException("Failed to render animation frame " + current,
+                        e.getCause());
+            }
+        }
+
+        /**
+         * The frames in the window are not rendered yet, the current one gives an estimate of
+         * the memory the window is going to use
+         */
+        void checkSize(RenderedImage image) {
+            if (image == null || maxRenderingSize == null) {
+                return;
+            }
+            long size = getImageSizeInBytes(image) * Math.min(window, loaders.size());
+            if (size >= maxRenderingSize) {
+                dispose();
+                throw new ServiceException("Max rendering size exceed!");
+            }
+        }
+
+        synchronized void dispose() {
+            disposed = true;
+            currentImage = null;
+            for (int i = 0; i < futures.size(); i++) {
+                Future<RenderedImage> future = futures.set(i, null);
+                if (future != null) {
+                    // don't interrupt, the renderers might be sharing channels with other
+                    // requests
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+}
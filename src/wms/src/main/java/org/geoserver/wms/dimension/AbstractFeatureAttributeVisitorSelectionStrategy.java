@@ -11,6 +11,9 @@ import java.util.logging.Logger;
 
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.util.DimensionDomain;
+import org.geoserver.catalog.util.DimensionDomainIndex;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
@@ -60,6 +63,27 @@ public abstract class AbstractFeatureAttributeVisitorSelectionStrategy extends A
         return retval;
     }
 
+    /**
+     * Returns the domain of the dimension from the {@link DimensionDomainIndex}, or null if the
+     * index is not available, not enabled, or cannot be used for the dimension
+     * 
+     * @param typeInfo
+     * @param dimensionName
+     * @return
+     */
+    protected DimensionDomain getDimensionDomain(FeatureTypeInfo typeInfo, String dimensionName) {
+        DimensionDomainIndex index = GeoServerExtensions.bean(DimensionDomainIndex.class);
+        if (index == null || !index.isEnabled()) {
+            return null;
+        }
+        try {
+            return index.getDomain(typeInfo, dimensionName);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINER, e.getMessage(), e);
+            return null;
+        }
+    }
+
     private FeatureCollection<?, ?> getDimensionCollection(FeatureTypeInfo typeInfo,
             DimensionInfo dimension) throws IOException {
         // grab the feature source
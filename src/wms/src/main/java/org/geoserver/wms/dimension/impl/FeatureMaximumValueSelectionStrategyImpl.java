@@ -7,6 +7,7 @@ package org.geoserver.wms.dimension.impl;
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.util.DimensionDomain;
 import org.geoserver.wms.dimension.AbstractFeatureAttributeVisitorSelectionStrategy;
 import org.geotools.feature.visitor.CalcResult;
 import org.geotools.feature.visitor.MaxVisitor;
@@ -31,6 +32,10 @@ public class FeatureMaximumValueSelectionStrategyImpl extends
     @Override
     public <T> T getDefaultValue(ResourceInfo resource, String dimensionName,
             DimensionInfo dimension, Class<T> clz) {
+        DimensionDomain domain = getDimensionDomain((FeatureTypeInfo) resource, dimensionName);
+        if (domain != null) {
+            return domain.isEmpty() ? null : Converters.convert(domain.getMaximum(), clz);
+        }
         final MaxVisitor max = new MaxVisitor(dimension.getAttribute());
         CalcResult res = getCalculatedResult((FeatureTypeInfo) resource, dimension, max);
         if (res.equals(CalcResult.NULL_RESULT)) {
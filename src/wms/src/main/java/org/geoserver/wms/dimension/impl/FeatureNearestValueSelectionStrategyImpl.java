@@ -11,6 +11,7 @@ import org.geoserver.catalog.AttributeTypeInfo;
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.util.DimensionDomain;
 import org.geoserver.wms.dimension.AbstractFeatureAttributeVisitorSelectionStrategy;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.visitor.CalcResult;
@@ -66,6 +67,18 @@ public class FeatureNearestValueSelectionStrategyImpl extends
             }                       
         }
 
+        DimensionDomain domain = getDimensionDomain((FeatureTypeInfo) resource, dimensionName);
+        if (domain != null) {
+            if (domain.isEmpty()) {
+                return null;
+            }
+            try {
+                return Converters.convert(domain.getNearest(this.toMatch), clz);
+            } catch (IllegalArgumentException e) {
+                // the reference value is not a date or a number, let the visitor handle it
+            }
+        }
+
         final FeatureCalc nearest = new NearestVisitor(ff.property(dimension.getAttribute()),
                 this.toMatch);
         
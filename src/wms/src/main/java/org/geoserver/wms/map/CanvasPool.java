@@ -0,0 +1,252 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.RasterCleaner;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A pool of the {@link BufferedImage} drawing surfaces used by the GetMap rendering path, keyed
+ * by size and image type, so that large canvases are reused across requests instead of being
+ * allocated (and garbage collected) every time.
+ * <p>
+ * Canvases are handed out by {@link #acquire(int, int, int)} and given back by
+ * {@link #release(BufferedImage)}, which the {@link RasterCleaner} calls once the response has
+ * been written. Only the canvases handed out by the pool are accepted back, each one once. A
+ * canvas whose data outlives the request (e.g., split into cached tiles) must be
+ * {@link #detach(BufferedImage) detached}.
+ * </p>
+ * <p>
+ * The idle canvases are kept within a memory ceiling, configured in megabytes with the
+ * <code>GEOSERVER_CANVAS_POOL_SIZE</code> system property, context parameter or environment
+ * variable (64 by default, 0 disables the pool). The least recently released canvases are dropped
+ * first when the ceiling is hit.
+ * </p>
+ */
+public class CanvasPool implements CanvasPoolMXBean {
+
+    static final Logger LOGGER = Logging.getLogger(CanvasPool.class);
+
+    static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static volatile CanvasPool INSTANCE;
+
+    /**
+     * Returns the application wide canvas pool
+     */
+    public static CanvasPool get() {
+        if (INSTANCE == null) {
+            synchronized (CanvasPool.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new CanvasPool(lookupMaxSize());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    static long lookupMaxSize() {
+        String value = GeoServerExtensions.getProperty("GEOSERVER_CANVAS_POOL_SIZE");
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim())) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for GEOSERVER_CANVAS_POOL_SIZE, " + value
+                        + ", should be a size in megabytes. Using the default pool size instead");
+            }
+        }
+        return DEFAULT_MAX_SIZE;
+    }
+
+    final long maxSize;
+
+    /**
+     * The idle canvases, least recently released first
+     */
+    final LinkedList<BufferedImage> idle = new LinkedList<BufferedImage>();
+
+    /**
+     * The canvases handed out and not yet released, weakly referenced so that the ones never
+     * released are garbage collected as usual
+     */
+    final Map<BufferedImage, Boolean> leased = new WeakHashMap<BufferedImage, Boolean>();
+
+    long idleSize;
+
+    long requests;
+
+    long reuses;
+
+    long bytesSaved;
+
+    long discarded;
+
+    /**
+     * Builds a pool whose idle canvases use at most maxSize bytes, a non positive value disables
+     * pooling
+     */
+    public CanvasPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a canvas of the specified size and {@link BufferedImage} type, either reusing a
+     * pooled one, cleared as if it had just been allocated, or creating a new one
+     */
+    public BufferedImage acquire(int width, int height, int imageType) {
+        BufferedImage image = null;
+        synchronized (this) {
+            requests++;
+            // most recently released first, it's more likely to be still in the CPU caches
+            for (Iterator<BufferedImage> it = idle.descendingIterator(); it.hasNext();) {
+                BufferedImage candidate = it.next();
+                if (candidate.getWidth() == width && candidate.getHeight() == height
+                        && candidate.getType() == imageType) {
+                    it.remove();
+                    long size = getSize(candidate);
+                    idleSize -= size;
+                    reuses++;
+                    bytesSaved += size;
+                    image = candidate;
+                    break;
+                }
+            }
+        }
+
+        if (image != null) {
+            clear(image);
+        } else {
+            image = new BufferedImage(width, height, imageType);
+        }
+        if (maxSize > 0) {
+            synchronized (this) {
+                leased.put(image, Boolean.TRUE);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gives back a canvas obtained from {@link #acquire(int, int, int)}. Returns true if the
+     * canvas has been pooled, false if it was not handed out by this pool, was already released,
+     * or did not fit in the pool
+     */
+    public boolean release(BufferedImage image) {
+        synchronized (this) {
+            if (image == null || leased.remove(image) == null) {
+                return false;
+            }
+            long size = getSize(image);
+            if (size > maxSize) {
+                discarded++;
+                return false;
+            }
+            while (idleSize + size > maxSize && !idle.isEmpty()) {
+                BufferedImage evicted = idle.removeFirst();
+                idleSize -= getSize(evicted);
+                discarded++;
+            }
+            idle.addLast(image);
+            idleSize += size;
+            return true;
+        }
+    }
+
+    /**
+     * Makes the pool forget about a canvas it handed out, it won't be pooled even if released
+     */
+    public synchronized void detach(BufferedImage image) {
+        leased.remove(image);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return idleSize;
+    }
+
+    public synchronized int getCount() {
+        return idle.size();
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized double getReuseRatio() {
+        return requests == 0 ? 0 : ((double) reuses) / requests;
+    }
+
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    public synchronized void resetStatistics() {
+        requests = 0;
+        reuses = 0;
+        bytesSaved = 0;
+        discarded = 0;
+    }
+
+    public synchronized void clear() {
+        idle.clear();
+        idleSize = 0;
+    }
+
+    /**
+     * The memory used by the image data
+     */
+    static long getSize(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return ((long) buffer.getSize()) * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Zeroes out the image data
+     */
+    static void clear(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        for (int bank = 0; bank < buffer.getNumBanks(); bank++) {
+            if (buffer instanceof DataBufferByte) {
+                Arrays.fill(((DataBufferByte) buffer).getData(bank), (byte) 0);
+            } else if (buffer instanceof DataBufferInt) {
+                Arrays.fill(((DataBufferInt) buffer).getData(bank), 0);
+            } else if (buffer instanceof DataBufferUShort) {
+                Arrays.fill(((DataBufferUShort) buffer).getData(bank), (short) 0);
+            } else if (buffer instanceof DataBufferShort) {
+                Arrays.fill(((DataBufferShort) buffer).getData(bank), (short) 0);
+            } else {
+                for (int i = 0; i < buffer.getSize(); i++) {
+                    buffer.setElem(bank, i, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+/**
+ * JMX management interface for the {@link CanvasPool}
+ */
+public interface CanvasPoolMXBean {
+
+    /**
+     * The max amount of memory, in bytes, the idle canvases can use
+     */
+    long getMaxSize();
+
+    /**
+     * The amount of memory, in bytes, used by the idle canvases
+     */
+    long getSize();
+
+    /**
+     * The number of idle canvases
+     */
+    int getCount();
+
+    /**
+     * The number of canvases requested to the pool
+     */
+    long getRequests();
+
+    /**
+     * The number of requests served with a pooled canvas
+     */
+    long getReuses();
+
+    /**
+     * The ratio between reuses and requests
+     */
+    double getReuseRatio();
+
+    /**
+     * The bytes that did not need to be allocated thanks to canvas reuse
+     */
+    long getBytesSaved();
+
+    /**
+     * The number of released canvases dropped because they did not fit in the pool
+     */
+    long getDiscarded();
+
+    /**
+     * Resets the statistics
+     */
+    void resetStatistics();
+
+    /**
+     * Drops all the idle canvases
+     */
+    void clear();
+}
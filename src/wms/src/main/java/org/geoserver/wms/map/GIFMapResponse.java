@@ -11,9 +11,7 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +31,7 @@ import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.MapProducerCapabilities;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.animate.StreamingRenderedImageList;
 import org.geoserver.wms.kvp.PaletteManager;
 import org.geotools.image.ImageWorker;
 import org.geotools.image.palette.InverseColorMapOp;
@@ -169,7 +168,7 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
         param.setCompressionQuality(0.75f);
 
         ImageOutputStream otStream = null;
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
+        RenderedImage written = null;
         try {
             otStream = ImageIO.createImageOutputStream(outStream);
             gifWriter.setOutput(otStream);
@@ -187,16 +186,21 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
                 throw new ServiceException("Animate GIF delay invalid: " + delay);
 
             //
-            // Getting input files
+            // Getting input files, streaming lists render them as we go, so write and 
+            // release them one at a time
             //
             for (int i = 0; i < numfiles; i++) {
                 if (LOGGER.isLoggable(Level.FINE))
                     LOGGER.fine("Writing image " + i);
                 // get the image
                 RenderedImage ri = (RenderedImage) ril.get(i);
+                if (ri == null) {
+                    continue;
+                }
                 // convert it to gif compatible
                 ri = applyPalette(ri, mapContent, MIME_TYPE, false);
                 if (ri != null) {
+                    written = ri;
                     // prepare metadata and write param
                     final IIOMetadata imageMetadata = gifWriter.getDefaultImageMetadata(
                     	new ImageTypeSpecifier(ri), param);
@@ -204,7 +208,10 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
 
                     // write
                     gifWriter.writeToSequence(new IIOImage(ri, null, imageMetadata), param);
-                    images.add(ri);
+                    
+                    // let go of the image chain as soon as possible to free memory
+                    disposeImage(ri);
+                    written = null;
                 }
             }
 
@@ -232,13 +239,12 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
                 // swallow
             }
 
-            // let go of the image chain as soon as possible to free memory
-            for (RenderedImage image : images) {
-                if (image instanceof PlanarImage) {
-                    ImageUtilities.disposePlanarImageChain((PlanarImage) image);
-                } else if (image instanceof BufferedImage) {
-                    ((BufferedImage) image).flush();
-                }
+            // stop rendering the frames we are not going to write
+            if (ril instanceof StreamingRenderedImageList) {
+                ((StreamingRenderedImageList) ril).dispose();
+            }
+            if (written != null) {
+                disposeImage(written);
             }
         }
 
@@ -246,6 +252,14 @@ public final class GIFMapResponse extends RenderedImageMapResponse {
             LOGGER.fine("Done writing animated gif");
     }
 
+    private void disposeImage(RenderedImage image) {
+        if (image instanceof PlanarImage) {
+            ImageUtilities.disposePlanarImageChain((PlanarImage) image);
+        } else if (image instanceof BufferedImage) {
+            ((BufferedImage) image).flush();
+        }
+    }
+
     public String getContentDisposition() {
         // can be null
         return null;
@@ -98,6 +98,15 @@ public class ImageUtils {
      */
     public static BufferedImage createImage(final int width, final int height,
             final IndexColorModel palette, final boolean transparent) {
+        return createImage(width, height, palette, transparent, null);
+    }
+
+    /**
+     * Same as {@link #createImage(int, int, IndexColorModel, boolean)}, but the non paletted
+     * images are taken from the provided {@link CanvasPool}, if not null
+     */
+    public static BufferedImage createImage(final int width, final int height,
+            final IndexColorModel palette, final boolean transparent, final CanvasPool pool) {
         // WARNING: whenever this method is changed, change getDrawingSurfaceMemoryUse
         // accordingly
         if (palette != null) {
@@ -111,12 +120,14 @@ public class ImageUtils {
             return new BufferedImage(palette, raster, false, null);
         }
 
-        if (transparent) {
-            return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-        }
         // don't use alpha channel if the image is not transparent (load testing shows this
         // image setup is the fastest to draw and encode on
-        return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        final int type = transparent ? BufferedImage.TYPE_4BYTE_ABGR
+                : BufferedImage.TYPE_3BYTE_BGR;
+        if (pool != null) {
+            return pool.acquire(width, height, type);
+        }
+        return new BufferedImage(width, height, type);
 
     }
     
@@ -164,8 +164,7 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
 
                 RenderedImage metaTile = metaTileMap.getImage();
                 RenderedImage[] tiles = split(key, metaTile, mapContent);
-                tileCache.storeTiles(key, tiles);
-                tile = tileCache.getTile(key, request, tiles);
+                tile = tileCache.storeTiles(key, tiles, request);
                 renderedCoverages = metaTileMap.getRenderedCoverages();
             }
             RenderedImageMap tileMap = new RenderedImageMap(mapContent, tile, getMimeType());
@@ -288,6 +287,8 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
                     	LOGGER.finer("Metatile split on BufferedImage");        
                     }                  	
                     final BufferedImage image = (BufferedImage) metaTile;
+                    // the tiles share the meta tile data and get cached, it cannot be reused
+                    CanvasPool.get().detach(image);
                     tile = image.getSubimage(x, y, tileSize, tileSize);                    
                     break;                    
                 default:
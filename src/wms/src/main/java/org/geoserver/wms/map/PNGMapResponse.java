@@ -20,6 +20,7 @@ import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.map.png.PNGJWriter;
+import org.geoserver.wms.map.png.ParallelPNGEncoder;
 import org.geotools.image.ImageWorker;
 import org.geotools.image.palette.ColorIndexerDescriptor;
 import org.geotools.util.logging.Logging;
@@ -104,7 +105,11 @@ public class PNGMapResponse extends RenderedImageMapResponse {
         image = applyPalette(image, mapContent, "image/png8", true);
         float quality = (100 - wms.getPngCompression()) / 100.0f;
         JAIInfo.PngEncoderType encoder = wms.getPNGEncoderType();
-        if(encoder == JAIInfo.PngEncoderType.PNGJ) {
+        if (encoder == JAIInfo.PngEncoderType.PARALLEL && ParallelPNGEncoder.isSupported(image)) {
+            new ParallelPNGEncoder().writePNG(image, outStream, quality, mapContent);
+            RasterCleaner.addImage(image);
+        } else if (encoder == JAIInfo.PngEncoderType.PNGJ
+                || encoder == JAIInfo.PngEncoderType.PARALLEL) {
             image = new PNGJWriter().writePNG(image, outStream, quality, mapContent);
             RasterCleaner.addImage(image);
         } else {
@@ -0,0 +1,326 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.DefaultWebMapService;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.decoration.MapDecorationLayout;
+import org.geotools.filter.function.EnvFunction;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.Layer;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.label.LabelCacheImpl;
+import org.geotools.renderer.label.LabelCacheImpl.LabelRenderingMode;
+import org.geotools.renderer.lite.LabelCache;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.Style;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Renders the layers of a map concurrently, each one with its own {@link StreamingRenderer} on a
+ * transparent canvas, and then composites the canvases on the map graphics in layer order.
+ * <p>
+ * The labels of all the layers are collected in a single label cache and painted on top of the
+ * composited layers once all of them are done, so that label conflict resolution works across
+ * layers exactly as it does when a single renderer paints the whole map. The rendering timeout
+ * and the max rendering errors apply to the map as a whole: once either is hit all the layer
+ * renderers are stopped.
+ * </p>
+ */
+class ParallelLayerRenderer {
+
+    final RenderedImageMapOutputFormat format;
+
+    final ExecutorService executor;
+
+    final WMSMapContent mapContent;
+
+    final RenderingHints java2dHints;
+
+    final Map<Object, Object> rendererParams;
+
+    ParallelLayerRenderer(RenderedImageMapOutputFormat format, ExecutorService executor,
+            WMSMapContent mapContent, RenderingHints java2dHints,
+            Map<Object, Object> rendererParams) {
+        this.format = format;
+        this.executor = executor;
+        this.mapContent = mapContent;
+        this.java2dHints = java2dHints;
+        this.rendererParams = rendererParams;
+    }
+
+    /**
+     * Returns true if the layers of the map can be painted independently and composited without
+     * altering the result. This is not the case for a single layer, for paletted images, and for
+     * styles blending their output with the layers below them.
+     */
+    static boolean canRender(WMSMapContent mapContent, RenderedImage preparedImage) {
+        List<Layer> layers = mapContent.layers();
+        if (layers.size() < 2 || preparedImage.getColorModel() instanceof IndexColorModel) {
+            return false;
+        }
+        for (Layer layer : layers) {
+            Style style = layer.getStyle();
+            if (style == null) {
+                continue;
+            }
+            for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+                Map<String, String> options = fts.getOptions();
+                if (options != null
+                        && (options.containsKey("composite") || options
+                                .containsKey("composite-base"))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The extra memory used by the per layer canvases
+     */
+    static long getCanvasMemoryUse(WMSMapContent mapContent, int width, int height) {
+        return ((long) width) * height * 4 * mapContent.layers().size();
+    }
+
+    /**
+     * Paints the map layers, the labels and the decoration layout on the provided graphics, which
+     * is disposed at the end
+     */
+    void paint(Graphics2D graphic, Rectangle paintArea, MapDecorationLayout layout,
+            int maxErrors, int maxRenderingTime) throws ServiceException {
+        List<Layer> layers = mapContent.layers();
+        final ReferencedEnvelope renderingArea = mapContent.getRenderingArea();
+        final AffineTransform renderingTransform = mapContent.getRenderingTransform();
+
+        // a single label cache shared by all the renderers, painted at the end
+        LabelCacheImpl labelCache = new LabelCacheImpl();
+        Object textRendering = rendererParams.get(StreamingRenderer.TEXT_RENDERING_KEY);
+        if (textRendering instanceof String) {
+            labelCache.setLabelRenderingMode(LabelRenderingMode.valueOf((String) textRendering));
+        }
+        labelCache.start();
+
+        List<MapContent> contents = new ArrayList<MapContent>(layers.size());
+        List<StreamingRenderer> renderers = new ArrayList<StreamingRenderer>(layers.size());
+        List<BufferedImage> canvases = new ArrayList<BufferedImage>(layers.size());
+        List<Graphics2D> graphics = new ArrayList<Graphics2D>(layers.size());
+        List<RenderExceptionStrategy> exceptionListeners = new ArrayList<RenderExceptionStrategy>(
+                layers.size());
+        RenderingTimeoutEnforcer timeout = null;
+        boolean completed = false;
+        try {
+            for (int i = 0; i < layers.size(); i++) {
+                MapContent layerContent = new MapContent();
+                layerContent.setViewport(mapContent.getViewport());
+                layerContent.addLayer(layers.get(i));
+                contents.add(layerContent);
+
+                StreamingRenderer renderer = new StreamingRenderer();
+                renderer.setThreadPool(DefaultWebMapService.getRenderingPool());
+                renderer.setMapContent(layerContent);
+                renderer.setJava2DHints(java2dHints);
+                Map<Object, Object> params = new HashMap<Object, Object>(rendererParams);
+                params.put(StreamingRenderer.LABEL_CACHE_KEY, SharedLabelCache.create(labelCache, i));
+                renderer.setRendererHints(params);
+                renderers.add(renderer);
+
+                RenderExceptionStrategy exceptionListener = new RenderExceptionStrategy(renderer);
+                renderer.addRenderListener(exceptionListener);
+                exceptionListeners.add(exceptionListener);
+
+                BufferedImage canvas = CanvasPool.get().acquire(paintArea.width,
+                        paintArea.height, BufferedImage.TYPE_INT_ARGB_PRE);
+                Graphics2D canvasGraphics = canvas.createGraphics();
+                canvasGraphics.setRenderingHints(java2dHints);
+                canvases.add(canvas);
+                graphics.add(canvasGraphics);
+
+                format.onBeforeRender(renderer);
+            }
+
+            MaxErrorEnforcer errorChecker = new MaxErrorEnforcer(renderers, maxErrors);
+            timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderers, graphics);
+            timeout.start();
+
+            // the request state kept in thread locals has to be visible to the workers as well
+            final Map<String, Object> envValues = EnvFunction.getLocalValues();
+            final Request owsRequest = Dispatcher.REQUEST.get();
+            final SecurityContext security = SecurityContextHolder.getContext();
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(renderers.size());
+            try {
+                for (int i = 0; i < renderers.size(); i++) {
+                    final StreamingRenderer renderer = renderers.get(i);
+                    final Graphics2D canvasGraphics = graphics.get(i);
+                    final Rectangle area = paintArea;
+                    futures.add(executor.submit(new Callable<Void>() {
+
+                        public Void call() throws Exception {
+                            EnvFunction.setLocalValues(envValues);
+                            Dispatcher.REQUEST.set(owsRequest);
+                            SecurityContextHolder.setContext(security);
+                            try {
+                                renderer.paint(canvasGraphics, area, renderingArea,
+                                        renderingTransform);
+                            } finally {
+                                EnvFunction.clearLocalValues();
+                                Dispatcher.REQUEST.remove();
+                                SecurityContextHolder.clearContext();
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+                completed = true;
+            } catch (ExecutionException e) {
+                throw new ServiceException("Rendering process failed", e.getCause(),
+                        "internalError");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while rendering the map layers", e);
+            } finally {
+                // on failure, make sure no renderer is left running or waiting
+                for (int i = 0; i < futures.size(); i++) {
+                    if (!futures.get(i).isDone()) {
+                        renderers.get(i).stopRendering();
+                        futures.get(i).cancel(true);
+                    }
+                }
+            }
+
+            if (!timeout.isTimedOut()) {
+                // composite the layers in z-order, then the labels and the decorations on top
+                for (BufferedImage canvas : canvases) {
+                    graphic.drawImage(canvas, paintArea.x, paintArea.y, null);
+                }
+                labelCache.end(graphic, paintArea);
+
+                if (layout != null) {
+                    try {
+                        layout.paint(graphic, paintArea, mapContent);
+                    } catch (Exception e) {
+                        throw new ServiceException(
+                                "Problem occurred while trying to watermark data", e);
+                    }
+                }
+            }
+
+            // check if the request did timeout
+            if (timeout.isTimedOut()) {
+                throw new ServiceException(
+                        "This requested used more time than allowed and has been forcefully stopped. "
+                                + "Max rendering time is " + (maxRenderingTime / 1000.0) + "s");
+            }
+
+            // check if a non ignorable error occurred
+            for (RenderExceptionStrategy exceptionListener : exceptionListeners) {
+                if (exceptionListener.exceptionOccurred()) {
+                    Exception renderError = exceptionListener.getException();
+                    throw new ServiceException("Rendering process failed", renderError,
+                            "internalError");
+                }
+            }
+
+            // check if too many errors occurred
+            if (errorChecker.exceedsMaxErrors()) {
+                throw new ServiceException("More than " + maxErrors
+                        + " rendering errors occurred, bailing out.",
+                        errorChecker.getLastException(), "internalError");
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.stop();
+            }
+            for (Graphics2D g : graphics) {
+                g.dispose();
+            }
+            graphic.dispose();
+            // the canvases can be reused only if no renderer might still be painting on them
+            if (completed) {
+                for (BufferedImage canvas : canvases) {
+                    CanvasPool.get().release(canvas);
+                }
+            }
+            // detach the layers without disposing them, they are owned by the map content
+            for (int i = 0; i < contents.size(); i++) {
+                MapContent layerContent = contents.get(i);
+                layerContent.removeLayer(layers.get(i));
+                layerContent.dispose();
+            }
+        }
+    }
+
+    /**
+     * Makes a {@link LabelCacheImpl} shareable among several renderers running in parallel: calls
+     * are serialized, the layer ids are made unique for each renderer, and the lifecycle calls
+     * are ignored, the owner of the cache will start it, and paint it once all the renderers are
+     * done.
+     */
+    static class SharedLabelCache implements InvocationHandler {
+
+        final LabelCacheImpl delegate;
+
+        final int layerIndex;
+
+        SharedLabelCache(LabelCacheImpl delegate, int layerIndex) {
+            this.delegate = delegate;
+            this.layerIndex = layerIndex;
+        }
+
+        static LabelCache create(LabelCacheImpl delegate, int layerIndex) {
+            return (LabelCache) Proxy.newProxyInstance(LabelCache.class.getClassLoader(),
+                    new Class[] { LabelCache.class }, new SharedLabelCache(delegate, layerIndex));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == LabelCache.class
+                    && ("start".equals(name) || "end".equals(name) || "stop".equals(name) || ("clear"
+                            .equals(name) && (args == null || args.length == 0)))) {
+                return null;
+            }
+            Class<?>[] parameters = method.getParameterTypes();
+            if (parameters.length > 0 && parameters[0] == String.class && args[0] != null) {
+                // each renderer numbers its layers from zero
+                args[0] = layerIndex + "." + args[0];
+            }
+            synchronized (delegate) {
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+    }
+}
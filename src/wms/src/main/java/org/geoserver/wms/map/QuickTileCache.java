@@ -6,35 +6,93 @@ package org.geoserver.wms.map;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
+import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogVisitorAdapter;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.WMSStoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.ServiceInfo;
 import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionListener;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSInfo;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
 import org.geotools.util.CanonicalSet;
+import org.geotools.util.logging.Logging;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 import com.vividsolutions.jts.geom.Envelope;
 
-public class QuickTileCache implements TransactionListener, GeoServerLifecycleHandler {
+/**
+ * Caches the tiles of the meta-tiles built for tiled WMS clients not going through GWC, so that
+ * the other tiles of a meta-tile can be returned without rendering them again.
+ * <p>
+ * The cache is bounded by the total size in bytes of the cached tiles, configurable in megabytes
+ * with the <code>GEOSERVER_METATILE_CACHE_SIZE</code> system property, context parameter or
+ * environment variable. Entries are invalidated per layer when the layer data is modified by a
+ * WFS transaction, or when the layer, its resource, store or styles are modified in the catalog.
+ * </p>
+ * <p>
+ * The cache statistics, and in particular how many renders each meta-tile saved, are exposed via
+ * JMX, see {@link QuickTileCacheMXBean}.
+ * </p>
+ */
+public class QuickTileCache implements TransactionListener, GeoServerLifecycleHandler,
+        QuickTileCacheMXBean {
+
+    static final Logger LOGGER = Logging.getLogger(QuickTileCache.class);
+
+    /**
+     * Default max cache size, in megabytes
+     */
+    static final int DEFAULT_MAX_SIZE = 64;
+
     /**
      * Set of parameters that we can ignore, since they do not define a map, are either unrelated,
      * or define the tiling instead
@@ -58,30 +116,88 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      */
     private CanonicalSet<MetaTileKey> metaTileKeys = CanonicalSet.newInstance(MetaTileKey.class);
 
-    private WeakHashMap tileCache = new WeakHashMap();
+    private Cache<MetaTileKey, CacheElement> tileCache;
+
+    private Catalog catalog;
+
+    final long maxBytes;
+
+    final AtomicLong metaTilesRendered = new AtomicLong();
+
+    final AtomicLong tileHits = new AtomicLong();
+
+    final AtomicLong rendersSaved = new AtomicLong();
+
+    final AtomicLong fullySavedMetaTiles = new AtomicLong();
+
+    final AtomicLong evictions = new AtomicLong();
 
     public QuickTileCache(GeoServer geoServer) {
+        this(getMaxSizeProperty() * 1024L * 1024L);
+        this.catalog = geoServer.getCatalog();
         geoServer.addListener(new ConfigurationListenerAdapter() {
             public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                tileCache.invalidateAll();
             }
 
             public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                // only the WMS configuration affects the maps
+                if (service instanceof WMSInfo) {
+                    tileCache.invalidateAll();
+                }
             }
 
             public void reloaded() {
-                tileCache.clear();
+                tileCache.invalidateAll();
             }
         });
+        catalog.addListener(new LayerInvalidatingListener());
     }
 
     /**
      * For testing only
      */
     QuickTileCache() {
+        this(DEFAULT_MAX_SIZE * 1024L * 1024L);
+    }
+
+    /**
+     * For testing only
+     */
+    QuickTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        tileCache = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+                .weigher(new Weigher<MetaTileKey, CacheElement>() {
+
+                    @Override
+                    public int weigh(MetaTileKey key, CacheElement value) {
+                        return value.bytes;
+                    }
+                }).removalListener(new RemovalListener<MetaTileKey, CacheElement>() {
+
+                    @Override
+                    public void onRemoval(RemovalNotification<MetaTileKey, CacheElement> notification) {
+                        if (notification.wasEvicted()) {
+                            evictions.incrementAndGet();
+                        }
+                    }
+                }).build();
+    }
+
+    static int getMaxSizeProperty() {
+        String value = GeoServerExtensions.getProperty("GEOSERVER_METATILE_CACHE_SIZE");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for GEOSERVER_METATILE_CACHE_SIZE, " + value
+                        + ", should be the max cache size in megabytes. Using the default, "
+                        + DEFAULT_MAX_SIZE);
+            }
+        }
+        return DEFAULT_MAX_SIZE;
     }
 
     /**
@@ -111,6 +227,7 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         Point metaTileCoords = getMetaTileCoordinates(tileCoords);
         ReferencedEnvelope metaTileEnvelope = getMetaTileEnvelope(bbox, tileCoords, metaTileCoords);
         MetaTileKey key = new MetaTileKey(mapKey, metaTileCoords, metaTileEnvelope);
+        key.layers = getLayerKeys(request);
 
         // since this will be used for thread synchronization, we have to make
         // sure two thread asking for the same meta tile will get the same key
@@ -118,6 +235,34 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         return metaTileKeys.unique(key);
     }
 
+    /**
+     * Returns the keys used to invalidate the meta-tiles built for the request: the ids of the
+     * resources being painted, plus the requested layer names, so that layer groups can be
+     * invalidated too
+     */
+    Set<String> getLayerKeys(GetMapRequest request) {
+        Set<String> keys = new HashSet<String>();
+        if (request.getLayers() != null) {
+            for (MapLayerInfo layer : request.getLayers()) {
+                ResourceInfo resource = layer.getResource();
+                if (resource != null) {
+                    keys.add(resource.getId());
+                } else {
+                    keys.add(layer.getName());
+                }
+            }
+        }
+        if (request.getRawKvp() != null) {
+            String layers = request.getRawKvp().get("LAYERS");
+            if (layers != null) {
+                for (String name : layers.split(",")) {
+                    keys.add(name.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+
     private ReferencedEnvelope getMetaTileEnvelope(ReferencedEnvelope bbox, Point tileCoords, Point metaTileCoords) {
         double minx = bbox.getMinX() + (metaTileCoords.x - tileCoords.x) * bbox.getWidth();
         double miny = bbox.getMinY() + (metaTileCoords.y - tileCoords.y) * bbox.getHeight();
@@ -280,6 +425,12 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
 
         ReferencedEnvelope metaTileEnvelope;
 
+        /**
+         * The resource ids and layer names used to invalidate the meta-tile, not part of the key
+         * identity
+         */
+        Set<String> layers = Collections.emptySet();
+
         public MetaTileKey(MapKey mapKey, Point metaTileCoords, ReferencedEnvelope metaTileEnvelope) {
             super();
             this.mapKey = mapKey;
@@ -334,14 +485,17 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      * @param request
      * @return
      */
-    public synchronized RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
-        CacheElement ce = (CacheElement) tileCache.get(key);
+    public RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
+        CacheElement ce = tileCache.getIfPresent(key);
 
         if (ce == null) {
             return null;
         }
 
-        return getTile(key, request, ce.tiles);
+        int index = getTileIndex(key, request);
+        tileHits.incrementAndGet();
+        ce.served(index);
+        return ce.tiles[index];
     }
 
     /**
@@ -352,6 +506,10 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
      * @return
      */
     public RenderedImage getTile(MetaTileKey key, GetMapRequest request, RenderedImage[] tiles) {
+        return tiles[getTileIndex(key, request)];
+    }
+
+    int getTileIndex(MetaTileKey key, GetMapRequest request) {
         Envelope bbox = request.getBbox();
         if(CRS.getAxisOrder(request.getCrs()) == AxisOrder.NORTH_EAST) {
             bbox = new Envelope(bbox.getMinY(), bbox.getMaxY(), bbox.getMinX(), bbox.getMaxX());
@@ -359,46 +517,224 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
         
         Point tileCoord = getTileOffsetsInMeta(bbox, key.getMetaTileEnvelope());
 
-        return tiles[tileCoord.x + (tileCoord.y * key.getMetaFactor())];
+        return tileCoord.x + (tileCoord.y * key.getMetaFactor());
+    }
+
+    /**
+     * Puts the specified tile array in the cache
+     * 
+     * @param key
+     * @param tiles
+     */
+    public void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
+        metaTilesRendered.incrementAndGet();
+        tileCache.put(key, new CacheElement(tiles));
     }
 
     /**
      * Puts the specified tile array in the cache, and returns the tile the request was looking for
      * 
      * @param key
-     * @param request
      * @param tiles
+     * @param request
      * @return
      */
-    public synchronized void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
-        tileCache.put(key, new CacheElement(tiles));
+    public RenderedImage storeTiles(MetaTileKey key, RenderedImage[] tiles, GetMapRequest request) {
+        metaTilesRendered.incrementAndGet();
+        CacheElement ce = new CacheElement(tiles);
+        int index = getTileIndex(key, request);
+        // the tile that triggered the rendering is not a saved render
+        ce.servedMask.set(1 << index);
+        tileCache.put(key, ce);
+        return tiles[index];
+    }
+
+    /**
+     * Removes from the cache all the meta-tiles containing the specified layer
+     * 
+     * @param layerKey A resource id, or a layer name as found in the GetMap LAYERS parameter
+     */
+    public void invalidate(String layerKey) {
+        invalidate(Collections.singleton(layerKey));
+    }
+
+    void invalidate(Collection<String> layerKeys) {
+        if (layerKeys.isEmpty()) {
+            return;
+        }
+        for (Iterator<MetaTileKey> it = tileCache.asMap().keySet().iterator(); it.hasNext();) {
+            MetaTileKey key = it.next();
+            if (!Collections.disjoint(key.layers, layerKeys)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void clear() {
+        tileCache.invalidateAll();
+    }
+
+    @Override
+    public long getMaxSizeInBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The number of meta-tiles in the cache
+     */
+    public long getSize() {
+        return tileCache.size();
+    }
+
+    /**
+     * The total size in bytes of the cached tiles
+     */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (CacheElement ce : tileCache.asMap().values()) {
+            bytes += ce.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * The number of meta-tiles rendered and stored in the cache
+     */
+    public long getMetaTilesRendered() {
+        return metaTilesRendered.get();
+    }
+
+    /**
+     * The number of tiles returned straight from the cache
+     */
+    public long getTileHits() {
+        return tileHits.get();
+    }
+
+    /**
+     * The number of tile renders the cache saved, that is, the number of distinct tiles returned
+     * from the cache for each meta-tile. Each meta-tile can save up to N-1 renders, where N is the
+     * number of tiles in it.
+     */
+    public long getRendersSaved() {
+        return rendersSaved.get();
+    }
+
+    /**
+     * The number of meta-tiles whose tiles have all been requested, that is, that saved N-1 renders
+     */
+    public long getFullySavedMetaTiles() {
+        return fullySavedMetaTiles.get();
+    }
+
+    @Override
+    public double getFullySavedRatio() {
+        long rendered = metaTilesRendered.get();
+        return rendered == 0 ? 0 : (double) fullySavedMetaTiles.get() / rendered;
+    }
+
+    @Override
+    public double getRendersSavedPerMetaTile() {
+        long rendered = metaTilesRendered.get();
+        return rendered == 0 ? 0 : (double) rendersSaved.get() / rendered;
+    }
+
+    /**
+     * The number of meta-tiles evicted because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public void resetStatistics() {
+        metaTilesRendered.set(0);
+        tileHits.set(0);
+        rendersSaved.set(0);
+        fullySavedMetaTiles.set(0);
+        evictions.set(0);
     }
 
     class CacheElement {
         RenderedImage[] tiles;
 
+        int bytes;
+
+        /**
+         * The tiles that have been returned so far
+         */
+        AtomicInteger servedMask = new AtomicInteger();
+
         public CacheElement(RenderedImage[] tiles) {
             this.tiles = tiles;
+            long size = 0;
+            for (RenderedImage tile : tiles) {
+                size += getSizeInBytes(tile);
+            }
+            this.bytes = (int) Math.min(Integer.MAX_VALUE, size);
+        }
+
+        void served(int index) {
+            int bit = 1 << index;
+            while (true) {
+                int mask = servedMask.get();
+                if ((mask & bit) != 0) {
+                    // already returned once, the render was saved already
+                    return;
+                }
+                if (servedMask.compareAndSet(mask, mask | bit)) {
+                    rendersSaved.incrementAndGet();
+                    if (Integer.bitCount(mask | bit) == tiles.length) {
+                        fullySavedMetaTiles.incrementAndGet();
+                    }
+                    return;
+                }
+            }
         }
     }
 
+    static long getSizeInBytes(RenderedImage image) {
+        if (image == null) {
+            return 0;
+        }
+        SampleModel sm = image.getSampleModel();
+        long pixelBits = 0;
+        for (int size : sm.getSampleSize()) {
+            pixelBits += size;
+        }
+        if (pixelBits == 0) {
+            pixelBits = DataBuffer.getDataTypeSize(sm.getDataType()) * sm.getNumBands();
+        }
+        return (long) image.getWidth() * image.getHeight() * pixelBits / 8;
+    }
+
     public void dataStoreChange(TransactionEvent event) throws WFSException {
-        // if anything changes we just wipe out the cache. the mapkey
-        // contains a string with part of the map request where the layer
-        // name is included, but we would have to parse it and consider
-        // also that the namespace may be missing in the getmap request
-        tileCache.clear();
+        QName layerName = event.getLayerName();
+        FeatureTypeInfo featureType = null;
+        if (catalog != null && layerName != null) {
+            featureType = catalog.getFeatureTypeByName(layerName.getNamespaceURI(),
+                    layerName.getLocalPart());
+        }
+        if (featureType != null) {
+            invalidate(featureType.getId());
+        } else {
+            // we don't know which layer changed, wipe out the cache
+            tileCache.invalidateAll();
+        }
     }
 
     @Override
     public void onReset() {
         // data might have changed in the meantime
-        tileCache.clear();        
+        tileCache.invalidateAll();
     }
 
     @Override
     public void onDispose() {
-        tileCache.clear();
+        tileCache.invalidateAll();
     }
 
     public void beforeReload() {
@@ -407,6 +743,106 @@ public class QuickTileCache implements TransactionListener, GeoServerLifecycleHa
 
     @Override
     public void onReload() {
-        tileCache.clear();
+        tileCache.invalidateAll();
+    }
+
+    /**
+     * Invalidates the meta-tiles containing the layers modified or removed from the catalog
+     */
+    class LayerInvalidatingListener extends CatalogVisitorAdapter implements CatalogListener {
+
+        public void handleAddEvent(CatalogAddEvent event) {
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) {
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+            event.getSource().accept(this);
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) {
+            event.getSource().accept(this);
+        }
+
+        public void reloaded() {
+            tileCache.invalidateAll();
+        }
+
+        @Override
+        public void visit(DataStoreInfo dataStore) {
+            visitStore(dataStore);
+        }
+
+        @Override
+        public void visit(CoverageStoreInfo coverageStore) {
+            visitStore(coverageStore);
+        }
+
+        @Override
+        public void visit(WMSStoreInfo wmsStore) {
+            visitStore(wmsStore);
+        }
+
+        void visitStore(StoreInfo store) {
+            Set<String> keys = new HashSet<String>();
+            for (ResourceInfo resource : catalog.getResourcesByStore(store, ResourceInfo.class)) {
+                keys.add(resource.getId());
+            }
+            invalidate(keys);
+        }
+
+        @Override
+        public void visit(FeatureTypeInfo featureType) {
+            invalidate(featureType.getId());
+        }
+
+        @Override
+        public void visit(CoverageInfo coverage) {
+            invalidate(coverage.getId());
+        }
+
+        @Override
+        public void visit(WMSLayerInfo wmsLayer) {
+            invalidate(wmsLayer.getId());
+        }
+
+        @Override
+        public void visit(LayerInfo layer) {
+            if (layer.getResource() != null) {
+                invalidate(layer.getResource().getId());
+            }
+        }
+
+        @Override
+        public void visit(LayerGroupInfo layerGroup) {
+            Set<String> keys = new HashSet<String>();
+            keys.add(layerGroup.getName());
+            keys.add(layerGroup.prefixedName());
+            for (LayerInfo layer : layerGroup.layers()) {
+                if (layer.getResource() != null) {
+                    keys.add(layer.getResource().getId());
+                }
+            }
+            invalidate(keys);
+        }
+
+        @Override
+        public void visit(StyleInfo style) {
+            // the style might be used by layers directly, or by layer groups
+            Set<String> keys = new HashSet<String>();
+            for (LayerInfo layer : catalog.getLayers(style)) {
+                if (layer.getResource() != null) {
+                    keys.add(layer.getResource().getId());
+                }
+            }
+            for (LayerGroupInfo group : catalog.getLayerGroups()) {
+                if (group.getStyles().contains(style)) {
+                    keys.add(group.getName());
+                    keys.add(group.prefixedName());
+                }
+            }
+            invalidate(keys);
+        }
     }
 }
@@ -0,0 +1,72 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+/**
+ * JMX management interface for the {@link QuickTileCache}
+ */
+public interface QuickTileCacheMXBean {
+
+    /**
+     * The max size, in bytes, of the cached tiles
+     */
+    long getMaxSizeInBytes();
+
+    /**
+     * The number of meta-tiles in the cache
+     */
+    long getSize();
+
+    /**
+     * The total size in bytes of the cached tiles
+     */
+    long getSizeInBytes();
+
+    /**
+     * The number of meta-tiles rendered and stored in the cache
+     */
+    long getMetaTilesRendered();
+
+    /**
+     * The number of tiles returned straight from the cache
+     */
+    long getTileHits();
+
+    /**
+     * The number of tile renders saved by the cache
+     */
+    long getRendersSaved();
+
+    /**
+     * The number of meta-tiles that saved all of their N-1 renders
+     */
+    long getFullySavedMetaTiles();
+
+    /**
+     * The ratio between the meta-tiles that saved all of their N-1 renders and the meta-tiles
+     * rendered
+     */
+    double getFullySavedRatio();
+
+    /**
+     * The average number of renders saved by each meta-tile rendered
+     */
+    double getRendersSavedPerMetaTile();
+
+    /**
+     * The number of meta-tiles evicted because the cache was full
+     */
+    long getEvictions();
+
+    /**
+     * Resets the statistics
+     */
+    void resetStatistics();
+
+    /**
+     * Empties the cache
+     */
+    void clear();
+}
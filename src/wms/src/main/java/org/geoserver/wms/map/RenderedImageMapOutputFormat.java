@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +53,7 @@ import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapOutputFormat;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.RasterCleaner;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSInfo;
 import org.geoserver.wms.WMSInfo.WMSInterpolation;
@@ -466,59 +468,74 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         // return null;
         // }
 
-        // enforce no more than x rendering errors
         int maxErrors = wms.getMaxRenderingErrors();
-        MaxErrorEnforcer errorChecker = new MaxErrorEnforcer(renderer, maxErrors);
+        // the timeout enforcer is neutral when the timeout is 0
+        int maxRenderingTime = wms.getMaxRenderingTime() * 1000;
 
-        // Add a render listener that ignores well known rendering exceptions and reports back non
-        // ignorable ones
-        final RenderExceptionStrategy nonIgnorableExceptionListener;
-        nonIgnorableExceptionListener = new RenderExceptionStrategy(renderer);
-        renderer.addRenderListener(nonIgnorableExceptionListener);
+        // render the layers in parallel if enabled, and if the per layer canvases fit in the
+        // memory limit
+        ExecutorService layerRenderingPool = getLayerRenderingPool();
+        if (layerRenderingPool != null
+                && ParallelLayerRenderer.canRender(mapContent, preparedImage)
+                && (maxMemory <= 0 || memory
+                        + ParallelLayerRenderer.getCanvasMemoryUse(mapContent, paintArea.width,
+                                paintArea.height) <= maxMemory)) {
+            ParallelLayerRenderer parallelRenderer = new ParallelLayerRenderer(this,
+                    layerRenderingPool, mapContent, hints, rendererParams);
+            parallelRenderer.paint(graphic, paintArea, layout, maxErrors, maxRenderingTime);
+        } else {
+            // enforce no more than x rendering errors
+            MaxErrorEnforcer errorChecker = new MaxErrorEnforcer(renderer, maxErrors);
+
+            // Add a render listener that ignores well known rendering exceptions and reports back non
+            // ignorable ones
+            final RenderExceptionStrategy nonIgnorableExceptionListener;
+            nonIgnorableExceptionListener = new RenderExceptionStrategy(renderer);
+            renderer.addRenderListener(nonIgnorableExceptionListener);
         
-        onBeforeRender(renderer);
+            onBeforeRender(renderer);
 
-        // setup the timeout enforcer (the enforcer is neutral when the timeout is 0)
-        int maxRenderingTime = wms.getMaxRenderingTime() * 1000;
-        RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
-                graphic);
-        timeout.start();
-        try {
-            // finally render the image;
-            renderer.paint(graphic, paintArea, mapContent.getRenderingArea(),
-                    mapContent.getRenderingTransform());
+            // setup the timeout enforcer
+            RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
+                    graphic);
+            timeout.start();
+            try {
+                // finally render the image;
+                renderer.paint(graphic, paintArea, mapContent.getRenderingArea(),
+                        mapContent.getRenderingTransform());
 
-            // apply watermarking
-            if (layout != null) {
-                try {
-                    layout.paint(graphic, paintArea, mapContent);
-                } catch (Exception e) {
-                    throw new ServiceException("Problem occurred while trying to watermark data", e);
+                // apply watermarking
+                if (layout != null) {
+                    try {
+                        layout.paint(graphic, paintArea, mapContent);
+                    } catch (Exception e) {
+                        throw new ServiceException("Problem occurred while trying to watermark data", e);
+                    }
                 }
+            } finally {
+                timeout.stop();
+                graphic.dispose();
             }
-        } finally {
-            timeout.stop();
-            graphic.dispose();
-        }
 
-        // check if the request did timeout
-        if (timeout.isTimedOut()) {
-            throw new ServiceException(
-                    "This requested used more time than allowed and has been forcefully stopped. "
-                            + "Max rendering time is " + (maxRenderingTime / 1000.0) + "s");
-        }
+            // check if the request did timeout
+            if (timeout.isTimedOut()) {
+                throw new ServiceException(
+                        "This requested used more time than allowed and has been forcefully stopped. "
+                                + "Max rendering time is " + (maxRenderingTime / 1000.0) + "s");
+            }
 
-        // check if a non ignorable error occurred
-        if (nonIgnorableExceptionListener.exceptionOccurred()) {
-            Exception renderError = nonIgnorableExceptionListener.getException();
-            throw new ServiceException("Rendering process failed", renderError, "internalError");
-        }
+            // check if a non ignorable error occurred
+            if (nonIgnorableExceptionListener.exceptionOccurred()) {
+                Exception renderError = nonIgnorableExceptionListener.getException();
+                throw new ServiceException("Rendering process failed", renderError, "internalError");
+            }
 
-        // check if too many errors occurred
-        if (errorChecker.exceedsMaxErrors()) {
-            throw new ServiceException("More than " + maxErrors
-                    + " rendering errors occurred, bailing out.", errorChecker.getLastException(),
-                    "internalError");
+            // check if too many errors occurred
+            if (errorChecker.exceedsMaxErrors()) {
+                throw new ServiceException("More than " + maxErrors
+                        + " rendering errors occurred, bailing out.", errorChecker.getLastException(),
+                        "internalError");
+            }
         }
 
         if (palette != null && palette.getMapSize() < 256) {
@@ -537,6 +554,16 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                 preparedImage, hintsMap);
     }
 
+    /**
+     * Returns the executor used to render the map layers in parallel, or null if the layers
+     * should be rendered sequentially by a single renderer
+     * 
+     * @return
+     */
+    protected ExecutorService getLayerRenderingPool() {
+        return DefaultWebMapService.getLayerRenderingPool();
+    }
+
     /**
      * Allows subclasses to customize the renderer before the paint method gets invoked
      * 
@@ -653,8 +680,9 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
 
     /**
      * Sets up a {@link BufferedImage#TYPE_4BYTE_ABGR} if the paletteInverter is not provided, or a
-     * indexed image otherwise. Subclasses may override this method should they need a special kind
-     * of image
+     * indexed image otherwise. Non indexed images are taken from the {@link CanvasPool}, and given
+     * back to it by the {@link RasterCleaner} once the response has been written. Subclasses may
+     * override this method should they need a special kind of image
      * 
      * @param width
      * @param height
@@ -664,7 +692,7 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
     protected RenderedImage prepareImage(int width, int height, IndexColorModel palette,
             boolean transparent) {
         return ImageUtils.createImage(width, height, isPaletteSupported() ? palette : null,
-                transparent && isTransparencySupported());
+                transparent && isTransparencySupported(), CanvasPool.get());
     }
 
     /**
@@ -5,6 +5,9 @@
 package org.geoserver.wms.map;
 
 import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -19,15 +22,24 @@ import org.geotools.renderer.GTRenderer;
 public class RenderingTimeoutEnforcer {
     
     long timeout;
-    GTRenderer renderer;
-    Graphics graphics;
+    List<GTRenderer> renderers;
+    List<Graphics> graphics;
     Timer timer;
-    boolean timedOut = false;
+    volatile boolean timedOut = false;
 
     public RenderingTimeoutEnforcer(long timeout, GTRenderer renderer, Graphics graphics) {
+        this(timeout, Collections.singletonList(renderer), Collections.singletonList(graphics));
+    }
+
+    /**
+     * Builds an enforcer stopping all the provided renderers, and disposing all the provided
+     * graphics, once the timeout elapses. Used when the layers of a map are rendered in parallel.
+     */
+    public RenderingTimeoutEnforcer(long timeout, List<? extends GTRenderer> renderers,
+            List<? extends Graphics> graphics) {
         this.timeout = timeout;
-        this.renderer = renderer;
-        this.graphics = graphics;
+        this.renderers = new ArrayList<GTRenderer>(renderers);
+        this.graphics = new ArrayList<Graphics>(graphics);
     }
 
     /**
@@ -71,11 +83,15 @@ public class RenderingTimeoutEnforcer {
             timedOut = true;
             
             // ask gently...
-            renderer.stopRendering();
+            for (GTRenderer renderer : renderers) {
+                renderer.stopRendering();
+            }
             // ... but also be rude for extra measure (coverage rendering is
             // an atomic call to the graphics, it cannot be stopped
             // by the above)
-            graphics.dispose();
+            for (Graphics g : graphics) {
+                g.dispose();
+            }
             
         }
         
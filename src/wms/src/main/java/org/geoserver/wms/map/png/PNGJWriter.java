@@ -63,7 +63,7 @@ public class PNGJWriter {
      * @param mapContent
      * @return
      */
-    private FilterType getFilterType(WMSMapContent mapContent) {
+    FilterType getFilterType(WMSMapContent mapContent) {
         RasterSymbolizerVisitor visitor = new RasterSymbolizerVisitor();
         for (Layer layer : mapContent.layers()) {
             // check if the style has a raster symbolizer, don't trust the layer type as
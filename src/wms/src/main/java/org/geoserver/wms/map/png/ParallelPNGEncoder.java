@@ -0,0 +1,496 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.util.logging.Logging;
+
+import ar.com.hjg.pngj.FilterType;
+
+/**
+ * A PNG encoder that splits the image in bands of rows and compresses them in parallel, in the
+ * same way <a href="http://zlib.net/pigz/">pigz</a> does: each band is deflated independently,
+ * using the tail of the previous band as the dictionary, and ended with a sync flush, so that the
+ * compressed bands can be concatenated into a single, valid zlib stream.
+ * <p>
+ * The bands are read from the source image by the compressing threads, so the computation of a
+ * deferred image (e.g., the palette application) is spread among them as well, and each band is
+ * written out as soon as it and all the ones before it are compressed, without waiting for the
+ * whole image.
+ * </p>
+ * <p>
+ * Only images with 8 bits per sample are supported, along with paletted images, see
+ * {@link #isSupported(RenderedImage)}. Only the NONE and SUB scanline filters are used, as they
+ * do not depend on the previous row.
+ * </p>
+ */
+public class ParallelPNGEncoder {
+
+    private static final Logger LOGGER = Logging.getLogger(ParallelPNGEncoder.class);
+
+    static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    static final int COLOR_GRAY = 0;
+
+    static final int COLOR_RGB = 2;
+
+    static final int COLOR_PALETTE = 3;
+
+    static final int COLOR_GRAY_ALPHA = 4;
+
+    static final int COLOR_RGB_ALPHA = 6;
+
+    static final int FILTER_NONE = 0;
+
+    static final int FILTER_SUB = 1;
+
+    /**
+     * The deflate window, the max useful dictionary size
+     */
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    /**
+     * The uncompressed size of a band, same as pigz default block size
+     */
+    static final int DEFAULT_BAND_SIZE = 128 * 1024;
+
+    private static volatile ExecutorService POOL;
+
+    /**
+     * Returns the pool shared by all the parallel PNG encoders
+     */
+    static ExecutorService getPool() {
+        if (POOL == null) {
+            synchronized (ParallelPNGEncoder.class) {
+                if (POOL == null) {
+                    POOL = Executors.newFixedThreadPool(Runtime.getRuntime()
+                            .availableProcessors(), new ThreadFactory() {
+                        AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "GeoServer PNG encoding thread "
+                                    + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return POOL;
+    }
+
+    final ExecutorService executor;
+
+    final int bandSize;
+
+    /**
+     * Builds an encoder using the shared encoding pool
+     */
+    public ParallelPNGEncoder() {
+        this(getPool(), DEFAULT_BAND_SIZE);
+    }
+
+    /**
+     * Builds an encoder using the specified executor, splitting the image in bands of roughly
+     * bandSize uncompressed bytes
+     */
+    public ParallelPNGEncoder(ExecutorService executor, int bandSize) {
+        this.executor = executor;
+        this.bandSize = bandSize;
+    }
+
+    /**
+     * Returns true if the image can be encoded: 8 bits per sample gray, gray alpha, RGB, RGBA or
+     * paletted images, with non premultiplied alpha
+     */
+    public static boolean isSupported(RenderedImage image) {
+        return getColorType(image) >= 0;
+    }
+
+    static int getColorType(RenderedImage image) {
+        ColorModel cm = image.getColorModel();
+        int bands = image.getSampleModel().getNumBands();
+        if (cm instanceof IndexColorModel) {
+            return bands == 1 && ((IndexColorModel) cm).getMapSize() <= 256 ? COLOR_PALETTE : -1;
+        }
+        if (!(cm instanceof ComponentColorModel || cm instanceof DirectColorModel)
+                || cm.isAlphaPremultiplied() || bands != cm.getNumComponents()) {
+            return -1;
+        }
+        for (int size : image.getSampleModel().getSampleSize()) {
+            if (size != 8) {
+                return -1;
+            }
+        }
+        int csType = cm.getColorSpace().getType();
+        if (csType == ColorSpace.TYPE_GRAY) {
+            return cm.hasAlpha() ? COLOR_GRAY_ALPHA : COLOR_GRAY;
+        } else if (csType == ColorSpace.TYPE_RGB) {
+            return cm.hasAlpha() ? COLOR_RGB_ALPHA : COLOR_RGB;
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes the map image as a PNG, picking the scanline filter like {@link PNGJWriter} does
+     *
+     * @param quality The compression quality, from 0 (max compression) to 1 (no compression)
+     */
+    public void writePNG(RenderedImage image, OutputStream outStream, float quality,
+            WMSMapContent mapContent) {
+        boolean subFilter = new PNGJWriter().getFilterType(mapContent) == FilterType.FILTER_SUB;
+        int level = Math.round(9 * (1 - quality));
+        try {
+            encode(image, outStream, level, subFilter);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to encode the PNG", e);
+            throw new ServiceException(e);
+        }
+    }
+
+    /**
+     * Encodes the image as a PNG
+     *
+     * @param image The image to encode, must be {@link #isSupported(RenderedImage) supported}
+     * @param out The destination stream, it won't be closed
+     * @param compression The deflate level, from 0 to 9
+     * @param subFilter If true the SUB scanline filter is used, NONE otherwise
+     */
+    public void encode(final RenderedImage image, OutputStream out, int compression,
+            boolean subFilter) throws IOException {
+        final int colorType = getColorType(image);
+        if (colorType < 0) {
+            throw new IllegalArgumentException("Unsupported image for PNG encoding: "
+                    + image.getColorModel());
+        }
+        final int level = Math.max(0, Math.min(9, compression));
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int bands = image.getSampleModel().getNumBands();
+        final int rowSize = width * bands + 1;
+        final int rowsPerBand = Math.max(1, bandSize / rowSize);
+        final int dictionaryRows = (WINDOW_SIZE + rowSize - 1) / rowSize;
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(SIGNATURE);
+        writeHeader(dos, width, height, colorType);
+        if (colorType == COLOR_PALETTE) {
+            writePalette(dos, (IndexColorModel) image.getColorModel());
+        }
+
+        // schedule the bands, they are read, filtered and deflated in parallel
+        final int filter = subFilter ? FILTER_SUB : FILTER_NONE;
+        List<Future<Band>> futures = new ArrayList<Future<Band>>();
+        for (int y = 0; y < height; y += rowsPerBand) {
+            final int startRow = y;
+            final int endRow = Math.min(height, y + rowsPerBand);
+            final int firstRow = Math.max(0, startRow - dictionaryRows);
+            final boolean last = endRow == height;
+            Callable<Band> task = new Callable<Band>() {
+
+                public Band call() throws Exception {
+                    byte[] data = filterRows(image, firstRow, endRow, filter);
+                    int dictionaryLength = (startRow - firstRow) * rowSize;
+                    return deflate(data, dictionaryLength, level, last);
+                }
+            };
+            if (last && futures.isEmpty()) {
+                // single band, no point in going through the executor
+                futures.add(new CompletedBand(call(task)));
+            } else {
+                futures.add(executor.submit(task));
+            }
+        }
+
+        // write out the compressed bands in order, as soon as they are ready
+        try {
+            long adler = 1;
+            boolean first = true;
+            for (Future<Band> future : futures) {
+                Band band = future.get();
+                adler = first ? band.adler : combineAdler32(adler, band.adler, band.length);
+                byte[] chunk = band.compressed;
+                if (first) {
+                    chunk = prepend(zlibHeader(level), chunk);
+                    first = false;
+                }
+                writeChunk(dos, "IDAT", chunk, chunk.length);
+            }
+            byte[] trailer = new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                    (byte) (adler >>> 8), (byte) adler };
+            writeChunk(dos, "IDAT", trailer, trailer.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding the PNG image");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) new IOException("Failed to encode the PNG image").initCause(cause);
+        } finally {
+            for (Future<Band> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        writeChunk(dos, "IEND", new byte[0], 0);
+        dos.flush();
+    }
+
+    static Band call(Callable<Band> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException) new IOException("Failed to encode the PNG image").initCause(e);
+        }
+    }
+
+    /**
+     * Reads the specified rows and turns them into filtered PNG scanlines
+     */
+    static byte[] filterRows(RenderedImage image, int startRow, int endRow, int filter) {
+        final int width = image.getWidth();
+        final int bands = image.getSampleModel().getNumBands();
+        final int rowSize = width * bands + 1;
+        final int minX = image.getMinX();
+        final int minY = image.getMinY();
+        Raster raster = image.getData(new Rectangle(minX, minY + startRow, width, endRow
+                - startRow));
+        byte[] result = new byte[rowSize * (endRow - startRow)];
+        int[] samples = new int[width * bands];
+        int offset = 0;
+        for (int row = startRow; row < endRow; row++) {
+            raster.getPixels(minX, minY + row, width, 1, samples);
+            result[offset++] = (byte) filter;
+            if (filter == FILTER_SUB) {
+                for (int i = 0; i < bands && i < samples.length; i++) {
+                    result[offset + i] = (byte) samples[i];
+                }
+                for (int i = bands; i < samples.length; i++) {
+                    result[offset + i] = (byte) (samples[i] - samples[i - bands]);
+                }
+            } else {
+                for (int i = 0; i < samples.length; i++) {
+                    result[offset + i] = (byte) samples[i];
+                }
+            }
+            offset += samples.length;
+        }
+        return result;
+    }
+
+    /**
+     * Deflates the data past the dictionary, using the data before it as the dictionary
+     */
+    static Band deflate(byte[] data, int dictionaryLength, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionaryLength > 0) {
+                int length = Math.min(dictionaryLength, WINDOW_SIZE);
+                deflater.setDictionary(data, dictionaryLength - length, length);
+            }
+            int length = data.length - dictionaryLength;
+            deflater.setInput(data, dictionaryLength, length);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(1024, Math.min(length, 64 * 1024))];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    bos.write(buffer, 0, n);
+                }
+            } else {
+                // sync flush ends the band on a byte boundary, without marking the stream end
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    bos.write(buffer, 0, n);
+                } while (n == buffer.length || !deflater.needsInput());
+            }
+
+            Adler32 adler = new Adler32();
+            adler.update(data, dictionaryLength, length);
+            return new Band(bos.toByteArray(), adler.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive blocks, same as zlib adler32_combine
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long BASE = 65521;
+        long rem = length2 % BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % BASE;
+        sum1 += (adler2 & 0xffff) + BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum1 >= BASE) {
+            sum1 -= BASE;
+        }
+        if (sum2 >= (BASE << 1)) {
+            sum2 -= (BASE << 1);
+        }
+        if (sum2 >= BASE) {
+            sum2 -= BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    static byte[] zlibHeader(int level) {
+        // deflate with a 32k window, plus the compression level hint
+        int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    static byte[] prepend(byte[] head, byte[] data) {
+        byte[] result = new byte[head.length + data.length];
+        System.arraycopy(head, 0, result, 0, head.length);
+        System.arraycopy(data, 0, result, head.length, data.length);
+        return result;
+    }
+
+    static void writeHeader(DataOutputStream dos, int width, int height, int colorType)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(bos);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeByte(8); // bit depth
+        header.writeByte(colorType);
+        header.writeByte(0); // deflate compression
+        header.writeByte(0); // adaptive filtering
+        header.writeByte(0); // no interlace
+        writeChunk(dos, "IHDR", bos.toByteArray(), bos.size());
+    }
+
+    static void writePalette(DataOutputStream dos, IndexColorModel icm) throws IOException {
+        int size = icm.getMapSize();
+        byte[] rgb = new byte[size * 3];
+        byte[] alpha = new byte[size];
+        int lastTranslucent = -1;
+        for (int i = 0; i < size; i++) {
+            rgb[i * 3] = (byte) icm.getRed(i);
+            rgb[i * 3 + 1] = (byte) icm.getGreen(i);
+            rgb[i * 3 + 2] = (byte) icm.getBlue(i);
+            alpha[i] = (byte) icm.getAlpha(i);
+            if (icm.getAlpha(i) != 255) {
+                lastTranslucent = i;
+            }
+        }
+        writeChunk(dos, "PLTE", rgb, rgb.length);
+        if (icm.getTransparency() != Transparency.OPAQUE && lastTranslucent >= 0) {
+            writeChunk(dos, "tRNS", alpha, lastTranslucent + 1);
+        }
+    }
+
+    static void writeChunk(DataOutputStream dos, String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        dos.writeInt(length);
+        dos.write(typeBytes);
+        dos.write(data, 0, length);
+        dos.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * A compressed band, along with the checksum and length of the uncompressed data
+     */
+    static class Band {
+        final byte[] compressed;
+
+        final long adler;
+
+        final long length;
+
+        Band(byte[] compressed, long adler, long length) {
+            this.compressed = compressed;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A band compressed in the calling thread
+     */
+    static class CompletedBand implements Future<Band> {
+        final Band band;
+
+        CompletedBand(Band band) {
+            this.band = band;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return false;
+        }
+
+        public boolean isDone() {
+            return true;
+        }
+
+        public Band get() {
+            return band;
+        }
+
+        public Band get(long timeout, TimeUnit unit) {
+            return band;
+        }
+    }
+}
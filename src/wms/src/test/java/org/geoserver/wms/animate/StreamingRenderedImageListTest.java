@@ -0,0 +1,136 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.animate;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.platform.ServiceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamingRenderedImageListTest {
+
+    ExecutorService executor;
+
+    AtomicInteger started = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    List<Callable<RenderedImage>> loaders(int count) {
+        List<Callable<RenderedImage>> loaders = new ArrayList<Callable<RenderedImage>>();
+        for (int i = 0; i < count; i++) {
+            // later frames are faster, they complete out of order
+            final int width = i + 1;
+            final long delay = (count - i) * 5;
+            loaders.add(new Callable<RenderedImage>() {
+
+                @Override
+                public RenderedImage call() throws Exception {
+                    started.incrementAndGet();
+                    Thread.sleep(delay);
+                    return new BufferedImage(width, 1, BufferedImage.TYPE_BYTE_INDEXED);
+                }
+            });
+        }
+        return loaders;
+    }
+
+    @Test
+    public void testOrderAndWindow() {
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders(10),
+                executor, 3, null);
+        assertEquals(10, frames.size());
+        assertEquals(0, started.get());
+
+        for (int i = 0; i < 10; i++) {
+            RenderedImage image = (RenderedImage) frames.get(i);
+            assertEquals(i + 1, image.getWidth());
+            // the same frame can be read again, the previous one has been released
+            assertSame(image, frames.get(i));
+            if (i > 0) {
+                assertNull(frames.get(i - 1));
+            }
+            assertTrue(started.get() <= i + 3);
+        }
+        frames.dispose();
+        assertNull(frames.get(9));
+    }
+
+    @Test
+    public void testPrimaryImage() {
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders(3),
+                executor, 2, null);
+        // the list works as a rendered image, delegating to the first frame
+        assertEquals(1, frames.getWidth());
+        assertTrue(started.get() <= 2);
+        frames.dispose();
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders(10),
+                executor, 2, null);
+        frames.get(0);
+        frames.dispose();
+        assertNull(frames.get(5));
+        Thread.sleep(100);
+        assertTrue(started.get() <= 2);
+    }
+
+    @Test
+    public void testFailure() {
+        List<Callable<RenderedImage>> loaders = loaders(5);
+        loaders.set(2, new Callable<RenderedImage>() {
+
+            @Override
+            public RenderedImage call() throws Exception {
+                throw new IllegalStateException("Rendering failed");
+            }
+        });
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders, executor, 2,
+                null);
+        frames.get(0);
+        frames.get(1);
+        try {
+            frames.get(2);
+            fail("Should have failed");
+        } catch (ServiceException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // disposed after the failure
+        assertNull(frames.get(3));
+    }
+
+    @Test
+    public void testMaxRenderingSize() {
+        // each frame is estimated at 2 bytes, with a window of 4 the limit is hit
+        StreamingRenderedImageList frames = new StreamingRenderedImageList(loaders(5),
+                executor, 4, 8l);
+        try {
+            frames.get(0);
+            fail("Should have failed");
+        } catch (ServiceException e) {
+            assertEquals("Max rendering size exceed!", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.dimension;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DimensionDefaultValueSetting;
+import org.geoserver.catalog.DimensionDefaultValueSetting.Strategy;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.DimensionPresentation;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.impl.DimensionInfoImpl;
+import org.geoserver.catalog.util.DimensionDomain;
+import org.geoserver.catalog.util.DimensionDomainIndex;
+import org.geoserver.data.test.MockData;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.wfs.DimensionDomainTransactionListener;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.request.TransactionRequest;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSTestSupport;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.memory.MemoryFeatureCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Tests the time and elevation domain index, and its use in WMS
+ */
+public class DimensionDomainIndexTest extends WMSTestSupport {
+
+    static final QName TIME_ELEVATION = new QName(MockData.SF_URI, "IndexedTimeElevation",
+            MockData.SF_PREFIX);
+
+    WMS wms;
+
+    DimensionDomainIndex index;
+
+    @Override
+    protected void onSetUp(SystemTestData testData) throws Exception {
+        super.onSetUp(testData);
+        testData.addVectorLayer(TIME_ELEVATION, Collections.EMPTY_MAP,
+                "TimeElevationWithStartEnd.properties", getClass(), getCatalog());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        wms = getWMS();
+        index = GeoServerExtensions.bean(DimensionDomainIndex.class);
+        index.setTimeToLive(-1);
+        // reset the data and the dimensions
+        ((SystemTestData) testData).addVectorLayer(TIME_ELEVATION, Collections.EMPTY_MAP,
+                "TimeElevationWithStartEnd.properties", getClass(), getCatalog());
+        setupDimension(ResourceInfo.TIME, "startTime", null);
+        setupDimension(ResourceInfo.ELEVATION, "startElevation", null);
+    }
+
+    @After
+    public void disableIndex() {
+        index.setTimeToLive(0);
+    }
+
+    FeatureTypeInfo getFeatureType() {
+        return getCatalog().getFeatureTypeByName(TIME_ELEVATION.getLocalPart());
+    }
+
+    void setupDimension(String dimensionName, String attribute,
+            DimensionDefaultValueSetting defaultValue) {
+        FeatureTypeInfo info = getFeatureType();
+        DimensionInfo di = new DimensionInfoImpl();
+        di.setEnabled(true);
+        di.setAttribute(attribute);
+        di.setPresentation(DimensionPresentation.LIST);
+        di.setDefaultValue(defaultValue);
+        info.getMetadata().put(dimensionName, di);
+        getCatalog().save(info);
+    }
+
+    void addFeature(int id, Date time, Double elevation) throws IOException {
+        FeatureTypeInfo info = getFeatureType();
+        FeatureStore fs = (FeatureStore) info.getFeatureSource(null, null);
+        SimpleFeatureType type = (SimpleFeatureType) info.getFeatureType();
+        MemoryFeatureCollection coll = new MemoryFeatureCollection(type);
+        coll.add(DataUtilities.createFeature(type, id + "|" + time + "||" + elevation + "|"));
+        org.geotools.data.Transaction tx = fs.getTransaction();
+        fs.addFeatures(coll);
+        tx.commit();
+    }
+
+    @Test
+    public void testDomains() throws Exception {
+        FeatureTypeInfo info = getFeatureType();
+        TreeSet<java.util.Date> times = wms.getFeatureTypeTimes(info);
+        assertEquals(2, times.size());
+        assertEquals(Date.valueOf("2012-02-11").getTime(), times.first().getTime());
+        assertEquals(Date.valueOf("2012-02-12").getTime(), times.last().getTime());
+        assertEquals(Arrays.asList(1.0, 2.0), Arrays.asList(wms.getFeatureTypeElevations(info)
+                .toArray()));
+
+        // the domains have been persisted
+        Resource directory = getResourceLoader().get("dimensions");
+        assertEquals(Resource.Type.DIRECTORY, directory.getType());
+        assertEquals(2, directory.list().size());
+    }
+
+    @Test
+    public void testIndexedUntilInvalidated() throws Exception {
+        FeatureTypeInfo info = getFeatureType();
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+
+        // changes made straight to the store are not seen
+        addFeature(1000, Date.valueOf("2012-02-20"), 5d);
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+
+        index.invalidate(info.getId());
+        assertEquals(Arrays.asList(1.0, 2.0, 5.0), Arrays.asList(wms
+                .getFeatureTypeElevations(info).toArray()));
+        assertEquals(3, wms.getFeatureTypeTimes(info).size());
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        FeatureTypeInfo info = getFeatureType();
+        // not computed yet, nothing happens
+        index.add(info, ResourceInfo.ELEVATION, Arrays.asList(10d));
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+
+        index.add(info, ResourceInfo.ELEVATION, Arrays.asList(7d, 1d));
+        assertEquals(Arrays.asList(1.0, 2.0, 7.0), Arrays.asList(wms
+                .getFeatureTypeElevations(info).toArray()));
+    }
+
+    @Test
+    public void testCatalogChange() throws Exception {
+        FeatureTypeInfo info = getFeatureType();
+        assertEquals(Arrays.asList(1.0, 2.0), Arrays.asList(wms.getFeatureTypeElevations(info)
+                .toArray()));
+
+        setupDimension(ResourceInfo.ELEVATION, "endElevation", null);
+        assertEquals(Arrays.asList(2.0, 3.0), Arrays.asList(wms.getFeatureTypeElevations(
+                getFeatureType()).toArray()));
+    }
+
+    @Test
+    public void testDefaultValue() throws Exception {
+        DimensionDefaultValueSetting setting = new DimensionDefaultValueSetting();
+        setting.setStrategyType(Strategy.MAXIMUM);
+        setupDimension(ResourceInfo.ELEVATION, "startElevation", setting);
+        FeatureTypeInfo info = getFeatureType();
+        assertEquals(2d, wms.getDefaultElevation(info), 1e-6);
+
+        addFeature(1000, Date.valueOf("2012-02-20"), 9d);
+        assertEquals(2d, wms.getDefaultElevation(info), 1e-6);
+        index.invalidate(info.getId());
+        assertEquals(9d, wms.getDefaultElevation(info), 1e-6);
+
+        setting = new DimensionDefaultValueSetting();
+        setting.setStrategyType(Strategy.NEAREST);
+        setting.setReferenceValue("4");
+        setupDimension(ResourceInfo.ELEVATION, "startElevation", setting);
+        assertEquals(2d, wms.getDefaultElevation(getFeatureType()), 1e-6);
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        // a new index, as after a restart
+        Catalog catalog = getGeoServer().getCatalog();
+        DimensionDomainIndex other = new DimensionDomainIndex(catalog, getResourceLoader());
+        try {
+            other.setTimeToLive(-1);
+            FeatureTypeInfo info = getFeatureType();
+            DimensionDomain domain = index.getDomain(info, ResourceInfo.TIME);
+            assertEquals(2, domain.size());
+            assertEquals(1, getResourceLoader().get("dimensions").list().size());
+
+            // reads back the persisted domain instead of scanning the layer
+            DimensionDomain read = other.getDomain(info, ResourceInfo.TIME);
+            assertEquals(domain.getCreated(), read.getCreated());
+            assertEquals(domain.getTimes(), read.getTimes());
+        } finally {
+            catalog.removeListener(other);
+        }
+    }
+
+    @Test
+    public void testAddDropsPersisted() throws Exception {
+        // a new index, as after a restart, not loading the domain yet
+        Catalog catalog = getGeoServer().getCatalog();
+        DimensionDomainIndex other = new DimensionDomainIndex(catalog, getResourceLoader());
+        try {
+            other.setTimeToLive(-1);
+            FeatureTypeInfo info = getFeatureType();
+            assertEquals(2, index.getDomain(info, ResourceInfo.ELEVATION).size());
+            Resource directory = getResourceLoader().get("dimensions");
+            assertEquals(1, directory.list().size());
+
+            // extended in memory, the persisted copy is stale until flushed
+            index.add(info, ResourceInfo.ELEVATION, Arrays.asList(7d));
+            assertEquals(0, directory.list().size());
+            index.flush();
+            assertEquals(1, directory.list().size());
+
+            // not loaded by the other index, the persisted copy is dropped
+            other.add(info, ResourceInfo.ELEVATION, Arrays.asList(8d));
+            assertEquals(0, directory.list().size());
+        } finally {
+            catalog.removeListener(other);
+        }
+    }
+
+    @Test
+    public void testTransactionChanges() throws Exception {
+        FeatureTypeInfo info = getFeatureType();
+        assertEquals(Arrays.asList(1.0, 2.0), Arrays.asList(wms.getFeatureTypeElevations(info)
+                .toArray()));
+        DimensionDomainTransactionListener listener = new DimensionDomainTransactionListener(
+                getCatalog(), index);
+
+        // rolled back, the domain does not change
+        DefaultTransaction tx = new DefaultTransaction();
+        listener.dataStoreChange(insertEvent(tx, 5d));
+        tx.rollback();
+        tx.close();
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+
+        // committed, the values are added once the transaction is closed
+        tx = new DefaultTransaction();
+        listener.dataStoreChange(insertEvent(tx, 6d));
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+        tx.commit();
+        tx.close();
+        assertEquals(Arrays.asList(1.0, 2.0, 6.0), Arrays.asList(wms
+                .getFeatureTypeElevations(info).toArray()));
+        index.flush();
+
+        // deletes drop the persisted domain only after the commit
+        Resource directory = getResourceLoader().get("dimensions");
+        assertEquals(1, directory.list().size());
+        tx = new DefaultTransaction();
+        listener.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_DELETE,
+                request(tx), TIME_ELEVATION, null));
+        assertEquals(1, directory.list().size());
+        tx.commit();
+        tx.close();
+        assertEquals(0, directory.list().size());
+        assertEquals(2, wms.getFeatureTypeElevations(info).size());
+    }
+
+    TransactionEvent insertEvent(org.geotools.data.Transaction tx, double elevation)
+            throws Exception {
+        SimpleFeatureType type = (SimpleFeatureType) getFeatureType().getFeatureType();
+        MemoryFeatureCollection features = new MemoryFeatureCollection(type);
+        features.add(DataUtilities.createFeature(type, "1000|2012-02-20||" + elevation + "|"));
+        return new TransactionEvent(TransactionEventType.POST_INSERT, request(tx),
+                TIME_ELEVATION, features);
+    }
+
+    TransactionRequest request(org.geotools.data.Transaction tx) {
+        TransactionRequest request = TransactionRequest.adapt(WfsFactory.eINSTANCE
+                .createTransactionType());
+        request.setTransaction(tx);
+        return request;
+    }
+}
@@ -0,0 +1,105 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.geoserver.wms.RasterCleaner;
+import org.junit.Test;
+
+public class CanvasPoolTest {
+
+    static final long MB = 1024 * 1024;
+
+    @Test
+    public void testReuse() {
+        CanvasPool pool = new CanvasPool(MB);
+        BufferedImage image = pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        image.setRGB(10, 10, 0xFFFF0000);
+        assertTrue(pool.release(image));
+        assertEquals(1, pool.getCount());
+        assertEquals(40000, pool.getSize());
+
+        // different type or size, not reused
+        BufferedImage other = pool.acquire(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+        assertNotSame(image, other);
+        other = pool.acquire(100, 50, BufferedImage.TYPE_4BYTE_ABGR);
+        assertNotSame(image, other);
+
+        // same type and size, reused and cleared
+        BufferedImage reused = pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        assertSame(image, reused);
+        assertEquals(0, reused.getRGB(10, 10));
+        assertEquals(0, pool.getCount());
+        assertEquals(0, pool.getSize());
+
+        assertEquals(4, pool.getRequests());
+        assertEquals(1, pool.getReuses());
+        assertEquals(0.25, pool.getReuseRatio(), 0d);
+        assertEquals(40000, pool.getBytesSaved());
+    }
+
+    @Test
+    public void testReleaseOnlyOnce() {
+        CanvasPool pool = new CanvasPool(MB);
+        BufferedImage image = pool.acquire(10, 10, BufferedImage.TYPE_INT_ARGB_PRE);
+        assertTrue(pool.release(image));
+        assertFalse(pool.release(image));
+        assertEquals(1, pool.getCount());
+
+        // foreign and detached images are not accepted
+        assertFalse(pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB_PRE)));
+        BufferedImage detached = pool.acquire(20, 20, BufferedImage.TYPE_INT_ARGB_PRE);
+        pool.detach(detached);
+        assertFalse(pool.release(detached));
+        assertEquals(1, pool.getCount());
+    }
+
+    @Test
+    public void testMemoryCeiling() {
+        // room for two 100x100 ABGR images
+        CanvasPool pool = new CanvasPool(80000);
+        BufferedImage i1 = pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage i2 = pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage i3 = pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage big = pool.acquire(200, 200, BufferedImage.TYPE_4BYTE_ABGR);
+        assertTrue(pool.release(i1));
+        assertTrue(pool.release(i2));
+        assertTrue(pool.release(i3));
+        assertFalse(pool.release(big));
+        assertEquals(2, pool.getCount());
+        assertEquals(80000, pool.getSize());
+        assertEquals(2, pool.getDiscarded());
+
+        // the least recently released went away
+        assertSame(i3, pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR));
+        assertSame(i2, pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR));
+        assertNotSame(i1, pool.acquire(100, 100, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void testDisabled() {
+        CanvasPool pool = new CanvasPool(0);
+        BufferedImage image = pool.acquire(10, 10, BufferedImage.TYPE_4BYTE_ABGR);
+        assertFalse(pool.release(image));
+        assertEquals(0, pool.getCount());
+    }
+
+    @Test
+    public void testRasterCleanerRelease() {
+        CanvasPool pool = CanvasPool.get();
+        pool.clear();
+        BufferedImage image = ImageUtils.createImage(64, 64, null, true, pool);
+        RasterCleaner.addImage(image);
+        new RasterCleaner().finished(null);
+        assertSame(image, ImageUtils.createImage(64, 64, null, true, pool));
+    }
+}
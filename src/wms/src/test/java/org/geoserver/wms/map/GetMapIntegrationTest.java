@@ -13,12 +13,15 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
 import javax.imageio.ImageIO;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.namespace.QName;
 
 import org.custommonkey.xmlunit.NamespaceContext;
@@ -205,6 +208,27 @@ public class GetMapIntegrationTest extends WMSTestSupport {
         }
     }
     
+    @Test
+    public void testMetaTileCacheStatistics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.geoserver:type=WMS,name=MetaTileCache");
+        server.invoke(name, "clear", null, null);
+        server.invoke(name, "resetStatistics", null, null);
+
+        // two tiles of the same meta-tile, the second one does not need to be rendered
+        String request = "wms?LAYERS=cite%3ALakes&STYLES=&FORMAT=image%2Fpng&TILED=true&TILESORIGIN=0.0006%2C-0.0018"
+                + "&SERVICE=WMS&VERSION=1.1.1&REQUEST=GetMap&SRS=EPSG%3A4326&WIDTH=256&HEIGHT=256";
+        getAsImage(request + "&BBOX=0.0006,-0.0018,0.0031,0.0007", "image/png");
+        getAsImage(request + "&BBOX=0.0031,-0.0018,0.0056,0.0007", "image/png");
+
+        assertEquals(1l, server.getAttribute(name, "MetaTilesRendered"));
+        assertEquals(1l, server.getAttribute(name, "TileHits"));
+        assertEquals(1l, server.getAttribute(name, "RendersSaved"));
+        assertEquals(0l, server.getAttribute(name, "FullySavedMetaTiles"));
+        assertEquals(1d, server.getAttribute(name, "RendersSavedPerMetaTile"));
+        assertEquals(1l, server.getAttribute(name, "Size"));
+    }
+
     @Test
     public void testOpenLayersProxy() throws Exception {
         NamespaceContext oldContext = XMLUnit.getXpathNamespaceContext();
@@ -5,10 +5,22 @@
 package org.geoserver.wms.map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
-
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.map.QuickTileCache.MapKey;
+import org.geoserver.wms.map.QuickTileCache.MetaTileKey;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.Test;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -66,4 +78,97 @@ public class QuickTileCacheTest {
         assertEquals(new Point(0, 2), cache.getTileOffsetsInMeta(box1, meta));
         assertEquals(new Point(1, 2), cache.getTileOffsetsInMeta(box2, meta));
     }
+
+    MetaTileKey buildKey(int x, String... layers) {
+        MapKey mapKey = new MapKey("LAYERS=" + Arrays.toString(layers), 1, new Point2D.Double(0,
+                0));
+        ReferencedEnvelope envelope = new ReferencedEnvelope(x * 768, x * 768 + 768, 0, 768,
+                DefaultGeographicCRS.WGS84);
+        MetaTileKey key = new MetaTileKey(mapKey, new Point(x * 3, 0), envelope);
+        key.layers = new HashSet<String>(Arrays.asList(layers));
+        return key;
+    }
+
+    RenderedImage[] buildTiles() {
+        RenderedImage[] tiles = new RenderedImage[9];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+        return tiles;
+    }
+
+    GetMapRequest buildRequest(MetaTileKey key, int tileX, int tileY) {
+        ReferencedEnvelope meta = key.getMetaTileEnvelope();
+        GetMapRequest request = new GetMapRequest();
+        request.setCrs(DefaultGeographicCRS.WGS84);
+        request.setBbox(new Envelope(meta.getMinX() + tileX * 256, meta.getMinX() + tileX * 256
+                + 256, meta.getMinY() + tileY * 256, meta.getMinY() + tileY * 256 + 256));
+        return request;
+    }
+
+    @Test
+    public void testSavedRenders() {
+        MetaTileKey key = buildKey(0, "topp:states");
+        RenderedImage[] tiles = buildTiles();
+        assertNull(cache.getTile(key, buildRequest(key, 0, 0)));
+
+        assertSame(tiles[0], cache.storeTiles(key, tiles, buildRequest(key, 0, 0)));
+        assertEquals(1, cache.getMetaTilesRendered());
+        assertEquals(1, cache.getSize());
+        assertEquals(9 * 256 * 256 * 4, cache.getSizeInBytes());
+
+        // asking again for the same tile does not save a render, the tile was already rendered
+        assertSame(tiles[0], cache.getTile(key, buildRequest(key, 0, 0)));
+        assertEquals(1, cache.getTileHits());
+        assertEquals(0, cache.getRendersSaved());
+
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 3; x++) {
+                assertSame(tiles[x + y * 3], cache.getTile(key, buildRequest(key, x, y)));
+            }
+        }
+        assertEquals(10, cache.getTileHits());
+        assertEquals(8, cache.getRendersSaved());
+        assertEquals(1, cache.getFullySavedMetaTiles());
+        assertEquals(1, cache.getFullySavedRatio(), 0d);
+        assertEquals(8, cache.getRendersSavedPerMetaTile(), 0d);
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getMetaTilesRendered());
+        assertEquals(0, cache.getRendersSaved());
+        assertEquals(0, cache.getRendersSavedPerMetaTile(), 0d);
+        // the cache contents are not affected
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateLayer() {
+        MetaTileKey k1 = buildKey(0, "states-id");
+        MetaTileKey k2 = buildKey(1, "roads-id");
+        MetaTileKey k3 = buildKey(2, "states-id", "roads-id");
+        cache.storeTiles(k1, buildTiles());
+        cache.storeTiles(k2, buildTiles());
+        cache.storeTiles(k3, buildTiles());
+        assertEquals(3, cache.getSize());
+
+        cache.invalidate("states-id");
+        assertEquals(1, cache.getSize());
+        assertNull(cache.getTile(k1, buildRequest(k1, 0, 0)));
+        assertNull(cache.getTile(k3, buildRequest(k3, 0, 0)));
+        assertTrue(cache.getTile(k2, buildRequest(k2, 0, 0)) != null);
+        // explicit invalidation is not an eviction
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testMaxSize() {
+        long metaTileSize = 9 * 256 * 256 * 4;
+        QuickTileCache cache = new QuickTileCache(metaTileSize * 8);
+        for (int i = 0; i < 20; i++) {
+            cache.storeTiles(buildKey(i, "layer"), buildTiles());
+        }
+        assertTrue(cache.getSizeInBytes() <= metaTileSize * 8);
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(20, cache.getMetaTilesRendered());
+    }
 }
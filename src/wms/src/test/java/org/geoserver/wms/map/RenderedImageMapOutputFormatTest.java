@@ -5,6 +5,7 @@
 package org.geoserver.wms.map;
 
 import static org.geoserver.data.test.SystemTestData.STREAMS;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -15,6 +16,8 @@ import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,6 +32,7 @@ import org.geoserver.platform.ServiceException;
 import org.geoserver.security.decorators.DecoratingFeatureSource;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSInfo;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WMSTestSupport;
 import org.geotools.data.FeatureSource;
@@ -122,6 +126,132 @@ public class RenderedImageMapOutputFormatTest extends WMSTestSupport {
 
     @Test 
     public void testBlueLake() throws IOException, IllegalFilterException, Exception {
+        final WMSMapContent map = createBlueLakeMap();
+        RenderedImageMap imageMap = this.rasterMapProducer.produceMap(map);
+        BufferedImage image = (BufferedImage) imageMap.getImage();
+        imageMap.dispose();
+        assertNotBlank("testBlueLake", image);
+    }
+
+    @Test
+    public void testParallelLayerRendering() throws Exception {
+        RenderedImageMap imageMap = this.rasterMapProducer.produceMap(createBlueLakeMap());
+        BufferedImage expected = (BufferedImage) imageMap.getImage();
+        imageMap.dispose();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            RenderedImageMapOutputFormat parallelProducer = new ParallelRasterMapProducer(
+                    getWMS(), executor);
+            imageMap = parallelProducer.produceMap(createBlueLakeMap());
+            BufferedImage actual = (BufferedImage) imageMap.getImage();
+            imageMap.dispose();
+            assertNotBlank("testParallelLayerRendering", actual);
+
+            // compositing the layers separately introduces rounding differences, and labels
+            // with the same priority might be placed in a different order
+            assertEquals(expected.getWidth(), actual.getWidth());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            int differences = 0;
+            for (int x = 0; x < expected.getWidth(); x++) {
+                for (int y = 0; y < expected.getHeight(); y++) {
+                    Color ce = new Color(expected.getRGB(x, y), true);
+                    Color ca = new Color(actual.getRGB(x, y), true);
+                    if (Math.abs(ce.getRed() - ca.getRed()) > 2
+                            || Math.abs(ce.getGreen() - ca.getGreen()) > 2
+                            || Math.abs(ce.getBlue() - ca.getBlue()) > 2
+                            || Math.abs(ce.getAlpha() - ca.getAlpha()) > 2) {
+                        differences++;
+                    }
+                }
+            }
+            assertTrue(differences < expected.getWidth() * expected.getHeight() / 100);
+
+            // non ignorable errors still make the request fail
+            this.rasterMapProducer = parallelProducer;
+            SimpleFeatureSource streams = getStreamsSource();
+            try {
+                renderLayers(streams, failingSource(streams, new RuntimeException(
+                        "fake runtime exception")));
+                fail("Expected WMSException");
+            } catch (ServiceException e) {
+                assertTrue(true);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelRenderingTimeout() throws Exception {
+        WMSInfo wms = getGeoServer().getService(WMSInfo.class);
+        int maxRenderingTime = wms.getMaxRenderingTime();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            wms.setMaxRenderingTime(1);
+            getGeoServer().save(wms);
+            this.rasterMapProducer = new ParallelRasterMapProducer(getWMS(), executor);
+
+            final SimpleFeatureSource streams = getStreamsSource();
+            SimpleFeatureSource slow = new DecoratingFeatureSource(streams) {
+                @Override
+                public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+                    try {
+                        Thread.sleep(3000);
+                    } catch (InterruptedException e) {
+                        // the enforcer stops the renderer, go on
+                    }
+                    return super.getFeatures(query);
+                }
+            };
+            long start = System.currentTimeMillis();
+            try {
+                renderLayers(streams, slow);
+                fail("Expected WMSException");
+            } catch (ServiceException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Max rendering time is 1.0s"));
+            }
+            // the layers are stopped, not painted to the end
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        } finally {
+            executor.shutdown();
+            wms.setMaxRenderingTime(maxRenderingTime);
+            getGeoServer().save(wms);
+        }
+    }
+
+    @Test
+    public void testParallelMaxRenderingErrors() throws Exception {
+        WMSInfo wms = getGeoServer().getService(WMSInfo.class);
+        int maxRenderingErrors = wms.getMaxRenderingErrors();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            wms.setMaxRenderingErrors(1);
+            getGeoServer().save(wms);
+            this.rasterMapProducer = new ParallelRasterMapProducer(getWMS(), executor);
+
+            // one ignorable error is within the limit
+            SimpleFeatureSource streams = getStreamsSource();
+            assertNotNull(renderLayers(streams, failingSource(streams, new TransformException(
+                    "fake transform exception"))));
+
+            // the errors of all the layers count against the same limit
+            try {
+                renderLayers(failingSource(streams, new TransformException(
+                        "fake transform exception")), failingSource(streams,
+                        new FactoryException("fake factory exception")));
+                fail("Expected WMSException");
+            } catch (ServiceException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("More than 1 rendering errors"));
+            }
+        } finally {
+            executor.shutdown();
+            wms.setMaxRenderingErrors(maxRenderingErrors);
+            getGeoServer().save(wms);
+        }
+    }
+
+    private WMSMapContent createBlueLakeMap() throws IOException {
         final Catalog catalog = getCatalog();
         org.geoserver.catalog.FeatureTypeInfo typeInfo = catalog.getFeatureTypeByName(
                 MockData.LAKES.getNamespaceURI(), MockData.LAKES.getLocalPart());
@@ -155,10 +285,7 @@ public class RenderedImageMapOutputFormatTest extends WMSTestSupport {
         map.getViewport().setBounds(new ReferencedEnvelope(env, DefaultGeographicCRS.WGS84));
 
         request.setFormat(getMapFormat());
-        RenderedImageMap imageMap = this.rasterMapProducer.produceMap(map);
-        BufferedImage image = (BufferedImage) imageMap.getImage();
-        imageMap.dispose();
-        assertNotBlank("testBlueLake", image);
+        return map;
     }
 
     private void addToMap(final WMSMapContent map, final QName typeName) throws IOException {
@@ -299,6 +426,51 @@ public class RenderedImageMapOutputFormatTest extends WMSTestSupport {
         return image;
     }
 
+    private SimpleFeatureSource getStreamsSource() throws IOException {
+        final FeatureTypeInfo ftInfo = getCatalog().getFeatureTypeByName(STREAMS.getNamespaceURI(),
+                STREAMS.getLocalPart());
+        return (SimpleFeatureSource) ftInfo.getFeatureSource(null, null);
+    }
+
+    /**
+     * Returns a source making the renderer fail with {@code renderExceptionToThrow} wrapped in a
+     * RuntimeException when it asks for the features
+     */
+    private SimpleFeatureSource failingSource(SimpleFeatureSource featureSource,
+            final Exception renderExceptionToThrow) {
+        return new DecoratingFeatureSource(featureSource) {
+            @Override
+            public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+                throw new RuntimeException(renderExceptionToThrow);
+            }
+        };
+    }
+
+    /**
+     * Renders a map with a layer for each source, all painted with the line style, so that the
+     * layers can be rendered in parallel
+     */
+    private RenderedImage renderLayers(SimpleFeatureSource... sources) throws Exception {
+        GetMapRequest request = new GetMapRequest();
+        final WMSMapContent map = new WMSMapContent();
+        map.setMapWidth(100);
+        map.setMapHeight(100);
+        map.setRequest(request);
+        map.getViewport().setBounds(
+                new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+
+        StyleInfo someStyle = getCatalog().getStyleByName("line");
+        for (SimpleFeatureSource source : sources) {
+            map.addLayer(new FeatureLayer(source, someStyle.getStyle()));
+        }
+        request.setFormat(getMapFormat());
+        RenderedImageMap imageMap = this.rasterMapProducer.produceMap(map);
+        BufferedImage image = (BufferedImage) imageMap.getImage();
+        imageMap.dispose();
+
+        return image;
+    }
+
     /**
      * This dummy producer adds no functionality to DefaultRasterMapOutputFormat, just implements a
      * void formatImageOutputStream to have a concrete class over which test that
@@ -314,4 +486,22 @@ public class RenderedImageMapOutputFormatTest extends WMSTestSupport {
         }
     }
 
+    /**
+     * Renders the map layers in parallel using the provided executor
+     */
+    private static class ParallelRasterMapProducer extends DummyRasterMapProducer {
+
+        ExecutorService executor;
+
+        public ParallelRasterMapProducer(WMS wms, ExecutorService executor) {
+            super(wms);
+            this.executor = executor;
+        }
+
+        @Override
+        protected ExecutorService getLayerRenderingPool() {
+            return executor;
+        }
+    }
+
 }
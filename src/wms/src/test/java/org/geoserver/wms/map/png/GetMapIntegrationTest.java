@@ -14,6 +14,9 @@ import java.io.InputStream;
 
 import javax.imageio.ImageIO;
 
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.JAIInfo;
+import org.geoserver.config.JAIInfo.PngEncoderType;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.wms.WMSTestSupport;
@@ -103,6 +106,41 @@ public class GetMapIntegrationTest extends WMSTestSupport {
         assertEquals(Transparency.TRANSLUCENT , cm.getTransparency());
     }
 
-    
+    @Test
+    public void testParallelEncoder() throws Exception {
+        GeoServerInfo global = getGeoServer().getGlobal();
+        JAIInfo jai = global.getJAI();
+        PngEncoderType oldEncoder = jai.getPngEncoderType();
+        jai.setPngEncoderType(PngEncoderType.PARALLEL);
+        getGeoServer().save(global);
+        try {
+            MockHttpServletResponse response = getAsServletResponse("wms?bbox=" + bbox
+                    + "&styles=&layers=" + layers + "&Format=image/png" + "&request=GetMap"
+                    + "&width=550" + "&height=250" + "&srs=EPSG:4326&transparent=true");
+            assertEquals("image/png", response.getContentType());
+            BufferedImage bi = ImageIO.read(getBinaryInputStream(response));
+            assertTrue(bi.getColorModel().hasAlpha());
+            int opaque = 0;
+            for (int x = 0; x < bi.getWidth(); x++) {
+                for (int y = 0; y < bi.getHeight(); y++) {
+                    if ((bi.getRGB(x, y) >>> 24) == 255) {
+                        opaque++;
+                    }
+                }
+            }
+            assertTrue(opaque > 0);
+
+            response = getAsServletResponse("wms?bbox=" + bbox + "&styles=&layers=" + layers
+                    + "&Format=image/png8" + "&request=GetMap" + "&width=550" + "&height=250"
+                    + "&srs=EPSG:4326&transparent=true");
+            assertEquals("image/png; mode=8bit", response.getContentType());
+            bi = ImageIO.read(getBinaryInputStream(response));
+            IndexColorModel cm = (IndexColorModel) bi.getColorModel();
+            assertEquals(Transparency.TRANSLUCENT, cm.getTransparency());
+        } finally {
+            jai.setPngEncoderType(oldEncoder);
+            getGeoServer().save(global);
+        }
+    }
     
 }
@@ -0,0 +1,158 @@
+/* Copyright (c) 2001 - 2013 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map.png;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelPNGEncoderTest {
+
+    static ExecutorService executor;
+
+    @BeforeClass
+    public static void setupExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void shutdownExecutor() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSupported() {
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_3BYTE_BGR)));
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_4BYTE_ABGR)));
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_INT_ARGB)));
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_BYTE_GRAY)));
+        assertTrue(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_BYTE_INDEXED)));
+        assertFalse(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_INT_ARGB_PRE)));
+        assertFalse(ParallelPNGEncoder.isSupported(new BufferedImage(10, 10,
+                BufferedImage.TYPE_USHORT_GRAY)));
+    }
+
+    @Test
+    public void testRGB() throws Exception {
+        assertRoundTrip(createImage(BufferedImage.TYPE_3BYTE_BGR), false);
+        assertRoundTrip(createImage(BufferedImage.TYPE_3BYTE_BGR), true);
+    }
+
+    @Test
+    public void testRGBA() throws Exception {
+        assertRoundTrip(createImage(BufferedImage.TYPE_4BYTE_ABGR), false);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_ARGB), true);
+    }
+
+    @Test
+    public void testGray() throws Exception {
+        assertRoundTrip(createImage(BufferedImage.TYPE_BYTE_GRAY), true);
+    }
+
+    @Test
+    public void testPaletted() throws Exception {
+        byte[] r = { 0, (byte) 255, 0, 0 };
+        byte[] g = { 0, 0, (byte) 255, 0 };
+        byte[] b = { 0, 0, 0, (byte) 255 };
+        byte[] a = { 0, (byte) 255, (byte) 128, (byte) 255 };
+        IndexColorModel icm = new IndexColorModel(8, 4, r, g, b, a);
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        Random random = new Random(0);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getRaster().setSample(x, y, 0, (x / 10 + y / 10 + random.nextInt(2)) % 4);
+            }
+        }
+        BufferedImage decoded = assertRoundTrip(image, false);
+        assertTrue(decoded.getColorModel() instanceof IndexColorModel);
+    }
+
+    @Test
+    public void testSingleBand() throws Exception {
+        // the whole image fits in a band, encoded in the calling thread
+        BufferedImage image = createImage(BufferedImage.TYPE_4BYTE_ABGR);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ParallelPNGEncoder(executor, Integer.MAX_VALUE).encode(image, bos, 9, false);
+        assertSamePixels(image, ImageIO.read(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] data = new byte[100000];
+        new Random(0).nextBytes(data);
+        Adler32 full = new Adler32();
+        full.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, 40000);
+        Adler32 second = new Adler32();
+        second.update(data, 40000, 60000);
+        assertEquals(full.getValue(), ParallelPNGEncoder.combineAdler32(first.getValue(),
+                second.getValue(), 60000));
+    }
+
+    BufferedImage createImage(int type) {
+        BufferedImage image = new BufferedImage(300, 200, type);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(255, 255, 255, 0));
+        graphics.fillRect(0, 0, 300, 200);
+        Random random = new Random(0);
+        for (int i = 0; i < 50; i++) {
+            graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random
+                    .nextInt(256), random.nextInt(256)));
+            graphics.fillOval(random.nextInt(300), random.nextInt(200), random.nextInt(100),
+                    random.nextInt(100));
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    BufferedImage assertRoundTrip(BufferedImage image, boolean subFilter) throws Exception {
+        BufferedImage decoded = null;
+        for (int level : new int[] { 0, 1, 6, 9 }) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            // small bands to get plenty of them
+            new ParallelPNGEncoder(executor, 5000).encode(image, bos, level, subFilter);
+            decoded = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+            assertNotNull(decoded);
+            assertSamePixels(image, decoded);
+        }
+        return decoded;
+    }
+
+    void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getColorModel().hasAlpha(), actual.getColorModel().hasAlpha());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("Pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}